@@ -0,0 +1,300 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.rendering.LineShaderRenderer;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
+import com.google.ar.core.exceptions.NotTrackingException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * The anchors strokes are relative to, so that a drawing spread over a large area stays precise
+ * where it is drawn.
+ * <p>
+ * Every stroke belongs to one bucket, see {@link Stroke#bucket}, and its points are relative to
+ * the anchor of the bucket. Bucket {@link #ROOM} is the shared anchor of a paired session, or the
+ * world origin when there is none. When drawing alone, a local anchor is created where the user
+ * starts drawing more than {@link #SPACING} meters away from the others, and a stroke belongs to
+ * the anchor nearest its first point. Every bucket is drawn with the model matrix of its anchor,
+ * so when ARCore corrects an anchor, only its strokes move, and none of them is rewritten.
+ * <p>
+ * Updated and read on the GL thread, changed by the pairing callbacks on the UI thread. The
+ * methods that move strokes between buckets are called by the thread that owns the strokes, see
+ * {@link FramePipeline}.
+ */
+/*package*/ class AnchorBuckets {
+
+    private static final String TAG = "AnchorBuckets";
+
+    static final int ROOM = 0;
+
+    // Distance from the other anchors at which drawing creates a new one, in meters
+    private static final float SPACING = 2f;
+
+    private static final int MAX_BUCKETS = 32;
+
+    private static final float[] IDENTITY = new float[16];
+
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    // Anchor of every bucket by id, the room anchor is null when not paired
+    private final List<Anchor> mAnchors = new ArrayList<>();
+
+    private final List<float[]> mMatrices = new ArrayList<>();
+
+    // Handed to the renderer, null for the buckets that are not drawn
+    private float[][] mRendererMatrices = new float[0][];
+
+    // Pose of the room anchor that was left, until its strokes are moved, see clearRoomAnchor()
+    private Pose mLeftRoomPose;
+
+    // Bucket the strokes of the room anchor that was left move to
+    private int mLeftRoomBucket;
+
+    AnchorBuckets() {
+        mAnchors.add(null);
+        mMatrices.add(IDENTITY.clone());
+    }
+
+    /**
+     * Creates a local anchor at the camera if the user draws away from the others. Called on the
+     * GL thread after Session.update(), before the frame is snapshot.
+     */
+    synchronized void update(Session session, Pose cameraPose, boolean drawing) {
+        if (!drawing || mAnchors.get(ROOM) != null || mAnchors.size() >= MAX_BUCKETS
+                || nearestDistance(cameraPose) <= SPACING) {
+            return;
+        }
+        try {
+            add(session.createAnchor(cameraPose.extractTranslation()));
+            Log.d(TAG, "bucket " + (mAnchors.size() - 1) + " anchored at " + cameraPose);
+        } catch (NotTrackingException e) {
+            Log.w(TAG, "Cannot create anchor when not tracking", e);
+        }
+    }
+
+    private float nearestDistance(Pose pose) {
+        float nearest = Float.MAX_VALUE;
+        for (int i = ROOM + 1; i < mAnchors.size(); i++) {
+            Anchor anchor = mAnchors.get(i);
+            if (anchor.getTrackingState() == TrackingState.STOPPED) {
+                continue;
+            }
+            Pose anchorPose = anchor.getPose();
+            float dx = anchorPose.tx() - pose.tx();
+            float dy = anchorPose.ty() - pose.ty();
+            float dz = anchorPose.tz() - pose.tz();
+            nearest = Math.min(nearest, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+        }
+        return nearest;
+    }
+
+    private int add(Anchor anchor) {
+        mAnchors.add(anchor);
+        mMatrices.add(IDENTITY.clone());
+        return mAnchors.size() - 1;
+    }
+
+    /**
+     * @return the pose of every bucket by id for {@link FrameSnapshot}, null for the buckets whose
+     * anchor is not tracking. The room bucket is the identity when not paired.
+     */
+    synchronized Pose[] getPoses() {
+        Pose[] poses = new Pose[mAnchors.size()];
+        poses[ROOM] = mLeftRoomPose != null ? mLeftRoomPose : Pose.IDENTITY;
+        for (int i = 0; i < poses.length; i++) {
+            Anchor anchor = mAnchors.get(i);
+            if (anchor != null) {
+                poses[i] = anchor.getTrackingState() == TrackingState.TRACKING
+                        ? anchor.getPose() : null;
+            }
+        }
+        return poses;
+    }
+
+    /**
+     * @return the last known pose of every bucket by id, also of the anchors that are not
+     * tracking, for saving the drawing. The room bucket is the identity when not paired.
+     */
+    synchronized Pose[] getLastPoses() {
+        Pose[] poses = new Pose[mAnchors.size()];
+        for (int i = 0; i < poses.length; i++) {
+            Anchor anchor = mAnchors.get(i);
+            poses[i] = anchor != null ? anchor.getPose() : Pose.IDENTITY;
+        }
+        if (mLeftRoomPose != null) {
+            poses[ROOM] = mLeftRoomPose;
+        }
+        return poses;
+    }
+
+    /**
+     * Hands the model matrix of every bucket to the renderer. Buckets that are not tracking keep
+     * their last matrix, buckets whose anchor stopped tracking for good are not drawn.
+     */
+    synchronized void updateModelMatrices(LineShaderRenderer renderer) {
+        if (mRendererMatrices.length != mAnchors.size()) {
+            mRendererMatrices = new float[mAnchors.size()][];
+        }
+        for (int i = 0; i < mAnchors.size(); i++) {
+            Anchor anchor = mAnchors.get(i);
+            float[] matrix = mMatrices.get(i);
+            if (anchor == null) {
+                if (i == ROOM && mLeftRoomPose != null) {
+                    mLeftRoomPose.toMatrix(matrix, 0);
+                } else {
+                    System.arraycopy(IDENTITY, 0, matrix, 0, 16);
+                }
+            } else if (anchor.getTrackingState() == TrackingState.TRACKING) {
+                anchor.getPose().toMatrix(matrix, 0);
+            } else if (anchor.getTrackingState() == TrackingState.STOPPED) {
+                matrix = null;
+            }
+            mRendererMatrices[i] = matrix;
+        }
+        renderer.setModelMatrices(mRendererMatrices);
+    }
+
+    /**
+     * Makes the anchor of the paired session the room anchor, and moves the strokes into its
+     * bucket. The local anchors are released, strokes are shared relative to the room anchor.
+     * Shared strokes are already relative to it, only the ones left from an earlier room are
+     * moved.
+     */
+    synchronized void setRoomAnchor(Anchor anchor, Collection<Stroke> strokes,
+                                    Collection<Stroke> sharedStrokes) {
+        Pose roomPose = anchor.getPose();
+        moveToRoom(strokes, roomPose, true);
+        moveToRoom(sharedStrokes, roomPose, false);
+        for (int i = ROOM + 1; i < mAnchors.size(); i++) {
+            mAnchors.get(i).detach();
+        }
+        mAnchors.clear();
+        mMatrices.subList(1, mMatrices.size()).clear();
+        mAnchors.add(anchor);
+        mLeftRoomPose = null;
+    }
+
+    private void moveToRoom(Collection<Stroke> strokes, Pose roomPose, boolean includeRoom) {
+        for (Stroke stroke : strokes) {
+            if (stroke.bucket == ROOM && !includeRoom) {
+                continue;
+            }
+            Pose pose = poseOf(stroke.bucket);
+            if (pose != null) {
+                stroke.offsetFromPose(pose);
+            }
+            stroke.offsetToPose(roomPose);
+            stroke.bucket = ROOM;
+        }
+    }
+
+    private Pose poseOf(int bucket) {
+        if (bucket == ROOM && mLeftRoomPose != null) {
+            return mLeftRoomPose;
+        }
+        Anchor anchor = bucket < mAnchors.size() ? mAnchors.get(bucket) : null;
+        return anchor != null ? anchor.getPose() : null;
+    }
+
+    /**
+     * Leaves the room anchor, before it is detached. Its strokes stay where they are: they move to
+     * a local anchor created at the pose of the room anchor, or back to world coordinates if that
+     * fails. Until {@link #moveStrokesFromRoom} moved them, the room bucket keeps the last pose of
+     * the room anchor.
+     */
+    synchronized void clearRoomAnchor(Session session) {
+        Anchor roomAnchor = mAnchors.get(ROOM);
+        if (roomAnchor == null) {
+            return;
+        }
+        mAnchors.set(ROOM, null);
+        Pose roomPose = roomAnchor.getPose();
+
+        Anchor local = null;
+        if (session != null && roomAnchor.getTrackingState() == TrackingState.TRACKING) {
+            try {
+                local = session.createAnchor(roomPose);
+            } catch (NotTrackingException e) {
+                Log.w(TAG, "Cannot re-anchor room strokes when not tracking", e);
+            }
+        }
+        mLeftRoomBucket = local != null ? add(local) : ROOM;
+        mLeftRoomPose = roomPose;
+    }
+
+    /**
+     * Moves the strokes of the room anchor that was left, see {@link #clearRoomAnchor}
+     */
+    synchronized void moveStrokesFromRoom(Collection<Stroke> strokes,
+                                          Collection<Stroke> sharedStrokes) {
+        if (mLeftRoomPose == null) {
+            return;
+        }
+        moveFromRoom(strokes, mLeftRoomBucket, mLeftRoomPose);
+        moveFromRoom(sharedStrokes, mLeftRoomBucket, mLeftRoomPose);
+        mLeftRoomPose = null;
+    }
+
+    private static void moveFromRoom(Collection<Stroke> strokes, int bucket, Pose roomPose) {
+        for (Stroke stroke : strokes) {
+            if (stroke.bucket != ROOM) {
+                continue;
+            }
+            if (bucket != ROOM) {
+                stroke.bucket = bucket;
+            } else {
+                stroke.offsetFromPose(roomPose);
+            }
+        }
+    }
+
+    /**
+     * @return the bucket of the tracking local anchor nearest the point in world coordinates, or
+     * the room bucket when paired or without local anchors
+     */
+    static int nearest(Pose[] poses, Vector3f point) {
+        int nearest = ROOM;
+        float nearestDistance = Float.MAX_VALUE;
+        for (int i = ROOM + 1; i < poses.length; i++) {
+            if (poses[i] == null) {
+                continue;
+            }
+            float dx = poses[i].tx() - point.x;
+            float dy = poses[i].ty() - point.y;
+            float dz = poses[i].tz() - point.z;
+            float distance = dx * dx + dy * dy + dz * dz;
+            if (distance < nearestDistance) {
+                nearest = i;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+}
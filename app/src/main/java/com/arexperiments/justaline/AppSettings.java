@@ -48,6 +48,15 @@ public class AppSettings {
 
     private static final int smoothingCount = 1500;
 
+    // process strokes on a worker thread while the GL thread draws, see FramePipeline. Debug
+    // builds switch modes at runtime by tapping the render statistics.
+    private static final boolean pipelinedRendering = false;
+
+    // write strokes in the compact format of StrokeCodec, and live strokes as an append-only
+    // log, both formats are always read. Stays off until clients that only read the legacy
+    // format are gone, they read compact strokes as empty.
+    private static final boolean compactStrokeEncoding = false;
+
     public enum LineWidth {
         SMALL(0.006f),
         MEDIUM(0.011f),
@@ -91,4 +100,12 @@ public class AppSettings {
     public static int getSmoothingCount() {
         return smoothingCount;
     }
+
+    static boolean isPipelinedRendering() {
+        return pipelinedRendering;
+    }
+
+    public static boolean useCompactStrokeEncoding() {
+        return compactStrokeEncoding;
+    }
 }
@@ -38,6 +38,15 @@ public class BiquadFilter {
         return (float) inst[0].process(in);
     }
 
+    /**
+     * Sets the filter to the state it settles in after a constant input of the given value
+     */
+    public void reset(float value) {
+        for (BiquadFilterInstance instance : inst) {
+            instance.reset(value);
+        }
+    }
+
     public Vector3f update(Vector3f in) {
         if (inst.length != 3) {
             throw new Error("Expected 3 dimensions");
@@ -68,6 +77,12 @@ public class BiquadFilter {
             return out;
         }
 
+        void reset(double value) {
+            // the output equals the input once the filter settled, the gain at 0Hz is 1
+            z1 = value * (1 - a0);
+            z2 = value * (a2 - b2);
+        }
+
         void calcBiquad() {
             double norm;
             double K = Math.tan(Math.PI * Fc);
@@ -20,6 +20,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.graphics.Rect;
+import android.net.Uri;
 import android.icu.util.Calendar;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
@@ -27,6 +28,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.v4.content.FileProvider;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -38,12 +40,18 @@ import android.widget.Toast;
 
 import com.arexperiments.justaline.analytics.AnalyticsEvents;
 import com.arexperiments.justaline.analytics.Fa;
+import com.arexperiments.justaline.export.LineMesh;
 import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.model.StrokeCodec;
+import com.arexperiments.justaline.model.StrokeDelta;
+import com.arexperiments.justaline.model.StrokeJournal;
 import com.arexperiments.justaline.rendering.AnchorRenderer;
 import com.arexperiments.justaline.rendering.BackgroundRenderer;
+import com.arexperiments.justaline.rendering.GlStateTracker;
 import com.arexperiments.justaline.rendering.LineShaderRenderer;
 import com.arexperiments.justaline.rendering.LineUtils;
 import com.arexperiments.justaline.rendering.PointCloudRenderer;
+import com.arexperiments.justaline.rendering.RenderGraph;
 import com.arexperiments.justaline.view.BrushSelector;
 import com.arexperiments.justaline.view.ClearDrawingDialog;
 import com.arexperiments.justaline.view.DebugView;
@@ -55,6 +63,7 @@ import com.arexperiments.justaline.view.PairView;
 import com.arexperiments.justaline.view.PlaybackView;
 import com.arexperiments.justaline.view.RecordButton;
 import com.arexperiments.justaline.view.TrackingIndicator;
+import com.arexperiments.justaline.view.UiUpdateDispatcher;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Config;
@@ -69,13 +78,19 @@ import com.uncorkedstudios.android.view.recordablesurfaceview.RecordableSurfaceV
 
 import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.vecmath.Vector2f;
@@ -100,6 +115,12 @@ public class DrawARActivity extends BaseActivity
 
     private static final int TOUCH_QUEUE_SIZE = 10;
 
+    // Points of a restored drawing ingested per frame
+    private static final int RESTORE_POINTS_PER_FRAME = 20000;
+
+    private static final String FILE_PROVIDER_AUTHORITY
+            = "com.arexperiments.justaline.fileprovider";
+
     private Fa mAnalytics;
 
     enum Mode {
@@ -128,6 +149,27 @@ public class DrawARActivity extends BaseActivity
 
     private AnchorRenderer cloudAnchorRenderer;
 
+    private final RenderGraph mRenderGraph = new RenderGraph();
+
+    private final AnchorBuckets mAnchorBuckets = new AnchorBuckets();
+
+    /*
+     * Stroke processing, see FramePipeline for which thread owns the strokes
+     */
+    private final FramePipeline mFramePipeline = new FramePipeline(
+            AppSettings.isPipelinedRendering());
+
+    // mode the GL thread switches the pipeline to before its next frame, toggled from the debug
+    // view to compare both modes
+    private volatile boolean bPipelinedRequested = AppSettings.isPipelinedRendering();
+
+    private FrameSnapshot mFrameSnapshot;
+
+    // set when the line geometry was rebuilt and has to be uploaded
+    private boolean bGeometryReady = false;
+
+    private final InputLatencyTracker mInputLatency = new InputLatencyTracker();
+
     private Frame mFrame;
 
     private float[] projmtx = new float[16];
@@ -146,6 +188,16 @@ public class DrawARActivity extends BaseActivity
 
     private AtomicReferenceArray<Vector2f> touchQueue;
 
+    // origin times of the samples in touchQueue, see InputLatencyTracker
+    private AtomicLongArray touchTimes;
+
+    // changes of the strokes made on the UI thread, applied in order by processStrokes() on the
+    // thread that owns the strokes, see FramePipeline
+    private final Queue<Runnable> mStrokeChanges = new ConcurrentLinkedQueue<>();
+
+    // changes applied since the geometry was last built, see SyncLatencyTracker
+    private final List<StrokeDelta> mAppliedDeltas = new ArrayList<>();
+
     private float mLineWidthMax = 0.33f;
 
     private float[] mLastFramePosition;
@@ -162,8 +214,31 @@ public class DrawARActivity extends BaseActivity
 
     private AtomicBoolean bNewStroke = new AtomicBoolean(false);
 
+    private AtomicBoolean bExport = new AtomicBoolean(false);
+
+    // Held by the GL thread while it runs a frame callback, so that onPause() can take the
+    // strokes from it
+    private final Object mFrameLock = new Object();
+
+    // Set by onPause() until onResume(), frame callbacks that still run are skipped. Guarded by
+    // mFrameLock.
+    private boolean bFramesStopped = false;
+
     private List<Stroke> mStrokes;
 
+    private DrawingStore mDrawingStore;
+
+    private DrawingExporter mDrawingExporter;
+
+    // Drawing saved before the process was killed, ingested by processStrokes() over a few frames
+    private volatile StrokeJournal.Replay mRestoredDrawing;
+
+    private int mRestoredStrokes;
+
+    private int mRestoredPoints;
+
+    private long mRestoreNanos;
+
     private File mOutputFile;
 
     private BrushSelector mBrushSelector;
@@ -198,6 +273,10 @@ public class DrawARActivity extends BaseActivity
 
     private long mRenderDuration;
 
+    private UiUpdateDispatcher.Slot<DebugView.RenderInfo> mRenderInfoSlot;
+
+    private UiUpdateDispatcher.Slot<TrackingState> mAnchorTrackingSlot;
+
     /*
      * Session sharing
      */
@@ -225,11 +304,37 @@ public class DrawARActivity extends BaseActivity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        createRenderGraph();
+
         // Debug view
         if (BuildConfig.DEBUG) {
             mDebugView = findViewById(R.id.debug_view);
             mDebugView.setVisibility(View.VISIBLE);
             mDebugEnabled = true;
+
+            mRenderInfoSlot = UiUpdateDispatcher.get().createSlot(
+                    new UiUpdateDispatcher.Applier<DebugView.RenderInfo>() {
+                        @Override
+                        public void apply(DebugView.RenderInfo value) {
+                            mDebugView.setRenderInfo(value);
+                        }
+                    });
+            mAnchorTrackingSlot = UiUpdateDispatcher.get().createSlot(
+                    new UiUpdateDispatcher.Applier<TrackingState>() {
+                        @Override
+                        public void apply(TrackingState value) {
+                            mDebugView.setAnchorTracking(value);
+                        }
+                    });
+            mDebugView.setOnRenderInfoClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    bPipelinedRequested = !bPipelinedRequested;
+                }
+            });
+
+            SyncLoadGenerator.startIfRequested(getIntent(),
+                    new File(getExternalFilesDir(null), "sync_load.txt"));
         }
 
         mAnalytics = Fa.get();
@@ -246,6 +351,7 @@ public class DrawARActivity extends BaseActivity
         mClearDrawingButton.setOnClickListener(this);
         findViewById(R.id.menu_item_about).setOnClickListener(this);
         findViewById(R.id.menu_item_share_app).setOnClickListener(this);
+        findViewById(R.id.menu_item_export).setOnClickListener(this);
 
 //        findViewById(R.id.menu_item_crash).setOnClickListener(this);
 //        findViewById(R.id.menu_item_hide_ui).setOnClickListener(this);
@@ -268,8 +374,21 @@ public class DrawARActivity extends BaseActivity
         Matrix.setIdentityM(mZeroMatrix, 0);
 
         mStrokes = new ArrayList<>();
+        mDrawingStore = new DrawingStore(getFilesDir());
+        if (SessionHelper.shouldContinueSession(this)) {
+            mDrawingStore.load(new DrawingStore.LoadListener() {
+                @Override
+                public void onLoaded(StrokeJournal.Replay drawing) {
+                    mRestoredDrawing = drawing;
+                }
+            });
+        } else {
+            mDrawingStore.reset();
+        }
+        mDrawingExporter = new DrawingExporter(new File(getCacheDir(), "exports"));
         touchQueueSize = new AtomicInteger(0);
         touchQueue = new AtomicReferenceArray<>(TOUCH_QUEUE_SIZE);
+        touchTimes = new AtomicLongArray(TOUCH_QUEUE_SIZE);
 
         mPlaybackView = findViewById(R.id.playback);
 
@@ -383,6 +502,9 @@ public class DrawARActivity extends BaseActivity
                 ErrorDialog.newInstance(R.string.error_resuming_session, true).show(this);
             }
 
+            synchronized (mFrameLock) {
+                bFramesStopped = false;
+            }
             mSurfaceView.resume();
         } else {
             // take user to permissions activity
@@ -447,14 +569,25 @@ public class DrawARActivity extends BaseActivity
             mRecordButton.setRecording(false);
         }
 
-        // Note that the order matters - SurfaceView is paused first so that it does not try
-        // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
-        // still call mSession.update() and get a SessionPausedException.
+        // Note that the order matters - frames are stopped first so that they do not try to
+        // query the session. RecordableSurfaceView.pause() does not wait for the GL thread, which
+        // may still be in a frame and call mSession.update() after Session.pause(), getting a
+        // SessionPausedException. Wait for it to leave the frame and stop it from starting
+        // another, before the session is paused.
+        synchronized (mFrameLock) {
+            bFramesStopped = true;
+            mFramePipeline.awaitIdle();
+        }
         mSurfaceView.pause();
         if (mSession != null) {
             mSession.pause();
         }
 
+        // the strokes are back from the worker, checkpoint them so that the next start does not
+        // replay the journal. Only the changed strokes are copied here, the file is written in
+        // the background.
+        mDrawingStore.checkpoint(mStrokes, mAnchorBuckets.getLastPoses());
+
         mRecordButton.setListener(null);
         mTrackingIndicator.resetTrackingTimeout();
 
@@ -467,9 +600,33 @@ public class DrawARActivity extends BaseActivity
 
         mPairView.setListener(null);
 
+        if (mDebugEnabled) {
+            final File latencyFile = new File(getExternalFilesDir(null), "input_latency.txt");
+            final File syncLatencyFile = new File(getExternalFilesDir(null), "sync_latency.txt");
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mInputLatency.dump(latencyFile);
+                    SyncLatencyTracker.get().dump(syncLatencyFile);
+                }
+            }, "InputLatencyDump").start();
+        }
+
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mRenderInfoSlot != null) {
+            UiUpdateDispatcher.get().removeSlot(mRenderInfoSlot);
+            UiUpdateDispatcher.get().removeSlot(mAnchorTrackingSlot);
+        }
+        mFramePipeline.shutdown();
+        mDrawingStore.shutdown();
+        mDrawingExporter.shutdown();
+        super.onDestroy();
+    }
+
 
     /**
      * addStroke adds a new stroke to the scene
@@ -486,6 +643,7 @@ public class DrawARActivity extends BaseActivity
         int index = mStrokes.size() - 1;
 //        mPairSessionManager.updateStroke(index, mStrokes.get(index));
         mPairSessionManager.addStroke(mStrokes.get(index));
+        mDrawingStore.addStroke(stroke);
 
         showStrokeDependentUI();
 
@@ -498,38 +656,49 @@ public class DrawARActivity extends BaseActivity
     /**
      * addPoint2f adds a point to the current stroke
      *
+     * @param frame      the frame the touch points are projected with
      * @param touchPoint a 2D point in screen space and is projected into 3D world space
      */
-    private void addPoint2f(Vector2f... touchPoint) {
+    private void addPoint2f(FrameSnapshot frame, Vector2f... touchPoint) {
         Vector3f[] newPoints = new Vector3f[touchPoint.length];
         for (int i = 0; i < touchPoint.length; i++) {
             newPoints[i] = LineUtils
-                    .GetWorldCoords(touchPoint[i], mScreenWidth, mScreenHeight, projmtx, viewmtx);
+                    .GetWorldCoords(touchPoint[i], frame.screenWidth, frame.screenHeight,
+                            frame.projectionMatrix, frame.viewMatrix);
         }
+        mInputLatency.onPointsProjected();
 
-        addPoint3f(newPoints);
+        addPoint3f(frame, newPoints);
     }
 
     /**
      * addPoint3f adds a point to the current stroke
      *
+     * @param frame    the frame whose anchor poses the points are made relative to
      * @param newPoint a 3D point in world space
      */
-    private void addPoint3f(Vector3f... newPoint) {
-        Vector3f point;
+    private void addPoint3f(FrameSnapshot frame, Vector3f... newPoint) {
         int index = mStrokes.size() - 1;
 
         if (index < 0)
             return;
 
+        Stroke stroke = mStrokes.get(index);
+        if (stroke.size() == 0) {
+            // a stroke stays relative to the anchor nearest its first point
+            stroke.bucket = AnchorBuckets.nearest(frame.bucketPoses, newPoint[0]);
+        }
+        Pose pose = frame.getBucketPose(stroke.bucket);
+        if (pose == null) {
+            // the anchor of the stroke is not tracking
+            return;
+        }
+
         for (int i = 0; i < newPoint.length; i++) {
-            if (mAnchor != null && mAnchor.getTrackingState() == TrackingState.TRACKING) {
-                point = LineUtils.TransformPointToPose(newPoint[i], mAnchor.getPose());
-                mStrokes.get(index).add(point);
-            } else {
-                mStrokes.get(index).add(newPoint[i]);
-            }
+            stroke.add(LineUtils.TransformPointToPose(newPoint[i], pose));
         }
+        mInputLatency.onPointsAdded();
+        mDrawingStore.updateStroke(stroke, pose);
 
         // update firebase database
         mPairSessionManager.updateStroke(mStrokes.get(index));
@@ -541,16 +710,18 @@ public class DrawARActivity extends BaseActivity
      * The method handles all operations that need to take place before drawing to the screen.
      * The method :
      * extracts the current projection matrix and view matrix from the AR Pose
-     * handles adding stroke and points to the data collections
      * updates the ZeroMatrix and performs the matrix multiplication needed to re-center the drawing
-     * updates the Line Renderer with the current strokes, color, distance scale, line width etc
+     * hands a snapshot of the frame to processStrokes(), inline or through the stroke worker
      */
     private void update() {
         try {
             final long updateStartTime = System.currentTimeMillis();
+            mFramePipeline.setPipelined(bPipelinedRequested);
+            mFramePipeline.onFrameStarted();
 
             // Update ARCore frame
             mFrame = mSession.update();
+            GlStateTracker.get().beginFrame();
 
             // Notify the hostManager of all the anchor updates.
             Collection<Anchor> updatedAnchors = mFrame.getUpdatedAnchors();
@@ -591,179 +762,439 @@ public class DrawARActivity extends BaseActivity
 
             mLastFramePosition = position;
 
-            // Add points to strokes from touch queue
-            int numPoints = touchQueueSize.get();
-            if (numPoints > TOUCH_QUEUE_SIZE) {
-                numPoints = TOUCH_QUEUE_SIZE;
-            }
+            // drawing away from the other anchors anchors the new strokes where the user is
+            mAnchorBuckets.update(mSession, mFrame.getCamera().getPose(), bTouchDown.get()
+                    && mFrame.getCamera().getTrackingState() == TrackingState.TRACKING);
 
-            if (numPoints > 0) {
-                if (bNewStroke.get()) {
-                    bNewStroke.set(false);
-                    addStroke();
-                }
+            mFrameSnapshot = new FrameSnapshot(projmtx, viewmtx, mScreenWidth, mScreenHeight,
+                    mAnchor, mAnchorBuckets.getPoses());
 
-                Vector2f[] points = new Vector2f[numPoints];
-                for (int i = 0; i < numPoints; i++) {
-                    points[i] = touchQueue.get(i);
-                    mLastTouch = new Vector2f(points[i].x, points[i].y);
-                }
-                addPoint2f(points);
+            if (mFrameSnapshot.anchorPose != null) {
+                // rooms that only share the lines near the camera follow it from cell to cell
+                mPairSessionManager.updateInterest(LineUtils.TransformPointToPose(
+                        new Vector3f(position[0], position[1], position[2]),
+                        mFrameSnapshot.anchorPose));
             }
 
-            // If no new points have been added, and touch is down, add last point again
-            if (numPoints == 0 && bTouchDown.get()) {
-                addPoint2f(mLastTouch);
-                mLineShaderRenderer.bNeedsUpdate.set(true);
+            if (mFramePipeline.isPipelined()) {
+                // Take back ownership of the strokes, the next job is submitted by the render graph
+                mFramePipeline.awaitIdle();
+            } else {
+                processStrokes(mFrameSnapshot);
             }
 
-            if (numPoints > 0) {
-                touchQueueSize.set(0);
-                mLineShaderRenderer.bNeedsUpdate.set(true);
+            // Debug view
+            if (mDebugEnabled) {
+                final long deltaTime = System.currentTimeMillis() - updateStartTime;
+                mRenderInfoSlot.publish(new DebugView.RenderInfo(mLineShaderRenderer.mNumPoints,
+                        deltaTime, mRenderDuration, GlStateTracker.get().getIssuedCalls(),
+                        GlStateTracker.get().getSkippedCalls(),
+                        mFramePipeline.getStatsSummary() + "\n" + mInputLatency.getSummary()
+                                + "\n" + SyncLatencyTracker.get().getSummary()
+                                + "\n" + StrokeCodec.getStatsSummary()
+                                + "\n" + mPairSessionManager.getUploadStatsSummary()
+                                + "\n" + mPairSessionManager.getPairingSummary()
+                                + "\n" + mDrawingStore.getStatsSummary()
+                                + "\n" + mRenderGraph.getTimingSummary()));
             }
 
-            if (bClearDrawing.get()) {
-                bClearDrawing.set(false);
-                clearDrawing();
-                mLineShaderRenderer.bNeedsUpdate.set(true);
+        } catch (Exception e) {
+            Log.e(TAG, "update: ", e);
+        }
+    }
+
+    /**
+     * processStrokes() handles adding strokes and points from the touch queue, finishing, undoing
+     * and clearing strokes and rebuilds the line geometry when it changed. Runs on the GL thread
+     * in serial mode and on the stroke worker in pipelined mode, see {@link FramePipeline}.
+     *
+     * @param frame the frame touch points are projected with
+     */
+    private void processStrokes(FrameSnapshot frame) {
+        if (mRestoredDrawing != null) {
+            // new strokes and undo apply after the whole restored drawing
+            restoreStrokes(frame, bNewStroke.get() || bUndo.get());
+        }
+
+        // Add points to strokes from touch queue
+        int numPoints = touchQueueSize.get();
+        if (numPoints > TOUCH_QUEUE_SIZE) {
+            numPoints = TOUCH_QUEUE_SIZE;
+        }
+
+        if (numPoints > 0) {
+            if (bNewStroke.get()) {
+                bNewStroke.set(false);
+                addStroke();
             }
 
-            // Check if we are still drawing, otherwise finish line
-            if (isDrawing && !bTouchDown.get()) {
-                isDrawing = false;
-                if (!mStrokes.isEmpty()) {
-                    mStrokes.get(mStrokes.size() - 1).finishStroke();
+            Vector2f[] points = new Vector2f[numPoints];
+            long[] origins = new long[numPoints];
+            for (int i = 0; i < numPoints; i++) {
+                points[i] = touchQueue.get(i);
+                origins[i] = touchTimes.get(i);
+                mLastTouch = new Vector2f(points[i].x, points[i].y);
+            }
+            mInputLatency.onSamplesDrained(origins);
+            addPoint2f(frame, points);
+        }
+
+        // If no new points have been added, and touch is down, add last point again
+        if (numPoints == 0 && bTouchDown.get()) {
+            addPoint2f(frame, mLastTouch);
+            mLineShaderRenderer.bNeedsUpdate.set(true);
+        }
+
+        if (numPoints > 0) {
+            touchQueueSize.set(0);
+            mLineShaderRenderer.bNeedsUpdate.set(true);
+        }
+
+        if (bClearDrawing.get()) {
+            bClearDrawing.set(false);
+            clearDrawing();
+            mLineShaderRenderer.bNeedsUpdate.set(true);
+        }
+
+        // Check if we are still drawing, otherwise finish line
+        if (isDrawing && !bTouchDown.get()) {
+            isDrawing = false;
+            if (!mStrokes.isEmpty()) {
+                Stroke stroke = mStrokes.get(mStrokes.size() - 1);
+                stroke.finishStroke();
+                mDrawingStore.finishStroke(stroke);
+                // compacts the upload log of the stroke
+                if (stroke.hasFirebaseReference()) {
+                    mPairSessionManager.updateStroke(stroke);
                 }
             }
+        }
 
-            // Update line animation
+        // Apply changes made on the UI thread, such as changes of shared strokes
+        Runnable change;
+        while ((change = mStrokeChanges.poll()) != null) {
+            change.run();
+        }
+
+        // Update line animation
 //            for (int i = 0; i < mStrokes.size(); i++) {
 //                mStrokes.get(i).update();
 //            }
-            boolean renderNeedsUpdate = false;
-            for (Stroke stroke : mSharedStrokes.values()) {
-                if (stroke.update()) {
-                    renderNeedsUpdate = true;
-                }
+        boolean renderNeedsUpdate = false;
+        for (Stroke stroke : mSharedStrokes.values()) {
+            if (stroke.update()) {
+                renderNeedsUpdate = true;
             }
-            if (renderNeedsUpdate) {
+        }
+        if (renderNeedsUpdate) {
+            mLineShaderRenderer.bNeedsUpdate.set(true);
+        }
+
+        // waits for the restored drawing, whose last stroke is the one to undo
+        if (bUndo.get() && mRestoredDrawing == null) {
+            bUndo.set(false);
+            if (mStrokes.size() > 0) {
+                int index = mStrokes.size() - 1;
+                mPairSessionManager.undoStroke(mStrokes.get(index));
+                mDrawingStore.undoStroke(mStrokes.get(index));
+                mStrokes.remove(index);
+                if (mStrokes.isEmpty()) {
+                    showStrokeDependentUI();
+                }
                 mLineShaderRenderer.bNeedsUpdate.set(true);
             }
+        }
+
+        // waits for the restored drawing, which is part of the export
+        if (bExport.get() && mRestoredDrawing == null) {
+            bExport.set(false);
+            exportDrawing(frame);
+        }
+
+        if (mLineShaderRenderer.bNeedsUpdate.get()) {
+            mLineShaderRenderer.updateStrokes(mStrokes, mSharedStrokes);
+            mInputLatency.onGeometryBuilt();
+            for (StrokeDelta delta : mAppliedDeltas) {
+                SyncLatencyTracker.get().onApplied(delta);
+            }
+            mAppliedDeltas.clear();
+            bGeometryReady = true;
+        }
+
+        if (mDrawingStore.needsCheckpoint()) {
+            mDrawingStore.checkpoint(mStrokes, mAnchorBuckets.getLastPoses());
+        }
+    }
+
+    /**
+     * Hands the local and shared strokes to the {@link DrawingExporter}. The lists of points are
+     * copied, as the point objects themselves are never changed, the strokes can keep changing
+     * while the files are written. Predicted points are not exported.
+     */
+    private void exportDrawing(FrameSnapshot frame) {
+        float[] cameraMatrix = new float[16];
+        Matrix.invertM(cameraMatrix, 0, frame.viewMatrix, 0);
+        Vector3f color = AppSettings.getColor();
+        LineMesh mesh = new LineMesh(
+                new Vector3f(cameraMatrix[12], cameraMatrix[13], cameraMatrix[14]),
+                new float[]{color.x, color.y, color.z});
+        // line_vert.glsl offsets by half the width in clip space, which the projection scales
+        // down from world units by the focal length
+        float widthScale = 1 / frame.projectionMatrix[5];
+        Pose[] poses = mAnchorBuckets.getLastPoses();
+        List<Stroke> strokes = new ArrayList<>(mStrokes);
+        strokes.addAll(mSharedStrokes.values());
+        for (Stroke stroke : strokes) {
+            int count = stroke.size() - (stroke.isPredicted() ? 1 : 0);
+            mesh.addLine(new ArrayList<>(stroke.getPoints()), count,
+                    stroke.getLineWidth() * widthScale,
+                    stroke.bucket < poses.length ? poses[stroke.bucket] : null);
+        }
 
-            if (bUndo.get()) {
-                bUndo.set(false);
-                if (mStrokes.size() > 0) {
-                    int index = mStrokes.size() - 1;
-                    mPairSessionManager.undoStroke(mStrokes.get(index));
-                    mStrokes.remove(index);
-                    if (mStrokes.isEmpty()) {
-                        showStrokeDependentUI();
+        if (mesh.getLineCount() == 0) {
+            showExportMessage(R.string.nothing_to_export);
+            return;
+        }
+        String name = "JustALine_"
+                + new SimpleDateFormat("yyyy-MM-dd_HHmmss", Locale.US).format(new Date());
+        mDrawingExporter.export(mesh, name, new DrawingExporter.Listener() {
+            @Override
+            public void onExported(final List<File> files) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        shareExport(files);
                     }
-                    mLineShaderRenderer.bNeedsUpdate.set(true);
+                });
+            }
+
+            @Override
+            public void onExportFailed(IOException e) {
+                showExportMessage(R.string.export_failed);
+            }
+        });
+    }
+
+    private void showExportMessage(final int message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(DrawARActivity.this, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void shareExport(List<File> files) {
+        ArrayList<Uri> uris = new ArrayList<>();
+        for (File file : files) {
+            uris.add(FileProvider.getUriForFile(this, FILE_PROVIDER_AUTHORITY, file));
+        }
+        Intent intent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+        intent.setType("*/*");
+        intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.share_with)));
+    }
+
+    /**
+     * Adds the strokes of the restored drawing to the local strokes, up to
+     * {@link #RESTORE_POINTS_PER_FRAME} points unless all are needed. The strokes were relative
+     * to the anchors of the killed process, they are placed at the same world coordinates in this
+     * session, relative to the room bucket.
+     */
+    private void restoreStrokes(FrameSnapshot frame, boolean all) {
+        Pose roomPose = frame.getBucketPose(AnchorBuckets.ROOM);
+        if (roomPose == null) {
+            // the room anchor is not tracking
+            return;
+        }
+
+        StrokeJournal.Replay drawing = mRestoredDrawing;
+        long start = System.nanoTime();
+        int points = 0;
+        try {
+            while (mRestoredStrokes < drawing.getStrokeCount()
+                    && (all || points < RESTORE_POINTS_PER_FRAME)) {
+                Stroke stroke = drawing.read(mRestoredStrokes);
+                Pose savedPose = drawing.getBucketPose(mRestoredStrokes);
+                if (savedPose != Pose.IDENTITY || roomPose != Pose.IDENTITY) {
+                    stroke.offsetFromPose(roomPose.inverse().compose(savedPose));
                 }
+                stroke.bucket = AnchorBuckets.ROOM;
+                // a stroke that was being drawn cannot be continued
+                stroke.finished = true;
+                mStrokes.add(stroke);
+                mRestoredStrokes++;
+                points += stroke.size();
             }
-            if (mLineShaderRenderer.bNeedsUpdate.get()) {
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot restore stroke " + mRestoredStrokes, e);
+            mRestoredStrokes = drawing.getStrokeCount();
+        }
+        mRestoredPoints += points;
+        mRestoreNanos += System.nanoTime() - start;
+        mLineShaderRenderer.bNeedsUpdate.set(true);
+
+        if (mRestoredStrokes == drawing.getStrokeCount()) {
+            mRestoredDrawing = null;
+            mDrawingStore.onRestored(mRestoredStrokes, mRestoredPoints, mRestoreNanos);
+            showStrokeDependentUI();
+        }
+    }
+
+    /**
+     * Declares the passes renderScene() executes every frame, in drawing order
+     */
+    private void createRenderGraph() {
+        // Uploads the line geometry, only when processStrokes() rebuilt it
+        mRenderGraph.addPass(new RenderGraph.Pass("line geometry", RenderGraph.STATE_NONE) {
+            @Override
+            protected boolean needsExecution() {
+                return bGeometryReady;
+            }
+
+            @Override
+            protected void execute() {
+                bGeometryReady = false;
                 mLineShaderRenderer.setColor(AppSettings.getColor());
                 mLineShaderRenderer.mDrawDistance = AppSettings.getStrokeDrawDistance();
                 float distanceScale = 0.0f;
                 mLineShaderRenderer.setDistanceScale(distanceScale);
-                mLineShaderRenderer.setLineWidth(mLineWidthMax);
-                mLineShaderRenderer.clear();
-                mLineShaderRenderer.updateStrokes(mStrokes, mSharedStrokes);
                 mLineShaderRenderer.upload();
+                mInputLatency.onUploaded();
             }
+        });
 
-            // Debug view
-            if (mDebugEnabled) {
-                final long deltaTime = System.currentTimeMillis() - updateStartTime;
-                this.runOnUiThread(new Runnable() {
+        // Hands the strokes to the worker for the next frame, after the geometry was uploaded
+        mRenderGraph.addPass(new RenderGraph.Pass("stroke job", RenderGraph.STATE_NONE) {
+            @Override
+            protected boolean needsExecution() {
+                return mFramePipeline.isPipelined() && mFrameSnapshot != null;
+            }
+
+            @Override
+            protected void execute() {
+                final FrameSnapshot frame = mFrameSnapshot;
+                mFramePipeline.submit(new Runnable() {
                     @Override
                     public void run() {
-                        mDebugView
-                                .setRenderInfo(mLineShaderRenderer.mNumPoints, deltaTime,
-                                        mRenderDuration);
+                        processStrokes(frame);
                     }
                 });
-
             }
+        });
 
-        } catch (Exception e) {
-            Log.e(TAG, "update: ", e);
-        }
-    }
+        // Camera image
+        mRenderGraph.addPass(new RenderGraph.Pass("background", 0) {
+            @Override
+            protected boolean needsExecution() {
+                return mFrame != null;
+            }
 
-    /**
-     * renderScene() clears the Color Buffer and Depth Buffer, draws the current texture from the
-     * camera
-     * and draws the Line Renderer if ARCore is tracking the world around it
-     */
-    private void renderScene() {
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            @Override
+            protected void execute() {
+                mBackgroundRenderer.draw(mFrame);
+            }
+        });
 
-        if (mFrame != null) {
-            mBackgroundRenderer.draw(mFrame);
-        }
+        // Debug anchors
+        mRenderGraph.addPass(new RenderGraph.Pass("zero anchor",
+                RenderGraph.STATE_DEPTH_TEST | RenderGraph.STATE_DEPTH_WRITE) {
+            @Override
+            protected boolean needsExecution() {
+                return BuildConfig.DEBUG && mFrame != null
+                        && mFrame.getCamera().getTrackingState() == TrackingState.TRACKING;
+            }
 
-        // Draw debug anchors
-        if (BuildConfig.DEBUG) {
-            if (mFrame.getCamera().getTrackingState() == TrackingState.TRACKING) {
+            @Override
+            protected void execute() {
                 zeroAnchorRenderer.draw(viewmtx, projmtx, false);
             }
-        }
+        });
 
-        // Draw background.
-        if (mFrame != null) {
+        mRenderGraph.addPass(new RenderGraph.Pass("cloud anchor",
+                RenderGraph.STATE_DEPTH_TEST | RenderGraph.STATE_DEPTH_WRITE) {
+            @Override
+            protected boolean needsExecution() {
+                return BuildConfig.DEBUG && mFrame != null && mAnchor != null
+                        && mAnchor.getTrackingState() == TrackingState.TRACKING;
+            }
 
-            // Draw Lines
-            if (mTrackingIndicator.isTracking() || (
-                    // keep painting through 5 frames where we're not tracking
-                    (bHasTracked.get() && mFramesNotTracked < MAX_UNTRACKED_FRAMES))) {
+            @Override
+            protected void execute() {
+                mAnchor.getPose().toMatrix(cloudAnchorRenderer.mModelMatrix, 0);
+                cloudAnchorRenderer.draw(viewmtx, projmtx, true);
+            }
+        });
 
-                if (!mTrackingIndicator.isTracking()) {
-                    mFramesNotTracked++;
-                } else {
+        mRenderGraph.addPass(new RenderGraph.Pass("lines", RenderGraph.STATE_BLEND) {
+            @Override
+            protected boolean needsExecution() {
+                if (mFrame == null) {
+                    return false;
+                }
+                if (mTrackingIndicator.isTracking()) {
                     mFramesNotTracked = 0;
+                    return true;
                 }
-
-                // If the anchor is set, set the modelMatrix of the line renderer to offset to the anchor
-                if (mAnchor != null && mAnchor.getTrackingState() == TrackingState.TRACKING) {
-                    mAnchor.getPose().toMatrix(mLineShaderRenderer.mModelMatrix, 0);
-
-                    if (BuildConfig.DEBUG) {
-                        mAnchor.getPose().toMatrix(cloudAnchorRenderer.mModelMatrix, 0);
-                        cloudAnchorRenderer.draw(viewmtx, projmtx, true);
-                    }
+                // keep painting through 5 frames where we're not tracking
+                if (bHasTracked.get() && mFramesNotTracked < MAX_UNTRACKED_FRAMES) {
+                    mFramesNotTracked++;
+                    return true;
                 }
+                return false;
+            }
+
+            @Override
+            protected void execute() {
+                // Strokes are drawn relative to the anchors of their buckets
+                mAnchorBuckets.updateModelMatrices(mLineShaderRenderer);
 
-                // Render the lines
                 mLineShaderRenderer
                         .draw(viewmtx, projmtx, mScreenWidth, mScreenHeight,
                                 AppSettings.getNearClip(),
                                 AppSettings.getFarClip());
             }
+        });
 
-            if (mDebugEnabled) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mDebugView.setAnchorTracking(mAnchor);
-                    }
-                });
+        // Feature points, only while looking for the shared anchor
+        mRenderGraph.addPass(new RenderGraph.Pass("point cloud",
+                RenderGraph.STATE_DEPTH_TEST | RenderGraph.STATE_DEPTH_WRITE) {
+            @Override
+            protected boolean needsExecution() {
+                return mFrame != null && (mMode == Mode.PAIR_PARTNER_DISCOVERY
+                        || mMode == Mode.PAIR_ANCHOR_RESOLVING);
             }
-        }
 
-        if (mMode == Mode.PAIR_PARTNER_DISCOVERY || mMode == Mode.PAIR_ANCHOR_RESOLVING) {
-            if (mFrame != null) {
-                PointCloud pointCloud = mFrame.acquirePointCloud();
-                this.pointCloud.update(pointCloud);
-                this.pointCloud.draw(viewmtx, projmtx);
+            @Override
+            protected void execute() {
+                PointCloud cloud = mFrame.acquirePointCloud();
+                // the vertex buffer is only re-uploaded when ARCore returns a new point cloud
+                pointCloud.update(cloud);
+                pointCloud.draw(viewmtx, projmtx);
 
                 // Application is responsible for releasing the point cloud resources after
                 // using it.
-                pointCloud.release();
+                cloud.release();
             }
-        }
+        });
+    }
+
+    /**
+     * renderScene() clears the Color Buffer and Depth Buffer, then executes the render graph:
+     * line geometry upload, camera background, debug anchors, lines and the point cloud while
+     * pairing
+     */
+    private void renderScene() {
+        // depth writes must be enabled for the depth buffer to be cleared
+        GlStateTracker.get().setDepthMask(true);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        mRenderGraph.execute();
 
+        if (mFrame != null && mDebugEnabled) {
+            mAnchorTrackingSlot.publish(mAnchor == null ? null : mAnchor.getTrackingState());
+        }
     }
 
     /**
@@ -771,6 +1202,8 @@ public class DrawARActivity extends BaseActivity
      * Designed to be executed on the GL Thread
      */
     private void clearDrawing() {
+        mRestoredDrawing = null;
+        mDrawingStore.clearStrokes();
         mStrokes.clear();
         mLineShaderRenderer.clear();
         mPairSessionManager.clearStrokes();
@@ -892,6 +1325,7 @@ public class DrawARActivity extends BaseActivity
 
         if (mMode == Mode.DRAW) {
             if (action == MotionEvent.ACTION_DOWN) {
+                touchTimes.set(0, mInputLatency.onSampleQueued(tap.getEventTime()));
                 touchQueue.set(0, new Vector2f(tap.getX(), tap.getY()));
                 bNewStroke.set(true);
                 bTouchDown.set(true);
@@ -905,6 +1339,8 @@ public class DrawARActivity extends BaseActivity
                 if (bTouchDown.get()) {
                     int numTouches = touchQueueSize.addAndGet(1);
                     if (numTouches <= TOUCH_QUEUE_SIZE) {
+                        touchTimes.set(numTouches - 1,
+                                mInputLatency.onSampleQueued(tap.getEventTime()));
                         touchQueue.set(numTouches - 1, new Vector2f(tap.getX(), tap.getY()));
                     }
                 }
@@ -1021,6 +1457,7 @@ public class DrawARActivity extends BaseActivity
 
     @Override
     public void onContextCreated() {
+        GlStateTracker.get().onContextCreated();
         mBackgroundRenderer.createOnGlThread(this);
         mSession.setCameraTextureName(mBackgroundRenderer.getTextureId());
         try {
@@ -1029,18 +1466,29 @@ public class DrawARActivity extends BaseActivity
             e.printStackTrace();
         }
         mLineShaderRenderer.bNeedsUpdate.set(true);
+        mRenderGraph.createOnGlThread();
     }
 
     @Override
     public void onPreDrawFrame() {
-        update();
+        // the previous frame has been swapped
+        mInputLatency.onFrameSwapped();
+        synchronized (mFrameLock) {
+            if (!bFramesStopped) {
+                update();
+            }
+        }
     }
 
     @Override
     public void onDrawFrame() {
         long renderStartTime = System.currentTimeMillis();
 
-        renderScene();
+        synchronized (mFrameLock) {
+            if (!bFramesStopped) {
+                renderScene();
+            }
+        }
 
         mRenderDuration = System.currentTimeMillis() - renderStartTime;
     }
@@ -1092,6 +1540,10 @@ public class DrawARActivity extends BaseActivity
                 shareApp();
                 mAnalytics.send(AnalyticsEvents.EVENT_TAPPED_SHARE_APP);
                 break;
+            case R.id.menu_item_export:
+                bExport.set(true);
+                mAnalytics.send(AnalyticsEvents.EVENT_TAPPED_EXPORT_3D);
+                break;
 //            case R.id.menu_item_crash:
 //                throw new RuntimeException("Intentional crash from overflow menu option");
 //            case R.id.menu_item_hide_ui:
@@ -1249,16 +1701,35 @@ public class DrawARActivity extends BaseActivity
     }
 
     @Override
-    public void setAnchor(Anchor anchor) {
+    public void setAnchor(final Anchor anchor) {
         mAnchor = anchor;
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                if (!moveToRoomAnchor(anchor)) {
+                    return;
+                }
+                for (Stroke stroke : mStrokes) {
+                    Log.d(TAG, "setAnchor: pushing line");
+                    mPairSessionManager.addStroke(stroke);
+                }
+            }
+        });
+    }
 
-        for (Stroke stroke : mStrokes) {
-            Log.d(TAG, "setAnchor: pushing line");
-            stroke.offsetToPose(mAnchor.getPose());
-            mPairSessionManager.addStroke(stroke);
+    /**
+     * Moves the strokes under the room anchor, on the thread that owns the strokes
+     *
+     * @return false if the anchor was left meanwhile
+     */
+    private boolean moveToRoomAnchor(Anchor anchor) {
+        if (anchor.getTrackingState() == TrackingState.STOPPED) {
+            return false;
         }
-
+        mAnchorBuckets.setRoomAnchor(anchor, mStrokes, mSharedStrokes.values());
+        mDrawingStore.requestCheckpoint();
         mLineShaderRenderer.bNeedsUpdate.set(true);
+        return true;
     }
 
     @Override
@@ -1336,16 +1807,21 @@ public class DrawARActivity extends BaseActivity
                 }
 
                 mPairSessionManager.onAnchorCreated();
-                if (mStrokes.size() > 0) {
-                    for (int i = 0; i < mStrokes.size(); i++) {
-                        mStrokes.get(i).offsetToPose(pose);
-                        if (mStrokes.get(i).hasFirebaseReference())
-                            mPairSessionManager.updateStroke(mStrokes.get(i));
-                        else
-                            mPairSessionManager.addStroke(mStrokes.get(i));
+                final Anchor anchor = mAnchor;
+                mStrokeChanges.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!moveToRoomAnchor(anchor)) {
+                            return;
+                        }
+                        for (int i = 0; i < mStrokes.size(); i++) {
+                            if (mStrokes.get(i).hasFirebaseReference())
+                                mPairSessionManager.updateStroke(mStrokes.get(i));
+                            else
+                                mPairSessionManager.addStroke(mStrokes.get(i));
+                        }
                     }
-                    mLineShaderRenderer.bNeedsUpdate.set(true);
-                }
+                });
 
                 mPairSessionManager.setAnchor(mAnchor);
             }
@@ -1354,9 +1830,15 @@ public class DrawARActivity extends BaseActivity
 
     @Override
     public void clearLines() {
-        mSharedStrokes.clear();
-        mStrokes.clear();
-        mLineShaderRenderer.bNeedsUpdate.set(true);
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                mSharedStrokes.clear();
+                mStrokes.clear();
+                mDrawingStore.requestCheckpoint();
+                mLineShaderRenderer.bNeedsUpdate.set(true);
+            }
+        });
     }
 
     @Override
@@ -1375,11 +1857,17 @@ public class DrawARActivity extends BaseActivity
     @Override
     public void clearAnchor(Anchor anchor) {
         if (anchor != null && anchor.equals(mAnchor)) {
-            for (Stroke stroke : mStrokes) {
-                stroke.offsetFromPose(mAnchor.getPose());
-            }
+            // the strokes stay where they are, under a local anchor
+            mAnchorBuckets.clearRoomAnchor(mSession);
             mAnchor = null;
-            Matrix.setIdentityM(mLineShaderRenderer.mModelMatrix, 0);
+            mStrokeChanges.add(new Runnable() {
+                @Override
+                public void run() {
+                    mAnchorBuckets.moveStrokesFromRoom(mStrokes, mSharedStrokes.values());
+                    mDrawingStore.requestCheckpoint();
+                    mLineShaderRenderer.bNeedsUpdate.set(true);
+                }
+            });
         }
     }
 
@@ -1457,16 +1945,48 @@ public class DrawARActivity extends BaseActivity
     }
 
     @Override
-    public void onLineAdded(String uid, Stroke value) {
+    public void onLineAdded(final String uid, final Stroke value) {
         value.localLine = false;
         value.calculateTotalLength();
-        mSharedStrokes.put(uid, value);
-        showStrokeDependentUI();
-        mLineShaderRenderer.bNeedsUpdate.set(true);
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                mSharedStrokes.put(uid, value);
+                showStrokeDependentUI();
+                mLineShaderRenderer.bNeedsUpdate.set(true);
+            }
+        });
     }
 
     @Override
-    public void onLineRemoved(String uid) {
+    public void onLinesAdded(final Map<String, Stroke> lines) {
+        for (Stroke stroke : lines.values()) {
+            stroke.localLine = false;
+            stroke.calculateTotalLength();
+            // the lines were drawn before joining, show them whole
+            stroke.skipAnimation();
+        }
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                mSharedStrokes.putAll(lines);
+                showStrokeDependentUI();
+                mLineShaderRenderer.bNeedsUpdate.set(true);
+            }
+        });
+    }
+
+    @Override
+    public void onLineRemoved(final String uid) {
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                removeLine(uid);
+            }
+        });
+    }
+
+    private void removeLine(String uid) {
         if (mSharedStrokes.containsKey(uid)) {
             mSharedStrokes.remove(uid);
             mLineShaderRenderer.bNeedsUpdate.set(true);
@@ -1474,6 +1994,7 @@ public class DrawARActivity extends BaseActivity
             for (Stroke stroke : mStrokes) {
                 if (uid.equals(stroke.getFirebaseKey())) {
                     mStrokes.remove(stroke);
+                    mDrawingStore.requestCheckpoint();
                     if (!stroke.finished) {
                         bTouchDown.set(false);
                     }
@@ -1487,13 +2008,19 @@ public class DrawARActivity extends BaseActivity
     }
 
     @Override
-    public void onLineUpdated(String uid, Stroke value) {
-        Stroke stroke = mSharedStrokes.get(uid);
-        if (stroke == null) {
-            return;
-        }
-        stroke.updateStrokeData(value);
-        mLineShaderRenderer.bNeedsUpdate.set(true);
+    public void onLineUpdated(final String uid, final StrokeDelta delta) {
+        // the points of the stroke are only changed by the thread processing strokes
+        mStrokeChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                Stroke stroke = mSharedStrokes.get(uid);
+                if (stroke != null) {
+                    stroke.applyDelta(delta);
+                    mAppliedDeltas.add(delta);
+                    mLineShaderRenderer.bNeedsUpdate.set(true);
+                }
+            }
+        });
     }
 
     @Override
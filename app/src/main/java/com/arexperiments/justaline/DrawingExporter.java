@@ -0,0 +1,137 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import com.arexperiments.justaline.export.GlbWriter;
+import com.arexperiments.justaline.export.LineMesh;
+import com.arexperiments.justaline.export.MeshWriter;
+import com.arexperiments.justaline.export.ObjWriter;
+import com.arexperiments.justaline.export.PlyWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes drawings as 3D files on a background thread, one file per {@link MeshWriter}. A file is
+ * written under a temporary name and renamed once complete, so a failed export leaves no partial
+ * file to share. The files of earlier exports are deleted first, so the directory only holds
+ * the last drawing exported.
+ */
+/*package*/ class DrawingExporter {
+
+    private static final String TAG = "DrawingExporter";
+
+    interface Listener {
+
+        /**
+         * Called on the background thread with the written files
+         */
+        void onExported(List<File> files);
+
+        /**
+         * Called on the background thread if a file could not be written
+         */
+        void onExportFailed(IOException e);
+    }
+
+    private final File mDirectory;
+
+    private final MeshWriter[] mWriters = {new GlbWriter(), new PlyWriter(), new ObjWriter()};
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    DrawingExporter(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @param mesh the drawing, whose points must not change until the listener is called
+     */
+    void export(final LineMesh mesh, final String name, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                List<File> files = new ArrayList<>();
+                try {
+                    if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                        throw new IOException("Could not create " + mDirectory);
+                    }
+                    deleteOldExports();
+                    for (MeshWriter writer : mWriters) {
+                        files.add(write(mesh, writer, name));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Export failed", e);
+                    listener.onExportFailed(e);
+                    return;
+                }
+                Log.d(TAG, "Exported " + mesh.getLineCount() + " lines, "
+                        + mesh.getTriangleCount() + " triangles in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                listener.onExported(files);
+            }
+        });
+    }
+
+    /**
+     * Deletes the files of earlier exports, which were shared already or never will be
+     */
+    private void deleteOldExports() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    private File write(LineMesh mesh, MeshWriter writer, String name) throws IOException {
+        File file = new File(mDirectory, name + "." + writer.getExtension());
+        File tmp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            try {
+                writer.write(mesh, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,478 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.model.StrokeFile;
+import com.arexperiments.justaline.model.StrokeJournal;
+import com.google.ar.core.Pose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keeps the local drawing on disk, so that it survives the process being killed while the
+ * session would be continued, see {@link SessionHelper#shouldContinueSession}.
+ * <p>
+ * Every operation on the local strokes is appended to a {@link StrokeJournal}. The records are
+ * written by a background thread, which commits all records queued since its last commit with
+ * one write and one sync. Once the journal grows past {@link #CHECKPOINT_BYTES}, or when asked
+ * to, a copy of the strokes is written as a {@link StrokeFile} checkpoint and the journal starts
+ * over, so recovery only replays a bounded journal on top of a mapped checkpoint. Only the strokes
+ * that changed since the last checkpoint are copied, the file is written in the background.
+ * <p>
+ * The stroke methods are called by the thread that owns the strokes, see {@link FramePipeline}.
+ */
+/*package*/ class DrawingStore {
+
+    private static final String TAG = "DrawingStore";
+
+    private static final String CHECKPOINT_FILE = "drawing.jald";
+
+    private static final String JOURNAL_FILE = "drawing.jalj";
+
+    // Journal size after which the next frame writes a checkpoint
+    private static final int CHECKPOINT_BYTES = 256 * 1024;
+
+    // Minimum time between two commits, records queued meanwhile are committed together
+    private static final long COMMIT_INTERVAL_MS = 30;
+
+    private static final Object STOP = new Object();
+
+    interface LoadListener {
+
+        /**
+         * Called on the background thread with the recovered drawing, not called if it is empty
+         */
+        void onLoaded(StrokeJournal.Replay drawing);
+    }
+
+    private final File mCheckpointFile;
+
+    private final File mJournalFile;
+
+    // Records and tasks, in order
+    private final BlockingQueue<Object> mQueue = new LinkedBlockingQueue<>();
+
+    /*
+     * Owned by the thread of the strokes
+     */
+    // The stroke being drawn and how much of it is journaled
+    private Stroke mCurrent;
+
+    private boolean mCurrentPosed;
+
+    private int mJournaledStable;
+
+    private int mJournaledRevision;
+
+    private long mJournalBytes;
+
+    // The copies of the last checkpoint by stroke, reused for finished strokes that did not change
+    private Map<Stroke, Stroke> mCheckpointCopies = new IdentityHashMap<>();
+
+    private volatile boolean mCheckpointRequested;
+
+    // Set by clearStrokes(), so that a drawing that is still being recovered is not handed out
+    private volatile boolean mLoadCancelled;
+
+    // Until the recovered drawing is ingested, the strokes are not the drawing of the journal
+    private volatile boolean mRestoring;
+
+    /*
+     * Owned by the writer thread
+     */
+    private FileChannel mJournal;
+
+    private int mSequence;
+
+    private final LatencyHistogram mCommitLatency = new LatencyHistogram("commit");
+
+    private final LatencyHistogram mCheckpointLatency = new LatencyHistogram("checkpoint");
+
+    private volatile int mCommittedRecords;
+
+    private volatile int mCommits;
+
+    private volatile String mRecoverySummary = "recovered -";
+
+    DrawingStore(File directory) {
+        mCheckpointFile = new File(directory, CHECKPOINT_FILE);
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "DrawingStore");
+        writer.start();
+    }
+
+    /**
+     * Recovers the drawing from the checkpoint and the journal, and continues the journal. Must
+     * be called, or {@link #reset()}, before the strokes are changed.
+     */
+    void load(final LoadListener listener) {
+        mRestoring = true;
+        mQueue.add(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                StrokeJournal.Replay drawing = recover();
+                if (drawing == null) {
+                    startJournal(0);
+                    mRestoring = false;
+                    return;
+                }
+                mRecoverySummary = String.format(Locale.US,
+                        "recovered %d strokes %d records %.1fms", drawing.getStrokeCount(),
+                        drawing.getRecordCount(), (System.nanoTime() - start) / 1e6f);
+                Log.d(TAG, mRecoverySummary);
+                if (drawing.getStrokeCount() > 0 && !mLoadCancelled) {
+                    listener.onLoaded(drawing);
+                } else {
+                    mRestoring = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the saved drawing and starts an empty journal. Must be called, or
+     * {@link #load(LoadListener)}, before the strokes are changed.
+     */
+    void reset() {
+        mQueue.add(new Runnable() {
+            @Override
+            public void run() {
+                delete(mCheckpointFile);
+                startJournal(0);
+            }
+        });
+    }
+
+    void addStroke(Stroke stroke) {
+        mCurrent = stroke;
+        mCurrentPosed = false;
+        mJournaledStable = 0;
+        mJournaledRevision = stroke.getRevision();
+        append(StrokeJournal.newStroke(stroke.getLineWidth()));
+    }
+
+    /**
+     * Journals the points added to the stroke being drawn
+     *
+     * @param bucketPose the pose of the anchor the points are relative to
+     */
+    void updateStroke(Stroke stroke, Pose bucketPose) {
+        if (stroke != mCurrent) {
+            return;
+        }
+        if (!mCurrentPosed) {
+            mCurrentPosed = true;
+            if (bucketPose != Pose.IDENTITY) {
+                append(StrokeJournal.pose(bucketPose));
+            }
+        }
+        journalPoints(stroke);
+    }
+
+    void finishStroke(Stroke stroke) {
+        if (stroke != mCurrent) {
+            return;
+        }
+        journalPoints(stroke);
+        append(StrokeJournal.finish());
+        mCurrent = null;
+    }
+
+    private void journalPoints(Stroke stroke) {
+        // like the upload log, only the points that may still change are rewritten
+        int from = stroke.getRevision() == mJournaledRevision
+                ? Math.min(mJournaledStable, stroke.size()) : 0;
+        append(StrokeJournal.points(stroke, from));
+        mJournaledStable = stroke.getStablePointCount();
+        mJournaledRevision = stroke.getRevision();
+    }
+
+    /**
+     * Journals that the last stroke was removed
+     */
+    void undoStroke(Stroke stroke) {
+        if (stroke == mCurrent) {
+            mCurrent = null;
+        }
+        append(StrokeJournal.undo());
+    }
+
+    void clearStrokes() {
+        mLoadCancelled = true;
+        mRestoring = false;
+        mCurrent = null;
+        append(StrokeJournal.clear());
+    }
+
+    private void append(byte[] record) {
+        mJournalBytes += record.length;
+        mQueue.add(record);
+    }
+
+    /**
+     * Asks for a checkpoint at the next frame, after the strokes were changed in a way that is
+     * not journaled, like being moved to another anchor. Can be called on any thread.
+     */
+    void requestCheckpoint() {
+        mCheckpointRequested = true;
+    }
+
+    boolean needsCheckpoint() {
+        return !mRestoring && (mCheckpointRequested || mJournalBytes > CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Writes a copy of the strokes as the new checkpoint on the background thread, and starts a
+     * new journal after it. Does nothing while the recovered drawing is being ingested, its
+     * checkpoint and journal stay.
+     *
+     * @param bucketPoses the pose of every anchor bucket, see {@link AnchorBuckets#getLastPoses()}
+     */
+    void checkpoint(List<Stroke> strokes, final Pose[] bucketPoses) {
+        if (mRestoring) {
+            return;
+        }
+        mCheckpointRequested = false;
+        mJournalBytes = 0;
+        if (mCurrent != null && (strokes.isEmpty() || strokes.get(strokes.size() - 1) != mCurrent)) {
+            // the journal can only continue the last stroke
+            mCurrent = null;
+        }
+
+        // the point objects are never changed, so a copy of a stroke stays valid as long as the
+        // list of its points is not changed
+        final List<Stroke> copies = new ArrayList<>(strokes.size());
+        Map<Stroke, Stroke> checkpointCopies = new IdentityHashMap<>();
+        for (Stroke stroke : strokes) {
+            Stroke copy = mCheckpointCopies.get(stroke);
+            if (copy == null || !isUnchanged(stroke, copy)) {
+                copy = stroke.copy();
+            }
+            checkpointCopies.put(stroke, copy);
+            copies.add(copy);
+        }
+        mCheckpointCopies = checkpointCopies;
+        mQueue.add(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    StrokeFile.write(mCheckpointFile, copies, bucketPoses, mSequence + 1);
+                } catch (IOException e) {
+                    // the journal stays valid for the previous checkpoint
+                    Log.e(TAG, "Cannot write checkpoint", e);
+                    return;
+                }
+                startJournal(mSequence + 1);
+                mCheckpointLatency.recordNanos(System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * @return true if the copy has the points of the stroke. Finished strokes only change their
+     * points with a new revision, unfinished ones are smoothed without one.
+     */
+    private static boolean isUnchanged(Stroke stroke, Stroke copy) {
+        return stroke.finished && copy.finished && stroke.getRevision() == copy.getRevision()
+                && stroke.size() == copy.size() && stroke.bucket == copy.bucket
+                && stroke.getLineWidth() == copy.getLineWidth();
+    }
+
+    /**
+     * Commits the queued records and stops the writer thread
+     */
+    void shutdown() {
+        mQueue.add(STOP);
+    }
+
+    private void runWriter() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Object item = mQueue.take();
+                if (item == STOP) {
+                    break;
+                } else if (item instanceof Runnable) {
+                    ((Runnable) item).run();
+                    continue;
+                }
+
+                batch.add((byte[]) item);
+                while (mQueue.peek() instanceof byte[]) {
+                    batch.add((byte[]) mQueue.poll());
+                }
+                commit(batch);
+                batch.clear();
+                Thread.sleep(COMMIT_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer interrupted");
+        }
+        closeJournal();
+    }
+
+    private void commit(List<byte[]> records) {
+        if (mJournal == null) {
+            Log.w(TAG, "No journal, dropping " + records.size() + " records");
+            return;
+        }
+        long start = System.nanoTime();
+        int length = 0;
+        for (byte[] record : records) {
+            length += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                mJournal.write(buffer);
+            }
+            mJournal.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write journal", e);
+            return;
+        }
+        mCommitLatency.recordNanos(System.nanoTime() - start);
+        mCommittedRecords += records.size();
+        mCommits++;
+    }
+
+    /**
+     * @return the drawing of the checkpoint and the journal after it, with the journal open for
+     * appending, or null if there is no journal that follows the checkpoint
+     */
+    private StrokeJournal.Replay recover() {
+        StrokeFile.Reader checkpoint = null;
+        try {
+            if (mCheckpointFile.exists()) {
+                checkpoint = StrokeFile.open(mCheckpointFile);
+            }
+            StrokeJournal.Replay drawing = StrokeJournal.replay(mJournalFile, checkpoint);
+            if (drawing == null) {
+                // the checkpoint was written, the journal not yet started over
+                if (checkpoint != null) {
+                    mSequence = checkpoint.getSequence();
+                    startJournal(mSequence);
+                    return StrokeJournal.replay(mJournalFile, checkpoint);
+                }
+                return null;
+            }
+            mSequence = checkpoint != null ? checkpoint.getSequence() : 0;
+            openJournal(drawing.getValidLength());
+            return drawing;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot recover drawing, deleting it", e);
+            delete(mCheckpointFile);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the journal with an empty one following the checkpoint of the sequence
+     */
+    private void startJournal(int sequence) {
+        closeJournal();
+        File temp = new File(mJournalFile.getPath() + ".tmp");
+        try {
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                out.setLength(0);
+                out.write(StrokeJournal.header(sequence));
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mJournalFile)) {
+                throw new IOException("Cannot replace " + mJournalFile);
+            }
+            mSequence = sequence;
+            openJournal(StrokeJournal.HEADER_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot start journal", e);
+        }
+    }
+
+    /**
+     * Opens the journal for appending, dropping a record torn by a crash
+     */
+    private void openJournal(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+        file.setLength(length);
+        mJournal = file.getChannel();
+        mJournal.position(length);
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close journal", e);
+        }
+        mJournal = null;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Called once the recovered drawing is ingested, with how long that took
+     */
+    void onRestored(int strokes, int points, long nanos) {
+        mRestoring = false;
+        mRecoverySummary = String.format(Locale.US, "restored %d strokes %d points %.1fms",
+                strokes, points, nanos / 1e6f);
+        Log.d(TAG, mRecoverySummary);
+    }
+
+    /**
+     * @return the records per commit, the commit and checkpoint latencies and the last recovery
+     */
+    String getStatsSummary() {
+        int commits = mCommits;
+        return String.format(Locale.US, "journal: %.1f records/commit %s %s %s",
+                commits > 0 ? (float) mCommittedRecords / commits : 0,
+                mCommitLatency.getSummary(), mCheckpointLatency.getSummary(), mRecoverySummary);
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the per-frame stroke work either inline on the GL thread (serial) or on a worker thread
+ * (pipelined), and measures frame throughput for both modes. The mode can be switched between
+ * frames, the statistics of each mode are kept apart to compare them on the same device and
+ * drawing. Input latency is measured by {@link InputLatencyTracker}.
+ * <p>
+ * In pipelined mode the stroke job for frame N runs on the worker while the GL thread draws frame
+ * N, swaps and waits for the next camera frame in {@code Session.update()}. The GL thread calls
+ * {@link #awaitIdle()} before touching stroke data again, so at any time exactly one thread owns
+ * the strokes and the CPU side line geometry. All methods except the job itself are called on the
+ * GL thread, or on another thread while the GL thread is kept from running frames, see
+ * DrawARActivity.onPause().
+ */
+/*package*/ class FramePipeline {
+
+    private static final String TAG = "FramePipeline";
+
+    // weight of the newest sample in the moving averages
+    private static final float AVERAGE_WEIGHT = 0.05f;
+
+    private volatile boolean mPipelined;
+
+    private ExecutorService mWorker;
+
+    private volatile Future<?> mPendingJob;
+
+    private long mLastFrameTimeNanos;
+
+    private final Stats mSerialStats = new Stats();
+
+    private final Stats mPipelinedStats = new Stats();
+
+    FramePipeline(boolean pipelined) {
+        setPipelined(pipelined);
+    }
+
+    boolean isPipelined() {
+        return mPipelined;
+    }
+
+    /**
+     * Switches the mode, waiting for the pending job first. Must be called between frames.
+     */
+    void setPipelined(boolean pipelined) {
+        if (pipelined == mPipelined && (!pipelined || mWorker != null)) {
+            return;
+        }
+        awaitIdle();
+        if (pipelined && mWorker == null) {
+            mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StrokeWorker");
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        mPipelined = pipelined;
+        // the interval across the switch belongs to neither mode
+        mLastFrameTimeNanos = 0;
+    }
+
+    private Stats stats() {
+        return mPipelined ? mPipelinedStats : mSerialStats;
+    }
+
+    /**
+     * Marks the start of a frame, used to measure throughput
+     */
+    void onFrameStarted() {
+        long now = System.nanoTime();
+        if (mLastFrameTimeNanos != 0) {
+            Stats stats = stats();
+            stats.frameIntervalNanos = average(stats.frameIntervalNanos, now - mLastFrameTimeNanos);
+        }
+        mLastFrameTimeNanos = now;
+    }
+
+    /**
+     * Runs the stroke job of a frame. In serial mode it runs immediately on the calling thread,
+     * in pipelined mode it is queued on the worker and {@link #awaitIdle()} must be called before
+     * the next job is submitted.
+     */
+    void submit(final Runnable job) {
+        final Stats stats = stats();
+        Runnable timedJob = new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                job.run();
+                stats.jobTimeNanos = average(stats.jobTimeNanos, System.nanoTime() - start);
+            }
+        };
+
+        if (!mPipelined) {
+            timedJob.run();
+            return;
+        }
+
+        awaitIdle();
+        mPendingJob = mWorker.submit(timedJob);
+    }
+
+    /**
+     * Blocks until the previously submitted job has finished, handing ownership of the stroke data
+     * back to the calling thread
+     */
+    void awaitIdle() {
+        if (mPendingJob == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            mPendingJob.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "stroke job failed", e.getCause());
+        }
+        mPendingJob = null;
+        Stats stats = stats();
+        stats.waitTimeNanos = average(stats.waitTimeNanos, System.nanoTime() - start);
+    }
+
+    /**
+     * Waits for the last job and stops the worker thread
+     */
+    void shutdown() {
+        awaitIdle();
+        if (mWorker != null) {
+            mWorker.shutdown();
+        }
+    }
+
+    private static float average(float current, long sample) {
+        if (current == 0) {
+            return sample;
+        }
+        return current + (sample - current) * AVERAGE_WEIGHT;
+    }
+
+    /**
+     * @return the frame rate, stroke job time and time the GL thread waited for the worker of
+     * both modes, the current one first
+     */
+    String getStatsSummary() {
+        String serial = mSerialStats.getSummary("serial");
+        String pipelined = mPipelinedStats.getSummary("pipelined");
+        return mPipelined ? "*" + pipelined + "\n " + serial : "*" + serial + "\n " + pipelined;
+    }
+
+    /**
+     * Moving averages of one mode
+     */
+    private static class Stats {
+
+        float frameIntervalNanos;
+
+        // written by the worker in pipelined mode
+        volatile float jobTimeNanos;
+
+        float waitTimeNanos;
+
+        String getSummary(String mode) {
+            float fps = frameIntervalNanos > 0 ? 1000000000f / frameIntervalNanos : 0;
+            return String.format(Locale.US, "%s: %.1ffps strokes %.2fms wait %.2fms", mode, fps,
+                    jobTimeNanos / 1000000f, waitTimeNanos / 1000000f);
+        }
+    }
+}
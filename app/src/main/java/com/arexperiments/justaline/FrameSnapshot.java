@@ -0,0 +1,80 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+
+/**
+ * Copy of the per-frame ARCore data stroke processing needs.
+ * <p>
+ * A {@link com.google.ar.core.Frame} and the poses of its anchors are only valid until the next
+ * {@code Session.update()}, so the GL thread copies what it needs into a snapshot right after the
+ * update and hands the snapshot to the stroke worker. The snapshot is never modified after it has
+ * been handed off.
+ */
+/*package*/ class FrameSnapshot {
+
+    /**
+     * Projection matrix of the frame
+     */
+    final float[] projectionMatrix = new float[16];
+
+    /**
+     * View matrix of the frame, already multiplied with the zero matrix
+     */
+    final float[] viewMatrix = new float[16];
+
+    final float screenWidth;
+
+    final float screenHeight;
+
+    /**
+     * Pose of the shared anchor, or null if there is no anchor or it is not tracking
+     */
+    final Pose anchorPose;
+
+    /**
+     * Pose of every anchor bucket by id, null for anchors that are not tracking, see
+     * {@link AnchorBuckets}
+     */
+    final Pose[] bucketPoses;
+
+    /**
+     * Time the snapshot was taken, in System.nanoTime() time base
+     */
+    final long captureTimeNanos;
+
+    FrameSnapshot(float[] projectionMatrix, float[] viewMatrix, float screenWidth, float screenHeight,
+                  Anchor anchor, Pose[] bucketPoses) {
+        System.arraycopy(projectionMatrix, 0, this.projectionMatrix, 0, 16);
+        System.arraycopy(viewMatrix, 0, this.viewMatrix, 0, 16);
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        // Poses are immutable, holding on to the reference is safe
+        this.anchorPose = anchor != null && anchor.getTrackingState() == TrackingState.TRACKING
+                ? anchor.getPose() : null;
+        this.bucketPoses = bucketPoses;
+        this.captureTimeNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the pose of the bucket, or null if its anchor is not tracking
+     */
+    Pose getBucketPose(int bucket) {
+        return bucket < bucketPoses.length ? bucketPoses[bucket] : null;
+    }
+}
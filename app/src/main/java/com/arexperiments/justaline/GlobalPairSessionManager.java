@@ -51,6 +51,11 @@ public class GlobalPairSessionManager extends PairSessionManager
         // Nearby is not necessary for Global room
     }
 
+    @Override
+    protected void startRoomDiscovery(Activity activity) {
+        // Nearby is not necessary for Global room
+    }
+
     @Override
     protected void internalStartPairingSession(Activity activity) {
         mRoomDbManager.joinRoom(null, mUserUid, true, this, null);
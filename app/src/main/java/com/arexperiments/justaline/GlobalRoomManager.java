@@ -18,11 +18,8 @@ import android.content.Context;
 import android.util.Log;
 
 import com.arexperiments.justaline.model.RoomData;
-import com.google.firebase.database.DataSnapshot;
+import com.arexperiments.justaline.transport.RoomTransport;
 import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
 
 /**
  * Created by Kat on 4/10/18.
@@ -36,7 +33,7 @@ public class GlobalRoomManager extends RoomManager {
 
     private static String globalRoomName = "";
 
-    private DatabaseReference globalRoomRef;
+    private RoomTransport.Node globalRoomRef;
 
     private GlobalRoomListener globalRoomListener;
 
@@ -49,6 +46,10 @@ public class GlobalRoomManager extends RoomManager {
         super(context);
     }
 
+    public GlobalRoomManager(RoomTransport transport) {
+        super(transport);
+    }
+
     public static void setGlobalRoomName(String name) {
         Log.i(TAG, "Set global room name: " + name);
         globalRoomName = name;
@@ -60,12 +61,14 @@ public class GlobalRoomManager extends RoomManager {
         isHost = false;
         this.isPairing = isPairing;
 
-        final DatabaseReference rootRef = FirebaseDatabase.getInstance(app).getReference();
-        globalRoomRef = rootRef.child(ROOT_GLOBAL_ROOM + "_" + globalRoomName);
+        if (transport == null) {
+            return false;
+        }
+        globalRoomRef = transport.getReference(ROOT_GLOBAL_ROOM + "_" + globalRoomName);
 
-        globalRoomRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        globalRoomRef.readOnce(new RoomTransport.ValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
                 String roomKey = dataSnapshot.getValue(String.class);
                 Log.d(TAG, "received room key: " + roomKey);
 
@@ -88,7 +91,7 @@ public class GlobalRoomManager extends RoomManager {
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(String error) {
                 // TODO: handle cancelled event
             }
         });
@@ -101,6 +104,14 @@ public class GlobalRoomManager extends RoomManager {
         this.globalRoomListener = globalRoomListener;
     }
 
+    /**
+     * The global room is shared by everyone, so only the lines near the camera are loaded
+     */
+    @Override
+    protected boolean isSpatialInterestEnabled() {
+        return true;
+    }
+
     @Override
     protected void listenForAnchorErrors(String userUid,
                                          AnchorResolutionListener listener) {
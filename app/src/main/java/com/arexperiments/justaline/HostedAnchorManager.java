@@ -14,16 +14,26 @@
 
 package com.arexperiments.justaline;
 
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Session;
 import com.google.ar.core.exceptions.NotTrackingException;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 /**
  * A helper class to handle all the Sharing and Persistence logic.
+ * <p>
+ * Any number of anchors can be hosted and resolved at once. The state of every operation in
+ * flight is polled on every frame, since a change of the cloud anchor state does not always come
+ * with the anchor among the updated anchors of the frame. Timeouts are only checked on frames.
  */
 /*package*/ class HostedAnchorManager {
 
@@ -58,11 +68,48 @@ import java.util.Collection;
         void onAnchorResolved(Anchor anchor, Anchor.CloudAnchorState state, boolean notTracking);
     }
 
+    // Longer than the pairing timeout of PairSessionManager, which gives up on its own first
+    private static final long HOST_TIMEOUT_MS = 90 * 1000;
+
+    private static final long RESOLVE_TIMEOUT_MS = 90 * 1000;
+
+    /**
+     * A cloud anchor being hosted or resolved, with the listener for its result
+     */
+    private static class Operation {
+
+        final Anchor anchor;
+
+        final AnchorHostedListener hostedListener;
+
+        final AnchorResolvedListener resolvedListener;
+
+        final long startedAt;
+
+        final long deadline;
+
+        Operation(Anchor anchor, AnchorHostedListener hostedListener,
+                  AnchorResolvedListener resolvedListener, long timeoutMillis) {
+            this.anchor = anchor;
+            this.hostedListener = hostedListener;
+            this.resolvedListener = resolvedListener;
+            startedAt = SystemClock.uptimeMillis();
+            deadline = startedAt + timeoutMillis;
+        }
+    }
+
     private Session session = null;
 
-    private Pair<Anchor, AnchorHostedListener> pendingHost;
+    // Operations in flight, by cloud anchor
+    private final Map<Anchor, Operation> operations = new HashMap<>();
+
+    private final LatencyHistogram hostLatency = new LatencyHistogram("host");
 
-    private Pair<Anchor, AnchorResolvedListener> pendingResolve;
+    private final LatencyHistogram resolveLatency = new LatencyHistogram("resolve");
+
+    private int failures;
+
+    private int timeouts;
 
     /**
      * This method is used to set the session, since it might not be available when this object is
@@ -79,13 +126,28 @@ import java.util.Collection;
      *
      * @param anchor   The anchor to be hosted.
      * @param listener The listener to be invoked when the results become available.
+     * @return the cloud anchor being hosted
+     */
+    public Anchor hostAnchor(Anchor anchor, AnchorHostedListener listener) {
+        return hostAnchor(anchor, listener, HOST_TIMEOUT_MS);
+    }
+
+    /**
+     * Hosts an anchor, any number of anchors can be hosted at once.
+     *
+     * @param timeoutMillis after which the listener is called with the state the cloud anchor
+     *                      has then, {@link Anchor.CloudAnchorState#TASK_IN_PROGRESS} if it is
+     *                      still being hosted
+     * @return the cloud anchor being hosted
      */
-    public synchronized void hostAnchor(Anchor anchor, AnchorHostedListener listener) {
+    public synchronized Anchor hostAnchor(Anchor anchor, AnchorHostedListener listener,
+                                          long timeoutMillis) {
         checkSessionNotNull();
         Anchor cloudAnchor = session.hostCloudAnchor(anchor);
         if (listener != null) {
-            pendingHost = new Pair<>(cloudAnchor, listener);
+            add(new Operation(cloudAnchor, listener, null, timeoutMillis));
         }
+        return cloudAnchor;
     }
 
     /**
@@ -95,8 +157,20 @@ import java.util.Collection;
      * @param anchorId The anchor ID of the anchor
      * @param listener The listener which should be invoked when the results become available.
      */
+    public boolean resolveHostedAnchor(String anchorId, AnchorResolvedListener listener) {
+        return resolveHostedAnchor(anchorId, listener, RESOLVE_TIMEOUT_MS);
+    }
+
+    /**
+     * Resolves a hosted anchor, any number of anchors can be resolved at once.
+     *
+     * @param timeoutMillis after which the listener is called with the state the cloud anchor
+     *                      has then, {@link Anchor.CloudAnchorState#TASK_IN_PROGRESS} if it is
+     *                      still being resolved
+     */
     public synchronized boolean resolveHostedAnchor(String anchorId,
-                                                    AnchorResolvedListener listener) {
+                                                    AnchorResolvedListener listener,
+                                                    long timeoutMillis) {
         checkSessionNotNull();
 
         try {
@@ -105,11 +179,12 @@ import java.util.Collection;
             Log.d(TAG, "resolveHostedAnchor: " + state);
             if (isReturnableStatus(state)) {
                 Log.d(TAG, "resolveHostedAnchor: returnable status");
+                record(resolveLatency, 0, state);
                 if (listener != null) {
                     listener.onAnchorResolved(tempAnchor, state, false);
                 }
             } else {
-                pendingResolve = new Pair<>(tempAnchor, listener);
+                add(new Operation(tempAnchor, null, listener, timeoutMillis));
             }
 
             return true;
@@ -122,56 +197,95 @@ import java.util.Collection;
         }
     }
 
+    private void add(Operation operation) {
+        operations.put(operation.anchor, operation);
+    }
+
+    /**
+     * Stops following the operation of the given cloud anchor, its listener is not called
+     */
+    public synchronized void cancel(Anchor anchor) {
+        operations.remove(anchor);
+    }
+
     public synchronized void cancelAnchorProcessing() {
-        Log.d(TAG, "cancelAnchorProcessing: ");
-        pendingHost = null;
-        pendingResolve = null;
+        Log.d(TAG, "cancelAnchorProcessing: " + operations.size());
+        operations.clear();
     }
 
     /**
-     * Should be called with the updated anchors available after a Session.Update() call.
+     * Should be called after every Session.update() call. Polls the state of every operation in
+     * flight, and ends the operations past their deadline.
      *
      * @param updatedAnchors The anchors returned from frame.getUpdatedAnchors().
      */
-    public synchronized void onUpdate(final Collection<Anchor> updatedAnchors) {
-        checkSessionNotNull();
+    public void onUpdate(final Collection<Anchor> updatedAnchors) {
+        List<Operation> finished = new ArrayList<>();
+        List<Anchor.CloudAnchorState> states = new ArrayList<>();
+        synchronized (this) {
+            checkSessionNotNull();
 
-        if (pendingHost != null) {
-            for (Anchor anchor : updatedAnchors) {
-                if (pendingHost.first.equals(anchor)) {
-                    Anchor.CloudAnchorState state = anchor.getCloudAnchorState();
-                    Log.d(TAG, "onUpdate: " + state);
-                    if (isReturnableStatus(state)) {
-                        AnchorHostedListener listener = pendingHost.second;
-                        pendingHost = null;
-                        final String anchorId = anchor.getCloudAnchorId();
-                        listener.onAnchorHosted(anchor, anchorId, state);
+            long now = SystemClock.uptimeMillis();
+            Iterator<Operation> it = operations.values().iterator();
+            while (it.hasNext()) {
+                Operation operation = it.next();
+                Anchor.CloudAnchorState state;
+                try {
+                    state = operation.anchor.getCloudAnchorState();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "onUpdate: ", e);
+                    if (now >= operation.deadline) {
+                        // without a state to report
+                        it.remove();
+                        timeouts++;
                     }
+                    continue;
+                }
+                if (isReturnableStatus(state)) {
+                    Log.d(TAG, "onUpdate: " + state);
+                    record(operation.hostedListener != null ? hostLatency : resolveLatency,
+                            now - operation.startedAt, state);
+                } else if (now >= operation.deadline) {
+                    Log.w(TAG, "onUpdate: timed out after " + (now - operation.startedAt)
+                            + "ms in " + state);
+                    timeouts++;
+                } else {
+                    continue;
                 }
+                it.remove();
+                finished.add(operation);
+                states.add(state);
             }
         }
 
-        if (pendingResolve != null) {
-            Log.d(TAG, "onUpdate: resolveHostedAnchor: pending resolve");
-
-            Anchor resolvingAnchor = pendingResolve.first;
-            AnchorResolvedListener listener = pendingResolve.second;
-
-            try {
-                Anchor.CloudAnchorState state = resolvingAnchor.getCloudAnchorState();
-                Log.d(TAG, "resolveHostedAnchor: " + state);
-                if (isReturnableStatus(state)) {
-                    pendingResolve = null;
-                    if (listener != null) {
-                        listener.onAnchorResolved(resolvingAnchor, state, false);
-                    }
-                }
-            } catch (RuntimeException e) {
-                Log.e(TAG, "resolveHostedAnchor: ", e);
+        // listeners may start or cancel operations
+        for (int i = 0; i < finished.size(); i++) {
+            Operation operation = finished.get(i);
+            if (operation.hostedListener != null) {
+                operation.hostedListener.onAnchorHosted(operation.anchor,
+                        operation.anchor.getCloudAnchorId(), states.get(i));
+            } else if (operation.resolvedListener != null) {
+                operation.resolvedListener.onAnchorResolved(operation.anchor, states.get(i),
+                        false);
             }
+        }
+    }
 
+    private void record(LatencyHistogram histogram, long millis, Anchor.CloudAnchorState state) {
+        if (state == Anchor.CloudAnchorState.SUCCESS) {
+            histogram.recordMicros(millis * 1000);
+        } else {
+            failures++;
         }
+    }
 
+    /**
+     * @return host and resolve latencies, and the operations in flight, failed and timed out
+     */
+    synchronized String getStatsSummary() {
+        return "anchors: " + hostLatency.getSummary() + " " + resolveLatency.getSummary()
+                + "\nin flight " + operations.size() + " failed " + failures
+                + " timed out " + timeouts;
     }
 
     private void checkSessionNotNull() {
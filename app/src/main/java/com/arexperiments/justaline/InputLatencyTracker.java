@@ -0,0 +1,174 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how long a touch sample takes to appear on screen.
+ * <p>
+ * Every sample gets an origin time from its MotionEvent. Samples drained from the touch queue
+ * together travel as one batch through addPoint2f, Stroke.add, updateStrokes, upload and the
+ * frame swap, and at each stage the time since the origin of every sample in the batch is
+ * recorded into that stage's histogram. The swap stage is taken at the start of the next frame,
+ * after eglSwapBuffers returned, and does not include compositor and display latency.
+ * <p>
+ * The stages up to the geometry build are called by the thread processing strokes, the later ones
+ * by the GL thread, with ownership handed over by {@link FramePipeline}.
+ */
+/*package*/ class InputLatencyTracker {
+
+    private static final String TAG = "InputLatencyTracker";
+
+    private static final int STAGE_QUEUED = 0;
+
+    private static final int STAGE_PROJECTED = 1;
+
+    private static final int STAGE_ADDED = 2;
+
+    private static final int STAGE_GEOMETRY = 3;
+
+    private static final int STAGE_UPLOADED = 4;
+
+    private static final int STAGE_SWAPPED = 5;
+
+    private static final String[] STAGE_NAMES = {"queue", "addPoint2f", "Stroke.add",
+            "updateStrokes", "upload", "swap"};
+
+    // batches still in flight per stage, older ones are dropped if a stage stops advancing
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_NAMES.length];
+
+    private long[] mCurrentBatch;
+
+    private final List<long[]> mAddedBatches = new ArrayList<>();
+
+    private final List<long[]> mGeometryBatches = new ArrayList<>();
+
+    private final List<long[]> mUploadedBatches = new ArrayList<>();
+
+    InputLatencyTracker() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mHistograms[i] = new LatencyHistogram(STAGE_NAMES[i]);
+        }
+    }
+
+    /**
+     * Called on the UI thread when a touch sample is queued
+     *
+     * @param eventTime MotionEvent.getEventTime()
+     * @return the origin time of the sample, in System.nanoTime() time base
+     */
+    long onSampleQueued(long eventTime) {
+        long now = System.nanoTime();
+        long delayNanos = (SystemClock.uptimeMillis() - eventTime) * 1000000L;
+        mHistograms[STAGE_QUEUED].recordNanos(delayNanos);
+        return now - delayNanos;
+    }
+
+    /**
+     * Starts tracking the samples drained from the touch queue
+     */
+    void onSamplesDrained(long[] origins) {
+        mCurrentBatch = origins;
+    }
+
+    void onPointsProjected() {
+        if (mCurrentBatch != null) {
+            record(STAGE_PROJECTED, mCurrentBatch, System.nanoTime());
+        }
+    }
+
+    void onPointsAdded() {
+        if (mCurrentBatch != null) {
+            record(STAGE_ADDED, mCurrentBatch, System.nanoTime());
+            add(mAddedBatches, mCurrentBatch);
+            mCurrentBatch = null;
+        }
+    }
+
+    void onGeometryBuilt() {
+        advance(STAGE_GEOMETRY, mAddedBatches, mGeometryBatches);
+    }
+
+    void onUploaded() {
+        advance(STAGE_UPLOADED, mGeometryBatches, mUploadedBatches);
+    }
+
+    void onFrameSwapped() {
+        advance(STAGE_SWAPPED, mUploadedBatches, null);
+    }
+
+    private void advance(int stage, List<long[]> from, List<long[]> to) {
+        if (from.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (long[] batch : from) {
+            record(stage, batch, now);
+            if (to != null) {
+                add(to, batch);
+            }
+        }
+        from.clear();
+    }
+
+    private static void add(List<long[]> batches, long[] batch) {
+        if (batches.size() >= MAX_PENDING_BATCHES) {
+            batches.remove(0);
+        }
+        batches.add(batch);
+    }
+
+    private void record(int stage, long[] origins, long now) {
+        for (long origin : origins) {
+            mHistograms[stage].recordNanos(now - origin);
+        }
+    }
+
+    /**
+     * @return input to photon percentiles and the median time to reach every stage
+     */
+    String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mHistograms[STAGE_SWAPPED].getSummary()).append("\np50");
+        for (int i = 0; i < STAGE_SWAPPED; i++) {
+            builder.append(String.format(Locale.US, " %s %.1f", STAGE_NAMES[i],
+                    mHistograms[i].getPercentileMicros(50) / 1000f));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes all stage histograms to the given file. Does file IO, do not call on the UI or GL
+     * thread.
+     */
+    void dump(File file) {
+        try {
+            LatencyHistogram.writeFile(file, mHistograms);
+            Log.d(TAG, "Input latency written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write input latency", e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations.
+ * <p>
+ * Values are recorded in microseconds into log-linear buckets: exact below 8us, then 8 buckets
+ * per power of two, so every bucket is within 12.5% of its values. Recording is a single atomic
+ * increment and is safe from any thread. Percentiles are read without stopping writers and may
+ * be off by the samples recorded while reading.
+ */
+/*package*/ class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    // covers up to 2^31us, about 35 minutes
+    private static final int MAX_EXPONENT = 31;
+
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+    private final String mName;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(bucketIndex(micros));
+        mCount.incrementAndGet();
+
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int mantissa = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @return the upper bound of the bucket, in microseconds
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int mantissa = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value below which the given percentage of samples fall, in microseconds
+     */
+    long getPercentileMicros(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMaxMicros.set(0);
+    }
+
+    /**
+     * @return p50, p90 and p99 in milliseconds
+     */
+    String getSummary() {
+        return String.format(Locale.US, "%s p50 %.1f p90 %.1f p99 %.1fms", mName,
+                getPercentileMicros(50) / 1000f, getPercentileMicros(90) / 1000f,
+                getPercentileMicros(99) / 1000f);
+    }
+
+    /**
+     * Writes the summaries of the histograms, then their buckets. Does file IO, do not call on the
+     * UI or GL thread.
+     */
+    static void writeFile(File file, LatencyHistogram[] histograms) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (LatencyHistogram histogram : histograms) {
+            builder.append(histogram.getSummary()).append('\n');
+        }
+        builder.append('\n');
+        for (LatencyHistogram histogram : histograms) {
+            histogram.dump(builder);
+        }
+
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(builder.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes one line per non empty bucket: upper bound in microseconds and sample count
+     */
+    void dump(StringBuilder builder) {
+        builder.append("# ").append(mName).append(" count=").append(mCount.get())
+                .append(" max_us=").append(mMaxMicros.get()).append('\n');
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long bucketCount = mBuckets.get(i);
+            if (bucketCount > 0) {
+                builder.append(bucketUpperBound(i)).append(' ').append(bucketCount).append('\n');
+            }
+        }
+    }
+}
@@ -48,6 +48,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import javax.vecmath.Vector3f;
+
 import static com.arexperiments.justaline.view.PairView.PairState.HOST_CONNECTING;
 import static com.arexperiments.justaline.view.PairView.PairState.HOST_READY_AND_WAITING;
 import static com.arexperiments.justaline.view.PairView.PairState.PARTNER_CONNECTED;
@@ -102,6 +104,11 @@ public class PairSessionManager
 
     private MessagesClient mMessagesClient;
 
+    // A room found over Nearby before the user was logged in, joined once they are
+    private RoomData mFoundRoom;
+
+    private final PairingFlow mPairingFlow = new PairingFlow();
+
     private boolean readyToSetAnchor = false, partnerReadyToSetAnchor = false;
 
     private static final long DISCOVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
@@ -115,6 +122,7 @@ public class PairSessionManager
         public void run() {
             Log.d(TAG, "run: discovery TIMEOUT");
             stopRoomDiscovery();
+            mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_DISCOVERY_TIMEOUT);
             if (mPairingStateChangeListener != null) {
                 mPairingStateChangeListener.onStateChange(PairView.PairState.DISCOVERY_TIMEOUT);
             }
@@ -128,6 +136,8 @@ public class PairSessionManager
             Log.d(TAG, "run: pair TIMEOUT");
 
             mHostManager.cancelAnchorProcessing();
+            mPairingFlow.fail(PairingFlow.Stage.HOST);
+            mPairingFlow.fail(PairingFlow.Stage.RESOLVE);
 
             if (mPairedOrPairing == PairedState.PAIRING) {
                 mRoomDbManager.setAnchorResolutionError(mUserUid);
@@ -161,9 +171,14 @@ public class PairSessionManager
                 if (joinNewRoom) {
                     // stop publishing our room and subscribing for others
                     stopRoomDiscovery();
+                    mPairingFlow.end(PairingFlow.Stage.DISCOVERY);
 
-                    // join their room
-                    joinRoom(roomData);
+                    // join their room, once logged in if discovery overlapped the login
+                    if (mUserUid == null) {
+                        mFoundRoom = roomData;
+                    } else {
+                        joinRoom(roomData);
+                    }
                 }
                 // else {
                 // Wait for other user to join our room
@@ -193,6 +208,7 @@ public class PairSessionManager
 
     void loginAnonymously(final Activity activity) {
         mLogInInProgress = true;
+        mPairingFlow.begin(PairingFlow.Stage.LOGIN);
         mFirebaseAuth.signInAnonymously()
                 .addOnCompleteListener(activity, new OnCompleteListener<AuthResult>() {
                     @Override
@@ -202,10 +218,11 @@ public class PairSessionManager
                             // Sign in success, update UI with the signed-in user's information
                             FirebaseUser user = mFirebaseAuth.getCurrentUser();
                             mUserUid = user.getUid();
+                            mPairingFlow.end(PairingFlow.Stage.LOGIN);
 
                             // if pairing has started, continue now that user is logged in
                             if (mPairedOrPairing == PairedState.PAIRING) {
-                                startPairingSession(activity);
+                                continuePairingSession(activity);
                             } else if (mPairedOrPairing == PairedState.JOINING) {
                                 internalJoinGlobalRoom(activity);
                             }
@@ -213,6 +230,7 @@ public class PairSessionManager
                             if (task.getException() != null) {
                                 Fa.get().exception(task.getException(), "Could not log in");
                             }
+                            mPairingFlow.fail(PairingFlow.Stage.LOGIN);
                             // If sign in fails and user is attempting to pair, display a message to the user.
                             if (mPairedOrPairing == PairedState.PAIRING
                                     || mPairedOrPairing == PairedState.JOINING) {
@@ -225,6 +243,9 @@ public class PairSessionManager
                                                 .onStateChange(PairView.PairState.OFFLINE);
                                     }
                                 }
+                                stopRoomDiscovery();
+                                mFoundRoom = null;
+                                mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_ERROR);
                                 mPairedOrPairing = PairedState.NOT_PAIRED;
                             }
                         }
@@ -238,11 +259,14 @@ public class PairSessionManager
 
     /**
      * Start a pairing session by creating an entry in the Firebase database and subscribing for
-     * others' rooms
+     * others' rooms. Nearby does not need the user, so if they are not logged in yet the
+     * subscription runs while logging in, and the room is created once logged in.
      */
     void startPairingSession(Activity activity) {
 
         mPairedOrPairing = PairedState.PAIRING;
+        mPairingFlow.start(mUserUid != null);
+        mFoundRoom = null;
 
         if (mAnchorStateListener != null) {
             mAnchorStateListener.onModeChanged(DrawARActivity.Mode.PAIR_PARTNER_DISCOVERY);
@@ -255,20 +279,22 @@ public class PairSessionManager
                 mPairingStateChangeListener.onStateChange(PairView.PairState.LOOKING);
             }
 
+            setupConnectionBroadcastReceiver();
+
+            startRoomDiscovery(activity);
+
             if (mUserUid == null) {
                 Log.d(TAG, "startPairingSession: userUid not set");
-                // cannot continue with pairing if user is not logged in
+                // cannot create a room if user is not logged in
                 if (!mLogInInProgress) {
                     Log.d(TAG, "startPairingSession: login not in progress, start");
                     loginAnonymously(activity);
                 }
-                return;
+            } else {
+                continuePairingSession(activity);
             }
-
-            setupConnectionBroadcastReceiver();
-
-            internalStartPairingSession(activity);
         } else {
+            mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_ERROR);
             if (mPairingStateChangeListener != null) {
                 mPairingStateChangeListener.onStateChange(PairView.PairState.OFFLINE);
             }
@@ -277,6 +303,20 @@ public class PairSessionManager
         mHandler.postDelayed(mDiscoveryTimeoutRunnable, DISCOVERY_TIMEOUT);
     }
 
+    /**
+     * Continues a pairing session once the user is logged in
+     */
+    private void continuePairingSession(Activity activity) {
+        mPairingFlow.begin(PairingFlow.Stage.ROOM);
+        if (mFoundRoom != null) {
+            // a room was found while logging in, no need for our own
+            RoomData room = mFoundRoom;
+            mFoundRoom = null;
+            joinRoom(room);
+        } else {
+            internalStartPairingSession(activity);
+        }
+    }
 
     public void setupConnectionBroadcastReceiver() {
         mConnectivityBroadcastReceiver = new BroadcastReceiver() {
@@ -301,15 +341,21 @@ public class PairSessionManager
     }
 
     /**
-     * Called only when online and userUid has been set
+     * Listen for others' rooms over Nearby. Our room is published once it is created.
      */
-    protected void internalStartPairingSession(Activity activity) {
+    protected void startRoomDiscovery(Activity activity) {
         if (mMessagesClient == null) {
             setupNearby(activity);
         }
+        mPairingFlow.begin(PairingFlow.Stage.DISCOVERY);
         // listen for new messages
         mMessagesClient.subscribe(mMessageListener);
+    }
 
+    /**
+     * Called only when online and userUid has been set
+     */
+    protected void internalStartPairingSession(Activity activity) {
         // create a room
         createRoom(activity);
     }
@@ -335,6 +381,8 @@ public class PairSessionManager
                         mAnchorStateListener.setRoomNumber(room.key);
                     }
                 } else {
+                    mPairingFlow.fail(PairingFlow.Stage.ROOM);
+                    mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_ERROR);
                     Log.e(TAG, "Database error: " + String.valueOf(error) + " " + error
                             .getCode());
                     if (mPairingStateChangeListener != null) {
@@ -372,10 +420,11 @@ public class PairSessionManager
      */
     private void joinRoom(final RoomData room) {
         Log.d(TAG, "joinRoom: " + room.key);
-        // leave current room
-        leaveRoom(false);
+        // leave current room, pairing goes on in theirs
+        leaveRoom(false, false);
 
         mPairedOrPairing = PairedState.PAIRING;
+        mPairingFlow.begin(PairingFlow.Stage.ROOM);
         // Get the anchor id and lines from Firebase database
         mRoomDbManager.joinRoom(room, mUserUid, true, this,
                 new RoomManager.PartnerDetectionListener() {
@@ -406,6 +455,9 @@ public class PairSessionManager
     public void onPartnerJoined(boolean partnerIsPairing, boolean isHosting, int numPartners) {
         if (mPairedOrPairing == PairedState.PAIRING && partnerIsPairing) {
             mPartnerInFlow = true;
+            mPairingFlow.end(PairingFlow.Stage.DISCOVERY);
+            mPairingFlow.end(PairingFlow.Stage.ROOM);
+            mPairingFlow.begin(PairingFlow.Stage.READY);
             if (isHosting) {
                 if (mPairingStateChangeListener != null) {
                     mPairingStateChangeListener
@@ -437,16 +489,14 @@ public class PairSessionManager
             }
         } else {
             if (readyToSetAnchor) {
-                if (mPairingStateChangeListener != null) {
-                    mPairingStateChangeListener.onStateChange(PARTNER_CONNECTING);
-                }
-                mHandler.postDelayed(mPairTimeoutRunnable, PAIR_TIMEOUT);
+                waitForAnchor();
             }
         }
     }
 
     public void readyToSetAnchor() {
         readyToSetAnchor = true;
+        mPairingFlow.begin(PairingFlow.Stage.READY);
         mRoomDbManager.setReadyToSetAnchor(mUserUid, this, this);
 
         if (mRoomDbManager.isHost && partnerReadyToSetAnchor) {
@@ -456,10 +506,7 @@ public class PairSessionManager
                 mPairingStateChangeListener.onStateChange(HOST_READY_AND_WAITING);
             }
         } else if (partnerReadyToSetAnchor) {
-            if (mPairingStateChangeListener != null) {
-                mPairingStateChangeListener.onStateChange(PARTNER_CONNECTING);
-            }
-            mHandler.postDelayed(mPairTimeoutRunnable, PAIR_TIMEOUT);
+            waitForAnchor();
         } else {
             if (mPairingStateChangeListener != null) {
                 mPairingStateChangeListener.onStateChange(PARTNER_READY_AND_WAITING);
@@ -467,8 +514,22 @@ public class PairSessionManager
         }
     }
 
+    /**
+     * Both are ready, wait for the host to host the anchor
+     */
+    private void waitForAnchor() {
+        mPairingFlow.end(PairingFlow.Stage.READY);
+        mPairingFlow.begin(PairingFlow.Stage.HOST);
+        if (mPairingStateChangeListener != null) {
+            mPairingStateChangeListener.onStateChange(PARTNER_CONNECTING);
+        }
+        mHandler.postDelayed(mPairTimeoutRunnable, PAIR_TIMEOUT);
+    }
+
     private void sendSetAnchorEvent() {
         Log.d(TAG, "sendSetAnchorEvent:");
+        mPairingFlow.end(PairingFlow.Stage.READY);
+        mPairingFlow.begin(PairingFlow.Stage.HOST);
         if (mAnchorStateListener != null) {
             mAnchorStateListener.createAnchor();
         }
@@ -501,6 +562,7 @@ public class PairSessionManager
                                     }
                                     mAnchor.detach();
                                     mAnchor = null;
+                                    mPairingFlow.fail(PairingFlow.Stage.HOST);
 
                                     readyToSetAnchor = false;
                                     partnerReadyToSetAnchor = false;
@@ -516,6 +578,8 @@ public class PairSessionManager
                                             + state.toString());
                                     mAnchorId = anchorId;
                                     mRoomDbManager.setAnchorId(mUserUid, anchorId);
+                                    mPairingFlow.end(PairingFlow.Stage.HOST);
+                                    mPairingFlow.begin(PairingFlow.Stage.RESOLVE);
                                 }
                             }
 
@@ -541,6 +605,8 @@ public class PairSessionManager
         }
 
         mAnchorId = anchorId;
+        mPairingFlow.end(PairingFlow.Stage.HOST);
+        mPairingFlow.begin(PairingFlow.Stage.RESOLVE);
         resolveAnchorFromAnchorId();
     }
 
@@ -563,6 +629,8 @@ public class PairSessionManager
     public void onAnchorResolutionError(String message) {
 
         mHandler.removeCallbacks(mPairTimeoutRunnable);
+        mPairingFlow.fail(PairingFlow.Stage.HOST);
+        mPairingFlow.fail(PairingFlow.Stage.RESOLVE);
 
         partnerReadyToSetAnchor = false;
         readyToSetAnchor = false;
@@ -628,6 +696,7 @@ public class PairSessionManager
 
     void handleResolveAnchorError(Anchor anchor, boolean notTracking,
                                   Anchor.CloudAnchorState state) {
+        mPairingFlow.fail(PairingFlow.Stage.RESOLVE);
 
         if (mPairingStateChangeListener != null) {
             mPairingStateChangeListener
@@ -658,6 +727,7 @@ public class PairSessionManager
                 listener.onConnectedToSession();
             }
             mHandler.removeCallbacks(mPairTimeoutRunnable);
+            mPairingFlow.succeed();
             Fa.get().send(AnalyticsEvents.EVENT_PAIR_SUCCESS);
         }
     }
@@ -677,6 +747,7 @@ public class PairSessionManager
             }
 
             mHandler.removeCallbacks(mPairTimeoutRunnable);
+            mPairingFlow.succeed();
             Fa.get().send(AnalyticsEvents.EVENT_PAIR_SUCCESS);
         }
     }
@@ -689,6 +760,7 @@ public class PairSessionManager
     public void onPartnerLeft(boolean partnerWasPairing, int numParticipants) {
         if (partnerWasPairing) {
             mPartnerInFlow = false;
+            mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_LEFT);
             if (mPairingStateChangeListener != null) {
                 mPairingStateChangeListener.onStateChange(PairView.PairState.CONNECTION_LOST);
             }
@@ -713,6 +785,13 @@ public class PairSessionManager
         mRoomDbManager.updateStroke(stroke);
     }
 
+    /**
+     * @param cameraPosition position of the camera relative to the anchor
+     */
+    public void updateInterest(Vector3f cameraPosition) {
+        mRoomDbManager.updateInterest(cameraPosition);
+    }
+
     public void undoStroke(Stroke stroke) {
         mRoomDbManager.undoStroke(stroke);
     }
@@ -721,6 +800,17 @@ public class PairSessionManager
         mRoomDbManager.clearStrokes(mUserUid);
     }
 
+    public String getUploadStatsSummary() {
+        return mRoomDbManager.getUploadStatsSummary();
+    }
+
+    /**
+     * @return the timing of the stages of the last pairing attempt, and of cloud anchors
+     */
+    public String getPairingSummary() {
+        return mPairingFlow.getSummary() + "\n" + mHostManager.getStatsSummary();
+    }
+
     public boolean isInRoom() {
         return mPairedOrPairing != PairedState.NOT_PAIRED;
     }
@@ -734,6 +824,17 @@ public class PairSessionManager
     }
 
     void leaveRoom(boolean clearLines) {
+        leaveRoom(clearLines, true);
+    }
+
+    /**
+     * @param endPairing false when leaving for another room while pairing
+     */
+    private void leaveRoom(boolean clearLines, boolean endPairing) {
+        if (endPairing) {
+            mPairingFlow.abort(AnalyticsEvents.VALUE_PAIR_RESULT_LEFT);
+            mFoundRoom = null;
+        }
 
         pauseListeners();
 
@@ -0,0 +1,234 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.arexperiments.justaline.analytics.AnalyticsEvents;
+import com.arexperiments.justaline.analytics.Fa;
+
+import java.util.Locale;
+
+/**
+ * The stages of pairing with a partner, and where the time of an attempt went.
+ * <p>
+ * Stages that do not depend on each other run at the same time: the room is discovered over
+ * Nearby while the user logs in and the room is written, and the later stages follow each other
+ * once a partner is in the room. Every stage is {@link State#IDLE} until it begins, and ends as
+ * {@link State#DONE} or {@link State#FAILED}. A stage that begins again, like hosting after a
+ * resolve error, keeps its first start and counts the attempts. When the attempt ends, the start
+ * and end of every stage are logged and sent to analytics, relative to the start of the attempt.
+ * <p>
+ * Only used on the main thread, except {@link #getSummary()}.
+ */
+/*package*/ class PairingFlow {
+
+    private static final String TAG = "PairingFlow";
+
+    enum Stage {
+        /** Anonymous login, may begin before the attempt */
+        LOGIN("login"),
+        /** Publishing our room and looking for others over Nearby */
+        DISCOVERY("discovery"),
+        /** Creating or joining a room, until a partner is in it */
+        ROOM("room"),
+        /** Until both users are ready to set the anchor */
+        READY("ready"),
+        /** Hosting the cloud anchor, or waiting for the host to */
+        HOST("host"),
+        /** Resolving the cloud anchor, until both are synced */
+        RESOLVE("resolve");
+
+        final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+    }
+
+    enum State {
+        IDLE, RUNNING, DONE, FAILED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final State[] mStates = new State[STAGES.length];
+
+    private final long[] mStartedAt = new long[STAGES.length];
+
+    private final long[] mEndedAt = new long[STAGES.length];
+
+    private final int[] mAttempts = new int[STAGES.length];
+
+    private long mFlowStartedAt;
+
+    private boolean mActive;
+
+    private volatile String mSummary = "pair: -";
+
+    PairingFlow() {
+        reset();
+    }
+
+    /**
+     * Starts a new attempt. A login that is still running carries over into it.
+     *
+     * @param loggedIn whether the user is already logged in
+     */
+    void start(boolean loggedIn) {
+        boolean loggingIn = mStates[Stage.LOGIN.ordinal()] == State.RUNNING;
+        long loginStartedAt = mStartedAt[Stage.LOGIN.ordinal()];
+        reset();
+        mFlowStartedAt = SystemClock.elapsedRealtime();
+        mActive = true;
+        if (loggingIn) {
+            set(Stage.LOGIN, State.RUNNING, loginStartedAt);
+        } else if (loggedIn) {
+            set(Stage.LOGIN, State.DONE, mFlowStartedAt);
+            mEndedAt[Stage.LOGIN.ordinal()] = mFlowStartedAt;
+        }
+        updateSummary();
+    }
+
+    /**
+     * Begins a stage, or begins it again after it ended. Does nothing if it is running.
+     */
+    void begin(Stage stage) {
+        if (!mActive && stage != Stage.LOGIN) {
+            return;
+        }
+        State state = mStates[stage.ordinal()];
+        if (state == State.RUNNING) {
+            return;
+        }
+        long startedAt = state == State.IDLE
+                ? SystemClock.elapsedRealtime() : mStartedAt[stage.ordinal()];
+        set(stage, State.RUNNING, startedAt);
+        mAttempts[stage.ordinal()]++;
+        updateSummary();
+    }
+
+    void end(Stage stage) {
+        stop(stage, State.DONE);
+    }
+
+    void fail(Stage stage) {
+        stop(stage, State.FAILED);
+    }
+
+    boolean isRunning(Stage stage) {
+        return mStates[stage.ordinal()] == State.RUNNING;
+    }
+
+    /**
+     * Ends the attempt as synced, ending the stages still running
+     */
+    void succeed() {
+        finish(State.DONE, AnalyticsEvents.VALUE_PAIR_RESULT_SUCCESS);
+    }
+
+    /**
+     * Ends the attempt, failing the stages still running
+     *
+     * @param reason why the attempt ended, sent to analytics
+     */
+    void abort(String reason) {
+        finish(State.FAILED, reason);
+    }
+
+    private void finish(State state, String result) {
+        if (!mActive) {
+            return;
+        }
+        for (Stage stage : STAGES) {
+            if (stage != Stage.LOGIN && mStates[stage.ordinal()] == State.RUNNING) {
+                stop(stage, state);
+            }
+        }
+        updateSummary();
+        mActive = false;
+        Log.d(TAG, result + " " + mSummary);
+
+        Bundle params = new Bundle();
+        params.putString(AnalyticsEvents.PARAM_PAIR_RESULT, result);
+        params.putLong(AnalyticsEvents.PARAM_PAIR_TOTAL_MS,
+                SystemClock.elapsedRealtime() - mFlowStartedAt);
+        for (Stage stage : STAGES) {
+            if (mStates[stage.ordinal()] != State.IDLE && mEndedAt[stage.ordinal()] != 0) {
+                params.putLong(stage.name + "_ms",
+                        mEndedAt[stage.ordinal()] - mStartedAt[stage.ordinal()]);
+            }
+        }
+        Fa.get().send(AnalyticsEvents.EVENT_PAIR_STAGES, params);
+    }
+
+    private void stop(Stage stage, State state) {
+        if (mStates[stage.ordinal()] != State.RUNNING) {
+            return;
+        }
+        mStates[stage.ordinal()] = state;
+        mEndedAt[stage.ordinal()] = SystemClock.elapsedRealtime();
+        updateSummary();
+    }
+
+    private void set(Stage stage, State state, long startedAt) {
+        mStates[stage.ordinal()] = state;
+        mStartedAt[stage.ordinal()] = startedAt;
+        mEndedAt[stage.ordinal()] = 0;
+    }
+
+    private void reset() {
+        for (Stage stage : STAGES) {
+            mStates[stage.ordinal()] = State.IDLE;
+            mStartedAt[stage.ordinal()] = 0;
+            mEndedAt[stage.ordinal()] = 0;
+            mAttempts[stage.ordinal()] = 0;
+        }
+        mActive = false;
+    }
+
+    private void updateSummary() {
+        if (!mActive) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder builder = new StringBuilder("pair:");
+        for (Stage stage : STAGES) {
+            State state = mStates[stage.ordinal()];
+            if (state == State.IDLE) {
+                continue;
+            }
+            long end = state == State.RUNNING ? now : mEndedAt[stage.ordinal()];
+            builder.append(String.format(Locale.US, " %s %d+%d%s", stage.name,
+                    mStartedAt[stage.ordinal()] - mFlowStartedAt,
+                    end - mStartedAt[stage.ordinal()],
+                    state == State.RUNNING ? "*" : state == State.FAILED ? "!" : ""));
+            if (mAttempts[stage.ordinal()] > 1) {
+                builder.append(" x").append(mAttempts[stage.ordinal()]);
+            }
+        }
+        mSummary = builder.toString();
+    }
+
+    /**
+     * @return the start and length of every stage of the last attempt, in milliseconds since its
+     * start, as of its last change. Running stages are marked with *, failed ones with !.
+     */
+    String getSummary() {
+        return mSummary;
+    }
+}
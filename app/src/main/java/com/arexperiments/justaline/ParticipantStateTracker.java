@@ -0,0 +1,105 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import com.arexperiments.justaline.model.Participant;
+import com.arexperiments.justaline.transport.RoomTransport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the events of the participants node into events of the fields that changed.
+ * <p>
+ * Only the state fields of a changed participant are read, and compared with its previous state.
+ * The fields of one change are reported in a fixed order: ready to set anchor, anchor resolved,
+ * then pairing. The value of the local participant is also handed to its
+ * {@link ParticipantStateWriter}.
+ * <p>
+ * Only used on the transport's callback thread.
+ */
+/*package*/ class ParticipantStateTracker implements RoomTransport.ChildListener {
+
+    private static final String TAG = "ParticipantStateTracker";
+
+    interface Listener {
+
+        void onParticipantAdded(String uid, Participant participant);
+
+        void onReadyToSetAnchorChanged(String uid, boolean readyToSetAnchor);
+
+        void onAnchorResolvedChanged(String uid, boolean anchorResolved);
+
+        void onPairingChanged(String uid, boolean pairing);
+
+        void onParticipantRemoved(String uid);
+    }
+
+    private final Listener mListener;
+
+    private final ParticipantStateWriter mWriter;
+
+    private final Map<String, Participant> mStates = new HashMap<>();
+
+    ParticipantStateTracker(ParticipantStateWriter writer, Listener listener) {
+        mWriter = writer;
+        mListener = listener;
+    }
+
+    @Override
+    public void onChildAdded(RoomTransport.Snapshot snapshot) {
+        Log.d(TAG, "PARTICIPANTS onChildAdded: " + snapshot.getKey());
+        Participant participant = Participant.readState(snapshot);
+        mStates.put(snapshot.getKey(), participant);
+        mWriter.onValue(snapshot);
+        mListener.onParticipantAdded(snapshot.getKey(), participant);
+    }
+
+    @Override
+    public void onChildChanged(RoomTransport.Snapshot snapshot) {
+        String uid = snapshot.getKey();
+        Participant state = Participant.readState(snapshot);
+        Participant previous = mStates.put(uid, state);
+        mWriter.onValue(snapshot);
+        if (previous == null) {
+            previous = new Participant();
+        }
+
+        Log.d(TAG, "PARTICIPANTS onChildChanged: " + uid + " " + state.getState());
+        if (!state.getReadyToSetAnchor().equals(previous.getReadyToSetAnchor())) {
+            mListener.onReadyToSetAnchorChanged(uid, state.getReadyToSetAnchor());
+        }
+        if (!state.getAnchorResolved().equals(previous.getAnchorResolved())) {
+            mListener.onAnchorResolvedChanged(uid, state.getAnchorResolved());
+        }
+        if (!state.getPairing().equals(previous.getPairing())) {
+            mListener.onPairingChanged(uid, state.getPairing());
+        }
+    }
+
+    @Override
+    public void onChildRemoved(RoomTransport.Snapshot snapshot) {
+        Log.d(TAG, "PARTICIPANTS onChildRemoved: " + snapshot.getKey());
+        mStates.remove(snapshot.getKey());
+        mListener.onParticipantRemoved(snapshot.getKey());
+    }
+
+    @Override
+    public void onCancelled(String error) {
+        Log.d(TAG, "PARTICIPANTS onCancelled: " + error);
+    }
+}
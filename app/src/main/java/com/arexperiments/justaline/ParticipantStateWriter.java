@@ -0,0 +1,147 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.arexperiments.justaline.model.Participant;
+import com.arexperiments.justaline.transport.RoomTransport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the state of the local participant of a room.
+ * <p>
+ * The whole participant is written when joining. Later states are only compared field by field
+ * with what the database holds, and the fields that differ are written with updateChildren().
+ * Changes are collected for a short delay, so that transitions in quick succession become one
+ * write, and a transition that is undone within the delay is not written at all. Partners may
+ * also change fields of the local participant, so the database value is followed through
+ * {@link #onValue}.
+ * <p>
+ * Safe to call from any thread, writes are made on the main thread.
+ */
+/*package*/ class ParticipantStateWriter {
+
+    private static final long DEBOUNCE_MS = 100;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private RoomTransport.Node mNode;
+
+    // The fields as last written or seen in the database
+    private final Map<String, Object> mWritten = new HashMap<>();
+
+    // The fields to write
+    private final Map<String, Object> mState = new HashMap<>();
+
+    private boolean mFlushScheduled;
+
+    private int mWrites;
+
+    private int mSkippedStates;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Writes the whole participant right away, with a new lastSeen
+     */
+    synchronized void join(RoomTransport.Node node, Participant participant) {
+        cancel();
+        mNode = node;
+        node.setValue(participant);
+        mWrites++;
+        mWritten.putAll(participant.getState());
+        mState.putAll(mWritten);
+    }
+
+    /**
+     * Sets the state of the participant, the fields that changed are written shortly after
+     */
+    synchronized void set(Participant participant) {
+        if (mNode == null) {
+            return;
+        }
+        mState.putAll(participant.getState());
+        if (mState.equals(mWritten)) {
+            mSkippedStates++;
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, DEBOUNCE_MS);
+        }
+    }
+
+    /**
+     * Called with the value of the participant's node in the database
+     */
+    synchronized void onValue(RoomTransport.Snapshot snapshot) {
+        if (mNode != null && mNode.getKey().equals(snapshot.getKey())) {
+            mWritten.putAll(Participant.readState(snapshot).getState());
+            if (!mFlushScheduled && !mState.equals(mWritten)) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, DEBOUNCE_MS);
+            }
+        }
+    }
+
+    /**
+     * Stops writing, drops the changes not written yet. Called before the participant is removed,
+     * so that a pending write does not add it again.
+     */
+    synchronized void leave() {
+        cancel();
+        mNode = null;
+    }
+
+    private void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        mWritten.clear();
+        mState.clear();
+    }
+
+    private synchronized void flush() {
+        mFlushScheduled = false;
+        if (mNode == null) {
+            return;
+        }
+        Map<String, Object> changes = new HashMap<>();
+        for (Map.Entry<String, Object> field : mState.entrySet()) {
+            if (!field.getValue().equals(mWritten.get(field.getKey()))) {
+                changes.put(field.getKey(), field.getValue());
+            }
+        }
+        if (!changes.isEmpty()) {
+            mNode.updateChildren(changes, null);
+            mWrites++;
+            mWritten.putAll(changes);
+        }
+    }
+
+    /**
+     * @return the number of writes, and of states that needed none
+     */
+    synchronized String getStatsSummary() {
+        return "participant: writes " + mWrites + " skipped " + mSkippedStates;
+    }
+}
@@ -20,20 +20,20 @@ import android.util.Log;
 import com.arexperiments.justaline.model.Anchor;
 import com.arexperiments.justaline.model.Participant;
 import com.arexperiments.justaline.model.RoomData;
+import com.arexperiments.justaline.model.RoomSnapshot;
 import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.model.StrokeCodec;
+import com.arexperiments.justaline.model.StrokeDecodeState;
+import com.arexperiments.justaline.model.StrokeDelta;
+import com.arexperiments.justaline.model.StrokeOpLog;
 import com.arexperiments.justaline.model.StrokeUpdate;
-import com.google.firebase.FirebaseApp;
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
+import com.arexperiments.justaline.model.StrokeUploadState;
+import com.arexperiments.justaline.transport.FirebaseRoomTransport;
+import com.arexperiments.justaline.transport.RoomTransport;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseException;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.OnDisconnect;
-import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -42,8 +42,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.vecmath.Vector3f;
+
 /**
- * A helper class to manage all communications with Firebase.
+ * A helper class to manage all communications with Firebase, or another {@link RoomTransport}.
  */
 /*package*/ class RoomManager {
 
@@ -66,9 +68,14 @@ import java.util.Set;
 
         void onLineAdded(String uid, Stroke value);
 
+        /**
+         * Called with the lines loaded at once from the room snapshot, in key order
+         */
+        void onLinesAdded(Map<String, Stroke> lines);
+
         void onLineRemoved(String uid);
 
-        void onLineUpdated(String uid, Stroke value);
+        void onLineUpdated(String uid, StrokeDelta delta);
     }
 
     /**
@@ -119,18 +126,31 @@ import java.util.Set;
 
     private static final String KEY_TIMESTAMP = "updated_at_timestamp";
 
-    private static final String KEY_STROKES = "lines";
+    static final String KEY_STROKES = "lines";
+
+    private static final String KEY_SNAPSHOT = "snapshot";
+
+    // Undo and clear operations, see StrokeOpLog
+    private static final String KEY_OPS = "ops";
+
+    // Index of the lines by cell, see SpatialGrid
+    private static final String KEY_CELLS = "cells";
+
+    // Distance from the camera within which lines are listened for with spatial interest
+    private static final float INTEREST_RADIUS = 8f;
 
     private static final String KEY_PARTICIPANTS = "participants";
 
-    private static final String KEY_READY_TO_SET_ANCHOR = "readyToSetAnchor";
+    // Server timestamps written by each participant to sample the server clock, see ServerClock
+    private static final String KEY_CLOCKS = "clocks";
 
-    final FirebaseApp app;
+    // null if the database is not available
+    final RoomTransport transport;
 
     /*
      * Track database to make new rooms
      */
-    private final DatabaseReference roomsListRef;
+    private final RoomTransport.Node roomsListRef;
 
     /*
      * Track data in our room
@@ -142,9 +162,9 @@ import java.util.Set;
 
     RoomData mRoomData;
 
-    private DatabaseReference roomRef;
+    private RoomTransport.Node roomRef;
 
-    private DatabaseReference partnersRef;
+    private RoomTransport.Node partnersRef;
 
     private List<String> partners = new ArrayList<>();
 
@@ -152,28 +172,136 @@ import java.util.Set;
 
     protected boolean isPairing = false;
 
-    private ChildEventListener lineListener;
+    private RoomTransport.Registration lineListener;
+
+    // Stamps of the line writes, see SyncLatencyTracker
+    private RoomTransport.Registration syncListener;
+
+    private RoomTransport.Registration opsListener;
 
-    private ChildEventListener partnersListener;
+    // Incremented when the strokes listener is set or removed, to drop a pending snapshot read
+    private int strokesListenerGeneration;
 
-    private ValueEventListener anchorResolutionListener;
+    private String userUid;
 
-    private OnDisconnect onDisconnectRef;
+    private RoomTransport.Registration partnersListener;
+
+    private RoomTransport.Registration anchorResolutionListener;
+
+    private RoomTransport.Registration onDisconnectRef;
 
     private Set<String> localStrokeUids = new HashSet<>();
 
     /*
      * Partner listeners
      */
-    private ValueEventListener anchorListener;
+    private RoomTransport.Registration anchorListener;
+
+    // What has been written of each local stroke, guarded by itself
+    private final Map<String, StrokeUploadState> uploadStates = new HashMap<>();
+
+    // What has been decoded of each remote stroke, only used on the main thread
+    private final Map<String, StrokeDecodeState> decodeStates = new HashMap<>();
+
+    // Finished lines of the room, for writing the room snapshot
+    private final RoomSnapshotTracker snapshotTracker = new RoomSnapshotTracker();
+
+    // The lines of the room with the operations applied, only used on the main thread. Kept
+    // while the listeners are paused, so that resuming only reads what changed.
+    private final StrokeOpLog opLog = new StrokeOpLog();
+
+    private String opLogRoomKey;
+
+    // Last operation folded into the room snapshot as read or written by this participant, the
+    // operations up to it are deleted from the log by the next snapshot
+    private String snapshotOpKey;
+
+    // Known lines that are finished and do not change any more, only used on the main thread
+    private final Set<String> finishedLines = new HashSet<>();
+
+    // Cells each local stroke is indexed in, guarded by uploadStates
+    private final Map<String, SpatialGrid.StrokeCells> strokeCells = new HashMap<>();
+
+    // Cell of the last interest update, to skip updates within the same cell
+    private volatile String interestCell;
+
+    /*
+     * Spatial interest, only used on the main thread
+     */
+    private Vector3f interestCenter;
+
+    // Receives the events of the lines in the cells of interest, null when not listening
+    private RoomTransport.ChildListener interestLineListener;
+
+    private StrokeUpdateListener interestUpdateListener;
+
+    private final Map<String, RoomTransport.Registration> cellListeners = new HashMap<>();
+
+    private final Map<String, Set<String>> cellLines = new HashMap<>();
+
+    private final Map<String, RoomTransport.Registration> interestLineListeners = new HashMap<>();
+
+    private final Map<String, RoomTransport.Registration> interestSyncListeners = new HashMap<>();
 
-    private final Map<String, StrokeUpdate> strokeQueue = Collections
-            .synchronizedMap(new LinkedHashMap<String, StrokeUpdate>());
+    // Number of cells of interest each line is indexed in
+    private final Map<String, Integer> lineReferences = new HashMap<>();
 
-    private Map<String, StrokeUpdate> completedStrokeUpdates = Collections
-            .synchronizedMap(new LinkedHashMap<String, StrokeUpdate>());
+    private final ServerClock serverClock = new ServerClock();
 
-    private List<String> uploadingStrokes = new ArrayList<>();
+    // Writes the state of the local participant
+    private final ParticipantStateWriter participantWriter = new ParticipantStateWriter();
+
+    // Server time since when lines are listened for, stamps of new lines older than this are of
+    // lines written before, see SyncLatencyTracker. Only used on the main thread.
+    private long syncStampsSince;
+
+    private final StrokeUploadBatcher uploadBatcher = new StrokeUploadBatcher(serverClock,
+            new StrokeUploadBatcher.Listener() {
+                @Override
+                public void onUploadFailed(Map<String, StrokeUpdate> updates) {
+                    synchronized (uploadStates) {
+                        for (Map.Entry<String, StrokeUpdate> entry : updates.entrySet()) {
+                            StrokeUpdate update = entry.getValue();
+                            if (update.remove) {
+                                StrokeUpdate retry = new StrokeUpdate(update.stroke, true);
+                                retry.failures = update.failures;
+                                uploadBatcher.queue(retry);
+                                continue;
+                            }
+                            StrokeUploadState uploadState = uploadStates.get(entry.getKey());
+                            if (uploadState == null) {
+                                // undone or left the room meanwhile
+                                continue;
+                            }
+                            // the next update rewrites the whole stroke instead of appending to
+                            // a log that may have a gap
+                            uploadState.reset();
+                            // a stroke that is drawn is rewritten by its next change, a finished
+                            // one does not change any more and is rewritten now
+                            if (update.stroke.finished) {
+                                StrokeUpdate rewrite = uploadState.createUpdate(update.stroke);
+                                if (rewrite != null) {
+                                    rewrite.failures = update.failures;
+                                    uploadBatcher.queue(rewrite);
+                                }
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void onUploadDropped(Map<String, StrokeUpdate> updates) {
+                    synchronized (uploadStates) {
+                        // a later change of a dropped stroke rewrites it whole
+                        for (String key : updates.keySet()) {
+                            StrokeUploadState uploadState = uploadStates.get(key);
+                            if (uploadState != null) {
+                                uploadState.reset();
+                            }
+                        }
+                    }
+                }
+            });
 
     /**
      * Default constructor for the FirebaseManager class.
@@ -181,12 +309,18 @@ import java.util.Set;
      * @param context The application context.
      */
     public RoomManager(Context context) {
-        app = FirebaseApp.initializeApp(context);
-        if (app != null) {
-            final DatabaseReference rootRef = FirebaseDatabase.getInstance(app).getReference();
-            roomsListRef = rootRef.child(ROOT_FIREBASE_ROOMS);
+        this(FirebaseRoomTransport.create(context));
+    }
+
+    /**
+     * @param transport the database to use, or null if it is not available
+     */
+    public RoomManager(RoomTransport transport) {
+        this.transport = transport;
+        if (transport != null) {
+            roomsListRef = transport.getReference(ROOT_FIREBASE_ROOMS);
 
-            DatabaseReference.goOnline();
+            transport.goOnline();
         } else {
             Log.d(TAG, "Could not connect to Firebase Database!");
             roomsListRef = null;
@@ -201,25 +335,27 @@ import java.util.Set;
      */
     public void createRoom(final String uid, final StoreOperationListener listener,
                            final PartnerListener partnerListener) {
-        if (app == null) {
+        if (transport == null) {
             listener.onRoomCreated(null, null);
             return;
         }
         isPairing = true;
+        userUid = uid;
 
         Log.d(TAG, "Creating room");
         roomRef = roomsListRef.push();
+        uploadBatcher.setRoomReference(roomRef);
         Log.d(TAG, "room Created: " + roomRef.getKey());
 
         isRoomResolved = true;
         Long timestamp = System.currentTimeMillis();
         roomRef.child(KEY_TIMESTAMP).setValue(timestamp);
+        serverClock.sample(roomRef.child(KEY_CLOCKS).child(uid), transport.serverTimestamp());
 
         partnersRef = roomRef.child(KEY_PARTICIPANTS);
         Participant participant = Participant.readyToSetAnchor(false);
-        partnersRef.child(uid).setValue(participant);
-        onDisconnectRef = partnersRef.child(uid).onDisconnect();
-        onDisconnectRef.removeValue();
+        participantWriter.join(partnersRef.child(uid), participant);
+        onDisconnectRef = partnersRef.child(uid).removeOnDisconnect();
         listenForPartners(uid, partnerListener);
 
         mRoomData = new RoomData(roomRef.getKey(), timestamp);
@@ -227,16 +363,10 @@ import java.util.Set;
     }
 
     private void listenForPartners(final String myUid, final PartnerListener partnerListener) {
-        this.partnersListener = new ChildEventListener() {
+        this.partnersListener = partnersRef.addChildListener(new ParticipantStateTracker(
+                participantWriter, new ParticipantStateTracker.Listener() {
             @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-                Log.d(TAG,
-                        "PARTICIPANTS onChildAdded: " + dataSnapshot.getKey() + " " + dataSnapshot
-                                .getValue().toString());
-
-                String uid = dataSnapshot.getKey();
-                Participant partner = dataSnapshot.getValue(Participant.class);
-
+            public void onParticipantAdded(String uid, Participant partner) {
                 if (!uid.equals(myUid) && !partners.contains(uid)) {
                     partners.add(uid);
 
@@ -255,46 +385,44 @@ import java.util.Set;
             }
 
             @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
-                Log.d(TAG, "PARTICIPANTS onChildChanged: " + dataSnapshot.getValue().toString());
-                String partnerUid = dataSnapshot.getKey();
-                if (partnerUid.equals(pairingPartnerUid)) {
-
-                    Participant participant = dataSnapshot.getValue(Participant.class);
-
-                    if (participant.getReadyToSetAnchor() && partnerListener != null) {
-                        partnerListener.onPartnerReadyToSetAnchor(isHost);
-                    } else if (participant.getAnchorResolved() && partnerListener != null && isHost) {
-                        partnerListener.onPartnerAnchorResolved(isHost);
-                        // set host to false to avoid anchor flow if/when partner rejoins room
-                        isHost = false;
-                        isPairing = false;
-                        pairingPartnerUid = null;
-
-                        // update participant to not pairing
-                        Participant toUpdate = new Participant(true, isPairing);
-                        partnersRef.child(myUid).setValue(toUpdate);
-
-                    } else if (!participant.getPairing() && partnerListener != null) {
-                        // pairing partner is no longer pairing
-                        pairingPartnerUid = null;
-                        partnerListener.onPartnerLeft(true, partners.size() + 1);
-                    }
-                } else if (partnerUid.equals(myUid) && !isHost) {
-                    Participant participant = dataSnapshot.getValue(Participant.class);
-                    if (participant.getAnchorResolved() && partnerListener != null) {
-                        pairingPartnerUid = null;
-                        partnerListener.onMyAnchorResolutionAcknowledged();
-                    }
+            public void onReadyToSetAnchorChanged(String uid, boolean readyToSetAnchor) {
+                if (uid.equals(pairingPartnerUid) && readyToSetAnchor
+                        && partnerListener != null) {
+                    partnerListener.onPartnerReadyToSetAnchor(isHost);
                 }
             }
 
             @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) {
-                Log.d(TAG, "PARTICIPANTS onChildRemoved: " + dataSnapshot.getKey());
+            public void onAnchorResolvedChanged(String uid, boolean anchorResolved) {
+                if (!anchorResolved || partnerListener == null) {
+                    return;
+                }
+                if (uid.equals(pairingPartnerUid) && isHost) {
+                    partnerListener.onPartnerAnchorResolved(isHost);
+                    // set host to false to avoid anchor flow if/when partner rejoins room
+                    isHost = false;
+                    isPairing = false;
+                    pairingPartnerUid = null;
 
-                String uid = dataSnapshot.getKey();
+                    // update participant to not pairing
+                    participantWriter.set(new Participant(true, isPairing));
+                } else if (uid.equals(myUid) && !isHost) {
+                    pairingPartnerUid = null;
+                    partnerListener.onMyAnchorResolutionAcknowledged();
+                }
+            }
 
+            @Override
+            public void onPairingChanged(String uid, boolean pairing) {
+                if (uid.equals(pairingPartnerUid) && !pairing && partnerListener != null) {
+                    // pairing partner is no longer pairing
+                    pairingPartnerUid = null;
+                    partnerListener.onPartnerLeft(true, partners.size() + 1);
+                }
+            }
+
+            @Override
+            public void onParticipantRemoved(String uid) {
                 for (String partnerUid : partners) {
                     if (uid.equals(partnerUid)) {
                         partners.remove(partnerUid);
@@ -311,18 +439,7 @@ import java.util.Set;
                     partnerListener.onPartnerLeft(wasPairingPartner, partners.size() + 1);
                 }
             }
-
-            @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-                Log.d(TAG, "PARTICIPANTS onChildMoved: " + dataSnapshot.getValue().toString());
-            }
-
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                Log.d(TAG, "PARTICIPANTS onCancelled: ");
-            }
-        };
-        partnersRef.addChildEventListener(partnersListener);
+        }));
     }
 
     public void checkForPartners(final String userUid,
@@ -332,13 +449,13 @@ import java.util.Set;
         }
 
         if (partnersRef != null) {
-            partnersRef.addListenerForSingleValueEvent(new ValueEventListener() {
+            partnersRef.readOnce(new RoomTransport.ValueListener() {
                 @Override
-                public void onDataChange(DataSnapshot dataSnapshot) {
-                    Iterator<DataSnapshot> it = dataSnapshot.getChildren().iterator();
+                public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
+                    Iterator<RoomTransport.Snapshot> it = dataSnapshot.getChildren().iterator();
 
                     while (it.hasNext()) {
-                        DataSnapshot data = it.next();
+                        RoomTransport.Snapshot data = it.next();
                         String partnerUid = data.getKey();
                         if (!userUid.equals(partnerUid)) {
                             partnerDetectionListener.onPartnersDetected();
@@ -350,7 +467,7 @@ import java.util.Set;
                 }
 
                 @Override
-                public void onCancelled(DatabaseError databaseError) {
+                public void onCancelled(String error) {
                     partnerDetectionListener.onNoPartnersDetected();
                 }
             });
@@ -361,8 +478,7 @@ import java.util.Set;
 
     public void setReadyToSetAnchor(String userUid, AnchorCreationListener anchorCreationListener,
                                     AnchorResolutionListener anchorResolutionListener) {
-        Participant participant = Participant.readyToSetAnchor(true);
-        partnersRef.child(userUid).setValue(participant);
+        participantWriter.set(Participant.readyToSetAnchor(true));
 
         if (isPairing) {
             // must clear anchor before adding creation listener
@@ -375,55 +491,52 @@ import java.util.Set;
     protected void listenForAnchorErrors(final String userUid,
                                          final AnchorResolutionListener listener) {
         if (this.anchorResolutionListener != null) {
-            roomRef.child(KEY_ANCHOR).child(KEY_ANCHOR_ERROR)
-                    .removeEventListener(this.anchorResolutionListener);
+            this.anchorResolutionListener.remove();
         }
 
-        this.anchorResolutionListener = new ValueEventListener() {
+        this.anchorResolutionListener = roomRef.child(KEY_ANCHOR).child(KEY_ANCHOR_ERROR)
+                .addValueListener(new RoomTransport.ValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
                 Boolean error = dataSnapshot.getValue(Boolean.class);
                 Log.d(TAG, "anchor resolution changed: " + error);
                 if (error != null && error && listener != null) {
                     roomRef.child(KEY_ANCHOR).child("anchorResolutionErrorMessage")
-                            .addListenerForSingleValueEvent(
-                                    new ValueEventListener() {
+                            .readOnce(
+                                    new RoomTransport.ValueListener() {
                                         @Override
-                                        public void onDataChange(DataSnapshot dataSnapshot) {
+                                        public void onDataChange(
+                                                RoomTransport.Snapshot dataSnapshot) {
                                             String message = dataSnapshot.getValue(String.class);
                                             listener.onAnchorResolutionError(message);
                                         }
 
                                         @Override
-                                        public void onCancelled(DatabaseError databaseError) {
+                                        public void onCancelled(String error) {
 
                                         }
                                     });
 
-                    Participant participant = Participant.readyToSetAnchor(false);
-                    partnersRef.child(userUid).setValue(participant);
+                    participantWriter.set(Participant.readyToSetAnchor(false));
                 }
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(String error) {
 
             }
-        };
-        roomRef.child(KEY_ANCHOR).child(KEY_ANCHOR_ERROR)
-                .addValueEventListener(anchorResolutionListener);
+        });
     }
 
     public void setAnchorResolutionError(String userUid) {
         if (roomRef != null && partnersRef != null) {
             // update all users to not ready to set anchor
-            Participant participant = new Participant(false, isPairing);
-            partnersRef.child(userUid).setValue(participant);
+            participantWriter.set(new Participant(false, isPairing));
 
             Map<String, Object> updateMap = new HashMap<>();
-            updateMap.put(KEY_READY_TO_SET_ANCHOR, false);
+            updateMap.put(Participant.KEY_READY_TO_SET_ANCHOR, false);
             for (String partnerUid : partners) {
-                partnersRef.child(partnerUid).updateChildren(updateMap);
+                partnersRef.child(partnerUid).updateChildren(updateMap, null);
             }
 
             Log.d(TAG, "setAnchorResolutionError: ");
@@ -440,8 +553,7 @@ import java.util.Set;
         Anchor anchor = new Anchor(anchorId);
         roomRef.child(KEY_ANCHOR).setValue(anchor);
 
-        Participant participant = new Participant(true, isPairing);
-        partnersRef.child(userUid).setValue(participant);
+        participantWriter.set(new Participant(true, isPairing));
 
         isRoomResolved = true;
     }
@@ -451,7 +563,7 @@ import java.util.Set;
             return;
         }
         stroke.creator = uid;
-        DatabaseReference strokeRef = roomRef.child(KEY_STROKES).push();
+        RoomTransport.Node strokeRef = roomRef.child(KEY_STROKES).push();
         localStrokeUids.add(strokeRef.getKey());
         stroke.setFirebaseReference(strokeRef);
         updateStroke(stroke);
@@ -465,59 +577,30 @@ import java.util.Set;
             throw new Error("Cant update line missing firebase reference");
         }
 
-        StrokeUpdate strokeUpdate = new StrokeUpdate(stroke, false);
-        queueStrokeUpdate(strokeUpdate);
-    }
-
-    private void queueStrokeUpdate(StrokeUpdate strokeUpdate) {
-        boolean shouldQueue;
-
-        synchronized (strokeQueue) {
-            shouldQueue = uploadingStrokes.size() > 0;
-        }
-
-        if (shouldQueue) {
-            Log.d(TAG, "strokeQueue: queueStrokeUpdate: queuing");
-            // add stroke update to queue
-            synchronized (strokeQueue) {
-                strokeQueue.put(strokeUpdate.stroke.getFirebaseKey(), strokeUpdate);
+        synchronized (uploadStates) {
+            String key = stroke.getFirebaseKey();
+            StrokeUploadState uploadState = uploadStates.get(key);
+            if (uploadState == null) {
+                uploadState = new StrokeUploadState();
+                uploadStates.put(key, uploadState);
+            }
+            // queued under the same lock, so updates are queued in the order they were created
+            StrokeUpdate strokeUpdate = uploadState.createUpdate(stroke);
+            if (strokeUpdate != null) {
+                uploadBatcher.queue(strokeUpdate);
             }
 
-        } else {
-            Log.d(TAG, "strokeQueue: queueStrokeUpdate: perform update");
-            doStrokeUpdate(strokeUpdate);
-        }
-
-    }
-
-    private void doStrokeUpdate(final StrokeUpdate strokeUpdate) {
-        if (strokeUpdate.remove) {
-            strokeUpdate.stroke.removeFirebaseValue();
-        } else {
-            DatabaseReference.CompletionListener completionListener
-                    = new DatabaseReference.CompletionListener() {
-                @Override
-                public void onComplete(DatabaseError databaseError,
-                                       DatabaseReference databaseReference) {
-                    synchronized (strokeQueue) {
-                        completedStrokeUpdates
-                                .put(strokeUpdate.stroke.getFirebaseKey(), strokeUpdate);
-                        uploadingStrokes.remove(strokeUpdate.stroke.getFirebaseKey());
-                        Iterator<Map.Entry<String, StrokeUpdate>> i = strokeQueue.entrySet().iterator();
-                        if (i.hasNext()) {
-                            Map.Entry<String, StrokeUpdate> entry
-                                    = i.next();
-                            i.remove();
-                            queueStrokeUpdate(entry.getValue());
-                        }
-                    }
+            if (isSpatialInterestEnabled()) {
+                SpatialGrid.StrokeCells cells = strokeCells.get(key);
+                if (cells == null) {
+                    cells = new SpatialGrid.StrokeCells();
+                    strokeCells.put(key, cells);
+                }
+                // only written when the stroke reaches a new cell
+                Map<String, Object> indexEntries = cells.update(key, stroke);
+                if (indexEntries != null) {
+                    roomRef.child(KEY_CELLS).updateChildren(indexEntries, null);
                 }
-            };
-            synchronized (strokeQueue) {
-                uploadingStrokes.add(strokeUpdate.stroke.getFirebaseKey());
-                strokeUpdate.stroke.setFirebaseValue(strokeUpdate,
-                        completedStrokeUpdates.get(strokeUpdate.stroke.getFirebaseKey()),
-                        completionListener);
             }
         }
     }
@@ -527,21 +610,83 @@ import java.util.Set;
             return;
         }
         if (stroke.hasFirebaseReference()) {
-            StrokeUpdate strokeUpdate = new StrokeUpdate(stroke, true);
-            doStrokeUpdate(strokeUpdate);
+            synchronized (uploadStates) {
+                uploadStates.remove(stroke.getFirebaseKey());
+                SpatialGrid.StrokeCells cells = strokeCells.remove(stroke.getFirebaseKey());
+                if (cells != null) {
+                    roomRef.child(KEY_CELLS).updateChildren(
+                            cells.removal(stroke.getFirebaseKey()), null);
+                }
+            }
+            // replaces a waiting update of the stroke, and is written after the ones already sent
+            uploadBatcher.queue(new StrokeUpdate(stroke, true));
+            // also removes the line from the room snapshot and from replicas that resume
+            roomRef.child(KEY_OPS).push().setValue(
+                    StrokeOpLog.removeOp(stroke.getFirebaseKey()));
         }
 
     }
 
-    public void clearStrokes(String uid) {
+    /**
+     * @return queue depth and batch sizes of the stroke uploads, and the participant writes
+     */
+    public String getUploadStatsSummary() {
+        return uploadBatcher.getStatsSummary() + "\n" + participantWriter.getStatsSummary();
+    }
+
+    /**
+     * @return the number of strokes waiting to be uploaded
+     */
+    int getUploadQueueDepth() {
+        return uploadBatcher.getQueueDepth();
+    }
+
+    public void clearStrokes(final String uid) {
         if (roomRef == null || !isRoomResolved) {
             return;
         }
-        roomRef.child(KEY_STROKES).removeValue();
-        synchronized (strokeQueue) {
-            uploadingStrokes.clear();
-            strokeQueue.clear();
+        uploadBatcher.clear();
+        final Map<String, Object> updateMap = new HashMap<>();
+        synchronized (uploadStates) {
+            for (Map.Entry<String, SpatialGrid.StrokeCells> cells : strokeCells.entrySet()) {
+                for (String path : cells.getValue().removal(cells.getKey()).keySet()) {
+                    updateMap.put(KEY_CELLS + "/" + path, null);
+                }
+            }
+            uploadStates.clear();
+            strokeCells.clear();
         }
+
+        // the replica is only used on the callback thread
+        transport.post(new Runnable() {
+            @Override
+            public void run() {
+                if (roomRef == null) {
+                    return;
+                }
+                // Only the lines seen here are cleared, a line someone is drawing meanwhile is
+                // kept
+                String opKey = roomRef.child(KEY_OPS).push().getKey();
+                updateMap.put(KEY_OPS + "/" + opKey, opLog.clearOp(opKey, uid));
+                // keeps the operations folded into the snapshot, their log may have been deleted
+                for (String key : RoomSnapshot.getLineKeys()) {
+                    updateMap.put(KEY_SNAPSHOT + "/" + key, null);
+                }
+                snapshotTracker.invalidateWritten();
+                for (String lineUid : opLog.getLineKeys()) {
+                    updateMap.put(KEY_STROKES + "/" + lineUid, null);
+                    updateMap.put(SyncLatencyTracker.KEY_SYNC + "/" + lineUid, null);
+                }
+                for (Map.Entry<String, Set<String>> cell : cellLines.entrySet()) {
+                    for (String lineUid : cell.getValue()) {
+                        if (opLog.getLineKeys().contains(lineUid)) {
+                            updateMap.put(KEY_CELLS + "/" + cell.getKey() + "/" + lineUid, null);
+                        }
+                    }
+                }
+                roomRef.updateChildren(updateMap, null);
+            }
+        });
     }
 
     /**
@@ -562,17 +707,19 @@ import java.util.Set;
     // Private method that is invoked with a listener that is never null.
     protected boolean joinRoomInternal(String roomKey, String uid,
                                        PartnerListener partnerListener, PartnerDetectionListener partnerDetectionListener) {
-        if (app == null) {
+        if (transport == null) {
             return false;
         }
 
+        userUid = uid;
         roomRef = roomsListRef.child(roomKey);
+        uploadBatcher.setRoomReference(roomRef);
         // Let originating user know that another user is here
         partnersRef = roomRef.child(KEY_PARTICIPANTS);
         Participant participant = new Participant(false, isPairing);
-        partnersRef.child(uid).setValue(participant);
-        onDisconnectRef = partnersRef.child(uid).onDisconnect();
-        onDisconnectRef.removeValue();
+        participantWriter.join(partnersRef.child(uid), participant);
+        onDisconnectRef = partnersRef.child(uid).removeOnDisconnect();
+        serverClock.sample(roomRef.child(KEY_CLOCKS).child(uid), transport.serverTimestamp());
 
         listenForPartners(uid, partnerListener);
         checkForPartners(uid, partnerDetectionListener);
@@ -582,14 +729,15 @@ import java.util.Set;
     public void setAnchorCreationListener(final AnchorCreationListener anchorCreationListener) {
         // remove previous listener if one is set
         if (anchorListener != null) {
-            roomRef.child(KEY_ANCHOR).removeEventListener(anchorListener);
+            anchorListener.remove();
         }
 
         Log.d(TAG, "setAnchorCreationListener");
         // listen for anchor updates
-        anchorListener = new ValueEventListener() {
+        anchorListener = roomRef.child(KEY_ANCHOR).addValueListener(
+                new RoomTransport.ValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
                 Anchor anchor = null;
                 if (dataSnapshot.getValue() != null) {
                     anchor = dataSnapshot.getValue(Anchor.class);
@@ -608,11 +756,10 @@ import java.util.Set;
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(String error) {
 
             }
-        };
-        roomRef.child(KEY_ANCHOR).addValueEventListener(anchorListener);
+        });
     }
 
     public void setAnchorResolved(String uid) {
@@ -620,80 +767,307 @@ import java.util.Set;
 
         isPairing = false;
 
-        Participant participant = new Participant(true, isPairing);
-        partnersRef.child(uid).setValue(participant);
+        participantWriter.set(new Participant(true, isPairing));
     }
 
+    /**
+     * Listens for the operations and lines of the room. The operations folded into the room
+     * snapshot are merged first, and only the operations after them are listened for. When
+     * joining, the lines of the room snapshot are loaded at once and only the lines after it are
+     * listened for. When resuming, only the lines that may have changed are.
+     */
     void setStrokesListener(final StrokeUpdateListener updateListener) {
-        if (lineListener != null) {
-            roomRef.child(KEY_STROKES).removeEventListener(lineListener);
+        removeStrokesListeners();
+        decodeStates.clear();
+        final boolean resuming = roomRef.getKey().equals(opLogRoomKey);
+        if (!resuming) {
+            opLog.clear();
+            opLogRoomKey = roomRef.getKey();
+            finishedLines.clear();
+            snapshotTracker.clear();
         }
-        lineListener = new ChildEventListener() {
+        final int generation = strokesListenerGeneration;
+        syncStampsSince = getServerTime();
+
+        // with spatial interest lines are listened for by cell as the camera moves
+        final boolean loadLines = !resuming && !isSpatialInterestEnabled();
+        RoomTransport.Node snapshotRef = roomRef.child(KEY_SNAPSHOT);
+        if (!loadLines) {
+            snapshotRef = snapshotRef.child(RoomSnapshot.KEY_OPS);
+        }
+        snapshotRef.readOnce(new RoomTransport.ValueListener() {
             @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-                Log.d(TAG, "LINE onChildAdded: " + dataSnapshot.getValue().toString());
-                String uid = dataSnapshot.getKey();
-                if (!localStrokeUids.contains(uid)) {
-
-                    if (updateListener != null) {
-                        Stroke stroke;
-                        try {
-                            stroke = dataSnapshot.getValue(Stroke.class);
-                        } catch (DatabaseException e) {
-                            // lines were cleared while someone was mid-stroke, a partial line was pushed
-                            // stroke does not have lineWidth or creator, ignore it
-                            return;
-                        }
-                        updateListener.onLineAdded(uid, stroke);
+            public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
+                if (generation != strokesListenerGeneration) {
+                    return;
+                }
+                RoomTransport.Snapshot ops = loadLines
+                        ? dataSnapshot.child(RoomSnapshot.KEY_OPS) : dataSnapshot;
+                for (String uid : opLog.applySnapshot(ops)) {
+                    removeLine(uid, updateListener);
+                }
+                snapshotOpKey = ops.child(StrokeOpLog.KEY_LAST_OP).getValue(String.class);
+                listenForOps(updateListener);
+
+                String lastKey = null;
+                // a snapshot without lines after a clear only holds the operations
+                if (loadLines && dataSnapshot.hasChild(RoomSnapshot.KEY_VERSION)) {
+                    try {
+                        List<RoomSnapshot.Line> lines = RoomSnapshot.decode(dataSnapshot);
+                        lastKey = RoomSnapshot.getLastKey(dataSnapshot);
+                        loadSnapshot(lines, updateListener);
+                    } catch (DatabaseException e) {
+                        Log.w(TAG, "Ignoring room snapshot: " + e.getMessage());
                     }
                 }
+                startLineListeners(updateListener, resuming, lastKey);
             }
 
             @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
-                Log.d(TAG, "LINE onChildChanged: ");
+            public void onCancelled(String error) {
+                if (generation == strokesListenerGeneration) {
+                    listenForOps(updateListener);
+                    startLineListeners(updateListener, resuming, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param snapshotLastKey the last line loaded from the room snapshot, if any
+     */
+    private void startLineListeners(StrokeUpdateListener updateListener, boolean resuming,
+                                    String snapshotLastKey) {
+        if (isSpatialInterestEnabled()) {
+            // lines are listened for by cell as the camera moves, see updateInterest
+            interestUpdateListener = updateListener;
+            interestLineListener = createLineListener(updateListener);
+            applyInterest();
+        } else {
+            listenForLines(updateListener, resuming ? getResumeKey() : snapshotLastKey);
+        }
+    }
+
+    private void listenForOps(final StrokeUpdateListener updateListener) {
+        RoomTransport.ChildListener listener = new RoomTransport.ChildListener() {
+            @Override
+            public void onChildAdded(RoomTransport.Snapshot dataSnapshot) {
+                for (String uid : opLog.apply(dataSnapshot.getKey(), dataSnapshot)) {
+                    removeLine(uid, updateListener);
+                }
+            }
+
+            @Override
+            public void onChildChanged(RoomTransport.Snapshot dataSnapshot) {
+            }
+
+            @Override
+            public void onChildRemoved(RoomTransport.Snapshot dataSnapshot) {
+            }
+
+            @Override
+            public void onCancelled(String error) {
+            }
+        };
+        RoomTransport.Node opsRef = roomRef.child(KEY_OPS);
+        String lastOpKey = opLog.getLastOpKey();
+        // applying an operation again has no effect, so the last one is not skipped. The
+        // operations before it may have been deleted, see maybeWriteSnapshot
+        opsListener = lastOpKey != null ? opsRef.addChildListener(listener, lastOpKey)
+                : opsRef.addChildListener(listener);
+    }
+
+    /**
+     * @return the key to listen for lines from when resuming: the first known line that may
+     * still change, or the last known line if all are finished
+     */
+    private String getResumeKey() {
+        String first = null;
+        String last = null;
+        for (String uid : opLog.getLineKeys()) {
+            if (!finishedLines.contains(uid) && (first == null || uid.compareTo(first) < 0)) {
+                first = uid;
+            }
+            if (last == null || uid.compareTo(last) > 0) {
+                last = uid;
+            }
+        }
+        return first != null ? first : last;
+    }
+
+    /**
+     * Drops a line that an operation removed
+     */
+    private void removeLine(String uid, StrokeUpdateListener updateListener) {
+        finishedLines.remove(uid);
+        decodeStates.remove(uid);
+        snapshotTracker.onLineRemoved(uid);
+        if (localStrokeUids.remove(uid)) {
+            // stop writing the line, e.g. when it was cleared while it was drawn, and delete
+            // what the clear did not
+            uploadBatcher.cancel(uid);
+            synchronized (uploadStates) {
+                uploadStates.remove(uid);
+                strokeCells.remove(uid);
+            }
+            Map<String, Object> removal = new HashMap<>();
+            removal.put(KEY_STROKES + "/" + uid, null);
+            removal.put(SyncLatencyTracker.KEY_SYNC + "/" + uid, null);
+            roomRef.updateChildren(removal, null);
+        }
+        if (updateListener != null) {
+            updateListener.onLineRemoved(uid);
+        }
+    }
+
+    private void loadSnapshot(List<RoomSnapshot.Line> lines, StrokeUpdateListener updateListener) {
+        Map<String, Stroke> strokes = new LinkedHashMap<>();
+        for (RoomSnapshot.Line line : lines) {
+            if (!opLog.addLine(line.key, line.creator)) {
+                // removed after the snapshot was written
+                continue;
+            }
+            snapshotTracker.addLoaded(line);
+            finishedLines.add(line.key);
+            if (!localStrokeUids.contains(line.key)) {
+                strokes.put(line.key, line.toStroke());
+            }
+        }
+        Log.d(TAG, "Loaded " + strokes.size() + " lines from the room snapshot");
+        if (updateListener != null && !strokes.isEmpty()) {
+            updateListener.onLinesAdded(strokes);
+        }
+    }
+
+    /**
+     * @param startAtKey the key to listen for lines from, or null to read all lines
+     */
+    private void listenForLines(StrokeUpdateListener updateListener, String startAtKey) {
+        RoomTransport.ChildListener listener = createLineListener(updateListener);
+        RoomTransport.Node linesRef = roomRef.child(KEY_STROKES);
+        lineListener = startAtKey != null ? linesRef.addChildListener(listener, startAtKey)
+                : linesRef.addChildListener(listener);
+
+        RoomTransport.ChildListener stampListener = createSyncListener();
+        RoomTransport.Node syncRef = roomRef.child(SyncLatencyTracker.KEY_SYNC);
+        syncListener = startAtKey != null ? syncRef.addChildListener(stampListener, startAtKey)
+                : syncRef.addChildListener(stampListener);
+    }
+
+    /**
+     * Hands the stamps of remote line writes to the SyncLatencyTracker
+     */
+    private RoomTransport.ChildListener createSyncListener() {
+        return new RoomTransport.ChildListener() {
+            @Override
+            public void onChildAdded(RoomTransport.Snapshot dataSnapshot) {
+                onChildChanged(dataSnapshot);
+            }
+
+            @Override
+            public void onChildChanged(RoomTransport.Snapshot dataSnapshot) {
+                if (!localStrokeUids.contains(dataSnapshot.getKey())) {
+                    SyncLatencyTracker.get().onStamp(dataSnapshot.getKey(), dataSnapshot);
+                }
+            }
+
+            @Override
+            public void onChildRemoved(RoomTransport.Snapshot dataSnapshot) {
+            }
+
+            @Override
+            public void onCancelled(String error) {
+            }
+        };
+    }
+
+    private RoomTransport.ChildListener createLineListener(
+            final StrokeUpdateListener updateListener) {
+        return new RoomTransport.ChildListener() {
+            @Override
+            public void onChildAdded(RoomTransport.Snapshot dataSnapshot) {
+                Log.d(TAG, "LINE onChildAdded: " + dataSnapshot.getValue().toString());
                 String uid = dataSnapshot.getKey();
-                if (!localStrokeUids.contains(uid)) {
+                if (finishedLines.contains(uid)) {
+                    // from the snapshot, or known from before resuming
+                    return;
+                }
+                if (localStrokeUids.contains(uid)) {
+                    if (!opLog.addLine(uid, userUid)) {
+                        removeLine(uid, updateListener);
+                        return;
+                    }
+                    onLine(uid, dataSnapshot);
+                    // keeps the clock offset fresh while drawing, for the sync stamps
+                    serverClock.sampleIfStale(roomRef.child(KEY_CLOCKS).child(userUid),
+                            transport.serverTimestamp());
+                } else if (updateListener != null) {
+                    long receivedAt = System.nanoTime();
+                    StrokeDecodeState decodeState = new StrokeDecodeState();
                     Stroke stroke;
                     try {
-                        stroke = dataSnapshot.getValue(Stroke.class);
+                        stroke = decodeState.decodeStroke(dataSnapshot);
                     } catch (DatabaseException e) {
-                        // lines were cleared while someone was mid-stroke, a partial line was pushed
-                        // stroke does not have lineWidth or creator, ignore it
+                        // the rest of a line that was cleared while it was drawn, whose creator
+                        // is not known, ignore it
                         return;
                     }
-                    if (updateListener != null) {
-                        updateListener.onLineUpdated(uid, stroke);
-                    }
-                } else {
-                    try {
-                        dataSnapshot.getValue(Stroke.class);
-                    } catch (DatabaseException e) {
-                        // update for local line was pushed simultaneously with
-                        // a clear from another device. If this occurs,
-                        // we will not receive an onChildRemoved callback.
-                        // remove our local line
-                        if (updateListener != null) {
-                            updateListener.onLineRemoved(uid);
-                        }
+                    if (!opLog.addLine(uid, stroke.creator)) {
+                        // removed or cleared, written before its creator knew
+                        return;
                     }
+                    onLine(uid, dataSnapshot);
+                    decodeStates.put(uid, decodeState);
+                    SyncLatencyTracker.get().onReceived(uid, serverClock, syncStampsSince,
+                            receivedAt, null);
+                    updateListener.onLineAdded(uid, stroke);
+                }
+            }
+
+            @Override
+            public void onChildChanged(RoomTransport.Snapshot dataSnapshot) {
+                Log.d(TAG, "LINE onChildChanged: ");
+                String uid = dataSnapshot.getKey();
+                if (!opLog.getLineKeys().contains(uid)) {
+                    // ignored or removed
+                    return;
+                }
+                long receivedAt = System.nanoTime();
+                onLine(uid, dataSnapshot);
+                StrokeDecodeState decodeState = decodeStates.get(uid);
+                if (decodeState == null) {
+                    // a local line
+                    return;
+                }
+                StrokeDelta delta;
+                try {
+                    // only decodes the part of the line that changed
+                    delta = decodeState.decodeDelta(dataSnapshot);
+                } catch (DatabaseException e) {
+                    return;
+                }
+                if (updateListener != null && delta != null) {
+                    SyncLatencyTracker.get().onReceived(uid, serverClock, syncStampsSince,
+                            receivedAt, delta);
+                    updateListener.onLineUpdated(uid, delta);
                 }
             }
 
             @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) {
+            public void onChildRemoved(RoomTransport.Snapshot dataSnapshot) {
                 Log.d(TAG, "LINE onChildRemoved: " + dataSnapshot.getValue().toString());
                 String uid = dataSnapshot.getKey();
                 if (localStrokeUids.contains(uid)) {
                     localStrokeUids.remove(uid);
                 }
-                synchronized (strokeQueue) {
-                    if (strokeQueue.containsKey(uid)) {
-                        strokeQueue.remove(uid);
-                    }
-                    if (completedStrokeUpdates.containsKey(uid)) {
-                        completedStrokeUpdates.remove(uid);
-                    }
+                opLog.removeLine(uid);
+                finishedLines.remove(uid);
+                decodeStates.remove(uid);
+                snapshotTracker.onLineRemoved(uid);
+                maybeWriteSnapshot();
+                uploadBatcher.cancel(uid);
+                synchronized (uploadStates) {
+                    uploadStates.remove(uid);
                 }
                 if (updateListener != null) {
                     updateListener.onLineRemoved(uid);
@@ -701,14 +1075,287 @@ import java.util.Set;
             }
 
             @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+            public void onCancelled(String error) {
             }
+        };
+    }
+
+    /**
+     * @return the estimated server time, or the local time until the offset is known
+     */
+    private long getServerTime() {
+        return serverClock.hasOffset() ? serverClock.now() : System.currentTimeMillis();
+    }
 
+    /**
+     * Keeps the snapshot and the finished lines up to date with a line that was added or changed
+     */
+    private void onLine(String uid, RoomTransport.Snapshot dataSnapshot) {
+        if (StrokeCodec.isFinished(dataSnapshot)) {
+            // a finished line does not change any more, it is only removed
+            finishedLines.add(uid);
+        }
+        snapshotTracker.onLine(uid, dataSnapshot, System.currentTimeMillis());
+        maybeWriteSnapshot();
+    }
+
+    /**
+     * Whether lines are indexed by cell and only the lines near the camera are listened for,
+     * see {@link #updateInterest}
+     */
+    protected boolean isSpatialInterestEnabled() {
+        return false;
+    }
+
+    /**
+     * Listens for the lines in the cells near the camera, and stops listening for the lines that
+     * are no longer near. May be called on any thread, for every frame.
+     *
+     * @param position position of the camera relative to the room anchor
+     */
+    void updateInterest(Vector3f position) {
+        if (transport == null || !isSpatialInterestEnabled()) {
+            return;
+        }
+        String cell = SpatialGrid.cellKey(position);
+        if (cell.equals(interestCell)) {
+            return;
+        }
+        interestCell = cell;
+        final Vector3f center = SpatialGrid.cellCenter(position);
+        transport.post(new Runnable() {
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void run() {
+                interestCenter = center;
+                applyInterest();
             }
-        };
-        roomRef.child(KEY_STROKES).addChildEventListener(lineListener);
+        });
+    }
+
+    private void applyInterest() {
+        if (roomRef == null || interestLineListener == null || interestCenter == null) {
+            return;
+        }
+        Set<String> cells = SpatialGrid.cellsWithin(interestCenter, INTEREST_RADIUS);
+        // cells are dropped half a cell further out than they are added, so that moving along
+        // the border of a cell does not add and drop them over and over
+        Set<String> keptCells = SpatialGrid.cellsWithin(interestCenter,
+                INTEREST_RADIUS + SpatialGrid.CELL_SIZE / 2);
+
+        Iterator<Map.Entry<String, RoomTransport.Registration>> it =
+                cellListeners.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RoomTransport.Registration> entry = it.next();
+            if (!keptCells.contains(entry.getKey())) {
+                entry.getValue().remove();
+                it.remove();
+                for (String uid : cellLines.remove(entry.getKey())) {
+                    releaseLine(uid);
+                }
+            }
+        }
+        for (String cell : cells) {
+            if (!cellListeners.containsKey(cell)) {
+                listenForCell(cell);
+            }
+        }
+    }
+
+    private void listenForCell(final String cell) {
+        cellLines.put(cell, new HashSet<String>());
+        cellListeners.put(cell, roomRef.child(KEY_CELLS).child(cell).addChildListener(
+                new RoomTransport.ChildListener() {
+            @Override
+            public void onChildAdded(RoomTransport.Snapshot dataSnapshot) {
+                Set<String> lines = cellLines.get(cell);
+                if (lines != null && lines.add(dataSnapshot.getKey())) {
+                    retainLine(dataSnapshot.getKey());
+                }
+            }
+
+            @Override
+            public void onChildChanged(RoomTransport.Snapshot dataSnapshot) {
+            }
+
+            @Override
+            public void onChildRemoved(RoomTransport.Snapshot dataSnapshot) {
+                Set<String> lines = cellLines.get(cell);
+                if (lines != null && lines.remove(dataSnapshot.getKey())) {
+                    releaseLine(dataSnapshot.getKey());
+                }
+            }
+
+            @Override
+            public void onCancelled(String error) {
+            }
+        }));
+    }
+
+    private void retainLine(String uid) {
+        Integer references = lineReferences.get(uid);
+        lineReferences.put(uid, references == null ? 1 : references + 1);
+        if (references == null) {
+            // the line may have been written long before it came near
+            syncStampsSince = getServerTime();
+            interestLineListeners.put(uid, roomRef.child(KEY_STROKES).child(uid)
+                    .addValueListener(new LineValueListener(interestLineListener)));
+            final RoomTransport.ChildListener stampListener = createSyncListener();
+            interestSyncListeners.put(uid, roomRef.child(SyncLatencyTracker.KEY_SYNC).child(uid)
+                    .addValueListener(new RoomTransport.ValueListener() {
+                        @Override
+                        public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
+                            if (dataSnapshot.exists()) {
+                                stampListener.onChildChanged(dataSnapshot);
+                            }
+                        }
+
+                        @Override
+                        public void onCancelled(String error) {
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * Stops listening for the line when it is in no cell of interest any more, and drops it
+     * unless it is a local line
+     */
+    private void releaseLine(String uid) {
+        int references = lineReferences.get(uid) - 1;
+        if (references > 0) {
+            lineReferences.put(uid, references);
+            return;
+        }
+        lineReferences.remove(uid);
+        interestLineListeners.remove(uid).remove();
+        interestSyncListeners.remove(uid).remove();
+        decodeStates.remove(uid);
+        if (!localStrokeUids.contains(uid)) {
+            // read again when the line comes back into interest
+            opLog.removeLine(uid);
+            finishedLines.remove(uid);
+            if (interestUpdateListener != null) {
+                interestUpdateListener.onLineRemoved(uid);
+            }
+        }
+    }
+
+    /**
+     * Turns the values of one line into the events of a listener for all lines
+     */
+    private static class LineValueListener implements RoomTransport.ValueListener {
+
+        private final RoomTransport.ChildListener listener;
+
+        // the last value of the line, null while it does not exist
+        private RoomTransport.Snapshot last;
+
+        LineValueListener(RoomTransport.ChildListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onDataChange(RoomTransport.Snapshot dataSnapshot) {
+            if (dataSnapshot.exists()) {
+                if (last == null) {
+                    listener.onChildAdded(dataSnapshot);
+                } else {
+                    listener.onChildChanged(dataSnapshot);
+                }
+                last = dataSnapshot;
+            } else if (last != null) {
+                listener.onChildRemoved(last);
+                last = null;
+            }
+        }
+
+        @Override
+        public void onCancelled(String error) {
+            listener.onCancelled(error);
+        }
+    }
+
+    private void removeStrokesListeners() {
+        strokesListenerGeneration++;
+        if (lineListener != null) {
+            lineListener.remove();
+            lineListener = null;
+        }
+        if (syncListener != null) {
+            syncListener.remove();
+            syncListener = null;
+        }
+        if (opsListener != null) {
+            opsListener.remove();
+            opsListener = null;
+        }
+        for (RoomTransport.Registration registration : cellListeners.values()) {
+            registration.remove();
+        }
+        for (RoomTransport.Registration registration : interestLineListeners.values()) {
+            registration.remove();
+        }
+        for (RoomTransport.Registration registration : interestSyncListeners.values()) {
+            registration.remove();
+        }
+        cellListeners.clear();
+        cellLines.clear();
+        interestLineListeners.clear();
+        interestSyncListeners.clear();
+        lineReferences.clear();
+        interestLineListener = null;
+        interestUpdateListener = null;
+    }
+
+    /**
+     * Writes the room snapshot if one is due and this participant maintains it: the one with the
+     * smallest uid, so that a single participant writes it
+     */
+    private void maybeWriteSnapshot() {
+        // with spatial interest no participant has all lines
+        if (roomRef == null || userUid == null || isSpatialInterestEnabled()) {
+            return;
+        }
+        for (String partnerUid : partners) {
+            if (partnerUid.compareTo(userUid) < 0) {
+                // the partner writes it, and it is written whole if this participant takes over
+                snapshotTracker.invalidateWritten();
+                return;
+            }
+        }
+        // Push keys start with the server time of their creation, so a line is seen before
+        // lines that were created after it has been finished
+        Map<String, Object> snapshot = snapshotTracker.takeSnapshotIfDue(
+                System.currentTimeMillis());
+        if (snapshot == null) {
+            return;
+        }
+
+        Map<String, Object> updateMap = new HashMap<>();
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            updateMap.put(KEY_SNAPSHOT + "/" + entry.getKey(), entry.getValue());
+        }
+        Map<String, Object> ops = opLog.toSnapshotValue();
+        if (ops != null) {
+            updateMap.put(KEY_SNAPSHOT + "/" + RoomSnapshot.KEY_OPS, ops);
+            // Only the operations the previous snapshot covered are deleted, so that a
+            // participant who read that one still finds the operations after it
+            if (snapshotOpKey != null) {
+                for (String opKey : opLog.takeOpKeysUpTo(snapshotOpKey)) {
+                    updateMap.put(KEY_OPS + "/" + opKey, null);
+                }
+            }
+            snapshotOpKey = opLog.getLastOpKey();
+        }
+        roomRef.updateChildren(updateMap, new RoomTransport.CompletionListener() {
+            @Override
+            public void onComplete(String error) {
+                if (error != null) {
+                    Log.w(TAG, "Room snapshot not written: " + error);
+                    snapshotTracker.invalidateWritten();
+                }
+            }
+        });
     }
 
     public void setRoomResolved(boolean roomResolved) {
@@ -729,6 +1376,7 @@ import java.util.Set;
     }
 
     public void leaveRoom() {
+        participantWriter.leave();
         isRoomResolved = false;
         isHost = false;
         partners.clear();
@@ -738,11 +1386,21 @@ import java.util.Set;
 
         mRoomData = null;
 
-        synchronized (strokeQueue) {
-            strokeQueue.clear();
-            completedStrokeUpdates.clear();
+        uploadBatcher.setRoomReference(null);
+        SyncLatencyTracker.get().clearPending();
+        synchronized (uploadStates) {
+            uploadStates.clear();
+            strokeCells.clear();
         }
+        decodeStates.clear();
         localStrokeUids.clear();
+        snapshotTracker.clear();
+        opLog.clear();
+        opLogRoomKey = null;
+        snapshotOpKey = null;
+        finishedLines.clear();
+        interestCell = null;
+        interestCenter = null;
     }
 
     public void pauseListeners(String uid) {
@@ -750,21 +1408,19 @@ import java.util.Set;
 
             // stop listening for anchor to be set
             if (anchorListener != null) {
-                roomRef.child(KEY_ANCHOR).removeEventListener(anchorListener);
+                anchorListener.remove();
                 anchorListener = null;
             }
 
-            // remove line listener
-            if (lineListener != null) {
-                roomRef.child(KEY_STROKES).removeEventListener(lineListener);
-                lineListener = null;
-            }
+            // remove line listeners
+            removeStrokesListeners();
 
             // remove user from participants list
             if (roomRef != null) {
+                participantWriter.leave();
                 roomRef.child(KEY_PARTICIPANTS).child(uid).removeValue();
                 if (onDisconnectRef != null) {
-                    onDisconnectRef.cancel();
+                    onDisconnectRef.remove();
                     onDisconnectRef = null;
                 }
             }
@@ -773,14 +1429,13 @@ import java.util.Set;
             if (partnersListener != null && partnersRef != null) {
                 // clear partners so we can rebuild when we resume listening
                 partners.clear();
-                partnersRef.removeEventListener(partnersListener);
+                partnersListener.remove();
                 partnersRef = null;
             }
 
             // stop listening for anchor resolution errors
             if (anchorResolutionListener != null) {
-                roomRef.child(KEY_ANCHOR).child(KEY_ANCHOR_ERROR)
-                        .removeEventListener(anchorResolutionListener);
+                anchorResolutionListener.remove();
             }
         }
     }
@@ -789,6 +1444,7 @@ import java.util.Set;
                                 PartnerListener partnerListener, AnchorCreationListener anchorCreationListener) {
         if (roomRef != null) {
 
+            this.userUid = userUid;
             partnersRef = roomRef.child(KEY_PARTICIPANTS);
             setStrokesListener(strokeUpdateListener);
 
@@ -796,9 +1452,8 @@ import java.util.Set;
 
             isPairing = false;
             Participant participant = new Participant(true, isPairing);
-            partnersRef.child(userUid).setValue(participant);
-            onDisconnectRef = partnersRef.child(userUid).onDisconnect();
-            onDisconnectRef.removeValue();
+            participantWriter.join(partnersRef.child(userUid), participant);
+            onDisconnectRef = partnersRef.child(userUid).removeOnDisconnect();
 
             setAnchorCreationListener(anchorCreationListener);
         }
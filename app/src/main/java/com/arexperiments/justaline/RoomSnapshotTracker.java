@@ -0,0 +1,276 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import com.arexperiments.justaline.model.RoomSnapshot;
+import com.arexperiments.justaline.model.StrokeCodec;
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.google.firebase.database.DatabaseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps the finished lines of the room for writing {@link RoomSnapshot}s.
+ * <p>
+ * A snapshot holds the lines in key order up to the first line that is still being drawn, so
+ * that the lines after it can be read by key. It is due when enough lines were added or removed
+ * since the last one and that one is old enough, which keeps rewriting the snapshot rare.
+ * <p>
+ * The lines are split into parts by key. Once a snapshot has been written, the next one only
+ * writes the parts whose lines changed and the parts of new lines, so a write costs the changes
+ * instead of the room. Legacy lines of older clients are never marked finished, they count as
+ * finished once they did not change for LEGACY_QUIET_MS.
+ * Not thread safe, only used on the thread of the database callbacks.
+ */
+/*package*/ class RoomSnapshotTracker {
+
+    private static final int MIN_CHANGED_LINES = 20;
+
+    private static final long MIN_INTERVAL_MS = 30000;
+
+    private static final long LEGACY_QUIET_MS = 30000;
+
+    /**
+     * Lines from after the previous part up to lastKey
+     */
+    private static class Part {
+
+        String lastKey;
+
+        int count;
+
+        int bytes;
+
+        boolean dirty;
+    }
+
+    private final TreeMap<String, RoomSnapshot.Line> mFinishedLines = new TreeMap<>();
+
+    // Lines that are drawn by key, with the latest value of legacy lines
+    private final TreeMap<String, RoomTransport.Snapshot> mUnfinishedLines = new TreeMap<>();
+
+    // When each unfinished legacy line last changed
+    private final Map<String, Long> mLegacyChangeTimes = new HashMap<>();
+
+    // The parts of the snapshot in key order
+    private final List<Part> mParts = new ArrayList<>();
+
+    // Number of parts in the database if they were written by this tracker, otherwise -1 and
+    // the next snapshot is written whole
+    private int mWrittenParts = -1;
+
+    private int mChangedLines;
+
+    private long mLastSnapshotTime;
+
+    /**
+     * Updates the line from its current value
+     */
+    void onLine(String key, RoomTransport.Snapshot snapshot, long now) {
+        RoomSnapshot.Line line;
+        try {
+            line = RoomSnapshot.readLine(key, snapshot);
+        } catch (DatabaseException e) {
+            // a partial line, it is ignored by the listener as well
+            return;
+        }
+        if (line == null) {
+            mUnfinishedLines.put(key, snapshot);
+            if (!StrokeCodec.isCompact(snapshot)) {
+                mLegacyChangeTimes.put(key, now);
+            }
+        } else {
+            addFinished(line);
+        }
+    }
+
+    private void addFinished(RoomSnapshot.Line line) {
+        mUnfinishedLines.remove(line.key);
+        mLegacyChangeTimes.remove(line.key);
+        if (mFinishedLines.put(line.key, line) == null) {
+            mChangedLines++;
+            Part part = findPart(line.key);
+            if (part != null) {
+                part.count++;
+                part.bytes += line.getSize();
+                part.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Adds a line loaded from a snapshot, which does not make a new snapshot due
+     */
+    void addLoaded(RoomSnapshot.Line line) {
+        mFinishedLines.put(line.key, line);
+    }
+
+    void onLineRemoved(String key) {
+        mUnfinishedLines.remove(key);
+        mLegacyChangeTimes.remove(key);
+        RoomSnapshot.Line line = mFinishedLines.remove(key);
+        if (line != null) {
+            mChangedLines++;
+            Part part = findPart(key);
+            if (part != null) {
+                part.count--;
+                part.bytes -= line.getSize();
+                part.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Called when the snapshot may have been written by someone else or not at all, so that
+     * the next one is written whole
+     */
+    void invalidateWritten() {
+        mWrittenParts = -1;
+    }
+
+    void clear() {
+        mFinishedLines.clear();
+        mUnfinishedLines.clear();
+        mLegacyChangeTimes.clear();
+        mParts.clear();
+        mWrittenParts = -1;
+        mChangedLines = 0;
+    }
+
+    /**
+     * @return the part the key belongs to, or null if it is after the last part
+     */
+    private Part findPart(String key) {
+        for (Part part : mParts) {
+            if (key.compareTo(part.lastKey) <= 0) {
+                return part;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the children of the snapshot node to update, or null if no snapshot is due
+     */
+    Map<String, Object> takeSnapshotIfDue(long now) {
+        promoteQuietLegacyLines(now);
+        if (mChangedLines < MIN_CHANGED_LINES || now - mLastSnapshotTime < MIN_INTERVAL_MS) {
+            return null;
+        }
+
+        NavigableMap<String, RoomSnapshot.Line> lines = mUnfinishedLines.isEmpty()
+                ? mFinishedLines : mFinishedLines.headMap(mUnfinishedLines.firstKey(), false);
+        String end = lines.isEmpty() ? null : lines.lastKey();
+
+        // parts that reach past the end are dropped, their lines are appended again
+        while (!mParts.isEmpty()
+                && (end == null || mParts.get(mParts.size() - 1).lastKey.compareTo(end) > 0)) {
+            mParts.remove(mParts.size() - 1);
+        }
+        appendLines(mParts.isEmpty() ? lines
+                : lines.tailMap(mParts.get(mParts.size() - 1).lastKey, false));
+        if (mParts.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Object> update = new HashMap<>();
+        Map<String, Object> parts = new HashMap<>();
+        int count = 0;
+        String from = null;
+        for (int i = 0; i < mParts.size(); i++) {
+            Part part = mParts.get(i);
+            if (part.dirty || mWrittenParts < 0) {
+                NavigableMap<String, RoomSnapshot.Line> partLines = from == null
+                        ? mFinishedLines.headMap(part.lastKey, true)
+                        : mFinishedLines.subMap(from, false, part.lastKey, true);
+                parts.put(String.valueOf(i), RoomSnapshot.encodePart(partLines.values()));
+                part.dirty = false;
+            }
+            count += part.count;
+            from = part.lastKey;
+        }
+        if (mWrittenParts < 0) {
+            update.put(RoomSnapshot.KEY_PARTS, parts);
+        } else {
+            for (Map.Entry<String, Object> part : parts.entrySet()) {
+                update.put(RoomSnapshot.KEY_PARTS + "/" + part.getKey(), part.getValue());
+            }
+            for (int i = mParts.size(); i < mWrittenParts; i++) {
+                update.put(RoomSnapshot.KEY_PARTS + "/" + i, null);
+            }
+        }
+        update.putAll(RoomSnapshot.header(from, count, mParts.size()));
+
+        mWrittenParts = mParts.size();
+        mChangedLines = 0;
+        mLastSnapshotTime = now;
+        return update;
+    }
+
+    /**
+     * Appends lines after the last part, filling it up before starting new parts
+     */
+    private void appendLines(NavigableMap<String, RoomSnapshot.Line> lines) {
+        int total = 0;
+        for (Part part : mParts) {
+            total += part.bytes;
+        }
+        Part part = mParts.isEmpty() ? null : mParts.get(mParts.size() - 1);
+        for (RoomSnapshot.Line line : lines.values()) {
+            int size = line.getSize();
+            if (total + size > RoomSnapshot.MAX_SNAPSHOT_BYTES) {
+                // the remaining lines are read from the lines node
+                break;
+            }
+            if (part == null || (part.count > 0
+                    && part.bytes + size > RoomSnapshot.MAX_PART_BYTES)) {
+                part = new Part();
+                mParts.add(part);
+            }
+            part.lastKey = line.key;
+            part.count++;
+            part.bytes += size;
+            part.dirty = true;
+            total += size;
+        }
+    }
+
+    private void promoteQuietLegacyLines(long now) {
+        Iterator<Map.Entry<String, Long>> i = mLegacyChangeTimes.entrySet().iterator();
+        List<RoomSnapshot.Line> quiet = new ArrayList<>();
+        while (i.hasNext()) {
+            Map.Entry<String, Long> entry = i.next();
+            if (now - entry.getValue() < LEGACY_QUIET_MS) {
+                continue;
+            }
+            i.remove();
+            try {
+                quiet.add(RoomSnapshot.fromSnapshot(entry.getKey(),
+                        mUnfinishedLines.get(entry.getKey())));
+            } catch (DatabaseException e) {
+                // stays unfinished
+            }
+        }
+        for (RoomSnapshot.Line line : quiet) {
+            addFinished(line);
+        }
+    }
+}
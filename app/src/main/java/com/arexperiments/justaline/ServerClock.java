@@ -0,0 +1,122 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+
+/**
+ * Estimate of the database server time, so that times stamped by different devices can be
+ * compared.
+ * <p>
+ * A sample writes a server timestamp and reads it back: the server took it between the write and
+ * its acknowledgement, so the offset is taken at the midpoint and is off by at most half the round
+ * trip. The sample with the shortest round trip is kept, until it gets old and clock drift
+ * matters more than the round trip.
+ * <p>
+ * Sampled on the transport's callback thread, read from any thread.
+ */
+/*package*/ class ServerClock {
+
+    private static final String TAG = "ServerClock";
+
+    private static final long RESAMPLE_INTERVAL_MS = 60 * 1000;
+
+    private static final long MAX_SAMPLE_AGE_MS = 5 * 60 * 1000;
+
+    private volatile boolean mHasOffset;
+
+    private volatile long mOffset;
+
+    private volatile long mRoundTrip;
+
+    // Time of the last sample, and of the one the offset is from
+    private long mSampledAt;
+
+    private long mOffsetSampledAt;
+
+    private boolean mSampling;
+
+    /**
+     * Takes a sample by writing a server timestamp to the node
+     */
+    void sample(final RoomTransport.Node node, Object serverTimestamp) {
+        if (mSampling) {
+            return;
+        }
+        mSampling = true;
+        final long sentAt = System.currentTimeMillis();
+        node.setValue(serverTimestamp, new RoomTransport.CompletionListener() {
+            @Override
+            public void onComplete(String error) {
+                final long ackedAt = System.currentTimeMillis();
+                if (error != null) {
+                    mSampling = false;
+                    return;
+                }
+                node.readOnce(new RoomTransport.ValueListener() {
+                    @Override
+                    public void onDataChange(RoomTransport.Snapshot snapshot) {
+                        mSampling = false;
+                        Long serverTime = snapshot.getValue(Long.class);
+                        if (serverTime != null) {
+                            onSample(serverTime - (sentAt + ackedAt) / 2, ackedAt - sentAt,
+                                    ackedAt);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(String error) {
+                        mSampling = false;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Takes a sample if the last one is older than a minute
+     */
+    void sampleIfStale(RoomTransport.Node node, Object serverTimestamp) {
+        if (System.currentTimeMillis() - mSampledAt > RESAMPLE_INTERVAL_MS) {
+            sample(node, serverTimestamp);
+        }
+    }
+
+    private void onSample(long offset, long roundTrip, long now) {
+        if (!mHasOffset || roundTrip <= mRoundTrip
+                || now - mOffsetSampledAt > MAX_SAMPLE_AGE_MS) {
+            mOffset = offset;
+            mRoundTrip = roundTrip;
+            mOffsetSampledAt = now;
+            mHasOffset = true;
+            Log.d(TAG, "Server clock offset " + offset + "ms, round trip " + roundTrip + "ms");
+        }
+        mSampledAt = now;
+        SyncLatencyTracker.get().onClockSample(mOffset, mRoundTrip);
+    }
+
+    boolean hasOffset() {
+        return mHasOffset;
+    }
+
+    /**
+     * @return the estimated server time in milliseconds
+     */
+    long now() {
+        return System.currentTimeMillis() + mOffset;
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import com.arexperiments.justaline.model.Stroke;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Grid of cubic cells in the space of the room anchor, used to index strokes by where they are
+ * so that clients only listen for the strokes near them.
+ * <pre>
+ * cells/{cell}/{line key}: true, cell keys like "-1_0_3"
+ * </pre>
+ */
+/*package*/ class SpatialGrid {
+
+    /**
+     * Edge length of a cell, in meters
+     */
+    static final float CELL_SIZE = 4f;
+
+    private static final float INV_CELL_SIZE = 1f / CELL_SIZE;
+
+    private SpatialGrid() {
+    }
+
+    static String cellKey(Vector3f point) {
+        return cellIndex(point.x) + "_" + cellIndex(point.y) + "_" + cellIndex(point.z);
+    }
+
+    /**
+     * @return the keys of the cells that intersect the sphere
+     */
+    static Set<String> cellsWithin(Vector3f center, float radius) {
+        Set<String> cells = new HashSet<>();
+        int minX = cellIndex(center.x - radius), maxX = cellIndex(center.x + radius);
+        int minY = cellIndex(center.y - radius), maxY = cellIndex(center.y + radius);
+        int minZ = cellIndex(center.z - radius), maxZ = cellIndex(center.z + radius);
+        float radiusSquared = radius * radius;
+        for (int x = minX; x <= maxX; x++) {
+            float dx = distanceToCell(center.x, x);
+            for (int y = minY; y <= maxY; y++) {
+                float dy = distanceToCell(center.y, y);
+                for (int z = minZ; z <= maxZ; z++) {
+                    float dz = distanceToCell(center.z, z);
+                    if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                        cells.add(x + "_" + y + "_" + z);
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * @return the center of the cell holding the point
+     */
+    static Vector3f cellCenter(Vector3f point) {
+        return new Vector3f((cellIndex(point.x) + 0.5f) * CELL_SIZE,
+                (cellIndex(point.y) + 0.5f) * CELL_SIZE,
+                (cellIndex(point.z) + 0.5f) * CELL_SIZE);
+    }
+
+    private static int cellIndex(float coordinate) {
+        return (int) Math.floor(coordinate * INV_CELL_SIZE);
+    }
+
+    private static float distanceToCell(float coordinate, int cell) {
+        float min = cell * CELL_SIZE;
+        float max = min + CELL_SIZE;
+        return coordinate < min ? min - coordinate : coordinate > max ? coordinate - max : 0;
+    }
+
+    /**
+     * The cells a local stroke has been indexed in. Only the points added since the previous
+     * update are looked at, unless the stroke was moved.
+     */
+    static class StrokeCells {
+
+        private final Set<String> mCells = new HashSet<>();
+
+        private int mRevision = -1;
+
+        private int mIndexedPoints;
+
+        /**
+         * @return the index entries to write, relative to the cells node, or null if the stroke
+         * is in no new cell
+         */
+        Map<String, Object> update(String key, Stroke stroke) {
+            Map<String, Object> entries = null;
+            Set<String> oldCells = null;
+            if (mRevision != stroke.getRevision()) {
+                // the points were moved, e.g. to the anchor
+                oldCells = new HashSet<>(mCells);
+                mCells.clear();
+                mIndexedPoints = 0;
+                mRevision = stroke.getRevision();
+            }
+
+            List<Vector3f> points = stroke.getPoints();
+            for (int i = mIndexedPoints; i < points.size(); i++) {
+                String cell = cellKey(points.get(i));
+                if (mCells.add(cell) && (oldCells == null || !oldCells.remove(cell))) {
+                    if (entries == null) {
+                        entries = new HashMap<>();
+                    }
+                    entries.put(cell + "/" + key, true);
+                }
+            }
+            mIndexedPoints = points.size();
+
+            if (oldCells != null) {
+                for (String cell : oldCells) {
+                    if (entries == null) {
+                        entries = new HashMap<>();
+                    }
+                    entries.put(cell + "/" + key, null);
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * @return the index entries to remove, relative to the cells node
+         */
+        Map<String, Object> removal(String key) {
+            Map<String, Object> entries = new HashMap<>();
+            for (String cell : mCells) {
+                entries.put(cell + "/" + key, null);
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.arexperiments.justaline.model.StrokeUpdate;
+import com.arexperiments.justaline.transport.RoomTransport;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Collects the stroke updates of a room and writes them on a tick as one multi-location
+ * updateChildren() on the lines node.
+ * <p>
+ * Updates of the same stroke are merged while they wait, so a stroke contributes at most one
+ * entry to a batch: its whole value when it is added or replaced, null when it is removed, or its
+ * changed children otherwise. Batches are capped by their estimated size, updates that do not fit
+ * wait for the next tick. The database client applies writes in order, so a new batch does not
+ * need to wait for the previous one, only the number of unacknowledged batches is limited.
+ * <p>
+ * The cadence adapts to the link. Writing more often than the round trip allows only queues
+ * batches in the database client, so the tick follows the smoothed round trip of the batches. The
+ * size limit of a batch grows while round trips stay within the latency target and there is a
+ * backlog, and is halved when they do not. A failed batch does not count as a round trip and
+ * doubles the tick instead. On a poor link updates therefore wait longer and merge into fewer
+ * writes; memory stays bounded by one merged update per stroke plus the batches in flight.
+ * Every written stroke is stamped for {@link SyncLatencyTracker} once the server clock is known,
+ * in the same write as the stroke.
+ * <p>
+ * The updates of a failed batch are handed back to be queued again, and no batch is written for
+ * a delay that doubles with every consecutive failure. An update that failed MAX_ATTEMPTS times
+ * is dropped, so an error that does not go away, such as a rejected write, does not loop.
+ * <p>
+ * Updates may be queued from any thread, batches are written on the main thread.
+ */
+/*package*/ class StrokeUploadBatcher {
+
+    private static final String TAG = "StrokeUploadBatcher";
+
+    private static final long MIN_TICK_INTERVAL_MS = 33;
+
+    private static final long MAX_TICK_INTERVAL_MS = 1000;
+
+    private static final int MIN_BATCH_BYTES = 4 * 1024;
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private static final int MAX_BATCHES_IN_FLIGHT = 2;
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    // delay after the first failed batch, doubled by every further consecutive failure
+    private static final long RETRY_DELAY_MS = 500;
+
+    private static final long MAX_RETRY_DELAY_MS = 8000;
+
+    // round trips above this make batches smaller, below it batches may grow to clear a backlog
+    private static final long TARGET_ROUND_TRIP_MS = 200;
+
+    // weight of the newest round trip in the smoothed round trip
+    private static final float ROUND_TRIP_WEIGHT = 0.125f;
+
+    // weight of the newest sample in the moving averages
+    private static final float AVERAGE_WEIGHT = 0.1f;
+
+    interface Listener {
+
+        /**
+         * Called on the main thread when a batch failed with the updates it contained by stroke
+         * key, for the strokes to be queued again
+         */
+        void onUploadFailed(Map<String, StrokeUpdate> updates);
+
+        /**
+         * Called on the main thread with the updates of a failed batch that will not be retried,
+         * by stroke key
+         */
+        void onUploadDropped(Map<String, StrokeUpdate> updates);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Listener mListener;
+
+    private final ServerClock mClock;
+
+    // Guarded by mPending
+    private final Map<String, StrokeUpdate> mPending = new LinkedHashMap<>();
+
+    private RoomTransport.Node mRoomRef;
+
+    private boolean mTickScheduled;
+
+    private int mBatchesInFlight;
+
+    // Adapted to the link, guarded by mPending
+    private long mTickInterval = 50;
+
+    private int mBatchByteLimit = 16 * 1024;
+
+    // -1 until the first batch completed
+    private float mRoundTrip = -1;
+
+    private int mBacklogBytes;
+
+    // Failed batches since the last one that succeeded, and no batch is written before
+    // mRetryAt, guarded by mPending
+    private int mConsecutiveFailures;
+
+    private long mRetryAt;
+
+    // Statistics, guarded by mPending
+    private int mMaxQueueDepth;
+
+    private long mBatches;
+
+    private long mMergedUpdates;
+
+    private float mAverageBatchUpdates;
+
+    private float mAverageBatchBytes;
+
+    private int mMaxBatchBytes;
+
+    private long mFailedBatches;
+
+    private long mDroppedUpdates;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    StrokeUploadBatcher(ServerClock clock, Listener listener) {
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the room the strokes are written to, and drops updates queued for a previous one
+     */
+    void setRoomReference(RoomTransport.Node roomRef) {
+        synchronized (mPending) {
+            mRoomRef = roomRef;
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Queues an update, merging it with an update of the same stroke that is still waiting
+     */
+    void queue(StrokeUpdate update) {
+        String key = update.stroke.getFirebaseKey();
+        synchronized (mPending) {
+            StrokeUpdate pending = mPending.get(key);
+            if (pending != null) {
+                // keeps the queue time of the pending update
+                pending.merge(update);
+                mMergedUpdates++;
+            } else {
+                update.queuedAt = SystemClock.uptimeMillis();
+                mPending.put(key, update);
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+            }
+            scheduleTick();
+        }
+    }
+
+    /**
+     * Drops the waiting update of a stroke
+     */
+    void cancel(String key) {
+        synchronized (mPending) {
+            mPending.remove(key);
+        }
+    }
+
+    /**
+     * Drops all waiting updates
+     */
+    void clear() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+    }
+
+    // Called with mPending held
+    private void scheduleTick() {
+        if (!mTickScheduled && mBatchesInFlight < MAX_BATCHES_IN_FLIGHT) {
+            mTickScheduled = true;
+            mHandler.postDelayed(mTick, Math.max(mTickInterval,
+                    mRetryAt - SystemClock.uptimeMillis()));
+        }
+    }
+
+    private void flush() {
+        final Map<String, StrokeUpdate> updates = new HashMap<>();
+        Map<String, Object> batch = new HashMap<>();
+        RoomTransport.Node roomRef;
+        int bytes = 0;
+        final long now = SystemClock.uptimeMillis();
+        long sentAt = mClock.hasOffset() ? mClock.now() : 0;
+
+        synchronized (mPending) {
+            mTickScheduled = false;
+            roomRef = mRoomRef;
+            if (roomRef == null || mPending.isEmpty()) {
+                return;
+            }
+            if (now < mRetryAt) {
+                scheduleTick();
+                return;
+            }
+
+            Iterator<Map.Entry<String, StrokeUpdate>> i = mPending.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, StrokeUpdate> entry = i.next();
+                String key = entry.getKey();
+                StrokeUpdate update = entry.getValue();
+
+                int size = estimateSize(update.values) + key.length();
+                if (!batch.isEmpty() && bytes + size > mBatchByteLimit) {
+                    break;
+                }
+                bytes += size;
+
+                String linePath = RoomManager.KEY_STROKES + "/" + key;
+                String syncPath = SyncLatencyTracker.KEY_SYNC + "/" + key;
+                if (update.remove) {
+                    batch.put(linePath, null);
+                    batch.put(syncPath, null);
+                } else {
+                    if (update.replace) {
+                        batch.put(linePath, update.values);
+                    } else {
+                        for (Map.Entry<String, Object> value : update.values.entrySet()) {
+                            batch.put(linePath + "/" + value.getKey(), value.getValue());
+                        }
+                    }
+                    if (sentAt != 0) {
+                        batch.put(syncPath,
+                                SyncLatencyTracker.stamp(sentAt, now - update.queuedAt));
+                    }
+                }
+                updates.put(key, update);
+                i.remove();
+            }
+
+            mBatchesInFlight++;
+            mBatches++;
+            mAverageBatchUpdates = average(mAverageBatchUpdates, updates.size());
+            mAverageBatchBytes = average(mAverageBatchBytes, bytes);
+            mMaxBatchBytes = Math.max(mMaxBatchBytes, bytes);
+
+            mBacklogBytes = 0;
+            for (Map.Entry<String, StrokeUpdate> entry : mPending.entrySet()) {
+                mBacklogBytes += estimateSize(entry.getValue().values) + entry.getKey().length();
+            }
+            if (!mPending.isEmpty()) {
+                scheduleTick();
+            }
+        }
+
+        roomRef.updateChildren(batch, new RoomTransport.CompletionListener() {
+            @Override
+            public void onComplete(String error) {
+                Map<String, StrokeUpdate> dropped = new HashMap<>();
+                synchronized (mPending) {
+                    mBatchesInFlight--;
+                    if (error != null) {
+                        Log.w(TAG, "Stroke batch failed: " + error);
+                        mFailedBatches++;
+                        mConsecutiveFailures++;
+                        mRetryAt = SystemClock.uptimeMillis() + Math.min(MAX_RETRY_DELAY_MS,
+                                RETRY_DELAY_MS << Math.min(mConsecutiveFailures - 1, 16));
+
+                        Iterator<Map.Entry<String, StrokeUpdate>> i =
+                                updates.entrySet().iterator();
+                        while (i.hasNext()) {
+                            Map.Entry<String, StrokeUpdate> entry = i.next();
+                            if (++entry.getValue().failures >= MAX_ATTEMPTS) {
+                                dropped.put(entry.getKey(), entry.getValue());
+                                i.remove();
+                            }
+                        }
+                        mDroppedUpdates += dropped.size();
+                        // the time until an error says nothing about the link
+                        mTickInterval = Math.min(MAX_TICK_INTERVAL_MS, mTickInterval * 2);
+                    } else {
+                        mConsecutiveFailures = 0;
+                        mRetryAt = 0;
+                        adapt(SystemClock.uptimeMillis() - now);
+                    }
+                }
+
+                if (error != null) {
+                    if (!dropped.isEmpty()) {
+                        Log.e(TAG, "Dropping updates of " + dropped.keySet() + " after "
+                                + MAX_ATTEMPTS + " failed writes: " + error);
+                        mListener.onUploadDropped(dropped);
+                    }
+                    mListener.onUploadFailed(updates);
+                }
+                synchronized (mPending) {
+                    if (!mPending.isEmpty()) {
+                        scheduleTick();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adapts the tick and the batch size limit to the round trip of a batch, called with mPending
+     * held
+     */
+    private void adapt(long roundTrip) {
+        mRoundTrip = mRoundTrip < 0 ? roundTrip
+                : mRoundTrip + (roundTrip - mRoundTrip) * ROUND_TRIP_WEIGHT;
+        mTickInterval = Math.max(MIN_TICK_INTERVAL_MS, Math.min(MAX_TICK_INTERVAL_MS,
+                (long) (mRoundTrip / MAX_BATCHES_IN_FLIGHT)));
+        if (mRoundTrip > TARGET_ROUND_TRIP_MS) {
+            mBatchByteLimit = Math.max(MIN_BATCH_BYTES, mBatchByteLimit / 2);
+        } else if (mBacklogBytes > 0) {
+            mBatchByteLimit = Math.min(MAX_BATCH_BYTES, mBatchByteLimit + MIN_BATCH_BYTES);
+        }
+    }
+
+    private float average(float current, float sample) {
+        if (mBatches <= 1) {
+            return sample;
+        }
+        return current + (sample - current) * AVERAGE_WEIGHT;
+    }
+
+    /**
+     * @return approximate size of a value once written, in bytes
+     */
+    @SuppressWarnings("unchecked")
+    private static int estimateSize(Object value) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof String) {
+            return ((String) value).length() + 2;
+        } else if (value instanceof Vector3f) {
+            return 40;
+        } else if (value instanceof Map) {
+            int size = 2;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                size += entry.getKey().length() + 4 + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        return 8;
+    }
+
+    /**
+     * @return the number of strokes with a waiting update
+     */
+    int getQueueDepth() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @return queue depth, batch rate and size, how many updates were merged while waiting, the
+     * current cadence and the failures
+     */
+    String getStatsSummary() {
+        synchronized (mPending) {
+            return String.format(Locale.US,
+                    "uploads: queue %d (max %d) batches %d avg %.1f strokes %.0fB max %dB merged %d"
+                            + "\ntick %dms limit %dB rtt %.0fms backlog %dB"
+                            + "\nfailed batches %d dropped updates %d",
+                    mPending.size(), mMaxQueueDepth, mBatches, mAverageBatchUpdates,
+                    mAverageBatchBytes, mMaxBatchBytes, mMergedUpdates, mTickInterval,
+                    mBatchByteLimit, mRoundTrip, mBacklogBytes, mFailedBatches,
+                    mDroppedUpdates);
+        }
+    }
+}
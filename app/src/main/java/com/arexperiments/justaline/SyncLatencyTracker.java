@@ -0,0 +1,281 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.util.Log;
+
+import com.arexperiments.justaline.model.StrokeDelta;
+import com.arexperiments.justaline.transport.RoomTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures how long a stroke update takes from the sender's upload queue to the receiver's
+ * screen.
+ * <p>
+ * Every line written by {@link StrokeUploadBatcher} is stamped with the time of the write, in
+ * estimated server time, and how long the update waited in the queue. The stamp is written in
+ * the same update as the line, but next to the lines so that their values stay as older clients
+ * read them:
+ * <pre>
+ * sync/{key}: { t: 1525000000000, q: 42 }
+ * </pre>
+ * The events of one write are raised together, in no given order, so the receiver pairs a line
+ * event with the stamp of the same line that arrives right before or after it.
+ * <p>
+ * The receiver splits the delay into the sender's queue, the network, from the write to the event
+ * on the receiver, decoding, and applying the change until the line geometry is rebuilt. The
+ * network stage compares the clocks of two devices, both through {@link ServerClock}, and is off
+ * by up to half the round trips of their clock samples. Only changes of lines are followed to the
+ * geometry, new lines stop at decoding.
+ * <p>
+ * Safe to call from any thread.
+ */
+/*package*/ class SyncLatencyTracker {
+
+    private static final String TAG = "SyncLatencyTracker";
+
+    static final String KEY_SYNC = "sync";
+
+    private static final String KEY_SENT_AT = "t";
+
+    private static final String KEY_QUEUED = "q";
+
+    // A line event and its stamp further apart are not of the same write
+    private static final long MAX_PAIRING_NANOS = 100 * 1000000L;
+
+    private static final SyncLatencyTracker INSTANCE = new SyncLatencyTracker();
+
+    private final LatencyHistogram mQueue = new LatencyHistogram("sender queue");
+
+    private final LatencyHistogram mNetwork = new LatencyHistogram("network");
+
+    private final LatencyHistogram mDecode = new LatencyHistogram("decode");
+
+    private final LatencyHistogram mApply = new LatencyHistogram("apply");
+
+    private final LatencyHistogram mEndToEnd = new LatencyHistogram("sync");
+
+    private final LatencyHistogram[] mHistograms = {mEndToEnd, mQueue, mNetwork, mDecode, mApply};
+
+    private volatile long mClockOffset;
+
+    private volatile long mClockRoundTrip = -1;
+
+    // Stamps and line events waiting for each other, by line key, guarded by this
+    private final Map<String, Stamp> mStamps = new HashMap<>();
+
+    private final Map<String, Receipt> mReceipts = new HashMap<>();
+
+    private static class Stamp {
+
+        final long sentAt;
+
+        final long queueMillis;
+
+        final long arrivedNanos;
+
+        Stamp(long sentAt, long queueMillis, long arrivedNanos) {
+            this.sentAt = sentAt;
+            this.queueMillis = queueMillis;
+            this.arrivedNanos = arrivedNanos;
+        }
+    }
+
+    private static class Receipt {
+
+        final long receivedNanos;
+
+        final long decodeNanos;
+
+        // estimated server time when the line event was received
+        final long receivedAt;
+
+        final long since;
+
+        final boolean newLine;
+
+        Receipt(long receivedNanos, long decodeNanos, long receivedAt, long since,
+                boolean newLine) {
+            this.receivedNanos = receivedNanos;
+            this.decodeNanos = decodeNanos;
+            this.receivedAt = receivedAt;
+            this.since = since;
+            this.newLine = newLine;
+        }
+    }
+
+    static SyncLatencyTracker get() {
+        return INSTANCE;
+    }
+
+    private SyncLatencyTracker() {
+    }
+
+    /**
+     * @param sentAt      the estimated server time of the write
+     * @param queueMillis how long the update waited before the write
+     * @return the stamp of a line write
+     */
+    static Map<String, Object> stamp(long sentAt, long queueMillis) {
+        Map<String, Object> stamp = new HashMap<>();
+        stamp.put(KEY_SENT_AT, sentAt);
+        stamp.put(KEY_QUEUED, queueMillis);
+        return stamp;
+    }
+
+    /**
+     * Called on the transport's callback thread once a remote line event was decoded
+     *
+     * @param since         new lines stamped before this server time were written before the
+     *                      receiver listened for them, and are not recorded
+     * @param receivedNanos System.nanoTime() when the event was received, before decoding
+     * @param delta         the decoded change, stamped for {@link #onApplied} if the stamp of the
+     *                      write already arrived, or null for a new line
+     */
+    synchronized void onReceived(String key, ServerClock clock, long since, long receivedNanos,
+                                 StrokeDelta delta) {
+        long now = System.nanoTime();
+        if (!clock.hasOffset()) {
+            return;
+        }
+        Receipt receipt = new Receipt(receivedNanos, now - receivedNanos, clock.now(), since,
+                delta == null);
+        Stamp stamp = mStamps.remove(key);
+        if (stamp != null && now - stamp.arrivedNanos <= MAX_PAIRING_NANOS) {
+            record(stamp, receipt, delta);
+        } else {
+            mReceipts.put(key, receipt);
+        }
+        dropUnpaired(now);
+    }
+
+    /**
+     * Called on the transport's callback thread with the stamp of a remote line. A stamp that
+     * arrives after its line event only records the stages up to decoding.
+     */
+    synchronized void onStamp(String key, RoomTransport.Snapshot value) {
+        Long sentAt = value.child(KEY_SENT_AT).getValue(Long.class);
+        Long queueMillis = value.child(KEY_QUEUED).getValue(Long.class);
+        if (sentAt == null || queueMillis == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        Stamp stamp = new Stamp(sentAt, queueMillis, now);
+        Receipt receipt = mReceipts.remove(key);
+        if (receipt != null && now - receipt.receivedNanos <= MAX_PAIRING_NANOS) {
+            record(stamp, receipt, null);
+        } else {
+            mStamps.put(key, stamp);
+        }
+        dropUnpaired(now);
+    }
+
+    private void record(Stamp stamp, Receipt receipt, StrokeDelta delta) {
+        if (receipt.newLine && stamp.sentAt < receipt.since) {
+            return;
+        }
+        long networkMillis = Math.max(0, receipt.receivedAt - stamp.sentAt);
+        mQueue.recordMicros(stamp.queueMillis * 1000);
+        mNetwork.recordMicros(networkMillis * 1000);
+        mDecode.recordNanos(receipt.decodeNanos);
+        if (delta != null) {
+            delta.receivedNanos = receipt.receivedNanos;
+            delta.sentNanos = receipt.receivedNanos - networkMillis * 1000000L;
+            delta.originNanos = receipt.receivedNanos
+                    - (stamp.queueMillis + networkMillis) * 1000000L;
+        }
+    }
+
+    /**
+     * Forgets stamps and line events whose partner did not arrive with them, e.g. lines of older
+     * clients, which are not stamped
+     */
+    private void dropUnpaired(long now) {
+        Iterator<Stamp> stamps = mStamps.values().iterator();
+        while (stamps.hasNext()) {
+            if (now - stamps.next().arrivedNanos > MAX_PAIRING_NANOS) {
+                stamps.remove();
+            }
+        }
+        Iterator<Receipt> receipts = mReceipts.values().iterator();
+        while (receipts.hasNext()) {
+            if (now - receipts.next().receivedNanos > MAX_PAIRING_NANOS) {
+                receipts.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the stamps and line events waiting for each other, when the room is left
+     */
+    synchronized void clearPending() {
+        mStamps.clear();
+        mReceipts.clear();
+    }
+
+    /**
+     * Called by the thread processing strokes once the geometry with the change was built
+     */
+    void onApplied(StrokeDelta delta) {
+        if (delta.receivedNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        mApply.recordNanos(now - delta.receivedNanos);
+        mEndToEnd.recordNanos(now - delta.originNanos);
+    }
+
+    void onClockSample(long offset, long roundTrip) {
+        mClockOffset = offset;
+        mClockRoundTrip = roundTrip;
+    }
+
+    /**
+     * @return sender queue to geometry percentiles, the median of every stage and the clock error
+     */
+    String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mEndToEnd.getSummary()).append("\np50");
+        for (int i = 1; i < mHistograms.length; i++) {
+            builder.append(String.format(Locale.US, " %s %.1f", mHistograms[i].getName(),
+                    mHistograms[i].getPercentileMicros(50) / 1000f));
+        }
+        long roundTrip = mClockRoundTrip;
+        if (roundTrip >= 0) {
+            builder.append(String.format(Locale.US, " clock %+dms rtt %dms", mClockOffset,
+                    roundTrip));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes all stage histograms to the given file. Does file IO, do not call on the UI or GL
+     * thread.
+     */
+    void dump(File file) {
+        try {
+            LatencyHistogram.writeFile(file, mHistograms);
+            Log.d(TAG, "Sync latency written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write sync latency", e);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import android.content.Intent;
+import android.os.Debug;
+import android.util.Log;
+
+import com.arexperiments.justaline.model.RoomData;
+import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.model.StrokeDelta;
+import com.arexperiments.justaline.transport.LoopbackRoomTransport;
+import com.arexperiments.justaline.transport.LoopbackServer;
+import com.google.firebase.database.DatabaseError;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Debug tool that runs the room sync of many virtual participants in one room, to see how
+ * {@link RoomManager} behaves with a busy global room.
+ * <p>
+ * Every participant has its own RoomManager on a {@link LoopbackRoomTransport} client of a shared
+ * {@link LoopbackServer}. Participants draw strokes like a hand would: points sampled at 60Hz
+ * along a smooth random path, strokes of one to three seconds with pauses in between. Every
+ * participant receives the strokes of all others and applies them like DrawARActivity does.
+ * <p>
+ * The report has the propagation latency from a point being added on the writer to the update
+ * containing it being applied on a reader, the CPU time of the callbacks per received stroke
+ * update, and the depth of the upload queues and links, sampled every 100ms.
+ * <p>
+ * Started from debug builds with
+ * {@code adb shell am start -n <package>/com.arexperiments.justaline.DrawARActivity
+ * --ei syncLoadParticipants 20 --ei syncLoadSeconds 30}, the report is written to the log and to
+ * sync_load.txt in the external files directory.
+ */
+/*package*/ class SyncLoadGenerator {
+
+    private static final String TAG = "SyncLoadGenerator";
+
+    static final String EXTRA_PARTICIPANTS = "syncLoadParticipants";
+
+    static final String EXTRA_SECONDS = "syncLoadSeconds";
+
+    private static final long DEFAULT_SECONDS = 30;
+
+    private static final long LATENCY_MILLIS = 50;
+
+    private static final long BANDWIDTH_BYTES_PER_SECOND = 256 * 1024;
+
+    private static final long SAMPLE_INTERVAL_MS = 16;
+
+    private static final long QUEUE_SAMPLE_INTERVAL_MS = 100;
+
+    // time for the last updates to arrive once drawing stopped
+    private static final long DRAIN_MS = 3000;
+
+    private static final int MIN_STROKE_SAMPLES = 60;
+
+    private static final int MAX_STROKE_SAMPLES = 180;
+
+    private static final long MIN_PAUSE_MS = 300;
+
+    private static final long MAX_PAUSE_MS = 2000;
+
+    // hand speed in meters per second
+    private static final float SPEED = 0.3f;
+
+    private final int mNumParticipants;
+
+    private final long mDurationMillis;
+
+    private final List<Participant> mParticipants = new ArrayList<>();
+
+    // Time every local stroke first reached each size, by stroke key
+    private final Map<String, StrokeTrace> mTraces = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram mPropagation = new LatencyHistogram("propagation");
+
+    private final LatencyHistogram mCpuPerUpdate = new LatencyHistogram("cpu/update");
+
+    private final AtomicLong mReceivedUpdates = new AtomicLong();
+
+    private long mStrokes;
+
+    private long mPoints;
+
+    private long mQueueSamples;
+
+    private long mQueueDepthSum;
+
+    private int mMaxQueueDepth;
+
+    private long mInFlightSum;
+
+    private int mMaxInFlight;
+
+    SyncLoadGenerator(int numParticipants, long durationMillis) {
+        mNumParticipants = numParticipants;
+        mDurationMillis = durationMillis;
+    }
+
+    /**
+     * Runs a load test on a new thread if the intent extras ask for one
+     */
+    static void startIfRequested(Intent intent, final File reportFile) {
+        final int participants = intent.getIntExtra(EXTRA_PARTICIPANTS, 0);
+        final long seconds = intent.getIntExtra(EXTRA_SECONDS, (int) DEFAULT_SECONDS);
+        if (participants < 2) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String report = new SyncLoadGenerator(participants, seconds * 1000).run();
+                Log.i(TAG, report);
+                write(report, reportFile);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Runs the load test, blocks until it is done
+     *
+     * @return the report
+     */
+    String run() {
+        LoopbackServer server = new LoopbackServer();
+        RoomData room = null;
+        for (int i = 0; i < mNumParticipants; i++) {
+            Participant participant = new Participant(server, i);
+            mParticipants.add(participant);
+            room = participant.join(room);
+        }
+
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+        long start = System.currentTimeMillis();
+        driver.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Participant participant : mParticipants) {
+                    participant.step(now);
+                }
+            }
+        }, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        driver.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sampleQueues();
+            }
+        }, 0, QUEUE_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        sleep(mDurationMillis);
+        driver.shutdown();
+        try {
+            driver.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Participant participant : mParticipants) {
+            participant.finish();
+        }
+        sleep(DRAIN_MS);
+        long elapsed = System.currentTimeMillis() - start;
+
+        String report = getReport(server, elapsed);
+        for (Participant participant : mParticipants) {
+            participant.leave();
+        }
+        return report;
+    }
+
+    private void sampleQueues() {
+        int queueDepth = 0;
+        int inFlight = 0;
+        for (Participant participant : mParticipants) {
+            queueDepth += participant.roomManager.getUploadQueueDepth();
+            inFlight += participant.transport.getMessagesInFlight();
+        }
+        mQueueSamples++;
+        mQueueDepthSum += queueDepth;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, queueDepth);
+        mInFlightSum += inFlight;
+        mMaxInFlight = Math.max(mMaxInFlight, inFlight);
+    }
+
+    private String getReport(LoopbackServer server, long elapsed) {
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        for (Participant participant : mParticipants) {
+            bytesSent += participant.transport.getBytesSent();
+            bytesReceived += participant.transport.getBytesReceived();
+        }
+        long samples = Math.max(1, mQueueSamples);
+        return String.format(Locale.US,
+                "Sync load: %d participants, %.1fs, %dms latency, %dKB/s\n"
+                        + "strokes %d points %d, received updates %d\n"
+                        + "%s max %.1fms\n"
+                        + "cpu/update p50 %dus p90 %dus p99 %dus max %dus\n"
+                        + "upload queue avg %.1f max %d, link backlog avg %.1f max %d\n"
+                        + "sent %dKB received %dKB\n"
+                        + "%s\n"
+                        + "participant 0 %s",
+                mNumParticipants, elapsed / 1000f, LATENCY_MILLIS,
+                BANDWIDTH_BYTES_PER_SECOND / 1024,
+                mStrokes, mPoints, mReceivedUpdates.get(),
+                mPropagation.getSummary(), mPropagation.getMaxMicros() / 1000f,
+                mCpuPerUpdate.getPercentileMicros(50), mCpuPerUpdate.getPercentileMicros(90),
+                mCpuPerUpdate.getPercentileMicros(99), mCpuPerUpdate.getMaxMicros(),
+                mQueueDepthSum / (float) samples, mMaxQueueDepth,
+                mInFlightSum / (float) samples, mMaxInFlight,
+                bytesSent / 1024, bytesReceived / 1024,
+                server.getStatsSummary(),
+                mParticipants.get(0).roomManager.getUploadStatsSummary());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(String report, File file) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(report);
+            Log.d(TAG, "Sync load report written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write sync load report", e);
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close sync load report", e);
+            }
+        }
+    }
+
+    /**
+     * When a local stroke first reached each size
+     */
+    private static class StrokeTrace {
+
+        private long[] mSizeTimes = new long[256];
+
+        private int mMaxSize;
+
+        synchronized void onSize(int size, long nanos) {
+            if (size >= mSizeTimes.length) {
+                mSizeTimes = Arrays.copyOf(mSizeTimes, Math.max(size + 1, mSizeTimes.length * 2));
+            }
+            for (int i = mMaxSize + 1; i <= size; i++) {
+                mSizeTimes[i] = nanos;
+            }
+            mMaxSize = Math.max(mMaxSize, size);
+        }
+
+        /**
+         * @return when the stroke reached the size, or 0 if it did not
+         */
+        synchronized long getTime(int size) {
+            return size <= mMaxSize ? mSizeTimes[size] : 0;
+        }
+    }
+
+    /**
+     * One virtual participant: draws on the driver thread, receives on its transport thread
+     */
+    private class Participant implements RoomManager.StrokeUpdateListener,
+            LoopbackRoomTransport.DeliveryMonitor {
+
+        final String uid;
+
+        final LoopbackRoomTransport transport;
+
+        final RoomManager roomManager;
+
+        private final Random mRandom;
+
+        // Drawing state, used on the driver thread
+        private Stroke mStroke;
+
+        private int mSamplesLeft;
+
+        private long mNextStrokeTime;
+
+        private final Vector3f mPosition = new Vector3f();
+
+        private final Vector3f mDirection = new Vector3f(1, 0, 0);
+
+        // Receiving state, used on the transport thread
+        private final Map<String, Stroke> mRemoteStrokes = new HashMap<>();
+
+        private final Map<String, Integer> mReceivedSizes = new HashMap<>();
+
+        private int mUpdatesInDelivery;
+
+        Participant(LoopbackServer server, int index) {
+            uid = String.format(Locale.US, "load%03d", index);
+            transport = new LoopbackRoomTransport(server, LATENCY_MILLIS,
+                    BANDWIDTH_BYTES_PER_SECOND);
+            transport.setDeliveryMonitor(this);
+            roomManager = new RoomManager(transport);
+            mRandom = new Random(index);
+            mNextStrokeTime = System.currentTimeMillis() + mRandom.nextInt((int) MAX_PAUSE_MS);
+        }
+
+        /**
+         * Creates the room if there is none yet, or joins it
+         *
+         * @return the room
+         */
+        RoomData join(RoomData room) {
+            final RoomData[] created = {room};
+            if (room == null) {
+                roomManager.createRoom(uid, new RoomManager.StoreOperationListener() {
+                    @Override
+                    public void onRoomCreated(RoomData room, DatabaseError error) {
+                        created[0] = room;
+                    }
+                }, null);
+            } else {
+                roomManager.joinRoom(room, uid, false, null, null);
+                roomManager.setRoomResolved(true);
+            }
+            // like the main thread in the app, the listener is only used on the callback thread
+            transport.post(new Runnable() {
+                @Override
+                public void run() {
+                    roomManager.setStrokesListener(Participant.this);
+                }
+            });
+            return created[0];
+        }
+
+        void step(long now) {
+            if (mStroke == null) {
+                if (now < mNextStrokeTime) {
+                    return;
+                }
+                mStroke = new Stroke();
+                mStroke.setLineWidth(AppSettings.LineWidth.MEDIUM.getWidth());
+                mSamplesLeft = MIN_STROKE_SAMPLES
+                        + mRandom.nextInt(MAX_STROKE_SAMPLES - MIN_STROKE_SAMPLES);
+                mPosition.set(mRandom.nextFloat() - 0.5f, mRandom.nextFloat() - 0.5f,
+                        mRandom.nextFloat() - 0.5f);
+            }
+
+            // turn smoothly, like a hand drawing curves
+            mDirection.x += (mRandom.nextFloat() - 0.5f) * 0.3f;
+            mDirection.y += (mRandom.nextFloat() - 0.5f) * 0.3f;
+            mDirection.z += (mRandom.nextFloat() - 0.5f) * 0.1f;
+            mDirection.normalize();
+            mPosition.scaleAdd(SPEED * SAMPLE_INTERVAL_MS / 1000f, mDirection, mPosition);
+
+            mStroke.add(new Vector3f(mPosition));
+            mPoints++;
+            if (!mStroke.hasFirebaseReference()) {
+                roomManager.addStroke(uid, mStroke);
+                mTraces.put(mStroke.getFirebaseKey(), new StrokeTrace());
+                mStrokes++;
+            } else {
+                roomManager.updateStroke(mStroke);
+            }
+            mTraces.get(mStroke.getFirebaseKey()).onSize(mStroke.size(), System.nanoTime());
+
+            if (--mSamplesLeft <= 0) {
+                finish();
+                mNextStrokeTime = now + MIN_PAUSE_MS
+                        + mRandom.nextInt((int) (MAX_PAUSE_MS - MIN_PAUSE_MS));
+            }
+        }
+
+        /**
+         * Finishes the stroke being drawn
+         */
+        void finish() {
+            if (mStroke != null) {
+                mStroke.finishStroke();
+                roomManager.updateStroke(mStroke);
+                mStroke = null;
+            }
+        }
+
+        void leave() {
+            transport.disconnect();
+        }
+
+        @Override
+        public void deliver(Runnable delivery, int bytes) {
+            long cpuStart = Debug.threadCpuTimeNanos();
+            mUpdatesInDelivery = 0;
+            delivery.run();
+            if (mUpdatesInDelivery > 0 && cpuStart >= 0) {
+                long cpu = Debug.threadCpuTimeNanos() - cpuStart;
+                mCpuPerUpdate.recordNanos(cpu / mUpdatesInDelivery);
+            }
+        }
+
+        @Override
+        public void onLineAdded(String uid, Stroke value) {
+            mRemoteStrokes.put(uid, value);
+            onReceived(uid, value.size());
+        }
+
+        @Override
+        public void onLinesAdded(Map<String, Stroke> lines) {
+            mRemoteStrokes.putAll(lines);
+        }
+
+        @Override
+        public void onLineRemoved(String uid) {
+            mRemoteStrokes.remove(uid);
+        }
+
+        @Override
+        public void onLineUpdated(String uid, StrokeDelta delta) {
+            Stroke stroke = mRemoteStrokes.get(uid);
+            if (stroke != null) {
+                stroke.applyDelta(delta);
+                onReceived(uid, stroke.size());
+            }
+        }
+
+        private void onReceived(String key, int size) {
+            mUpdatesInDelivery++;
+            mReceivedUpdates.incrementAndGet();
+
+            Integer received = mReceivedSizes.get(key);
+            if (received != null && size <= received) {
+                return;
+            }
+            mReceivedSizes.put(key, size);
+            StrokeTrace trace = mTraces.get(key);
+            long time = trace != null ? trace.getTime(size) : 0;
+            if (time > 0) {
+                mPropagation.recordNanos(System.nanoTime() - time);
+            }
+        }
+    }
+}
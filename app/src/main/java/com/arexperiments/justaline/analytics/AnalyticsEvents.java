@@ -42,6 +42,7 @@ public class AnalyticsEvents {
     public static final String USER_PROPERTY_TAPPED_UNDO = "has_tapped_undo";
     public static final String USER_PROPERTY_TAPPED_CLEAR = "has_tapped_clear";
     public static final String EVENT_TAPPED_SHARE_APP = "tapped_share_app";
+    public static final String EVENT_TAPPED_EXPORT_3D = "tapped_export_3d";
 
     // Playback
     public static final String EVENT_TAPPED_SAVE = "tapped_save";
@@ -56,6 +57,13 @@ public class AnalyticsEvents {
     public static final String VALUE_PAIR_ERROR_SYNC_REASON_TIMEOUT = "Pairing Timeout";
     public static final String VALUE_PAIR_ERROR_SYNC_REASON_NOT_TRACKING = "Not Tracking";
     public static final String EVENT_PAIR_SUCCESS = "pair_success";
+    public static final String EVENT_PAIR_STAGES = "pair_stages";
+    public static final String PARAM_PAIR_RESULT = "result";
+    public static final String PARAM_PAIR_TOTAL_MS = "total_ms";
+    public static final String VALUE_PAIR_RESULT_SUCCESS = "success";
+    public static final String VALUE_PAIR_RESULT_DISCOVERY_TIMEOUT = "discovery_timeout";
+    public static final String VALUE_PAIR_RESULT_ERROR = "error";
+    public static final String VALUE_PAIR_RESULT_LEFT = "left";
     public static final String USER_PROPERTY_HAS_TAPPED_PAIR = "has_tapped_pair";
     public static final String EVENT_TAPPED_EXIT_PAIR_FLOW = "tapped_exit_pair_flow";
     public static final String EVENT_TAPPED_DISCONNECT_PAIRED_SESSION = "tapped_disconnect_paired_session";
@@ -0,0 +1,71 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Little endian output through a fixed size buffer
+ */
+/*package*/ class BinaryOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    BinaryOutput(OutputStream out) {
+        mOut = out;
+    }
+
+    void putInt(int value) throws IOException {
+        ensure(4);
+        mBuffer.putInt(value);
+    }
+
+    void putFloat(float value) throws IOException {
+        ensure(4);
+        mBuffer.putFloat(value);
+    }
+
+    void put(byte value) throws IOException {
+        ensure(1);
+        mBuffer.put(value);
+    }
+
+    void put(byte[] bytes) throws IOException {
+        flush();
+        mOut.write(bytes);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (mBuffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the stream, without flushing it
+     */
+    void flush() throws IOException {
+        mOut.write(mBuffer.array(), 0, mBuffer.position());
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a mesh as binary glTF 2.0: a JSON chunk describing one mesh with one primitive, and a
+ * binary chunk with the interleaved positions and normals followed by 32 bit indices. The
+ * bounds the format requires for the positions are found in a first pass over the lines.
+ */
+public class GlbWriter implements MeshWriter {
+
+    private static final int MAGIC = 0x46546c67; // "glTF"
+
+    private static final int VERSION = 2;
+
+    private static final int CHUNK_JSON = 0x4e4f534a;
+
+    private static final int CHUNK_BIN = 0x004e4942;
+
+    private static final int VERTEX_STRIDE = 6 * 4;
+
+    private static final int FLOAT = 5126;
+
+    private static final int UNSIGNED_INT = 5125;
+
+    private static final int ARRAY_BUFFER = 34962;
+
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+
+    @Override
+    public String getExtension() {
+        return "glb";
+    }
+
+    @Override
+    public String getMimeType() {
+        return "model/gltf-binary";
+    }
+
+    @Override
+    public void write(LineMesh mesh, OutputStream out) throws IOException {
+        if (mesh.getLineCount() == 0) {
+            throw new IOException("Nothing to export");
+        }
+        float[] positions = new float[mesh.getMaxPointCount() * 6];
+        float[] normals = new float[mesh.getMaxPointCount() * 6];
+
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            int vertices = mesh.extrude(line, positions, normals);
+            for (int i = 0; i < vertices * 3; i++) {
+                min[i % 3] = Math.min(min[i % 3], positions[i]);
+                max[i % 3] = Math.max(max[i % 3], positions[i]);
+            }
+        }
+
+        int vertexBytes = mesh.getVertexCount() * VERTEX_STRIDE;
+        int indexBytes = mesh.getTriangleCount() * 3 * 4;
+        byte[] json = pad(json(mesh, min, max, vertexBytes, indexBytes));
+        int binLength = vertexBytes + indexBytes;
+
+        BinaryOutput output = new BinaryOutput(out);
+        output.putInt(MAGIC);
+        output.putInt(VERSION);
+        output.putInt(12 + 8 + json.length + 8 + binLength);
+        output.putInt(json.length);
+        output.putInt(CHUNK_JSON);
+        output.put(json);
+        output.putInt(binLength);
+        output.putInt(CHUNK_BIN);
+
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            int vertices = mesh.extrude(line, positions, normals);
+            for (int i = 0; i < vertices * 3; i += 3) {
+                output.putFloat(positions[i]);
+                output.putFloat(positions[i + 1]);
+                output.putFloat(positions[i + 2]);
+                output.putFloat(normals[i]);
+                output.putFloat(normals[i + 1]);
+                output.putFloat(normals[i + 2]);
+            }
+        }
+
+        int[] indices = new int[mesh.getMaxPointCount() * 6];
+        int firstVertex = 0;
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            int triangles = mesh.triangulate(line, firstVertex, indices);
+            for (int i = 0; i < triangles * 3; i++) {
+                output.putInt(indices[i]);
+            }
+            firstVertex += mesh.getPointCount(line) * 2;
+        }
+        output.flush();
+    }
+
+    private static String json(LineMesh mesh, float[] min, float[] max, int vertexBytes,
+                               int indexBytes) {
+        float[] color = mesh.getColor();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"Just a Line\"},")
+                .append("\"scene\":0,\"scenes\":[{\"nodes\":[0]}],")
+                .append("\"nodes\":[{\"mesh\":0,\"name\":\"drawing\"}],")
+                .append("\"meshes\":[{\"primitives\":[{")
+                .append("\"attributes\":{\"POSITION\":0,\"NORMAL\":1},")
+                .append("\"indices\":2,\"material\":0,\"mode\":4}]}],")
+                .append("\"materials\":[{\"pbrMetallicRoughness\":{\"baseColorFactor\":[")
+                .append(color[0]).append(',').append(color[1]).append(',').append(color[2])
+                .append(",1.0],\"metallicFactor\":0.0,\"roughnessFactor\":1.0},")
+                .append("\"doubleSided\":true}],")
+                .append("\"buffers\":[{\"byteLength\":").append(vertexBytes + indexBytes)
+                .append("}],")
+                .append("\"bufferViews\":[")
+                .append("{\"buffer\":0,\"byteOffset\":0,\"byteLength\":").append(vertexBytes)
+                .append(",\"byteStride\":").append(VERTEX_STRIDE)
+                .append(",\"target\":").append(ARRAY_BUFFER).append("},")
+                .append("{\"buffer\":0,\"byteOffset\":").append(vertexBytes)
+                .append(",\"byteLength\":").append(indexBytes)
+                .append(",\"target\":").append(ELEMENT_ARRAY_BUFFER).append("}],")
+                .append("\"accessors\":[")
+                .append("{\"bufferView\":0,\"byteOffset\":0,\"componentType\":").append(FLOAT)
+                .append(",\"count\":").append(mesh.getVertexCount())
+                .append(",\"type\":\"VEC3\",\"min\":[")
+                .append(min[0]).append(',').append(min[1]).append(',').append(min[2])
+                .append("],\"max\":[")
+                .append(max[0]).append(',').append(max[1]).append(',').append(max[2])
+                .append("]},")
+                .append("{\"bufferView\":0,\"byteOffset\":12,\"componentType\":").append(FLOAT)
+                .append(",\"count\":").append(mesh.getVertexCount())
+                .append(",\"type\":\"VEC3\"},")
+                .append("{\"bufferView\":1,\"byteOffset\":0,\"componentType\":")
+                .append(UNSIGNED_INT)
+                .append(",\"count\":").append(mesh.getTriangleCount() * 3)
+                .append(",\"type\":\"SCALAR\"}]}");
+        return json.toString();
+    }
+
+    /**
+     * @return the JSON padded with spaces to a multiple of four bytes, as chunks are aligned
+     */
+    private static byte[] pad(String json) {
+        byte[] bytes = json.getBytes(Charset.forName("UTF-8"));
+        int padded = (bytes.length + 3) & ~3;
+        byte[] result = new byte[padded];
+        System.arraycopy(bytes, 0, result, 0, bytes.length);
+        for (int i = bytes.length; i < padded; i++) {
+            result[i] = ' ';
+        }
+        return result;
+    }
+}
@@ -0,0 +1,241 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import com.google.ar.core.Pose;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * The lines of a drawing as ribbons of triangles, for the {@link MeshWriter}s.
+ * <p>
+ * The ribbons are extruded like the renderer draws them: every point of a line becomes two
+ * vertices, on either side of the point at half the line width, across the direction of the line
+ * at the point as LineShaderRenderer.addLine() picks its previous and next point and
+ * line_vert.glsl averages the directions. The shader extrudes across the line on the screen, here
+ * the ribbon is extruded across the line as seen from the camera at the time of the export, and
+ * faces it. Consecutive points are joined by two triangles.
+ * <p>
+ * Only references to the points are kept, the vertices of a line are computed each time it is
+ * extruded, so writers can stream any number of lines in a few passes.
+ */
+public class LineMesh {
+
+    private final List<List<Vector3f>> mLines = new ArrayList<>();
+
+    private final List<Integer> mPointCounts = new ArrayList<>();
+
+    private final List<Float> mWidths = new ArrayList<>();
+
+    private final List<Pose> mPoses = new ArrayList<>();
+
+    private final Vector3f mEye;
+
+    private final float[] mColor;
+
+    private int mVertexCount;
+
+    private int mTriangleCount;
+
+    private int mMaxPointCount;
+
+    /**
+     * @param eye   the camera position in world coordinates, the ribbons face it
+     * @param color the line color, red, green and blue from 0 to 1
+     */
+    public LineMesh(Vector3f eye, float[] color) {
+        mEye = new Vector3f(eye);
+        mColor = color.clone();
+    }
+
+    /**
+     * Adds a line, lines with less than two points are skipped like the renderer does
+     *
+     * @param points the points, whose objects must not be changed until the mesh is written
+     * @param count  the number of points to export, without a point that is only predicted
+     * @param width  the width of the ribbon in world units
+     * @param pose   the pose of the anchor the points are relative to, null for world
+     *               coordinates
+     */
+    public void addLine(List<Vector3f> points, int count, float width, Pose pose) {
+        if (count < 2) {
+            return;
+        }
+        mLines.add(points);
+        mPointCounts.add(count);
+        mWidths.add(width);
+        mPoses.add(pose);
+        mVertexCount += count * 2;
+        mTriangleCount += (count - 1) * 2;
+        mMaxPointCount = Math.max(mMaxPointCount, count);
+    }
+
+    public int getLineCount() {
+        return mLines.size();
+    }
+
+    public int getPointCount(int line) {
+        return mPointCounts.get(line);
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * @return the largest number of points of a line, to size the arrays for
+     * {@link #extrude(int, float[], float[])}
+     */
+    public int getMaxPointCount() {
+        return mMaxPointCount;
+    }
+
+    public float[] getColor() {
+        return mColor.clone();
+    }
+
+    /**
+     * Writes the vertices of a line in world coordinates, and their normals towards the camera.
+     * The vertices of point i are 2 * i, left of the line as seen from the camera, and 2 * i + 1.
+     *
+     * @param positions x, y, z of every vertex, at least 6 floats per point
+     * @param normals   x, y, z of every vertex, at least 6 floats per point
+     * @return the number of vertices written
+     */
+    public int extrude(int line, float[] positions, float[] normals) {
+        List<Vector3f> points = mLines.get(line);
+        int count = mPointCounts.get(line);
+        float halfWidth = mWidths.get(line) * 0.5f;
+        Pose pose = mPoses.get(line);
+
+        float[] m = new float[16];
+        if (pose != null) {
+            pose.toMatrix(m, 0);
+        } else {
+            m[0] = m[5] = m[10] = m[15] = 1;
+        }
+        float[] world = new float[count * 3];
+        for (int i = 0; i < count; i++) {
+            Vector3f p = points.get(i);
+            world[i * 3] = m[0] * p.x + m[4] * p.y + m[8] * p.z + m[12];
+            world[i * 3 + 1] = m[1] * p.x + m[5] * p.y + m[9] * p.z + m[13];
+            world[i * 3 + 2] = m[2] * p.x + m[6] * p.y + m[10] * p.z + m[14];
+        }
+
+        Vector3f current = new Vector3f();
+        Vector3f previous = new Vector3f();
+        Vector3f next = new Vector3f();
+        Vector3f dir = new Vector3f();
+        Vector3f dir2 = new Vector3f();
+        Vector3f toEye = new Vector3f();
+        Vector3f side = new Vector3f();
+        Vector3f lastSide = new Vector3f(0, 1, 0);
+        for (int i = 0; i < count; i++) {
+            // the neighbours LineShaderRenderer.addLine() hands the shader
+            int iPrevious = Math.max(i - 1, 0);
+            int iNext = Math.min(i + 1, count - 1);
+            set(current, world, i);
+            set(previous, world, iPrevious);
+            set(next, world, iNext);
+
+            // the direction of the line as line_vert.glsl computes it
+            if (next.equals(current)) {
+                dir.sub(current, previous);
+                normalize(dir);
+            } else if (previous.equals(current)) {
+                dir.sub(next, current);
+                normalize(dir);
+            } else {
+                dir.sub(current, previous);
+                normalize(dir);
+                dir2.sub(next, current);
+                normalize(dir2);
+                dir.add(dir2);
+                normalize(dir);
+            }
+
+            toEye.sub(mEye, current);
+            if (!normalize(toEye)) {
+                toEye.set(0, 1, 0);
+            }
+            side.cross(toEye, dir);
+            if (!normalize(side)) {
+                // the line points at the camera, or the point repeats
+                side.set(lastSide);
+            }
+            lastSide.set(side);
+
+            int v = i * 6;
+            positions[v] = current.x + side.x * halfWidth;
+            positions[v + 1] = current.y + side.y * halfWidth;
+            positions[v + 2] = current.z + side.z * halfWidth;
+            positions[v + 3] = current.x - side.x * halfWidth;
+            positions[v + 4] = current.y - side.y * halfWidth;
+            positions[v + 5] = current.z - side.z * halfWidth;
+            for (int j = 0; j < 2; j++) {
+                normals[v + j * 3] = toEye.x;
+                normals[v + j * 3 + 1] = toEye.y;
+                normals[v + j * 3 + 2] = toEye.z;
+            }
+        }
+        return count * 2;
+    }
+
+    private static void set(Vector3f vector, float[] values, int index) {
+        vector.set(values[index * 3], values[index * 3 + 1], values[index * 3 + 2]);
+    }
+
+    /**
+     * @return false if the vector is too short to have a direction, it is left as is
+     */
+    private static boolean normalize(Vector3f vector) {
+        float length = vector.length();
+        if (length < 1e-9f) {
+            return false;
+        }
+        vector.scale(1 / length);
+        return true;
+    }
+
+    /**
+     * Writes the vertex indices of the triangles of a line, counter clockwise as seen from the
+     * camera
+     *
+     * @param firstVertex the index of the first vertex of the line in the mesh
+     * @param indices     three indices per triangle, at least 6 per point
+     * @return the number of triangles written
+     */
+    public int triangulate(int line, int firstVertex, int[] indices) {
+        int count = mPointCounts.get(line);
+        int j = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int left = firstVertex + i * 2;
+            indices[j++] = left;
+            indices[j++] = left + 1;
+            indices[j++] = left + 2;
+            indices[j++] = left + 2;
+            indices[j++] = left + 1;
+            indices[j++] = left + 3;
+        }
+        return (count - 1) * 2;
+    }
+}
@@ -0,0 +1,37 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link LineMesh} in a 3D file format. Writers extrude one line at a time and stream
+ * it, so their memory does not grow with the size of the drawing.
+ */
+public interface MeshWriter {
+
+    /**
+     * @return the file name extension, without the dot
+     */
+    String getExtension();
+
+    String getMimeType();
+
+    /**
+     * Writes the mesh, which must have at least one line. The stream is not closed.
+     */
+    void write(LineMesh mesh, OutputStream out) throws IOException;
+}
@@ -0,0 +1,75 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a mesh as Wavefront OBJ text, one object per line with its vertices, normals and faces.
+ * Vertex and normal indices are shared, as every vertex has its own normal.
+ */
+public class ObjWriter implements MeshWriter {
+
+    @Override
+    public String getExtension() {
+        return "obj";
+    }
+
+    @Override
+    public String getMimeType() {
+        return "text/plain";
+    }
+
+    @Override
+    public void write(LineMesh mesh, OutputStream out) throws IOException {
+        if (mesh.getLineCount() == 0) {
+            throw new IOException("Nothing to export");
+        }
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, Charset.forName("US-ASCII")), 64 * 1024);
+        writer.write("# Just a Line\n");
+
+        float[] positions = new float[mesh.getMaxPointCount() * 6];
+        float[] normals = new float[mesh.getMaxPointCount() * 6];
+        int[] indices = new int[mesh.getMaxPointCount() * 6];
+        int firstVertex = 0;
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            writer.write("o line_" + line + "\n");
+            int vertices = mesh.extrude(line, positions, normals);
+            for (int i = 0; i < vertices * 3; i += 3) {
+                writer.write("v " + positions[i] + " " + positions[i + 1] + " "
+                        + positions[i + 2] + "\n");
+            }
+            for (int i = 0; i < vertices * 3; i += 3) {
+                writer.write("vn " + normals[i] + " " + normals[i + 1] + " " + normals[i + 2]
+                        + "\n");
+            }
+            // OBJ indices start at 1
+            int triangles = mesh.triangulate(line, firstVertex + 1, indices);
+            for (int i = 0; i < triangles * 3; i += 3) {
+                writer.write("f " + indices[i] + "//" + indices[i] + " "
+                        + indices[i + 1] + "//" + indices[i + 1] + " "
+                        + indices[i + 2] + "//" + indices[i + 2] + "\n");
+            }
+            firstVertex += vertices;
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a mesh as binary little endian PLY, vertices with positions and normals followed by
+ * triangles.
+ */
+public class PlyWriter implements MeshWriter {
+
+    @Override
+    public String getExtension() {
+        return "ply";
+    }
+
+    @Override
+    public String getMimeType() {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public void write(LineMesh mesh, OutputStream out) throws IOException {
+        if (mesh.getLineCount() == 0) {
+            throw new IOException("Nothing to export");
+        }
+        String header = "ply\n"
+                + "format binary_little_endian 1.0\n"
+                + "comment Just a Line\n"
+                + "element vertex " + mesh.getVertexCount() + "\n"
+                + "property float x\n"
+                + "property float y\n"
+                + "property float z\n"
+                + "property float nx\n"
+                + "property float ny\n"
+                + "property float nz\n"
+                + "element face " + mesh.getTriangleCount() + "\n"
+                + "property list uchar uint vertex_indices\n"
+                + "end_header\n";
+
+        BinaryOutput output = new BinaryOutput(out);
+        output.put(header.getBytes(Charset.forName("US-ASCII")));
+
+        float[] positions = new float[mesh.getMaxPointCount() * 6];
+        float[] normals = new float[mesh.getMaxPointCount() * 6];
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            int vertices = mesh.extrude(line, positions, normals);
+            for (int i = 0; i < vertices * 3; i += 3) {
+                output.putFloat(positions[i]);
+                output.putFloat(positions[i + 1]);
+                output.putFloat(positions[i + 2]);
+                output.putFloat(normals[i]);
+                output.putFloat(normals[i + 1]);
+                output.putFloat(normals[i + 2]);
+            }
+        }
+
+        int[] indices = new int[mesh.getMaxPointCount() * 6];
+        int firstVertex = 0;
+        for (int line = 0; line < mesh.getLineCount(); line++) {
+            int triangles = mesh.triangulate(line, firstVertex, indices);
+            for (int i = 0; i < triangles * 3; i += 3) {
+                output.put((byte) 3);
+                output.putInt(indices[i]);
+                output.putInt(indices[i + 1]);
+                output.putInt(indices[i + 2]);
+            }
+            firstVertex += mesh.getPointCount(line) * 2;
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import java.util.Arrays;
+
+/**
+ * Standard base64 with padding and without line breaks, the same as
+ * {@code android.util.Base64.NO_WRAP}. Plain Java so the codecs run in JVM tests, and
+ * java.util.Base64 needs API 26.
+ */
+public final class Base64Codec {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    public static String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    public static String encode(byte[] data, int offset, int length) {
+        char[] out = new char[(length + 2) / 3 * 4];
+        int end = offset + length;
+        int o = 0;
+        for (int i = offset; i < end; i += 3) {
+            int remaining = end - i;
+            int bits = (data[i] & 0xFF) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xFF;
+            }
+            out[o++] = ALPHABET[(bits >> 18) & 0x3F];
+            out[o++] = ALPHABET[(bits >> 12) & 0x3F];
+            out[o++] = remaining > 1 ? ALPHABET[(bits >> 6) & 0x3F] : '=';
+            out[o++] = remaining > 2 ? ALPHABET[bits & 0x3F] : '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decodes a string with or without padding
+     *
+     * @throws IllegalArgumentException if it is not base64
+     */
+    public static byte[] decode(String encoded) {
+        int length = encoded.length();
+        while (length > 0 && encoded.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1 || encoded.length() - length > 2) {
+            throw new IllegalArgumentException("Bad base64 length");
+        }
+
+        byte[] out = new byte[length * 3 / 4];
+        int bits = 0;
+        int bitCount = 0;
+        int o = 0;
+        for (int i = 0; i < length; i++) {
+            char c = encoded.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Bad base64 character at " + i);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[o++] = (byte) (bits >> bitCount);
+            }
+        }
+        return out;
+    }
+}
@@ -14,11 +14,13 @@
 
 package com.arexperiments.justaline.model;
 
+import com.arexperiments.justaline.transport.RoomTransport;
 import com.google.firebase.database.Exclude;
 import com.google.firebase.database.PropertyName;
 import com.google.firebase.database.ServerValue;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by Kat on 4/11/18.
@@ -26,13 +28,19 @@ import java.util.HashMap;
 
 public class Participant {
 
-    @PropertyName("readyToSetAnchor")
+    public static final String KEY_READY_TO_SET_ANCHOR = "readyToSetAnchor";
+
+    public static final String KEY_ANCHOR_RESOLVED = "anchorResolved";
+
+    public static final String KEY_PAIRING = "pairing";
+
+    @PropertyName(KEY_READY_TO_SET_ANCHOR)
     Boolean readyToSetAnchor;
 
-    @PropertyName("anchorResolved")
+    @PropertyName(KEY_ANCHOR_RESOLVED)
     Boolean anchorResolved;
 
-    @PropertyName("pairing")
+    @PropertyName(KEY_PAIRING)
     Boolean isPairing;
 
     @PropertyName("lastSeen")
@@ -91,6 +99,30 @@ public class Participant {
         return lastSeen;
     }
 
+    /**
+     * Reads the state fields of a participant, without mapping the whole value
+     */
+    public static Participant readState(RoomTransport.Snapshot snapshot) {
+        Participant participant = new Participant();
+        participant.readyToSetAnchor = snapshot.child(KEY_READY_TO_SET_ANCHOR)
+                .getValue(Boolean.class);
+        participant.anchorResolved = snapshot.child(KEY_ANCHOR_RESOLVED).getValue(Boolean.class);
+        participant.isPairing = snapshot.child(KEY_PAIRING).getValue(Boolean.class);
+        return participant;
+    }
+
+    /**
+     * @return the state fields by key, without lastSeen
+     */
+    @Exclude
+    public Map<String, Object> getState() {
+        Map<String, Object> state = new HashMap<>();
+        state.put(KEY_READY_TO_SET_ANCHOR, getReadyToSetAnchor());
+        state.put(KEY_ANCHOR_RESOLVED, getAnchorResolved());
+        state.put(KEY_PAIRING, getPairing());
+        return state;
+    }
+
     @Exclude
     public long getLastSeenLong() {
         return (long) lastSeen.get("timestamp");
@@ -0,0 +1,289 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.google.firebase.database.DatabaseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compacted copy of the finished lines of a room, so that joining participants can load them
+ * with a single read instead of one event per line.
+ * <p>
+ * The lines are packed into binary parts of at most MAX_PART_BYTES, stored base64 encoded. The
+ * snapshot holds the lines in key order up to {@link #KEY_LAST_KEY}; later lines are read from
+ * the lines node as usual. Lines are mostly added after the last one, so a new snapshot only
+ * rewrites the parts that changed and appends parts, see {@code RoomSnapshotTracker}.
+ * <pre>
+ * snapshot: { v: 2, lastKey: "...", count: 120, partCount: 2, parts: { 0: "...", 1: "..." } }
+ * part: count, then per line: key, creator, lineWidth, segment count, segments
+ * </pre>
+ * The operations of the room are folded into {@link #KEY_OPS}, see {@link StrokeOpLog}. They are
+ * kept when the lines are cleared.
+ * Each segment is the bytes of a chunk of {@link StrokeCodec}, so compact lines are copied into
+ * the snapshot without decoding their points. Legacy lines are encoded into chunks, which rounds
+ * their points to {@link StrokeCodec#QUANTUM}.
+ */
+public class RoomSnapshot {
+
+    public static final String KEY_VERSION = "v";
+
+    public static final String KEY_LAST_KEY = "lastKey";
+
+    public static final String KEY_COUNT = "count";
+
+    public static final String KEY_PART_COUNT = "partCount";
+
+    public static final String KEY_PARTS = "parts";
+
+    public static final String KEY_OPS = "ops";
+
+    // The single part of version 1
+    private static final String KEY_DATA = "data";
+
+    public static final int VERSION = 2;
+
+    private static final int VERSION_SINGLE_PART = 1;
+
+    /**
+     * Size of a part before base64 encoding, a part grows past it only when a line is added
+     * before the last line of the part
+     */
+    public static final int MAX_PART_BYTES = 256 * 1024;
+
+    /**
+     * Size of all parts before base64 encoding, well below the 10 MB limit of a database write
+     */
+    public static final int MAX_SNAPSHOT_BYTES = 6 * 1024 * 1024;
+
+    /**
+     * A finished line as stored in the snapshot
+     */
+    public static class Line {
+
+        public final String key;
+
+        public final String creator;
+
+        final float lineWidth;
+
+        final List<byte[]> segments;
+
+        // Bytes of the line in a part
+        final int size;
+
+        Line(String key, String creator, float lineWidth, List<byte[]> segments) {
+            this.key = key;
+            this.creator = creator;
+            this.lineWidth = lineWidth;
+            this.segments = segments;
+            int size = 2 + key.length() + 2 + (creator != null ? creator.length() : 0) + 8;
+            for (byte[] segment : segments) {
+                size += 4 + segment.length;
+            }
+            this.size = size;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public Stroke toStroke() {
+            Stroke stroke = new Stroke();
+            stroke.setLineWidth(lineWidth);
+            stroke.creator = creator;
+            for (byte[] segment : segments) {
+                StrokeCodec.decodeChunk(segment, stroke.getPoints());
+            }
+            return stroke;
+        }
+    }
+
+    /**
+     * @return the line, or null if it is still being drawn
+     * @throws DatabaseException if the line is malformed
+     */
+    public static Line readLine(String key, RoomTransport.Snapshot snapshot) {
+        if (!StrokeCodec.isFinished(snapshot)) {
+            return null;
+        }
+        return fromSnapshot(key, snapshot);
+    }
+
+    /**
+     * Reads a line in either format, whether or not it is finished
+     *
+     * @throws DatabaseException if the line is malformed
+     */
+    public static Line fromSnapshot(String key, RoomTransport.Snapshot snapshot) {
+        List<byte[]> segments = new ArrayList<>();
+        if (!StrokeCodec.isCompact(snapshot)) {
+            Stroke stroke = snapshot.getValue(Stroke.class);
+            if (stroke == null) {
+                throw new DatabaseException("Incomplete stroke");
+            }
+            for (int i = 0; i < StrokeCodec.chunkCount(stroke.size()); i++) {
+                segments.add(StrokeCodec.decodeBase64(
+                        StrokeCodec.encodeChunk(stroke.getPoints(), i)));
+            }
+            return new Line(key, stroke.creator, stroke.getLineWidth(), segments);
+        }
+
+        Stroke header = StrokeCodec.readHeader(snapshot);
+        for (String segment : StrokeCodec.readSegments(snapshot)) {
+            segments.add(StrokeCodec.decodeBase64(segment));
+        }
+        return new Line(key, header.creator, header.getLineWidth(), segments);
+    }
+
+    /**
+     * @param lines the lines of one part in key order
+     * @return the value of the part
+     */
+    public static String encodePart(Collection<Line> lines) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(lines.size());
+            for (Line line : lines) {
+                out.writeUTF(line.key);
+                // the creator of a legacy line may be missing
+                out.writeUTF(line.creator != null ? line.creator : "");
+                out.writeFloat(line.lineWidth);
+                out.writeInt(line.segments.size());
+                for (byte[] segment : line.segments) {
+                    out.writeInt(segment.length);
+                    out.write(segment);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return Base64Codec.encode(bytes.toByteArray());
+    }
+
+    /**
+     * @return the header of a snapshot, to be written together with its parts
+     */
+    public static Map<String, Object> header(String lastKey, int count, int partCount) {
+        Map<String, Object> value = new HashMap<>();
+        value.put(KEY_VERSION, VERSION);
+        value.put(KEY_LAST_KEY, lastKey);
+        value.put(KEY_COUNT, count);
+        value.put(KEY_PART_COUNT, partCount);
+        return value;
+    }
+
+    /**
+     * @return the children that hold the lines, to be deleted when the lines are cleared
+     */
+    public static List<String> getLineKeys() {
+        return Arrays.asList(KEY_VERSION, KEY_LAST_KEY, KEY_COUNT, KEY_PART_COUNT, KEY_PARTS,
+                KEY_DATA);
+    }
+
+    /**
+     * @return the key of the last line in the snapshot
+     */
+    public static String getLastKey(RoomTransport.Snapshot snapshot) {
+        return snapshot.child(KEY_LAST_KEY).getValue(String.class);
+    }
+
+    /**
+     * @return the lines of the snapshot in key order
+     * @throws DatabaseException if the snapshot is malformed, incomplete or of an unsupported
+     *                           version
+     */
+    public static List<Line> decode(RoomTransport.Snapshot snapshot) {
+        Object version = snapshot.child(KEY_VERSION).getValue();
+        int v = version instanceof Number ? ((Number) version).intValue() : -1;
+        if (v != VERSION && v != VERSION_SINGLE_PART) {
+            throw new DatabaseException("Unsupported room snapshot version " + version);
+        }
+        Object count = snapshot.child(KEY_COUNT).getValue();
+        if (getLastKey(snapshot) == null || !(count instanceof Number)) {
+            throw new DatabaseException("Incomplete room snapshot");
+        }
+
+        List<Line> lines = new ArrayList<>();
+        if (v == VERSION_SINGLE_PART) {
+            decodePart(snapshot.child(KEY_DATA).getValue(String.class), lines);
+        } else {
+            Object partCount = snapshot.child(KEY_PART_COUNT).getValue();
+            if (!(partCount instanceof Number)) {
+                throw new DatabaseException("Incomplete room snapshot");
+            }
+            for (int i = 0; i < ((Number) partCount).intValue(); i++) {
+                decodePart(snapshot.child(KEY_PARTS).child(String.valueOf(i))
+                        .getValue(String.class), lines);
+            }
+        }
+        // parts written by different updates that do not belong together
+        if (lines.size() != ((Number) count).intValue()) {
+            throw new DatabaseException("Incomplete room snapshot");
+        }
+        return lines;
+    }
+
+    private static void decodePart(String data, List<Line> out) {
+        if (data == null) {
+            throw new DatabaseException("Incomplete room snapshot");
+        }
+        byte[] bytes = StrokeCodec.decodeBase64(data);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int count = in.readInt();
+            // every line takes at least 12 bytes, which bounds the count before reading
+            checkLength(count, in.available() / 12);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String creator = in.readUTF();
+                float lineWidth = in.readFloat();
+                int segmentCount = in.readInt();
+                checkLength(segmentCount, in.available() / 4);
+                List<byte[]> segments = new ArrayList<>(segmentCount);
+                for (int j = 0; j < segmentCount; j++) {
+                    int length = in.readInt();
+                    checkLength(length, in.available());
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    segments.add(segment);
+                }
+                out.add(new Line(key, creator.isEmpty() ? null : creator, lineWidth, segments));
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Malformed room snapshot");
+        }
+    }
+
+    private static void checkLength(int length, int remaining) {
+        if (length < 0 || length > remaining) {
+            throw new DatabaseException("Malformed room snapshot");
+        }
+    }
+}
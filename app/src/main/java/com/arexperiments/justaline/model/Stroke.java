@@ -17,16 +17,14 @@ package com.arexperiments.justaline.model;
 import com.arexperiments.justaline.AppSettings;
 import com.arexperiments.justaline.BiquadFilter;
 import com.arexperiments.justaline.rendering.LineUtils;
+import com.arexperiments.justaline.transport.RoomTransport;
 import com.google.ar.core.Pose;
-import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.Exclude;
 import com.google.firebase.database.IgnoreExtraProperties;
 import com.google.firebase.database.PropertyName;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.vecmath.Vector3f;
 
@@ -39,6 +37,18 @@ public class Stroke {
 
     private static final String TAG = "Stroke";
 
+    // A remote stroke is extrapolated for at most this long past its sender's last write
+    private static final long MAX_PREDICTION_NS = 300 * 1000000L;
+
+    // The prediction is retracted over this long once a remote stroke stops changing
+    private static final long RETRACT_NS = 200 * 1000000L;
+
+    // Weight of the newest sample in the drawing speed and the interval between changes
+    private static final float SPEED_WEIGHT = 0.3f;
+
+    // Per frame catch up of the visible length of a remote stroke that is drawn
+    private static final float LIVE_FOLLOW = 0.3f;
+
     @PropertyName("points")
     private ArrayList<Vector3f> points = new ArrayList<>();
 
@@ -63,12 +73,49 @@ public class Stroke {
     @Exclude
     public float totalLength = 0;
 
+    // Bucket of the anchor the points are relative to, 0 is the room anchor or the world origin
+    @Exclude
+    public int bucket = 0;
+
+    /*
+     * Prediction of a remote stroke that is drawn, only used by the thread processing strokes
+     */
+    // Whether the last point is extrapolated and not part of the stroke
+    @Exclude
+    private boolean predicted = false;
+
+    // Drawing speed in meters per second
+    @Exclude
+    private float speed = 0;
+
+    @Exclude
+    private long changeIntervalNanos = 0;
+
+    // System.nanoTime() when the last change was written by the sender and when it was applied
     @Exclude
-    private DatabaseReference firebaseReference;
+    private long lastSentNanos = 0;
+
+    @Exclude
+    private long lastChangeNanos = 0;
+
+    @Exclude
+    private RoomTransport.Node firebaseReference;
 
     @Exclude
     public boolean finished = false;
 
+    // Points before this index are no longer changed by add(), see getStablePointCount()
+    @Exclude
+    private int stablePoints = 0;
+
+    // Incremented whenever points before stablePoints change
+    @Exclude
+    private int revision = 0;
+
+    // Vertices of points from this index on need to be rebuilt, see getDirtyFrom()
+    @Exclude
+    private int dirtyFrom = 0;
+
 
     public Stroke() {
         // Default constructor required for calls to DataSnapshot.getValue(Stroke.class)
@@ -79,6 +126,9 @@ public class Stroke {
     public void add(Vector3f point) {
         int s = points.size();
 
+        // Smoothing below only removes or subdivides from s - 3 on, earlier points are final
+        stablePoints = Math.max(stablePoints, s - 3);
+
         if (s == 0) {
             // Prepare the biquad filter
             biquadFilter = new BiquadFilter(AppSettings.getSmoothing(), 3);
@@ -104,6 +154,8 @@ public class Stroke {
 
         // Add the point
         points.add(point);
+        // changes start at s - 2, which also changes the vertices of its predecessor
+        markDirty(s - 3);
 
         // Cleanup vertices that are redundant
         if (s > 3) {
@@ -141,22 +193,146 @@ public class Stroke {
     public void updateStrokeData(Stroke data) {
         this.points = data.points;
         this.lineWidth = data.lineWidth;
+        revision++;
+        markDirty(0);
 
         calculateTotalLength();
     }
 
+    /**
+     * Sets the points of a stroke read from a file, see {@link StrokeFile}
+     */
+    public void restorePoints(ArrayList<Vector3f> points, boolean finished) {
+        this.points = points;
+        this.finished = finished;
+        stablePoints = points.size();
+        revision++;
+        markDirty(0);
+
+        calculateTotalLength();
+    }
+
+    /**
+     * Update called when a remote stroke changed, replaces the points from delta.from on. Only the
+     * length of the replaced points is recalculated.
+     */
+    public void applyDelta(StrokeDelta delta) {
+        removePrediction();
+        float lengthBefore = totalLength;
+        if (delta.lineWidth != lineWidth) {
+            lineWidth = delta.lineWidth;
+            markDirty(0);
+        }
+
+        int from = Math.min(delta.from, points.size());
+        totalLength -= calculateLength(from);
+        points.subList(from, points.size()).clear();
+        points.addAll(delta.points);
+        totalLength += calculateLength(from);
+        revision++;
+        markDirty(from - 1);
+
+        onChanged(totalLength - lengthBefore, delta);
+    }
+
+    /**
+     * Updates the drawing speed with a change, timed by when its sender wrote it if known, so
+     * that bursts of changes delivered together do not look like fast drawing
+     */
+    private void onChanged(float grown, StrokeDelta delta) {
+        long now = System.nanoTime();
+        long sentNanos = delta.sentNanos != 0 ? delta.sentNanos : now;
+        finished = delta.finished;
+        lastChangeNanos = now;
+        long interval = sentNanos - lastSentNanos;
+        if (lastSentNanos == 0 || interval <= 0) {
+            lastSentNanos = Math.max(lastSentNanos, sentNanos);
+            return;
+        }
+        lastSentNanos = sentNanos;
+
+        float sampleSpeed = Math.max(0, grown) * 1e9f / interval;
+        if (speed == 0 || interval > MAX_PREDICTION_NS) {
+            // the first change, or after a pause
+            speed = sampleSpeed;
+            changeIntervalNanos = interval;
+        } else {
+            speed += (sampleSpeed - speed) * SPEED_WEIGHT;
+            changeIntervalNanos += (long) ((interval - changeIntervalNanos) * SPEED_WEIGHT);
+        }
+    }
+
+    /**
+     * Advances the animation of a remote stroke, called once per frame
+     *
+     * @return true if the stroke needs to be rendered again
+     */
     public boolean update() {
         boolean renderNeedsUpdate = false;
         if (!localLine) {
             float before = animatedLength;
-            animatedLength = animationFilter.update(totalLength);
-            if (Math.abs(animatedLength - before) > 0.001) {
+            boolean wasPredicted = predicted;
+            float predictedLength = updatePrediction(System.nanoTime());
+            if (predictedLength > 0) {
+                // follows the pen closely while the stroke is drawn
+                animatedLength += (totalLength + predictedLength - animatedLength) * LIVE_FOLLOW;
+                animationFilter.reset(animatedLength);
+            } else {
+                animatedLength = animationFilter.update(totalLength);
+            }
+            if (Math.abs(animatedLength - before) > 0.001 || predicted || wasPredicted) {
                 renderNeedsUpdate = true;
             }
         }
         return renderNeedsUpdate;
     }
 
+    /**
+     * Extrapolates a remote stroke that is drawn by one point along its last segment, as far as
+     * it was probably drawn since its sender wrote the last change. When the stroke stops
+     * changing, the point is pulled back to the end of the stroke. Real points replace it as they
+     * arrive, and the visible length is eased so the end does not jump.
+     *
+     * @return the length of the predicted segment, 0 if there is none
+     */
+    private float updatePrediction(long now) {
+        removePrediction();
+        int size = points.size();
+        if (finished || speed <= 0 || lastSentNanos == 0 || size < 2) {
+            return 0;
+        }
+
+        // expected as soon as the next change is due, then pulled back
+        long quiet = now - lastChangeNanos - 2 * changeIntervalNanos;
+        float retract = quiet <= 0 ? 1 : 1 - (float) quiet / RETRACT_NS;
+        long ahead = Math.min(now - lastSentNanos, MAX_PREDICTION_NS);
+        float distance = speed * ahead / 1e9f * retract;
+        if (retract <= 0 || distance < lineWidth / 10) {
+            return 0;
+        }
+
+        Vector3f point = new Vector3f(points.get(size - 1));
+        point.sub(points.get(size - 2));
+        float length = point.length();
+        if (length < 1e-6f) {
+            return 0;
+        }
+        point.scale(distance / length);
+        point.add(points.get(size - 1));
+        points.add(point);
+        predicted = true;
+        markDirty(size - 1);
+        return distance;
+    }
+
+    private void removePrediction() {
+        if (predicted) {
+            points.remove(points.size() - 1);
+            predicted = false;
+            markDirty(points.size() - 1);
+        }
+    }
+
     public void finishStroke() {
         finished = true;
 
@@ -178,10 +354,14 @@ public class Stroke {
                 points.clear();
                 points.add(p1);
                 points.add(p2);
+                stablePoints = 0;
+                revision++;
+                markDirty(0);
             } else if (points.size() == 1) {
                 Vector3f v = new Vector3f(points.get(0));
                 v.y += 0.0005;
                 points.add(v);
+                markDirty(0);
             }
         }
     }
@@ -208,14 +388,29 @@ public class Stroke {
         return n1.angle(n2);
     }
 
+    /**
+     * Shows the whole stroke right away instead of animating it being drawn
+     */
+    public void skipAnimation() {
+        animationFilter.reset(totalLength);
+        animatedLength = totalLength;
+    }
+
     public void calculateTotalLength() {
-        totalLength = 0;
-        for (int i = 1; i < points.size(); i++) {
+        totalLength = calculateLength(0);
+    }
+
+    /**
+     * @return the length of the line from the point before index to the end
+     */
+    private float calculateLength(int index) {
+        float length = 0;
+        for (int i = Math.max(1, index); i < points.size(); i++) {
             Vector3f dist = new Vector3f(points.get(i));
             dist.sub(points.get(i - 1));
-            totalLength += dist.length();
+            length += dist.length();
         }
-
+        return length;
     }
 
     private void subdivideSection(int s, float maxAngle, int iteration) {
@@ -256,6 +451,8 @@ public class Stroke {
             Vector3f p = LineUtils.TransformPointToPose(points.get(i), pose);
             points.set(i, p);
         }
+        revision++;
+        markDirty(0);
     }
 
     public void offsetFromPose(Pose pose) {
@@ -263,6 +460,8 @@ public class Stroke {
             Vector3f p = LineUtils.TransformPointFromPose(points.get(i), pose);
             points.set(i, p);
         }
+        revision++;
+        markDirty(0);
     }
 
     public Vector3f get(int index) {
@@ -273,6 +472,10 @@ public class Stroke {
         return points.size();
     }
 
+    /**
+     * @return the points, the last one may be predicted for a remote stroke that is drawn, see
+     * {@link #update()}
+     */
     @SuppressWarnings("unused")
     public List<Vector3f> getPoints() {
         return points;
@@ -287,48 +490,55 @@ public class Stroke {
         this.lineWidth = lineWidth;
     }
 
-    public void setFirebaseValue(StrokeUpdate strokeUpdate, StrokeUpdate previousStrokeUpdate,
-                                 DatabaseReference.CompletionListener completionListener) {
-//        Stroke copy = new Stroke();
-//        copy.lineWidth = strokeUpdate.stroke.lineWidth;
-//        int numPointsToSend = strokeUpdate.stroke.points.size();
-//        copy.points = strokeUpdate.stroke.points.subList(0, strokeUpdate.stroke.points.size());
-//
-//        copy.creator = strokeUpdate.stroke.creator;
-
-        // if points havent been set, or if creator or lineWidth has changed, force a full update
-        if (previousStrokeUpdate == null
-                || previousStrokeUpdate.stroke.points.size() == 0
-                || !previousStrokeUpdate.stroke.creator.equals(strokeUpdate.stroke.creator)
-                || previousStrokeUpdate.stroke.lineWidth != strokeUpdate.stroke.lineWidth) {
-            firebaseReference.setValue(strokeUpdate.stroke, completionListener);
-        } else {
-            // If only points have updated, calculate the changes since last update, and only upload those points
-            Map<String, Object> pointUpdate = new HashMap<>();
-            int i = 0;
-            for (Vector3f p : strokeUpdate.stroke.points) {
-                // If point exceeds previous strokes length, add it
-                if (previousStrokeUpdate.stroke.points.size() <= i) {
-                    pointUpdate.put(String.valueOf(i), p);
-                } else {
-                    // Check if point equals previous point
-                    Vector3f prev = previousStrokeUpdate.stroke.points.get(i);
-                    if (!p.equals(prev)) {
-                        pointUpdate.put(String.valueOf(i), p);
-                    }
-                }
-                i++;
-            }
+    /**
+     * @return the number of leading points that will not change while the stroke is drawn, unless
+     * {@link #getRevision()} changes
+     */
+    @Exclude
+    public int getStablePointCount() {
+        return Math.min(stablePoints, points.size());
+    }
 
-            firebaseReference.child("points").updateChildren(pointUpdate, completionListener);
-        }
+    @Exclude
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return whether the last point is predicted and not drawn by the sender, see
+     * {@link #update()}
+     */
+    @Exclude
+    public boolean isPredicted() {
+        return predicted;
+    }
+
+    private void markDirty(int index) {
+        dirtyFrom = Math.min(dirtyFrom, Math.max(0, index));
+    }
+
+    /**
+     * @return the index of the first point whose vertices changed since {@link #clearDirty()},
+     * or Integer.MAX_VALUE if none did. A changed point also changes the vertices of its
+     * predecessor, which is included.
+     */
+    @Exclude
+    public int getDirtyFrom() {
+        return dirtyFrom;
+    }
+
+    /**
+     * Called by the renderer once the vertices are rebuilt
+     */
+    public void clearDirty() {
+        dirtyFrom = Integer.MAX_VALUE;
     }
 
     public void removeFirebaseValue() {
         firebaseReference.removeValue();
     }
 
-    public void setFirebaseReference(DatabaseReference firebaseReference) {
+    public void setFirebaseReference(RoomTransport.Node firebaseReference) {
         this.firebaseReference = firebaseReference;
     }
 
@@ -347,6 +557,10 @@ public class Stroke {
         copy.lineWidth = lineWidth;
         copy.firebaseReference = firebaseReference;
         copy.points = new ArrayList<>(points);
+        copy.finished = finished;
+        copy.bucket = bucket;
+        copy.stablePoints = stablePoints;
+        copy.revision = revision;
         return copy;
     }
 }
@@ -0,0 +1,398 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.BuildConfig;
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.google.firebase.database.DatabaseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Compact encoding of a stroke in the realtime database.
+ * <p>
+ * The legacy format stores every point as an object with three named floats under its index.
+ * The compact format is tagged with {@link #KEY_VERSION} and stores the points in chunks of
+ * {@link #POINTS_PER_CHUNK}. Each chunk is a base64 string of varints: the number of points, the
+ * first point and then the difference to the previous point, all quantized to
+ * {@link #QUANTUM} meters and zigzag encoded. Chunks are decoded independently, so a change
+ * only needs the affected chunks to be rewritten.
+ * <pre>
+ * lines/{key}: { v: 2, lineWidth: 0.011, creator: "uid", chunks: { 0: "...", 1: "..." } }
+ * </pre>
+ * While a stroke is drawn it is stored as an append-only log of immutable entries, each holding
+ * the points that became stable since the previous entry, followed by the tail that may still
+ * change. It is compacted into chunks when the stroke is finished.
+ * <pre>
+ * lines/{key}: { v: 2, lineWidth: 0.011, creator: "uid", log: { 0: "...", 1: "..." }, tail: "..." }
+ * </pre>
+ */
+public class StrokeCodec {
+
+    public static final String KEY_VERSION = "v";
+
+    public static final String KEY_CHUNKS = "chunks";
+
+    public static final String KEY_LINE_WIDTH = "lineWidth";
+
+    public static final String KEY_CREATOR = "creator";
+
+    public static final String KEY_LOG = "log";
+
+    public static final String KEY_TAIL = "tail";
+
+    /**
+     * Written as true with a legacy stroke once it is finished. Older clients ignore it.
+     */
+    public static final String KEY_FINISHED = "finished";
+
+    public static final int VERSION_COMPACT = 2;
+
+    public static final int POINTS_PER_CHUNK = 64;
+
+    /**
+     * Quantization step of point coordinates, in meters
+     */
+    public static final float QUANTUM = 0.0001f;
+
+    private static final float INV_QUANTUM = 1f / QUANTUM;
+
+    // Encoding statistics, for comparing against the legacy format
+    private static final AtomicLong sEncodedPoints = new AtomicLong();
+
+    private static final AtomicLong sEncodedBytes = new AtomicLong();
+
+    private static final AtomicLong sLegacyBytes = new AtomicLong();
+
+    private static final AtomicLong sEncodeNanos = new AtomicLong();
+
+    private static final AtomicLong sDecodedPoints = new AtomicLong();
+
+    private static final AtomicLong sDecodeNanos = new AtomicLong();
+
+    private StrokeCodec() {
+    }
+
+    /**
+     * @return the number of chunks needed for the given number of points
+     */
+    public static int chunkCount(int numPoints) {
+        return (numPoints + POINTS_PER_CHUNK - 1) / POINTS_PER_CHUNK;
+    }
+
+    /**
+     * @return the full compact value of a stroke, to be written with setValue()
+     */
+    public static Map<String, Object> toFirebaseValue(Stroke stroke) {
+        Map<String, Object> chunks = new HashMap<>();
+        List<Vector3f> points = stroke.getPoints();
+        int numChunks = chunkCount(points.size());
+        for (int i = 0; i < numChunks; i++) {
+            chunks.put(String.valueOf(i), encodeChunk(points, i));
+        }
+
+        Map<String, Object> value = header(stroke);
+        value.put(KEY_CHUNKS, chunks);
+        return value;
+    }
+
+    /**
+     * @return the value of a stroke that is being drawn, to be written with setValue()
+     */
+    public static Map<String, Object> toLogValue(Stroke stroke, Map<String, Object> log,
+                                                 String tail) {
+        Map<String, Object> value = header(stroke);
+        value.put(KEY_LOG, log);
+        value.put(KEY_TAIL, tail);
+        return value;
+    }
+
+    private static Map<String, Object> header(Stroke stroke) {
+        Map<String, Object> value = new HashMap<>();
+        value.put(KEY_VERSION, VERSION_COMPACT);
+        value.put(KEY_LINE_WIDTH, stroke.getLineWidth());
+        value.put(KEY_CREATOR, stroke.creator);
+        return value;
+    }
+
+    /**
+     * Encodes the points of one chunk
+     *
+     * @param chunk index of the chunk, points [chunk * POINTS_PER_CHUNK, +POINTS_PER_CHUNK)
+     */
+    public static String encodeChunk(List<Vector3f> points, int chunk) {
+        int from = chunk * POINTS_PER_CHUNK;
+        return encodeRange(points, from, Math.min(points.size(), from + POINTS_PER_CHUNK));
+    }
+
+    /**
+     * Encodes points [from, to) into one chunk
+     */
+    public static String encodeRange(List<Vector3f> points, int from, int to) {
+        long start = System.nanoTime();
+
+        int count = to - from;
+
+        // 3 coordinates of at most 5 bytes each
+        byte[] buffer = new byte[5 + count * 15];
+        int offset = writeVarint(buffer, 0, count);
+
+        int lastX = 0;
+        int lastY = 0;
+        int lastZ = 0;
+        for (int i = from; i < to; i++) {
+            Vector3f p = points.get(i);
+            int x = quantize(p.x);
+            int y = quantize(p.y);
+            int z = quantize(p.z);
+            offset = writeVarint(buffer, offset, zigzag(x - lastX));
+            offset = writeVarint(buffer, offset, zigzag(y - lastY));
+            offset = writeVarint(buffer, offset, zigzag(z - lastZ));
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+        }
+
+        String encoded = Base64Codec.encode(buffer, 0, offset);
+
+        sEncodeNanos.addAndGet(System.nanoTime() - start);
+        sEncodedPoints.addAndGet(count);
+        sEncodedBytes.addAndGet(encoded.length());
+        if (BuildConfig.DEBUG) {
+            sLegacyBytes.addAndGet(legacySize(points, from, to));
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes one chunk and appends its points
+     */
+    public static void decodeChunk(String encoded, List<Vector3f> out) {
+        decodeChunk(decodeBase64(encoded), out);
+    }
+
+    /**
+     * @return the bytes of an encoded chunk
+     */
+    public static byte[] decodeBase64(String encoded) {
+        try {
+            return Base64Codec.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseException("Malformed stroke chunk");
+        }
+    }
+
+    /**
+     * Decodes one chunk given as bytes and appends its points
+     */
+    public static void decodeChunk(byte[] buffer, List<Vector3f> out) {
+        long start = System.nanoTime();
+
+        int[] position = new int[1];
+        int count = readVarint(buffer, position);
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        for (int i = 0; i < count; i++) {
+            x += unzigzag(readVarint(buffer, position));
+            y += unzigzag(readVarint(buffer, position));
+            z += unzigzag(readVarint(buffer, position));
+            out.add(new Vector3f(x * QUANTUM, y * QUANTUM, z * QUANTUM));
+        }
+
+        sDecodeNanos.addAndGet(System.nanoTime() - start);
+        sDecodedPoints.addAndGet(count);
+    }
+
+    /**
+     * @return whether the snapshot holds a stroke in the compact format
+     */
+    public static boolean isCompact(RoomTransport.Snapshot snapshot) {
+        // a partial line pushed after a clear only has chunks, log entries or a tail
+        return snapshot.hasChild(KEY_VERSION) || snapshot.hasChild(KEY_CHUNKS)
+                || snapshot.hasChild(KEY_LOG) || snapshot.hasChild(KEY_TAIL);
+    }
+
+    /**
+     * @return whether the snapshot holds a finished stroke: a compacted one with no log, or a
+     * legacy one marked finished. A stroke without points has no chunks, as the database drops
+     * empty nodes. Legacy strokes of older clients never look finished.
+     */
+    public static boolean isFinished(RoomTransport.Snapshot snapshot) {
+        if (!isCompact(snapshot)) {
+            return Boolean.TRUE.equals(snapshot.child(KEY_FINISHED).getValue());
+        }
+        return snapshot.hasChild(KEY_VERSION) && !snapshot.hasChild(KEY_LOG)
+                && !snapshot.hasChild(KEY_TAIL);
+    }
+
+    /**
+     * Reads a stroke in either format.
+     *
+     * @throws DatabaseException if the stroke is incomplete, which happens when lines were cleared
+     *                           while someone was mid-stroke
+     */
+    public static Stroke fromSnapshot(RoomTransport.Snapshot snapshot) {
+        if (!isCompact(snapshot)) {
+            return snapshot.getValue(Stroke.class);
+        }
+
+        Stroke stroke = readHeader(snapshot);
+        for (String segment : readSegments(snapshot)) {
+            decodeChunk(segment, stroke.getPoints());
+        }
+        return stroke;
+    }
+
+    /**
+     * Reads the line width and creator of a compact stroke
+     *
+     * @return a stroke without points
+     * @throws DatabaseException if the stroke is incomplete or of an unsupported version
+     */
+    public static Stroke readHeader(RoomTransport.Snapshot snapshot) {
+        Object version = snapshot.child(KEY_VERSION).getValue();
+        if (version == null) {
+            throw new DatabaseException("Incomplete stroke");
+        }
+        if (!(version instanceof Number) || ((Number) version).intValue() != VERSION_COMPACT) {
+            throw new DatabaseException("Unsupported stroke version " + version);
+        }
+        Object lineWidth = snapshot.child(KEY_LINE_WIDTH).getValue();
+        String creator = snapshot.child(KEY_CREATOR).getValue(String.class);
+        if (!(lineWidth instanceof Number) || creator == null) {
+            throw new DatabaseException("Incomplete stroke");
+        }
+
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(((Number) lineWidth).floatValue());
+        stroke.creator = creator;
+        return stroke;
+    }
+
+    /**
+     * Checks that a stroke in either format is complete without decoding its compact points
+     *
+     * @throws DatabaseException if the stroke is incomplete
+     */
+    public static void checkComplete(RoomTransport.Snapshot snapshot) {
+        if (isCompact(snapshot)) {
+            readHeader(snapshot);
+        } else {
+            snapshot.getValue(Stroke.class);
+        }
+    }
+
+    /**
+     * @return the encoded segments of a compact stroke in point order: its chunks, or its log
+     * entries followed by its tail
+     */
+    public static List<String> readSegments(RoomTransport.Snapshot snapshot) {
+        // Chunk and log keys are integers, which the database returns in numeric order
+        List<String> segments = new ArrayList<>();
+        readChildren(snapshot.child(KEY_CHUNKS), segments);
+        readChildren(snapshot.child(KEY_LOG), segments);
+        String tail = snapshot.child(KEY_TAIL).getValue(String.class);
+        if (tail != null) {
+            segments.add(tail);
+        }
+        return segments;
+    }
+
+    private static void readChildren(RoomTransport.Snapshot parent, List<String> out) {
+        for (RoomTransport.Snapshot chunk : parent.getChildren()) {
+            String encoded = chunk.getValue(String.class);
+            if (encoded != null) {
+                out.add(encoded);
+            }
+        }
+    }
+
+    private static int quantize(float value) {
+        return Math.round(value * INV_QUANTUM);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int readVarint(byte[] buffer, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (shift < 35) {
+            if (position[0] >= buffer.length) {
+                throw new DatabaseException("Truncated stroke chunk");
+            }
+            byte b = buffer[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new DatabaseException("Malformed stroke chunk");
+    }
+
+    /**
+     * @return approximate size of the points in the legacy format, {"i":{"x":..,"y":..,"z":..}}
+     */
+    private static long legacySize(List<Vector3f> points, int from, int to) {
+        long size = 0;
+        for (int i = from; i < to; i++) {
+            Vector3f p = points.get(i);
+            size += 22 + String.valueOf(i).length() + Float.toString(p.x).length()
+                    + Float.toString(p.y).length() + Float.toString(p.z).length();
+        }
+        return size;
+    }
+
+    /**
+     * @return payload size per point of both formats and encode/decode throughput. The legacy size
+     * is only measured in debug builds.
+     */
+    public static String getStatsSummary() {
+        long encodedPoints = sEncodedPoints.get();
+        long decodedPoints = sDecodedPoints.get();
+        float bytesPerPoint = encodedPoints > 0 ? sEncodedBytes.get() / (float) encodedPoints : 0;
+        float legacyPerPoint = encodedPoints > 0 ? sLegacyBytes.get() / (float) encodedPoints : 0;
+        float encodeRate = sEncodeNanos.get() > 0
+                ? encodedPoints * 1000f / sEncodeNanos.get() : 0;
+        float decodeRate = sDecodeNanos.get() > 0
+                ? decodedPoints * 1000f / sDecodeNanos.get() : 0;
+        return String.format(Locale.US,
+                "stroke codec: %.1f B/pt (legacy %.1f) enc %.2f dec %.2f Mpt/s",
+                bytesPerPoint, legacyPerPoint, encodeRate, decodeRate);
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.google.firebase.database.DatabaseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * What has been decoded of one remote stroke, the receiving side of {@link StrokeUploadState}.
+ * <p>
+ * A compact stroke is a sequence of encoded segments, see {@link StrokeCodec#readSegments}. The
+ * segments of the previous snapshot are kept, and a new snapshot is only decoded from the first
+ * segment that differs. While a stroke is drawn that is the new log entries and the tail. Strokes
+ * in the legacy format are decoded completely.
+ * <p>
+ * Only used on the main thread, where the database delivers its events.
+ */
+public class StrokeDecodeState {
+
+    private final List<String> mSegments = new ArrayList<>();
+
+    // Index of the first point of every segment
+    private final List<Integer> mSegmentStarts = new ArrayList<>();
+
+    private int mNumPoints;
+
+    private float mLineWidth;
+
+    /**
+     * Decodes the first snapshot of a stroke
+     *
+     * @throws DatabaseException if the stroke is incomplete
+     */
+    public Stroke decodeStroke(RoomTransport.Snapshot snapshot) {
+        mSegments.clear();
+        mSegmentStarts.clear();
+        mNumPoints = 0;
+
+        if (!StrokeCodec.isCompact(snapshot)) {
+            Stroke stroke = snapshot.getValue(Stroke.class);
+            stroke.finished = StrokeCodec.isFinished(snapshot);
+            mNumPoints = stroke.size();
+            mLineWidth = stroke.getLineWidth();
+            return stroke;
+        }
+
+        Stroke stroke = StrokeCodec.readHeader(snapshot);
+        stroke.finished = StrokeCodec.isFinished(snapshot);
+        mLineWidth = stroke.getLineWidth();
+        appendSegments(StrokeCodec.readSegments(snapshot), 0, stroke.getPoints());
+        return stroke;
+    }
+
+    /**
+     * Decodes what changed since the previous snapshot
+     *
+     * @return the change, or null if the points and line width did not change
+     * @throws DatabaseException if the stroke is incomplete
+     */
+    public StrokeDelta decodeDelta(RoomTransport.Snapshot snapshot) {
+        if (!StrokeCodec.isCompact(snapshot)) {
+            Stroke stroke = decodeStroke(snapshot);
+            StrokeDelta delta = new StrokeDelta(0, stroke.getPoints(), stroke.getLineWidth());
+            delta.finished = stroke.finished;
+            return delta;
+        }
+
+        float lineWidth = StrokeCodec.readHeader(snapshot).getLineWidth();
+        List<String> segments = StrokeCodec.readSegments(snapshot);
+
+        int first = 0;
+        if (lineWidth == mLineWidth) {
+            int common = Math.min(segments.size(), mSegments.size());
+            while (first < common && segments.get(first).equals(mSegments.get(first))) {
+                first++;
+            }
+            if (first == segments.size() && first == mSegments.size()) {
+                return null;
+            }
+        }
+
+        int from = first < mSegmentStarts.size() ? mSegmentStarts.get(first) : mNumPoints;
+        mSegments.subList(first, mSegments.size()).clear();
+        mSegmentStarts.subList(first, mSegmentStarts.size()).clear();
+        mNumPoints = from;
+        mLineWidth = lineWidth;
+
+        List<Vector3f> points = new ArrayList<>();
+        appendSegments(segments.subList(first, segments.size()), from, points);
+        StrokeDelta delta = new StrokeDelta(from, points, lineWidth);
+        delta.finished = StrokeCodec.isFinished(snapshot);
+        return delta;
+    }
+
+    private void appendSegments(List<String> segments, int from, List<Vector3f> out) {
+        for (String segment : segments) {
+            mSegments.add(segment);
+            mSegmentStarts.add(from + out.size());
+            StrokeCodec.decodeChunk(segment, out);
+        }
+        mNumPoints = from + out.size();
+    }
+}
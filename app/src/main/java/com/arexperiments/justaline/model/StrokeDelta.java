@@ -0,0 +1,59 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * A change of a remote stroke: the points from an index on are replaced, see
+ * {@link Stroke#applyDelta(StrokeDelta)}
+ */
+public class StrokeDelta {
+
+    /**
+     * Index of the first replaced point
+     */
+    public final int from;
+
+    /**
+     * The new points from that index on
+     */
+    public final List<Vector3f> points;
+
+    public final float lineWidth;
+
+    /**
+     * Whether the stroke is finished and does not change any more
+     */
+    public boolean finished;
+
+    /**
+     * When the change was received, written and queued by its sender, in System.nanoTime() time
+     * base, 0 if not known
+     */
+    public long receivedNanos;
+
+    public long sentNanos;
+
+    public long originNanos;
+
+    public StrokeDelta(int from, List<Vector3f> points, float lineWidth) {
+        this.from = from;
+        this.points = points;
+        this.lineWidth = lineWidth;
+    }
+}
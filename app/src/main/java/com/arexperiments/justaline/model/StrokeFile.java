@@ -0,0 +1,354 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.google.ar.core.Pose;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Packed binary file of a drawing, read through a memory map.
+ * <p>
+ * The file starts with a fixed header, followed by the pose of every anchor bucket, an index with
+ * one fixed size entry per stroke and the point blocks the entries point at. A block is quantized
+ * to {@link StrokeCodec#QUANTUM} meters around the center of the stroke when it fits in shorts,
+ * or stored as floats otherwise. All values are little endian.
+ * <pre>
+ * header:  magic, version, flags, sequence, stroke count, bucket count,
+ *          file length                                                        (24 bytes)
+ * buckets: tx, ty, tz, qx, qy, qz, qw                                          (28 bytes each)
+ * index:   block offset, point count, line width, bucket, flags               (16 bytes each)
+ * blocks:  center x, y, z, then x, y, z shorts per point, padded to 4 bytes  (quantized)
+ *          x, y, z floats per point                                           (float)
+ * </pre>
+ * Opening a file only checks the header and maps it, strokes are decoded when they are read, so
+ * a drawing can be ingested a few strokes at a time.
+ */
+public class StrokeFile {
+
+    private static final int MAGIC = 0x444c414a; // "JALD"
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+
+    private static final int BUCKET_SIZE = 7 * 4;
+
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    // Flags of an index entry
+    private static final int FLAG_FINISHED = 1;
+
+    private static final int FLAG_QUANTIZED = 2;
+
+    private static final float INV_QUANTUM = 1f / StrokeCodec.QUANTUM;
+
+    // Largest distance from the center of a stroke that can be quantized, in meters
+    private static final float MAX_QUANTIZED_EXTENT = Short.MAX_VALUE * StrokeCodec.QUANTUM;
+
+    /**
+     * Writes the strokes to the file, replacing it atomically.
+     *
+     * @param bucketPoses the pose of every anchor bucket the strokes are relative to, see
+     *                    {@link Stroke#bucket}. Null poses are written as the identity.
+     * @param sequence    number of the file, to match it with a {@link StrokeJournal}
+     * @return the size of the file in bytes
+     */
+    public static int write(File file, List<Stroke> strokes, Pose[] bucketPoses, int sequence)
+            throws IOException {
+        int[] blockSizes = new int[strokes.size()];
+        boolean[] quantized = new boolean[strokes.size()];
+        int size = HEADER_SIZE + bucketPoses.length * BUCKET_SIZE
+                + strokes.size() * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke stroke = strokes.get(i);
+            quantized[i] = fitsQuantized(stroke);
+            blockSizes[i] = blockSize(stroke.size(), quantized[i]);
+            size += blockSizes[i];
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(sequence);
+        buffer.putInt(strokes.size());
+        buffer.putInt(bucketPoses.length);
+        buffer.putInt(size);
+
+        for (Pose pose : bucketPoses) {
+            if (pose == null) {
+                pose = Pose.IDENTITY;
+            }
+            buffer.putFloat(pose.tx()).putFloat(pose.ty()).putFloat(pose.tz());
+            buffer.putFloat(pose.qx()).putFloat(pose.qy()).putFloat(pose.qz())
+                    .putFloat(pose.qw());
+        }
+
+        int offset = buffer.position() + strokes.size() * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke stroke = strokes.get(i);
+            buffer.putInt(offset);
+            buffer.putInt(stroke.size());
+            buffer.putFloat(stroke.getLineWidth());
+            buffer.putShort((short) stroke.bucket);
+            buffer.putShort((short) ((stroke.finished ? FLAG_FINISHED : 0)
+                    | (quantized[i] ? FLAG_QUANTIZED : 0)));
+            offset += blockSizes[i];
+        }
+
+        for (int i = 0; i < strokes.size(); i++) {
+            writeBlock(buffer, strokes.get(i), quantized[i]);
+        }
+        buffer.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        return size;
+    }
+
+    private static int blockSize(int points, boolean quantized) {
+        if (!quantized) {
+            return points * 3 * 4;
+        }
+        return 3 * 4 + ((points * 3 * 2 + 3) & ~3);
+    }
+
+    private static boolean fitsQuantized(Stroke stroke) {
+        float[] bounds = bounds(stroke);
+        for (int axis = 0; axis < 3; axis++) {
+            if ((bounds[axis + 3] - bounds[axis]) / 2 >= MAX_QUANTIZED_EXTENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the minimum x, y, z followed by the maximum x, y, z of the points
+     */
+    private static float[] bounds(Stroke stroke) {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < stroke.size(); i++) {
+            Vector3f point = stroke.get(i);
+            bounds[0] = Math.min(bounds[0], point.x);
+            bounds[1] = Math.min(bounds[1], point.y);
+            bounds[2] = Math.min(bounds[2], point.z);
+            bounds[3] = Math.max(bounds[3], point.x);
+            bounds[4] = Math.max(bounds[4], point.y);
+            bounds[5] = Math.max(bounds[5], point.z);
+        }
+        return bounds;
+    }
+
+    private static void writeBlock(ByteBuffer buffer, Stroke stroke, boolean quantized) {
+        if (!quantized) {
+            for (int i = 0; i < stroke.size(); i++) {
+                Vector3f point = stroke.get(i);
+                buffer.putFloat(point.x).putFloat(point.y).putFloat(point.z);
+            }
+            return;
+        }
+
+        float[] bounds = bounds(stroke);
+        float cx = stroke.size() > 0 ? (bounds[0] + bounds[3]) / 2 : 0;
+        float cy = stroke.size() > 0 ? (bounds[1] + bounds[4]) / 2 : 0;
+        float cz = stroke.size() > 0 ? (bounds[2] + bounds[5]) / 2 : 0;
+        buffer.putFloat(cx).putFloat(cy).putFloat(cz);
+        for (int i = 0; i < stroke.size(); i++) {
+            Vector3f point = stroke.get(i);
+            buffer.putShort(quantize(point.x - cx));
+            buffer.putShort(quantize(point.y - cy));
+            buffer.putShort(quantize(point.z - cz));
+        }
+        while ((buffer.position() & 3) != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Clamps to the range of a short: far from the origin the center of a stroke is rounded, and
+     * a point of a stroke that fits can still be more than MAX_QUANTIZED_EXTENT from it
+     */
+    private static short quantize(float value) {
+        return (short) Math.max(Short.MIN_VALUE,
+                Math.min(Short.MAX_VALUE, Math.round(value * INV_QUANTUM)));
+    }
+
+    /**
+     * Maps a file for reading.
+     *
+     * @throws IOException if it cannot be read, or is not a complete drawing of this version
+     */
+    public static Reader open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(buffer, channel.size());
+        } finally {
+            // the mapping stays valid when the file is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Strokes of a mapped file, decoded when they are read. Not thread safe.
+     */
+    public static class Reader {
+
+        private final ByteBuffer mBuffer;
+
+        private final int mSequence;
+
+        private final int mStrokeCount;
+
+        private final Pose[] mBucketPoses;
+
+        private final int mIndexOffset;
+
+        private Reader(ByteBuffer buffer, long length) throws IOException {
+            mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (length < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a drawing");
+            }
+            if (mBuffer.getShort(4) != VERSION) {
+                throw new IOException("Unsupported drawing version " + mBuffer.getShort(4));
+            }
+            mSequence = mBuffer.getInt(8);
+            mStrokeCount = mBuffer.getInt(12);
+            int bucketCount = mBuffer.getInt(16);
+            if (mBuffer.getInt(20) != length || mStrokeCount < 0 || bucketCount < 0
+                    || HEADER_SIZE + (long) bucketCount * BUCKET_SIZE
+                    + (long) mStrokeCount * INDEX_ENTRY_SIZE > length) {
+                throw new IOException("Truncated drawing");
+            }
+
+            mBucketPoses = new Pose[bucketCount];
+            int position = HEADER_SIZE;
+            for (int i = 0; i < bucketCount; i++) {
+                float[] translation = new float[3];
+                float[] rotation = new float[4];
+                for (int j = 0; j < 3; j++) {
+                    translation[j] = mBuffer.getFloat(position + j * 4);
+                }
+                for (int j = 0; j < 4; j++) {
+                    rotation[j] = mBuffer.getFloat(position + 12 + j * 4);
+                }
+                boolean identity = translation[0] == 0 && translation[1] == 0
+                        && translation[2] == 0 && rotation[0] == 0 && rotation[1] == 0
+                        && rotation[2] == 0 && rotation[3] == 1;
+                mBucketPoses[i] = identity ? Pose.IDENTITY : new Pose(translation, rotation);
+                position += BUCKET_SIZE;
+            }
+            mIndexOffset = position;
+        }
+
+        public int getSequence() {
+            return mSequence;
+        }
+
+        public int getStrokeCount() {
+            return mStrokeCount;
+        }
+
+        public int getPointCount(int index) {
+            return mBuffer.getInt(entry(index) + 4);
+        }
+
+        /**
+         * @return the pose of the anchor the stroke was relative to when it was written,
+         * {@link Pose#IDENTITY} itself if it was the world origin
+         */
+        public Pose getBucketPose(int index) {
+            int bucket = mBuffer.getShort(entry(index) + 12);
+            return bucket < mBucketPoses.length ? mBucketPoses[bucket] : Pose.IDENTITY;
+        }
+
+        /**
+         * Decodes a stroke. Its points are relative to {@link #getBucketPose(int)}, its bucket is
+         * left at 0 for the caller to assign.
+         */
+        public Stroke read(int index) throws IOException {
+            int entry = entry(index);
+            int offset = mBuffer.getInt(entry);
+            int count = mBuffer.getInt(entry + 4);
+            int flags = mBuffer.getShort(entry + 14);
+            boolean quantized = (flags & FLAG_QUANTIZED) != 0;
+            if (count < 0 || offset < 0 || offset + (long) blockSize(count, quantized)
+                    > mBuffer.capacity()) {
+                throw new IOException("Stroke " + index + " is out of bounds");
+            }
+
+            ArrayList<Vector3f> points = new ArrayList<>(count);
+            if (quantized) {
+                float cx = mBuffer.getFloat(offset);
+                float cy = mBuffer.getFloat(offset + 4);
+                float cz = mBuffer.getFloat(offset + 8);
+                int position = offset + 12;
+                for (int i = 0; i < count; i++) {
+                    points.add(new Vector3f(
+                            cx + mBuffer.getShort(position) * StrokeCodec.QUANTUM,
+                            cy + mBuffer.getShort(position + 2) * StrokeCodec.QUANTUM,
+                            cz + mBuffer.getShort(position + 4) * StrokeCodec.QUANTUM));
+                    position += 6;
+                }
+            } else {
+                int position = offset;
+                for (int i = 0; i < count; i++) {
+                    points.add(new Vector3f(mBuffer.getFloat(position),
+                            mBuffer.getFloat(position + 4), mBuffer.getFloat(position + 8)));
+                    position += 12;
+                }
+            }
+
+            Stroke stroke = new Stroke();
+            stroke.setLineWidth(mBuffer.getFloat(entry + 8));
+            stroke.restorePoints(points, (flags & FLAG_FINISHED) != 0);
+            return stroke;
+        }
+
+        private int entry(int index) {
+            if (index < 0 || index >= mStrokeCount) {
+                throw new IndexOutOfBoundsException("Stroke " + index + " of " + mStrokeCount);
+            }
+            return mIndexOffset + index * INDEX_ENTRY_SIZE;
+        }
+    }
+}
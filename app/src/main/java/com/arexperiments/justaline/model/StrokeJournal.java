@@ -0,0 +1,353 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.google.ar.core.Pose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Append-only journal of the operations on the local strokes since the last checkpoint, a
+ * {@link StrokeFile} with the same sequence number.
+ * <p>
+ * Every operation applies to the end of the drawing, so a journal can be replayed on top of its
+ * checkpoint without stroke ids: a new stroke is appended, points replace the end of the last
+ * stroke, undo removes the last stroke and clear removes all of them. The journal starts with a
+ * header, followed by records that are checked with a CRC, so that a record torn by a crash ends
+ * the replay. All values are little endian.
+ * <pre>
+ * header: magic, version, flags, sequence                       (12 bytes)
+ * record: payload length, crc32 of the payload, payload
+ *         new:    type, line width
+ *         pose:   type, tx, ty, tz, qx, qy, qz, qw              the anchor of the last stroke
+ *         points: type, from, count, x, y, z floats per point   replace the points from `from` on
+ *         finish: type
+ *         undo:   type
+ *         clear:  type
+ * </pre>
+ */
+public class StrokeJournal {
+
+    private static final int MAGIC = 0x4a4c414a; // "JALJ"
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 12;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_NEW = 1;
+
+    private static final byte TYPE_POSE = 2;
+
+    private static final byte TYPE_POINTS = 3;
+
+    private static final byte TYPE_FINISH = 4;
+
+    private static final byte TYPE_UNDO = 5;
+
+    private static final byte TYPE_CLEAR = 6;
+
+    public static byte[] header(int sequence) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(sequence);
+        return buffer.array();
+    }
+
+    public static byte[] newStroke(float lineWidth) {
+        ByteBuffer buffer = record(TYPE_NEW, 4);
+        buffer.putFloat(lineWidth);
+        return seal(buffer);
+    }
+
+    public static byte[] pose(Pose pose) {
+        ByteBuffer buffer = record(TYPE_POSE, 7 * 4);
+        buffer.putFloat(pose.tx()).putFloat(pose.ty()).putFloat(pose.tz());
+        buffer.putFloat(pose.qx()).putFloat(pose.qy()).putFloat(pose.qz()).putFloat(pose.qw());
+        return seal(buffer);
+    }
+
+    /**
+     * @return a record that replaces the points of the last stroke from {@code from} on with
+     * the points of the stroke from the same index on
+     */
+    public static byte[] points(Stroke stroke, int from) {
+        int count = stroke.size() - from;
+        ByteBuffer buffer = record(TYPE_POINTS, 8 + count * 3 * 4);
+        buffer.putInt(from);
+        buffer.putInt(count);
+        for (int i = from; i < stroke.size(); i++) {
+            Vector3f point = stroke.get(i);
+            buffer.putFloat(point.x).putFloat(point.y).putFloat(point.z);
+        }
+        return seal(buffer);
+    }
+
+    public static byte[] finish() {
+        return seal(record(TYPE_FINISH, 0));
+    }
+
+    public static byte[] undo() {
+        return seal(record(TYPE_UNDO, 0));
+    }
+
+    public static byte[] clear() {
+        return seal(record(TYPE_CLEAR, 0));
+    }
+
+    private static ByteBuffer record(byte type, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 1 + length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(RECORD_HEADER_SIZE);
+        buffer.put(type);
+        return buffer;
+    }
+
+    private static byte[] seal(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, RECORD_HEADER_SIZE, bytes.length - RECORD_HEADER_SIZE);
+        buffer.putInt(0, bytes.length - RECORD_HEADER_SIZE);
+        buffer.putInt(4, (int) crc.getValue());
+        return bytes;
+    }
+
+    /**
+     * Replays a journal on top of its checkpoint.
+     *
+     * @param checkpoint the checkpoint, null if there is none, which is sequence 0 and empty
+     * @return the drawing, or null if the journal is missing, unreadable or does not follow the
+     * checkpoint
+     */
+    public static Replay replay(File file, StrokeFile.Reader checkpoint) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+
+        int sequence = checkpoint != null ? checkpoint.getSequence() : 0;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getShort(4) != VERSION || buffer.getInt(8) != sequence) {
+            return null;
+        }
+
+        Replay replay = new Replay(checkpoint);
+        int position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE < buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < 1 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)
+                    || !replay.apply(ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN))) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            replay.mRecords++;
+        }
+        replay.mValidLength = position;
+        return replay;
+    }
+
+    /**
+     * A drawing recovered from a checkpoint and the journal after it: the strokes of the
+     * checkpoint that were not undone or cleared, followed by the strokes drawn since. The
+     * strokes of the checkpoint are decoded when they are read.
+     */
+    public static class Replay {
+
+        private final StrokeFile.Reader mCheckpoint;
+
+        // Leading strokes of the checkpoint that are part of the drawing
+        private int mCheckpointStrokes;
+
+        private final List<ArrayList<Vector3f>> mPoints = new ArrayList<>();
+
+        private final List<Float> mLineWidths = new ArrayList<>();
+
+        private final List<Pose> mPoses = new ArrayList<>();
+
+        private final List<Boolean> mFinished = new ArrayList<>();
+
+        private int mRecords;
+
+        private long mValidLength;
+
+        private Replay(StrokeFile.Reader checkpoint) {
+            mCheckpoint = checkpoint;
+            mCheckpointStrokes = checkpoint != null ? checkpoint.getStrokeCount() : 0;
+        }
+
+        /**
+         * @return false if the record is invalid
+         */
+        private boolean apply(ByteBuffer record) throws IOException {
+            int last = mPoints.size() - 1;
+            switch (record.get()) {
+                case TYPE_NEW:
+                    mPoints.add(new ArrayList<Vector3f>());
+                    mLineWidths.add(record.getFloat());
+                    mPoses.add(Pose.IDENTITY);
+                    mFinished.add(false);
+                    return true;
+                case TYPE_POSE:
+                    if (!takeLastFromCheckpoint()) {
+                        return false;
+                    }
+                    float[] translation = {record.getFloat(), record.getFloat(),
+                            record.getFloat()};
+                    float[] rotation = {record.getFloat(), record.getFloat(), record.getFloat(),
+                            record.getFloat()};
+                    mPoses.set(mPoses.size() - 1, new Pose(translation, rotation));
+                    return true;
+                case TYPE_POINTS:
+                    if (!takeLastFromCheckpoint()) {
+                        return false;
+                    }
+                    ArrayList<Vector3f> points = mPoints.get(mPoints.size() - 1);
+                    int from = record.getInt();
+                    int count = record.getInt();
+                    if (from < 0 || from > points.size() || count < 0
+                            || count * 3 * 4 != record.remaining()) {
+                        return false;
+                    }
+                    points.subList(from, points.size()).clear();
+                    for (int i = 0; i < count; i++) {
+                        points.add(new Vector3f(record.getFloat(), record.getFloat(),
+                                record.getFloat()));
+                    }
+                    return true;
+                case TYPE_FINISH:
+                    if (last >= 0) {
+                        mFinished.set(last, true);
+                    }
+                    return true;
+                case TYPE_UNDO:
+                    if (last >= 0) {
+                        mPoints.remove(last);
+                        mLineWidths.remove(last);
+                        mPoses.remove(last);
+                        mFinished.remove(last);
+                    } else if (mCheckpointStrokes > 0) {
+                        mCheckpointStrokes--;
+                    }
+                    return true;
+                case TYPE_CLEAR:
+                    mPoints.clear();
+                    mLineWidths.clear();
+                    mPoses.clear();
+                    mFinished.clear();
+                    mCheckpointStrokes = 0;
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Makes sure the last stroke is one of the journal, decoding it from the checkpoint if
+         * it was still drawn when the checkpoint was written
+         *
+         * @return false if there are no strokes
+         */
+        private boolean takeLastFromCheckpoint() throws IOException {
+            if (!mPoints.isEmpty()) {
+                return true;
+            }
+            if (mCheckpointStrokes == 0) {
+                return false;
+            }
+            mCheckpointStrokes--;
+            Stroke stroke = mCheckpoint.read(mCheckpointStrokes);
+            mPoints.add(new ArrayList<>(stroke.getPoints()));
+            mLineWidths.add(stroke.getLineWidth());
+            mPoses.add(mCheckpoint.getBucketPose(mCheckpointStrokes));
+            mFinished.add(stroke.finished);
+            return true;
+        }
+
+        public int getStrokeCount() {
+            return mCheckpointStrokes + mPoints.size();
+        }
+
+        /**
+         * Decodes a stroke. Its points are relative to {@link #getBucketPose(int)}, its bucket is
+         * left at 0 for the caller to assign.
+         */
+        public Stroke read(int index) throws IOException {
+            if (index < mCheckpointStrokes) {
+                return mCheckpoint.read(index);
+            }
+            index -= mCheckpointStrokes;
+            Stroke stroke = new Stroke();
+            stroke.setLineWidth(mLineWidths.get(index));
+            stroke.restorePoints(new ArrayList<>(mPoints.get(index)), mFinished.get(index));
+            return stroke;
+        }
+
+        /**
+         * @return the pose of the anchor the stroke was relative to when it was written,
+         * {@link Pose#IDENTITY} itself if it was the world origin or is unknown
+         */
+        public Pose getBucketPose(int index) {
+            if (index < mCheckpointStrokes) {
+                return mCheckpoint.getBucketPose(index);
+            }
+            return mPoses.get(index - mCheckpointStrokes);
+        }
+
+        /**
+         * @return the number of records replayed
+         */
+        public int getRecordCount() {
+            return mRecords;
+        }
+
+        /**
+         * @return the length of the journal up to the end of the last valid record, where new
+         * records are to be appended
+         */
+        public long getValidLength() {
+            return mValidLength;
+        }
+    }
+}
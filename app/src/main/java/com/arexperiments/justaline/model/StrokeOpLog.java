@@ -0,0 +1,267 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Replica of the lines of a room, with undo and clear as operations that merge in any order.
+ * <p>
+ * A line is identified by its push key, which grows with time for each creator. Adding a line
+ * is writing it. Removing one and clearing are appended to the operation log of the room:
+ * <pre>
+ * ops/{key}: { type: "remove", line: "..." }
+ * ops/{key}: { type: "clear", seen: { "uid": "last line key seen from uid", ... } }
+ * </pre>
+ * A clear removes the lines its writer had seen: per creator the lines up to the last one seen
+ * from them. A line started while someone else clears is therefore kept everywhere instead of
+ * being cut off, and with spatial interest only the lines near the writer are cleared. The
+ * effect of the operations is a union of removed keys and a maximum per creator, so replicas
+ * that applied the same operations agree on the lines, whatever the order, and a replica only
+ * needs the operations after the last one it applied.
+ * <p>
+ * The merged effect is folded into the room snapshot together with the key of the last
+ * operation applied, see {@link #toSnapshotValue()}. Joining replicas merge it and only listen
+ * for the operations after that key, and the operations it covers can be deleted from the log.
+ * <pre>
+ * snapshot/ops: { lastKey: "...", removed: { "line key": true, ... }, cleared: { "uid": "..." } }
+ * </pre>
+ * Not thread safe.
+ */
+public class StrokeOpLog {
+
+    public static final String KEY_TYPE = "type";
+
+    public static final String KEY_LINE = "line";
+
+    public static final String KEY_SEEN = "seen";
+
+    public static final String TYPE_REMOVE = "remove";
+
+    public static final String TYPE_CLEAR = "clear";
+
+    public static final String KEY_LAST_OP = "lastKey";
+
+    public static final String KEY_REMOVED = "removed";
+
+    public static final String KEY_CLEARED = "cleared";
+
+    // Merged effect of the operations
+    private final Set<String> mRemovedLines = new HashSet<>();
+
+    // Per creator, the largest key of the lines cleared
+    private final Map<String, String> mClearedUpTo = new HashMap<>();
+
+    private String mLastOpKey;
+
+    // Keys of the operations applied, until they are deleted from the log
+    private final TreeSet<String> mOpKeys = new TreeSet<>();
+
+    // Lines known to this replica, key to creator
+    private final Map<String, String> mLines = new HashMap<>();
+
+    // Per creator, the largest line key seen
+    private final Map<String, String> mSeen = new HashMap<>();
+
+    public static Map<String, Object> removeOp(String lineKey) {
+        Map<String, Object> op = new HashMap<>();
+        op.put(KEY_TYPE, TYPE_REMOVE);
+        op.put(KEY_LINE, lineKey);
+        return op;
+    }
+
+    /**
+     * @param opKey      the key the operation is written at
+     * @param creatorUid the writer, whose lines are all older than the operation
+     */
+    public Map<String, Object> clearOp(String opKey, String creatorUid) {
+        Map<String, Object> seen = new HashMap<String, Object>(mSeen);
+        seen.put(creatorUid, opKey);
+        Map<String, Object> op = new HashMap<>();
+        op.put(KEY_TYPE, TYPE_CLEAR);
+        op.put(KEY_SEEN, seen);
+        return op;
+    }
+
+    /**
+     * Applies an operation, applying one twice has no further effect
+     *
+     * @return the keys of the known lines the operation removed
+     */
+    public List<String> apply(String opKey, RoomTransport.Snapshot op) {
+        updateLastOpKey(opKey);
+        mOpKeys.add(opKey);
+
+        String type = op.child(KEY_TYPE).getValue(String.class);
+        List<String> removed = new ArrayList<>();
+        if (TYPE_REMOVE.equals(type)) {
+            String line = op.child(KEY_LINE).getValue(String.class);
+            if (line != null && mRemovedLines.add(line) && mLines.remove(line) != null) {
+                removed.add(line);
+            }
+        } else if (TYPE_CLEAR.equals(type)) {
+            applyClear(op.child(KEY_SEEN));
+            removeCleared(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Merges the effect of the operations folded into a room snapshot
+     *
+     * @return the keys of the known lines the operations removed
+     */
+    public List<String> applySnapshot(RoomTransport.Snapshot ops) {
+        List<String> removed = new ArrayList<>();
+        String lastOpKey = ops.child(KEY_LAST_OP).getValue(String.class);
+        if (lastOpKey == null) {
+            return removed;
+        }
+        updateLastOpKey(lastOpKey);
+        for (RoomTransport.Snapshot line : ops.child(KEY_REMOVED).getChildren()) {
+            if (mRemovedLines.add(line.getKey()) && mLines.remove(line.getKey()) != null) {
+                removed.add(line.getKey());
+            }
+        }
+        applyClear(ops.child(KEY_CLEARED));
+        removeCleared(removed);
+        return removed;
+    }
+
+    /**
+     * @return the merged effect of the operations applied, to be folded into the room
+     * snapshot, or null if none was
+     */
+    public Map<String, Object> toSnapshotValue() {
+        if (mLastOpKey == null) {
+            return null;
+        }
+        Map<String, Object> removed = new HashMap<>();
+        for (String line : mRemovedLines) {
+            removed.put(line, true);
+        }
+        Map<String, Object> value = new HashMap<>();
+        value.put(KEY_LAST_OP, mLastOpKey);
+        value.put(KEY_REMOVED, removed);
+        value.put(KEY_CLEARED, new HashMap<String, Object>(mClearedUpTo));
+        return value;
+    }
+
+    private void updateLastOpKey(String opKey) {
+        if (mLastOpKey == null || opKey.compareTo(mLastOpKey) > 0) {
+            mLastOpKey = opKey;
+        }
+    }
+
+    private void removeCleared(List<String> removed) {
+        Iterator<Map.Entry<String, String>> it = mLines.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> line = it.next();
+            if (isCleared(line.getKey(), line.getValue())) {
+                removed.add(line.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps the clear bound of every creator the maximum over the clears
+     */
+    private void applyClear(RoomTransport.Snapshot seen) {
+        for (RoomTransport.Snapshot creator : seen.getChildren()) {
+            String lineKey = creator.getValue(String.class);
+            String current = mClearedUpTo.get(creator.getKey());
+            if (lineKey != null && (current == null || lineKey.compareTo(current) > 0)) {
+                mClearedUpTo.put(creator.getKey(), lineKey);
+            }
+        }
+    }
+
+    /**
+     * Adds a line seen in the room
+     *
+     * @return false if the operations removed it
+     */
+    public boolean addLine(String key, String creator) {
+        if (!mSeen.containsKey(creator) || key.compareTo(mSeen.get(creator)) > 0) {
+            mSeen.put(creator, key);
+        }
+        if (isRemoved(key, creator)) {
+            return false;
+        }
+        mLines.put(key, creator);
+        return true;
+    }
+
+    /**
+     * Forgets a line whose node was deleted
+     */
+    public void removeLine(String key) {
+        mLines.remove(key);
+    }
+
+    public boolean isRemoved(String key, String creator) {
+        return mRemovedLines.contains(key) || isCleared(key, creator);
+    }
+
+    private boolean isCleared(String key, String creator) {
+        String bound = mClearedUpTo.get(creator);
+        return bound != null && key.compareTo(bound) <= 0;
+    }
+
+    /**
+     * @return the keys of the lines known to this replica
+     */
+    public Set<String> getLineKeys() {
+        return mLines.keySet();
+    }
+
+    /**
+     * @return the key of the last operation applied, or null if none was
+     */
+    public String getLastOpKey() {
+        return mLastOpKey;
+    }
+
+    /**
+     * Takes the keys of the applied operations up to a key, for deleting them from the log once
+     * a snapshot covers them
+     */
+    public List<String> takeOpKeysUpTo(String opKey) {
+        SortedSet<String> keys = mOpKeys.headSet(opKey, true);
+        List<String> taken = new ArrayList<>(keys);
+        keys.clear();
+        return taken;
+    }
+
+    public void clear() {
+        mRemovedLines.clear();
+        mClearedUpTo.clear();
+        mLastOpKey = null;
+        mOpKeys.clear();
+        mLines.clear();
+        mSeen.clear();
+    }
+}
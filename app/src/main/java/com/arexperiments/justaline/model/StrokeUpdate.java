@@ -14,17 +14,86 @@
 
 package com.arexperiments.justaline.model;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by Kat on 4/19/18.
+ * A pending write of one stroke. It holds the already encoded values, never a copy of the points,
+ * see {@link StrokeUploadState}.
  */
 
 public class StrokeUpdate {
 
+    /**
+     * The live stroke, only used for its database reference
+     */
     public Stroke stroke;
+
     public boolean remove;
 
+    /**
+     * Whether values replace the whole stroke node, otherwise they are child paths to update
+     */
+    public boolean replace;
+
+    public Map<String, Object> values;
+
+    /**
+     * SystemClock.uptimeMillis() when the first of the merged updates was queued
+     */
+    public long queuedAt;
+
+    /**
+     * Failed writes of this update, carried over when the stroke is queued again
+     */
+    public int failures;
+
     public StrokeUpdate(Stroke stroke, boolean remove) {
-        this.stroke = stroke.copy();
+        this.stroke = stroke;
         this.remove = remove;
     }
+
+    StrokeUpdate(Stroke stroke, boolean replace, Map<String, Object> values) {
+        this.stroke = stroke;
+        this.replace = replace;
+        this.values = values;
+    }
+
+    /**
+     * Folds a later update of the same stroke into this one, so that writing the result has the
+     * same effect as writing both in order
+     */
+    public void merge(StrokeUpdate later) {
+        failures = Math.max(failures, later.failures);
+        if (remove) {
+            return;
+        }
+        if (later.remove || later.replace) {
+            remove = later.remove;
+            replace = later.replace;
+            values = later.values;
+        } else if (replace) {
+            for (Map.Entry<String, Object> entry : later.values.entrySet()) {
+                putPath(values, entry.getKey(), entry.getValue());
+            }
+        } else {
+            values.putAll(later.values);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putPath(Map<String, Object> root, String path, Object value) {
+        String[] keys = path.split("/");
+        Map<String, Object> node = root;
+        for (int i = 0; i < keys.length - 1; i++) {
+            Object child = node.get(keys[i]);
+            if (!(child instanceof Map)) {
+                child = new HashMap<String, Object>();
+                node.put(keys[i], child);
+            }
+            node = (Map<String, Object>) child;
+        }
+        node.put(keys[keys.length - 1], value);
+    }
 }
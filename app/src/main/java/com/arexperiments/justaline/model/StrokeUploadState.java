@@ -0,0 +1,224 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.AppSettings;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * What has been written of one local stroke: a watermark of the points that will not change any
+ * more, and a copy of the points after it.
+ * <p>
+ * Updates are created from the live stroke on the thread that modifies it. Only points from the
+ * watermark on are encoded, so an update costs the number of new points instead of the length of
+ * the stroke, and an update is skipped only when the stroke equals what was written. The database
+ * client applies the writes of a stroke in order, so the watermark advances as soon as an update
+ * is created. If a write fails the state is reset and the next update rewrites the whole stroke.
+ */
+public class StrokeUploadState {
+
+    private static final String KEY_POINTS = "points";
+
+    private final boolean mCompact;
+
+    private boolean mValid;
+
+    private int mRevision;
+
+    private float mLineWidth;
+
+    private String mCreator;
+
+    private boolean mFinished;
+
+    // Points before this index have been written and are stable
+    private int mStablePoints;
+
+    private int mLogEntries;
+
+    private int mPointCount;
+
+    // x, y, z of the points from mStablePoints to mPointCount
+    private float[] mTail = new float[0];
+
+    public StrokeUploadState() {
+        this(AppSettings.useCompactStrokeEncoding());
+    }
+
+    /**
+     * @param compact whether to write the compact format of {@link StrokeCodec}
+     */
+    StrokeUploadState(boolean compact) {
+        mCompact = compact;
+    }
+
+    /**
+     * @return the update for everything that changed since the previous one, or null if nothing
+     * changed
+     */
+    public StrokeUpdate createUpdate(Stroke stroke) {
+        if (mValid && isUnchanged(stroke)) {
+            return null;
+        }
+
+        boolean restart = !mValid
+                || mFinished
+                || mRevision != stroke.getRevision()
+                || !mCreator.equals(stroke.creator)
+                || mLineWidth != stroke.getLineWidth()
+                || mStablePoints > stroke.getStablePointCount();
+
+        StrokeUpdate update = mCompact
+                ? createCompactUpdate(stroke, restart)
+                : createLegacyUpdate(stroke, restart);
+
+        mValid = true;
+        mRevision = stroke.getRevision();
+        mLineWidth = stroke.getLineWidth();
+        mCreator = stroke.creator;
+        mFinished = stroke.finished;
+        mStablePoints = stroke.getStablePointCount();
+        mPointCount = stroke.size();
+        copyTail(stroke.getPoints());
+        return update;
+    }
+
+    /**
+     * Forces the next update to rewrite the whole stroke
+     */
+    public void reset() {
+        mValid = false;
+        mStablePoints = 0;
+        mLogEntries = 0;
+    }
+
+    /**
+     * While the stroke is drawn the stable points are appended to a log and the tail is
+     * overwritten. A finished stroke is compacted into chunks, see {@link StrokeCodec}.
+     */
+    private StrokeUpdate createCompactUpdate(Stroke stroke, boolean restart) {
+        List<Vector3f> points = stroke.getPoints();
+        int stable = stroke.getStablePointCount();
+
+        if (stroke.finished) {
+            // Replaces the log and tail
+            mLogEntries = 0;
+            return new StrokeUpdate(stroke, true, StrokeCodec.toFirebaseValue(stroke));
+        }
+
+        String tail = StrokeCodec.encodeRange(points, stable, points.size());
+        if (restart) {
+            Map<String, Object> log = new HashMap<>();
+            mLogEntries = appendLogEntries(log, "", points, 0, stable, 0);
+            return new StrokeUpdate(stroke, true, StrokeCodec.toLogValue(stroke, log, tail));
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        mLogEntries = appendLogEntries(values, StrokeCodec.KEY_LOG + "/", points, mStablePoints,
+                stable, mLogEntries);
+        values.put(StrokeCodec.KEY_TAIL, tail);
+        return new StrokeUpdate(stroke, false, values);
+    }
+
+    /**
+     * Writes every point under its index. Points are never moved in place, so the values can
+     * reference them until the update is written. A finished stroke is marked with
+     * {@link StrokeCodec#KEY_FINISHED}.
+     */
+    private StrokeUpdate createLegacyUpdate(Stroke stroke, boolean restart) {
+        List<Vector3f> points = stroke.getPoints();
+
+        if (restart) {
+            Map<String, Object> pointValues = new HashMap<>();
+            for (int i = 0; i < points.size(); i++) {
+                pointValues.put(String.valueOf(i), points.get(i));
+            }
+            Map<String, Object> values = new HashMap<>();
+            values.put(KEY_POINTS, pointValues);
+            values.put(StrokeCodec.KEY_LINE_WIDTH, stroke.getLineWidth());
+            values.put(StrokeCodec.KEY_CREATOR, stroke.creator);
+            if (stroke.finished) {
+                values.put(StrokeCodec.KEY_FINISHED, true);
+            }
+            return new StrokeUpdate(stroke, true, values);
+        }
+
+        // The point count does not shrink within a revision, so there is nothing to remove
+        Map<String, Object> values = new HashMap<>();
+        for (int i = mStablePoints; i < points.size(); i++) {
+            values.put(KEY_POINTS + "/" + i, points.get(i));
+        }
+        if (stroke.finished) {
+            values.put(StrokeCodec.KEY_FINISHED, true);
+        }
+        return new StrokeUpdate(stroke, false, values);
+    }
+
+    /**
+     * Encodes points [from, to) as log entries of at most POINTS_PER_CHUNK points
+     *
+     * @return the number of log entries after appending
+     */
+    private static int appendLogEntries(Map<String, Object> out, String keyPrefix,
+                                        List<Vector3f> points, int from, int to, int entries) {
+        for (int i = from; i < to; i += StrokeCodec.POINTS_PER_CHUNK) {
+            int end = Math.min(to, i + StrokeCodec.POINTS_PER_CHUNK);
+            out.put(keyPrefix + entries, StrokeCodec.encodeRange(points, i, end));
+            entries++;
+        }
+        return entries;
+    }
+
+    /**
+     * Compares everything that may change without moving the watermark: the header, the stable
+     * point count and the points after it
+     */
+    private boolean isUnchanged(Stroke stroke) {
+        List<Vector3f> points = stroke.getPoints();
+        if (mRevision != stroke.getRevision()
+                || mFinished != stroke.finished
+                || mLineWidth != stroke.getLineWidth()
+                || !mCreator.equals(stroke.creator)
+                || mStablePoints != stroke.getStablePointCount()
+                || mPointCount != points.size()) {
+            return false;
+        }
+        for (int i = mStablePoints, j = 0; i < mPointCount; i++, j += 3) {
+            Vector3f p = points.get(i);
+            if (p.x != mTail[j] || p.y != mTail[j + 1] || p.z != mTail[j + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyTail(List<Vector3f> points) {
+        int length = (mPointCount - mStablePoints) * 3;
+        if (mTail.length < length) {
+            mTail = new float[length];
+        }
+        for (int i = mStablePoints, j = 0; i < mPointCount; i++, j += 3) {
+            Vector3f p = points.get(i);
+            mTail[j] = p.x;
+            mTail[j + 1] = p.y;
+            mTail[j + 2] = p.z;
+        }
+    }
+}
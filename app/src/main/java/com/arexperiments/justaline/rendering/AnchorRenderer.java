@@ -118,6 +118,14 @@ public class AnchorRenderer {
 
     private int mProgram;
 
+    private int mPositionHandle;
+
+    private int mColorHandle;
+
+    private int mMVPMatrixHandle;
+
+    private int mAttribMask;
+
     private FloatBuffer mVertexBuffer;
     private FloatBuffer mColor1Buffer;
     private FloatBuffer mColor2Buffer;
@@ -161,6 +169,11 @@ public class AnchorRenderer {
         GLES20.glDeleteShader(vertexShader);
         GLES20.glDeleteShader(fragmentShader);
 
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+        mColorHandle = GLES20.glGetAttribLocation(mProgram, "vColor");
+        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mAttribMask = GlStateTracker.attribMask(mPositionHandle, mColorHandle);
+
         // Initialize vertex byte buffer for shape coordinates
         mVertexBuffer = allocateFloatBuffer(VERTICES);
 
@@ -184,24 +197,20 @@ public class AnchorRenderer {
         Matrix.scaleM(mModelViewProjectionMatrix, 0, 0.005f, 0.005f, 0.005f);
 
         if (mProgram != 0) {
-            // Add program to OpenGL environment
-            GLES20.glUseProgram(mProgram);
-
-            // Get handle to vertex shader's vPosition member
-            int mPositionHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
+            GlStateTracker glState = GlStateTracker.get();
 
-            // Enable a handle to the triangle vertices
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
+            // Add program to OpenGL environment
+            glState.useProgram(mProgram);
 
-            // Get handle to fragment shader's vColor member
-            int mColor = GLES20.glGetAttribLocation(mProgram, "vColor");
+            glState.setDepthTest(true);
+            glState.setDepthMask(true);
+            glState.setBlend(false);
 
-            // Enable a handle to the color vertices
-            GLES20.glEnableVertexAttribArray(mColor);
+            // Enable the triangle vertices and colors
+            glState.setVertexAttribArrays(mAttribMask);
 
-            // Get handle to shape's transformation matrix
-            int mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-            checkGlError("glGetUniformLocation");
+            // The cube is drawn from client side arrays
+            glState.bindArrayBuffer(0);
 
             // Apply the projection and view transformation
             GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mModelViewProjectionMatrix, 0);
@@ -216,12 +225,12 @@ public class AnchorRenderer {
             // Prepare the color data
             if (changeColor) {
                 GLES20.glVertexAttribPointer(
-                        mColor, COORDS_PER_COLORS,
+                        mColorHandle, COORDS_PER_COLORS,
                         GLES20.GL_FLOAT, false,
                         COLORS_STRIDE, mColor2Buffer);
             } else {
                 GLES20.glVertexAttribPointer(
-                        mColor, COORDS_PER_COLORS,
+                        mColorHandle, COORDS_PER_COLORS,
                         GLES20.GL_FLOAT, false,
                         COLORS_STRIDE, mColor1Buffer);
             }
@@ -230,11 +239,6 @@ public class AnchorRenderer {
             GLES20.glDrawElements(
                     GLES20.GL_TRIANGLES, INDICES.length,
                     GLES20.GL_UNSIGNED_SHORT, mIndexBuffer);
-
-            // Disable vertex array
-            GLES20.glDisableVertexAttribArray(mPositionHandle);
-            // Disable color array
-            GLES20.glDisableVertexAttribArray(mColor);
         } else {
             Log.i(TAG, "Bummer");
         }
@@ -59,6 +59,8 @@ public class BackgroundRenderer {
 
     private int mTextureId = -1;
 
+    private int mAttribMask;
+
     public BackgroundRenderer() {
     }
 
@@ -117,12 +119,13 @@ public class BackgroundRenderer {
         GLES20.glAttachShader(mQuadProgram, vertexShader);
         GLES20.glAttachShader(mQuadProgram, fragmentShader);
         GLES20.glLinkProgram(mQuadProgram);
-        GLES20.glUseProgram(mQuadProgram);
+        GlStateTracker.get().useProgram(mQuadProgram);
 
         ShaderUtil.checkGLError(TAG, "Program creation");
 
         mQuadPositionParam = GLES20.glGetAttribLocation(mQuadProgram, "a_Position");
         mQuadTexCoordParam = GLES20.glGetAttribLocation(mQuadProgram, "a_TexCoord");
+        mAttribMask = GlStateTracker.attribMask(mQuadPositionParam, mQuadTexCoordParam);
 
         ShaderUtil.checkGLError(TAG, "Program parameters");
     }
@@ -145,14 +148,20 @@ public class BackgroundRenderer {
         // changed as well.
         frame.transformDisplayUvCoords(mQuadTexCoord, mQuadTexCoordTransformed);
 
+        GlStateTracker glState = GlStateTracker.get();
+
         // No need to test or write depth, the screen quad has arbitrary depth, and is expected
         // to be drawn first.
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        GLES20.glDepthMask(false);
+        glState.setDepthTest(false);
+        glState.setDepthMask(false);
+
+        glState.activeTexture(GLES20.GL_TEXTURE0);
+        glState.bindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
 
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+        glState.useProgram(mQuadProgram);
 
-        GLES20.glUseProgram(mQuadProgram);
+        // The quad is drawn from client side arrays
+        glState.bindArrayBuffer(0);
 
         // Set the vertex positions.
         GLES20.glVertexAttribPointer(
@@ -163,19 +172,10 @@ public class BackgroundRenderer {
                 GLES20.GL_FLOAT, false, 0, mQuadTexCoordTransformed);
 
         // Enable vertex arrays
-        GLES20.glEnableVertexAttribArray(mQuadPositionParam);
-        GLES20.glEnableVertexAttribArray(mQuadTexCoordParam);
+        glState.setVertexAttribArrays(mAttribMask);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        // Disable vertex arrays
-        GLES20.glDisableVertexAttribArray(mQuadPositionParam);
-        GLES20.glDisableVertexAttribArray(mQuadTexCoordParam);
-
-        // Restore the depth state for further drawing.
-        GLES20.glDepthMask(true);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-
         ShaderUtil.checkGLError(TAG, "Draw");
     }
 
@@ -550,6 +550,8 @@ public class DebugMeshShaderRenderer extends LineShaderRenderer {
 
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
+        // This renderer bypasses the state tracker
+        GlStateTracker.get().invalidate();
     }
 
     /**
@@ -0,0 +1,314 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * Shadow copy of the GL state the renderers touch, used to skip redundant state changes.
+ * <p>
+ * Renderers declare the state they need at the start of their draw call instead of restoring
+ * what they changed afterwards, and only the calls that actually change something reach the
+ * driver. Texture bindings are forgotten at the start of every frame because ARCore binds the
+ * camera texture on this context when it updates it in {@code Session.update()}.
+ * <p>
+ * All methods must be called on the GL thread.
+ */
+public class GlStateTracker {
+
+    private static final int UNKNOWN = -1;
+
+    // GL ES 2.0 guarantees at least 8 vertex attributes
+    private static final int MIN_VERTEX_ATTRIBS = 8;
+
+    // The enabled arrays are tracked as bits of an int
+    private static final int MAX_TRACKED_VERTEX_ATTRIBS = Integer.SIZE;
+
+    private static final int MAX_TEXTURE_UNITS = 8;
+
+    private static final int CAP_DEPTH_TEST = 0;
+
+    private static final int CAP_BLEND = 1;
+
+    private static final int CAP_CULL_FACE = 2;
+
+    private static final int NUM_CAPS = 3;
+
+    private static final int TARGET_TEXTURE_2D = 0;
+
+    private static final int TARGET_TEXTURE_EXTERNAL = 1;
+
+    private static GlStateTracker instance = null;
+
+    private final int[] mCaps = new int[NUM_CAPS];
+
+    private int mDepthMask;
+
+    private int mBlendSrc;
+
+    private int mBlendDst;
+
+    private int mProgram;
+
+    private int mActiveTexture;
+
+    private final int[][] mBoundTextures = new int[MAX_TEXTURE_UNITS][2];
+
+    private int mArrayBuffer;
+
+    private int mVertexAttribCount = MIN_VERTEX_ATTRIBS;
+
+    private boolean mVertexAttribsKnown;
+
+    private int mEnabledVertexAttribs;
+
+    private int mIssuedCalls;
+
+    private int mSkippedCalls;
+
+    private int mLastFrameIssuedCalls;
+
+    private int mLastFrameSkippedCalls;
+
+    public static GlStateTracker get() {
+        if (instance == null) {
+            instance = new GlStateTracker();
+        }
+        return instance;
+    }
+
+    private GlStateTracker() {
+        invalidate();
+    }
+
+    /**
+     * Queries the limits of a new GL context and forgets all cached state. Must be called
+     * whenever the GL context is (re)created.
+     */
+    public void onContextCreated() {
+        int[] maxVertexAttribs = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_ATTRIBS, maxVertexAttribs, 0);
+        mVertexAttribCount = Math.min(Math.max(maxVertexAttribs[0], MIN_VERTEX_ATTRIBS),
+                MAX_TRACKED_VERTEX_ATTRIBS);
+        invalidate();
+    }
+
+    /**
+     * Forgets all cached state, the next request for every piece of state is issued to GL.
+     */
+    public void invalidate() {
+        for (int i = 0; i < NUM_CAPS; i++) {
+            mCaps[i] = UNKNOWN;
+        }
+        mDepthMask = UNKNOWN;
+        mBlendSrc = UNKNOWN;
+        mBlendDst = UNKNOWN;
+        mProgram = UNKNOWN;
+        mActiveTexture = UNKNOWN;
+        for (int[] unit : mBoundTextures) {
+            unit[TARGET_TEXTURE_2D] = UNKNOWN;
+            unit[TARGET_TEXTURE_EXTERNAL] = UNKNOWN;
+        }
+        mArrayBuffer = UNKNOWN;
+        mVertexAttribsKnown = false;
+        mEnabledVertexAttribs = 0;
+    }
+
+    /**
+     * Starts a new frame. Rolls the call counters over and forgets the texture bindings. Must be
+     * called after {@code Session.update()}.
+     */
+    public void beginFrame() {
+        mLastFrameIssuedCalls = mIssuedCalls;
+        mLastFrameSkippedCalls = mSkippedCalls;
+        mIssuedCalls = 0;
+        mSkippedCalls = 0;
+
+        mActiveTexture = UNKNOWN;
+        for (int[] unit : mBoundTextures) {
+            unit[TARGET_TEXTURE_2D] = UNKNOWN;
+            unit[TARGET_TEXTURE_EXTERNAL] = UNKNOWN;
+        }
+    }
+
+    /**
+     * @return number of state changes sent to GL during the last complete frame
+     */
+    public int getIssuedCalls() {
+        return mLastFrameIssuedCalls;
+    }
+
+    /**
+     * @return number of redundant state changes skipped during the last complete frame
+     */
+    public int getSkippedCalls() {
+        return mLastFrameSkippedCalls;
+    }
+
+    public void setDepthTest(boolean enabled) {
+        setCapability(CAP_DEPTH_TEST, GLES20.GL_DEPTH_TEST, enabled);
+    }
+
+    public void setBlend(boolean enabled) {
+        setCapability(CAP_BLEND, GLES20.GL_BLEND, enabled);
+    }
+
+    public void setCullFace(boolean enabled) {
+        setCapability(CAP_CULL_FACE, GLES20.GL_CULL_FACE, enabled);
+    }
+
+    private void setCapability(int index, int cap, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        if (mCaps[index] == value) {
+            mSkippedCalls++;
+            return;
+        }
+        mCaps[index] = value;
+        mIssuedCalls++;
+        if (enabled) {
+            GLES20.glEnable(cap);
+        } else {
+            GLES20.glDisable(cap);
+        }
+    }
+
+    public void setDepthMask(boolean enabled) {
+        int value = enabled ? 1 : 0;
+        if (mDepthMask == value) {
+            mSkippedCalls++;
+            return;
+        }
+        mDepthMask = value;
+        mIssuedCalls++;
+        GLES20.glDepthMask(enabled);
+    }
+
+    public void setBlendFunc(int src, int dst) {
+        if (mBlendSrc == src && mBlendDst == dst) {
+            mSkippedCalls++;
+            return;
+        }
+        mBlendSrc = src;
+        mBlendDst = dst;
+        mIssuedCalls++;
+        GLES20.glBlendFunc(src, dst);
+    }
+
+    public void useProgram(int program) {
+        if (mProgram == program) {
+            mSkippedCalls++;
+            return;
+        }
+        mProgram = program;
+        mIssuedCalls++;
+        GLES20.glUseProgram(program);
+    }
+
+    public void activeTexture(int unit) {
+        if (mActiveTexture == unit) {
+            mSkippedCalls++;
+            return;
+        }
+        mActiveTexture = unit;
+        mIssuedCalls++;
+        GLES20.glActiveTexture(unit);
+    }
+
+    /**
+     * Binds a texture to the active texture unit. GL_TEXTURE_2D and GL_TEXTURE_EXTERNAL_OES
+     * bindings are tracked, other targets are always issued.
+     */
+    public void bindTexture(int target, int texture) {
+        int unitIndex = mActiveTexture == UNKNOWN ? UNKNOWN : mActiveTexture - GLES20.GL_TEXTURE0;
+        int targetIndex;
+        if (target == GLES20.GL_TEXTURE_2D) {
+            targetIndex = TARGET_TEXTURE_2D;
+        } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+            targetIndex = TARGET_TEXTURE_EXTERNAL;
+        } else {
+            targetIndex = UNKNOWN;
+        }
+
+        if (unitIndex < 0 || unitIndex >= MAX_TEXTURE_UNITS || targetIndex == UNKNOWN) {
+            mIssuedCalls++;
+            GLES20.glBindTexture(target, texture);
+            return;
+        }
+
+        if (mBoundTextures[unitIndex][targetIndex] == texture) {
+            mSkippedCalls++;
+            return;
+        }
+        mBoundTextures[unitIndex][targetIndex] = texture;
+        mIssuedCalls++;
+        GLES20.glBindTexture(target, texture);
+    }
+
+    public void bindArrayBuffer(int buffer) {
+        if (mArrayBuffer == buffer) {
+            mSkippedCalls++;
+            return;
+        }
+        mArrayBuffer = buffer;
+        mIssuedCalls++;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+    }
+
+    /**
+     * Enables exactly the vertex attribute arrays in the given mask and disables all others, so
+     * arrays left enabled by a previous renderer never leak into the next draw call.
+     *
+     * @param mask a mask built with {@link #attribMask(int...)}, bits past the number of vertex
+     *             attributes of the context are ignored
+     */
+    public void setVertexAttribArrays(int mask) {
+        if (mVertexAttribCount < MAX_TRACKED_VERTEX_ATTRIBS) {
+            mask &= (1 << mVertexAttribCount) - 1;
+        }
+        for (int i = 0; i < mVertexAttribCount; i++) {
+            int bit = 1 << i;
+            boolean enabled = (mask & bit) != 0;
+            if (mVertexAttribsKnown && ((mEnabledVertexAttribs & bit) != 0) == enabled) {
+                if (enabled) {
+                    mSkippedCalls++;
+                }
+                continue;
+            }
+            mIssuedCalls++;
+            if (enabled) {
+                GLES20.glEnableVertexAttribArray(i);
+            } else {
+                GLES20.glDisableVertexAttribArray(i);
+            }
+        }
+        mEnabledVertexAttribs = mask;
+        mVertexAttribsKnown = true;
+    }
+
+    /**
+     * Builds a vertex attribute mask from attribute locations. Locations that are not found in the
+     * program (-1) are ignored.
+     */
+    public static int attribMask(int... locations) {
+        int mask = 0;
+        for (int location : locations) {
+            if (location >= 0 && location < MAX_TRACKED_VERTEX_ATTRIBS) {
+                mask |= 1 << location;
+            }
+        }
+        return mask;
+    }
+}
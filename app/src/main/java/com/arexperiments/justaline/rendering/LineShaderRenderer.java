@@ -31,6 +31,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -51,7 +53,9 @@ public class LineShaderRenderer {
 
     public float[] mModelMatrix = new float[16];
     private float[] mModelViewMatrix = new float[16];
-    private float[] mModelViewProjectionMatrix = new float[16];
+
+    // Model matrix of every stroke bucket, see Stroke#bucket, null for buckets that are not drawn
+    private float[][] mModelMatrices = {mModelMatrix};
 
     private int mPositionAttribute = 0;
     private int mPreviousAttribute = 0;
@@ -93,16 +97,31 @@ public class LineShaderRenderer {
 
     private int mNumBytes = 0;
 
+    // First vertex and vertex count of every stroke bucket, as built by updateStrokes() and as
+    // currently in the VBO. updateStrokes() may already be building the next geometry on another
+    // thread
+    private int[] mBucketFirst = new int[0];
+    private int[] mBucketCount = new int[0];
+    private int[] mUploadedBucketFirst = new int[0];
+    private int[] mUploadedBucketCount = new int[0];
+
     private int mVbo = 0;
     private int mVboSize = 0;
 
     private int mProgramName = 0;
+    private int mAttribMask = 0;
     private float mLineWidth = 0;
 
     private Vector3f mColor;
 
     public AtomicBoolean bNeedsUpdate = new AtomicBoolean();
 
+    // Where every stroke was written by the previous updateStrokes()
+    private Map<Stroke, LineSlot> mLineSlots = new IdentityHashMap<>();
+
+    // Incremented when the float arrays are reallocated, which invalidates all line slots
+    private int mArrayGeneration = 0;
+
     private float mLineDepthScale = 1.0f;
 
     public float mDrawDistance;
@@ -122,13 +141,14 @@ public class LineShaderRenderer {
     public void createOnGlThread(Context context) throws IOException {
         ShaderUtil.checkGLError(TAG, "before create");
 
+        GlStateTracker glState = GlStateTracker.get();
+
         int buffers[] = new int[1];
         GLES20.glGenBuffers(1, buffers, 0);
         mVbo = buffers[0];
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
+        glState.bindArrayBuffer(mVbo);
         mVboSize = 0;
         GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVboSize, null, GLES20.GL_DYNAMIC_DRAW);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
 
         ShaderUtil.checkGLError(TAG, "buffer alloc");
@@ -152,7 +172,8 @@ public class LineShaderRenderer {
          *
          *
          * The Renderer batches all of the geometry into a single VBO.  This allows us to have a single
-         * draw call to render the geometry.  We also optimize the application to only re-upload the
+         * draw call per anchor bucket to render the geometry, the strokes of a bucket are next to
+         * each other in the VBO.  We also optimize the application to only re-upload the
          * geometry data when a new stroke or new points are added to the drawing. The renderer uses
          * a technique detailed in the following link to create degenerate faces between the strokes
          * to disconnect them from one another.
@@ -170,7 +191,7 @@ public class LineShaderRenderer {
         GLES20.glAttachShader(mProgramName, vertexShader);
         GLES20.glAttachShader(mProgramName, fragmentShader);
         GLES20.glLinkProgram(mProgramName);
-        GLES20.glUseProgram(mProgramName);
+        glState.useProgram(mProgramName);
 
         ShaderUtil.checkGLError(TAG, "program");
 
@@ -185,6 +206,9 @@ public class LineShaderRenderer {
         mLengthsAttribute = GLES20.glGetAttribLocation(mProgramName, "length");
         mEndCapsAttribute = GLES20.glGetAttribLocation(mProgramName, "endCaps");
 
+        mAttribMask = GlStateTracker.attribMask(mPositionAttribute, mPreviousAttribute,
+                mNextAttribute, mSideAttribute, mWidthAttribute, mLengthsAttribute,
+                mEndCapsAttribute);
 
         mProjectionUniform = GLES20.glGetUniformLocation(mProgramName, "projectionMatrix");
         mModelViewUniform = GLES20.glGetUniformLocation(mProgramName, "modelViewMatrix");
@@ -269,6 +293,15 @@ public class LineShaderRenderer {
     }
 
 
+    /**
+     * Sets the model matrix of every stroke bucket, by {@link Stroke#bucket}. The strokes of
+     * buckets without a matrix, or whose matrix is null, are not drawn. The arrays are read by
+     * draw() and must not change until the next call.
+     */
+    public void setModelMatrices(float[][] modelMatrices) {
+        mModelMatrices = modelMatrices;
+    }
+
     /**
      * This sets a feature in the vertex shader to scale the line width based on the distance away
      * from the current view.
@@ -281,34 +314,64 @@ public class LineShaderRenderer {
 
     /**
      * This updates the geometry data to be rendered. It ensures the capacity of the float arrays
-     * and then calls updateLine to generate the geometry.
+     * and then calls updateLine to generate the geometry. Does not call into GL, the geometry is
+     * sent to the VBO by upload().
      *
      * @param strokes a ArrayList of ArrayLists of Vector3fs in world space.  The outer ArrayList
      *                contains the strokes, while the inner ArrayList contains the Vertex of each Line
      */
     public void updateStrokes(List<Stroke> strokes, Map<String, Stroke> sharedStrokes) {
+        // cleared before reading the strokes so changes made while building are not lost
+        bNeedsUpdate.set(false);
         mNumPoints = 0;
+        int buckets = 1;
 
         for (Stroke l : strokes) {
             mNumPoints += l.size() * 2 + 2;
+            buckets = Math.max(buckets, l.bucket + 1);
         }
 
         for (Stroke l : sharedStrokes.values()) {
             mNumPoints += l.size() * 2 + 2;
+            buckets = Math.max(buckets, l.bucket + 1);
         }
 
         ensureCapacity(mNumPoints);
 
-        int offset = 0;
+        // the strokes of a bucket are written next to each other, to draw them with its matrix
+        int[] first = new int[buckets];
+        int[] count = new int[buckets];
+        for (Stroke l : strokes) {
+            count[l.bucket] += vertexCount(l);
+        }
+        for (Stroke l : sharedStrokes.values()) {
+            count[l.bucket] += vertexCount(l);
+        }
+        for (int i = 1; i < buckets; i++) {
+            first[i] = first[i - 1] + count[i - 1];
+        }
+
+        int[] offsets = first.clone();
+        Map<Stroke, LineSlot> lineSlots = new IdentityHashMap<>();
 
         for (Stroke l : strokes) {
-            offset = addLine(l, offset);
+            offsets[l.bucket] = addLine(l, offsets[l.bucket], lineSlots);
         }
 
         for (Stroke l : sharedStrokes.values()) {
-            offset = addLine(l, offset);
+            offsets[l.bucket] = addLine(l, offsets[l.bucket], lineSlots);
         }
-        mNumBytes = offset;
+        mNumBytes = first[buckets - 1] + count[buckets - 1];
+        mBucketFirst = first;
+        mBucketCount = count;
+        mLineSlots = lineSlots;
+    }
+
+    /**
+     * @return the number of vertices addLine() writes for the line
+     */
+    private static int vertexCount(Stroke line) {
+        return line == null || line.size() < 2 ? 0 : line.size() * 2 + 2;
     }
 
     /**
@@ -329,6 +392,7 @@ public class LineShaderRenderer {
 
         if (mSide == null || mSide.length < count) {
             Log.i(TAG, "alloc " + count);
+            mArrayGeneration++;
             mPositions = new float[count * 3];
             mNext = new float[count * 3];
             mPrevious = new float[count * 3];
@@ -344,8 +408,11 @@ public class LineShaderRenderer {
     /**
      * AddLine takes in the 3D positions adds to the buffers to create the stroke and the degenerate
      * faces needed so the lines render properly.
+     * <p>
+     * If the line is written at the same offset as in the previous update, only the vertices from
+     * its dirty point on are rebuilt, see {@link Stroke#getDirtyFrom()}.
      */
-    private int addLine(Stroke line, int offset) {
+    private int addLine(Stroke line, int offset, Map<Stroke, LineSlot> lineSlots) {
         if (line == null || line.size() < 2)
             return offset;
 
@@ -364,7 +431,24 @@ public class LineShaderRenderer {
             totalLength = line.animatedLength;
         }
 
-        for (int i = 0; i < lineSize; i++) {
+        int from = 0;
+        LineSlot slot = mLineSlots.get(line);
+        if (slot != null && slot.offset == offset && slot.generation == mArrayGeneration) {
+            from = Math.min(line.getDirtyFrom(), lineSize);
+            if (from > 0) {
+                // vertex 0 is the start cap, then two vertices per point
+                ii = offset + 1 + 2 * from;
+                length = mLengths[ii - 2];
+                if (slot.endCap != totalLength) {
+                    int end = from == lineSize ? offset + lineSize * 2 + 2 : ii;
+                    Arrays.fill(mEndCaps, offset, end, totalLength);
+                }
+            }
+        }
+        line.clearDirty();
+        lineSlots.put(line, new LineSlot(offset, mArrayGeneration, totalLength));
+
+        for (int i = from; i < lineSize; i++) {
 
             int iGood = i;
             if (iGood >= lineSize) iGood = lineSize - 1;
@@ -406,7 +490,26 @@ public class LineShaderRenderer {
 
 
         }
-        return ii;
+        return offset + lineSize * 2 + 2;
+    }
+
+    /**
+     * Position of a line in the float arrays
+     */
+    private static class LineSlot {
+
+        final int offset;
+
+        final int generation;
+
+        // total length written to every vertex of the line
+        final float endCap;
+
+        LineSlot(int offset, int generation, float endCap) {
+            this.offset = offset;
+            this.generation = generation;
+            this.endCap = endCap;
+        }
     }
 
     /**
@@ -444,8 +547,6 @@ public class LineShaderRenderer {
      * correct locations with the correct offsets so the Vertex and Fragment shader can render the lines
      */
     public void upload() {
-        bNeedsUpdate.set(false);
-
         FloatBuffer current = toFloatBuffer(mPositions);
         FloatBuffer next = toFloatBuffer(mNext);
         FloatBuffer previous = toFloatBuffer(mPrevious);
@@ -469,7 +570,7 @@ public class LineShaderRenderer {
 
         ShaderUtil.checkGLError(TAG, "before update");
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
+        GlStateTracker.get().bindArrayBuffer(mVbo);
 
         GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVboSize, null, GLES20.GL_DYNAMIC_DRAW);
 
@@ -488,8 +589,8 @@ public class LineShaderRenderer {
         GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mEndCapsAddress, mNumBytes * BYTES_PER_FLOAT,
                 endCaps);
 
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mUploadedBucketFirst = mBucketFirst;
+        mUploadedBucketCount = mBucketCount;
 
         ShaderUtil.checkGLError(TAG, "after update");
     }
@@ -499,32 +600,31 @@ public class LineShaderRenderer {
      * This method takes in the current CameraView Matrix and the Camera's Projection Matrix, the
      * current position and pose of the device, uses those to calculate the ModelViewMatrix and
      * ModelViewProjectionMatrix.  It binds the VBO, enables the custom attribute locations,
-     * binds and uploads the shader uniforms, calls our single DrawArray call, and finally disables
-     * and unbinds the shader attributes and VBO.
+     * binds and uploads the shader uniforms and calls one DrawArray per stroke bucket, with the
+     * model matrix of the bucket. GL state is set through the {@link GlStateTracker} and is not
+     * restored afterwards.
      */
     public void draw(float[] cameraView, float[] cameraPerspective, float screenWidth, float screenHeight, float nearClip, float farClip) {
 
-
-        Matrix.multiplyMM(mModelViewMatrix, 0, cameraView, 0, mModelMatrix, 0);
-        Matrix.multiplyMM(mModelViewProjectionMatrix, 0, cameraPerspective, 0, mModelViewMatrix, 0);
-
         ShaderUtil.checkGLError(TAG, "Before draw");
 
-        GLES20.glUseProgram(mProgramName);
+        GlStateTracker glState = GlStateTracker.get();
+
+        glState.useProgram(mProgramName);
 
 
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        glState.setDepthTest(false);
 
         // Blending setup
-        GLES20.glEnable(GLES20.GL_BLEND);
+        glState.setBlend(true);
 //        GLES20.glBlendFuncSeparate(
 //                GLES20.GL_SRC_ALPHA, GLES20.GL_DST_ALPHA, // RGB (src, dest)
 //                GLES20.GL_ZERO, GLES20.GL_ONE); // ALPHA (src, dest)
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        glState.setBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
         // Attach the texture.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        glState.activeTexture(GLES20.GL_TEXTURE0);
+        glState.bindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
 
 //        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
 //        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[1]);
@@ -532,7 +632,7 @@ public class LineShaderRenderer {
 //        GLES20.glUniform1i(mTextureUniform, 0);
         GLES20.glUniform1i(mEndCapTextureUniform, 0);
 //
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
+        glState.bindArrayBuffer(mVbo);
         GLES20.glVertexAttribPointer(
                 mPositionAttribute, FLOATS_PER_POINT, GLES20.GL_FLOAT, false, BYTES_PER_POINT, mPositionAddress);
         GLES20.glVertexAttribPointer(
@@ -549,8 +649,6 @@ public class LineShaderRenderer {
                 mEndCapsAttribute, 1, GLES20.GL_FLOAT, false, BYTES_PER_FLOAT, mEndCapsAddress);
 //
 
-        GLES20.glUniformMatrix4fv(
-                mModelViewUniform, 1, false, mModelViewMatrix, 0);
         GLES20.glUniformMatrix4fv(
                 mProjectionUniform, 1, false, cameraPerspective, 0);
 
@@ -561,35 +659,19 @@ public class LineShaderRenderer {
         GLES20.glUniform1f(mLineDepthScaleUniform, mLineDepthScale);
         GLES20.glUniform1f(mDrawingDistUniform, mDrawDistance);
 
-        GLES20.glEnableVertexAttribArray(mPositionAttribute);
-        GLES20.glEnableVertexAttribArray(mPreviousAttribute);
-        GLES20.glEnableVertexAttribArray(mNextAttribute);
-        GLES20.glEnableVertexAttribArray(mSideAttribute);
-        GLES20.glEnableVertexAttribArray(mWidthAttribute);
-        GLES20.glEnableVertexAttribArray(mLengthsAttribute);
-        GLES20.glEnableVertexAttribArray(mEndCapsAttribute);
-
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, mNumBytes);
-
-        GLES20.glDisableVertexAttribArray(mEndCapsAttribute);
-        GLES20.glDisableVertexAttribArray(mLengthsAttribute);
-        GLES20.glDisableVertexAttribArray(mWidthAttribute);
-        GLES20.glDisableVertexAttribArray(mSideAttribute);
-        GLES20.glDisableVertexAttribArray(mNextAttribute);
-        GLES20.glDisableVertexAttribArray(mPreviousAttribute);
-        GLES20.glDisableVertexAttribArray(mPositionAttribute);
-
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        glState.setVertexAttribArrays(mAttribMask);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-//        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-//        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-//        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-
-        GLES20.glDisable(GLES20.GL_BLEND);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        float[][] modelMatrices = mModelMatrices;
+        for (int i = 0; i < mUploadedBucketCount.length; i++) {
+            float[] modelMatrix = i < modelMatrices.length ? modelMatrices[i] : null;
+            if (mUploadedBucketCount[i] == 0 || modelMatrix == null) {
+                continue;
+            }
+            Matrix.multiplyMM(mModelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
+            GLES20.glUniformMatrix4fv(mModelViewUniform, 1, false, mModelViewMatrix, 0);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, mUploadedBucketFirst[i],
+                    mUploadedBucketCount[i]);
+        }
 
     }
 
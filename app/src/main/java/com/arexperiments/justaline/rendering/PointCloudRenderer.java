@@ -44,6 +44,7 @@ public class PointCloudRenderer {
     private int modelViewProjectionUniform;
     private int colorUniform;
     private int pointSizeUniform;
+    private int attribMask;
 
     private int numPoints = 0;
 
@@ -66,11 +67,10 @@ public class PointCloudRenderer {
         int[] buffers = new int[1];
         GLES20.glGenBuffers(1, buffers, 0);
         vbo = buffers[0];
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        GlStateTracker.get().bindArrayBuffer(vbo);
 
         vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
         GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         ShaderUtil.checkGLError(TAG, "buffer alloc");
 
@@ -84,7 +84,7 @@ public class PointCloudRenderer {
         GLES20.glAttachShader(programName, vertexShader);
         GLES20.glAttachShader(programName, passthroughShader);
         GLES20.glLinkProgram(programName);
-        GLES20.glUseProgram(programName);
+        GlStateTracker.get().useProgram(programName);
 
         ShaderUtil.checkGLError(TAG, "program");
 
@@ -92,6 +92,7 @@ public class PointCloudRenderer {
         colorUniform = GLES20.glGetUniformLocation(programName, "u_Color");
         modelViewProjectionUniform = GLES20.glGetUniformLocation(programName, "u_ModelViewProjection");
         pointSizeUniform = GLES20.glGetUniformLocation(programName, "u_PointSize");
+        attribMask = GlStateTracker.attribMask(positionAttribute);
 
         ShaderUtil.checkGLError(TAG, "program  params");
     }
@@ -108,7 +109,7 @@ public class PointCloudRenderer {
 
         ShaderUtil.checkGLError(TAG, "before update");
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        GlStateTracker.get().bindArrayBuffer(vbo);
         lastPointCloud = cloud;
 
         // If the VBO is not large enough to fit the new point cloud, resize it.
@@ -121,7 +122,6 @@ public class PointCloudRenderer {
         }
         GLES20.glBufferSubData(
                 GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, lastPointCloud.getPoints());
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         ShaderUtil.checkGLError(TAG, "after update");
     }
@@ -139,9 +139,13 @@ public class PointCloudRenderer {
         Matrix.multiplyMM(modelViewProjection, 0, cameraPerspective, 0, cameraView, 0);
 
         ShaderUtil.checkGLError(TAG, "Before draw");
-        GLES20.glUseProgram(programName);
-        GLES20.glEnableVertexAttribArray(positionAttribute);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        GlStateTracker glState = GlStateTracker.get();
+        glState.useProgram(programName);
+        glState.setDepthTest(true);
+        glState.setDepthMask(true);
+        glState.setBlend(false);
+        glState.setVertexAttribArrays(attribMask);
+        glState.bindArrayBuffer(vbo);
         GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
 //    GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
         GLES20.glUniform4f(colorUniform, 1.0f, 1.0f, 1.0f, 1.0f);
@@ -149,8 +153,6 @@ public class PointCloudRenderer {
         GLES20.glUniform1f(pointSizeUniform, 8.0f);
 
         GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-        GLES20.glDisableVertexAttribArray(positionAttribute);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         ShaderUtil.checkGLError(TAG, "Draw");
     }
@@ -0,0 +1,269 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An ordered list of render passes executed once per frame.
+ * <p>
+ * Each pass declares the depth and blend state it draws with, which is applied through the
+ * {@link GlStateTracker} before the pass runs, and can report that it has nothing to do this frame
+ * so it is skipped. The CPU time of every executed pass is recorded, and when the
+ * GL_EXT_disjoint_timer_query extension is available so is its GPU time. GPU results are read
+ * back a few frames later so the render loop never waits for the GPU.
+ */
+public class RenderGraph {
+
+    private static final String TAG = RenderGraph.class.getSimpleName();
+
+    /**
+     * The pass does not draw, the GL depth and blend state is left untouched
+     */
+    public static final int STATE_NONE = -1;
+
+    public static final int STATE_DEPTH_TEST = 1;
+
+    public static final int STATE_DEPTH_WRITE = 1 << 1;
+
+    public static final int STATE_BLEND = 1 << 2;
+
+    private static final String EXTENSION_TIMER_QUERY = "GL_EXT_disjoint_timer_query";
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // number of frames a timer query result has to become available before its query is reused
+    private static final int QUERY_LATENCY = 3;
+
+    // weight of the newest sample in the moving averages
+    private static final float AVERAGE_WEIGHT = 0.1f;
+
+    private final List<Pass> mPasses = new ArrayList<>();
+
+    private boolean mGpuTimingSupported = false;
+
+    private long mFrameCount = 0;
+
+    private final int[] mDisjoint = new int[1];
+
+    private final int[] mQueryResult = new int[1];
+
+    /**
+     * Appends a pass, passes are executed in the order they are added
+     */
+    public void addPass(Pass pass) {
+        mPasses.add(pass);
+    }
+
+    /**
+     * Checks for timer query support and allocates the queries. Must be called on the OpenGL
+     * thread whenever the context is created.
+     */
+    public void createOnGlThread() {
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        // The query entry points are only exposed through the GLES30 bindings
+        mGpuTimingSupported = extensions != null && extensions.contains(EXTENSION_TIMER_QUERY)
+                && version != null && version.startsWith("OpenGL ES 3");
+        Log.i(TAG, "GPU pass timing " + (mGpuTimingSupported ? "enabled" : "not supported"));
+
+        for (Pass pass : mPasses) {
+            pass.mQueryPending = new boolean[QUERY_LATENCY];
+            pass.mQueries = new int[QUERY_LATENCY];
+            if (mGpuTimingSupported) {
+                GLES30.glGenQueries(QUERY_LATENCY, pass.mQueries, 0);
+            }
+        }
+    }
+
+    /**
+     * Executes all passes that have work this frame. Must be called on the OpenGL thread.
+     */
+    public void execute() {
+        boolean gpuTiming = mGpuTimingSupported;
+        if (gpuTiming) {
+            // Results measured across a disjoint event (e.g. a GPU frequency change) are invalid
+            GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mDisjoint, 0);
+            if (mDisjoint[0] != 0) {
+                for (Pass pass : mPasses) {
+                    for (int i = 0; i < QUERY_LATENCY; i++) {
+                        pass.mQueryPending[i] = false;
+                    }
+                }
+            }
+        }
+
+        int queryIndex = (int) (mFrameCount % QUERY_LATENCY);
+        mFrameCount++;
+
+        GlStateTracker glState = GlStateTracker.get();
+
+        for (Pass pass : mPasses) {
+            if (!pass.needsExecution()) {
+                pass.mSkippedFrames++;
+                continue;
+            }
+
+            if (pass.mRequiredState != STATE_NONE) {
+                glState.setDepthTest((pass.mRequiredState & STATE_DEPTH_TEST) != 0);
+                glState.setDepthMask((pass.mRequiredState & STATE_DEPTH_WRITE) != 0);
+                glState.setBlend((pass.mRequiredState & STATE_BLEND) != 0);
+            }
+
+            boolean timeGpu = gpuTiming && readQueryResult(pass, queryIndex);
+            if (timeGpu) {
+                GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, pass.mQueries[queryIndex]);
+            }
+
+            long start = System.nanoTime();
+            pass.execute();
+            pass.mCpuTimeNanos = average(pass.mCpuTimeNanos, System.nanoTime() - start);
+
+            if (timeGpu) {
+                GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+                pass.mQueryPending[queryIndex] = true;
+            }
+            pass.mExecutedFrames++;
+        }
+    }
+
+    /**
+     * Reads back the result of the query issued QUERY_LATENCY frames ago.
+     *
+     * @return false if the previous result is still not available, the query cannot be reused
+     * this frame
+     */
+    private boolean readQueryResult(Pass pass, int queryIndex) {
+        if (!pass.mQueryPending[queryIndex]) {
+            return true;
+        }
+
+        int query = pass.mQueries[queryIndex];
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+        if (mQueryResult[0] == 0) {
+            return false;
+        }
+
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+        // result is an unsigned 32 bit number of nanoseconds
+        pass.mGpuTimeNanos = average(pass.mGpuTimeNanos, mQueryResult[0] & 0xFFFFFFFFL);
+        pass.mQueryPending[queryIndex] = false;
+        return true;
+    }
+
+    private static float average(float current, long sample) {
+        if (current == 0) {
+            return sample;
+        }
+        return current + (sample - current) * AVERAGE_WEIGHT;
+    }
+
+    public boolean isGpuTimingSupported() {
+        return mGpuTimingSupported;
+    }
+
+    public List<Pass> getPasses() {
+        return mPasses;
+    }
+
+    /**
+     * @return one line per pass with its average CPU and GPU times in milliseconds
+     */
+    public String getTimingSummary() {
+        StringBuilder builder = new StringBuilder();
+        for (Pass pass : mPasses) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(String.format(Locale.US, "%s: cpu %.2fms", pass.mName,
+                    pass.getCpuTimeMillis()));
+            if (mGpuTimingSupported) {
+                builder.append(String.format(Locale.US, " gpu %.2fms", pass.getGpuTimeMillis()));
+            }
+            builder.append(" skipped ").append(pass.mSkippedFrames);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A single step of the frame
+     */
+    public abstract static class Pass {
+
+        private final String mName;
+
+        private final int mRequiredState;
+
+        private float mCpuTimeNanos;
+
+        private float mGpuTimeNanos;
+
+        private long mExecutedFrames;
+
+        private long mSkippedFrames;
+
+        private int[] mQueries;
+
+        private boolean[] mQueryPending;
+
+        /**
+         * @param name          name shown in the timing summary
+         * @param requiredState a combination of the STATE_ flags, or {@link #STATE_NONE} for passes
+         *                      that do not draw
+         */
+        public Pass(String name, int requiredState) {
+            mName = name;
+            mRequiredState = requiredState;
+        }
+
+        /**
+         * @return false if the inputs of the pass are missing or have not changed since it last
+         * executed, and the pass can be skipped this frame
+         */
+        protected boolean needsExecution() {
+            return true;
+        }
+
+        protected abstract void execute();
+
+        public String getName() {
+            return mName;
+        }
+
+        public float getCpuTimeMillis() {
+            return mCpuTimeNanos / 1000000f;
+        }
+
+        public float getGpuTimeMillis() {
+            return mGpuTimeNanos / 1000000f;
+        }
+
+        public long getExecutedFrames() {
+            return mExecutedFrames;
+        }
+
+        public long getSkippedFrames() {
+            return mSkippedFrames;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.OnDisconnect;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * {@link RoomTransport} backed by the Firebase Realtime Database
+ */
+public class FirebaseRoomTransport implements RoomTransport {
+
+    private final FirebaseDatabase mDatabase;
+
+    // Firebase calls listeners on the main thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private FirebaseRoomTransport(FirebaseDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * @return the transport, or null if Firebase could not be initialized
+     */
+    public static FirebaseRoomTransport create(Context context) {
+        FirebaseApp app = FirebaseApp.initializeApp(context);
+        if (app == null) {
+            return null;
+        }
+        return new FirebaseRoomTransport(FirebaseDatabase.getInstance(app));
+    }
+
+    @Override
+    public Node getReference(String path) {
+        return new FirebaseNode(mDatabase.getReference(path));
+    }
+
+    @Override
+    public Object serverTimestamp() {
+        return ServerValue.TIMESTAMP;
+    }
+
+    @Override
+    public void goOnline() {
+        mDatabase.goOnline();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mMainHandler.post(task);
+    }
+
+    private static DatabaseReference.CompletionListener wrapCompletion(
+            final CompletionListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError,
+                                   DatabaseReference databaseReference) {
+                listener.onComplete(databaseError == null ? null : databaseError.getMessage());
+            }
+        };
+    }
+
+    private static class FirebaseNode implements Node {
+
+        private final DatabaseReference mReference;
+
+        FirebaseNode(DatabaseReference reference) {
+            mReference = reference;
+        }
+
+        @Override
+        public String getKey() {
+            return mReference.getKey();
+        }
+
+        @Override
+        public Node child(String path) {
+            return new FirebaseNode(mReference.child(path));
+        }
+
+        @Override
+        public Node push() {
+            return new FirebaseNode(mReference.push());
+        }
+
+        @Override
+        public void setValue(Object value) {
+            mReference.setValue(value);
+        }
+
+        @Override
+        public void setValue(Object value, CompletionListener listener) {
+            mReference.setValue(value, wrapCompletion(listener));
+        }
+
+        @Override
+        public void updateChildren(Map<String, Object> values, CompletionListener listener) {
+            mReference.updateChildren(values, wrapCompletion(listener));
+        }
+
+        @Override
+        public void removeValue() {
+            mReference.removeValue();
+        }
+
+        @Override
+        public Registration removeOnDisconnect() {
+            final OnDisconnect onDisconnect = mReference.onDisconnect();
+            onDisconnect.removeValue();
+            return new Registration() {
+                @Override
+                public void remove() {
+                    onDisconnect.cancel();
+                }
+            };
+        }
+
+        @Override
+        public Registration addChildListener(ChildListener listener) {
+            return addChildListener(mReference, listener);
+        }
+
+        @Override
+        public Registration addChildListener(ChildListener listener, String startAtKey) {
+            return addChildListener(mReference.orderByKey().startAt(startAtKey), listener);
+        }
+
+        private static Registration addChildListener(final Query query,
+                                                     final ChildListener listener) {
+            final ChildEventListener childEventListener = new ChildEventListener() {
+                @Override
+                public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+                    listener.onChildAdded(new FirebaseSnapshot(dataSnapshot));
+                }
+
+                @Override
+                public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+                    listener.onChildChanged(new FirebaseSnapshot(dataSnapshot));
+                }
+
+                @Override
+                public void onChildRemoved(DataSnapshot dataSnapshot) {
+                    listener.onChildRemoved(new FirebaseSnapshot(dataSnapshot));
+                }
+
+                @Override
+                public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    listener.onCancelled(databaseError.getMessage());
+                }
+            };
+            query.addChildEventListener(childEventListener);
+            return new Registration() {
+                @Override
+                public void remove() {
+                    query.removeEventListener(childEventListener);
+                }
+            };
+        }
+
+        @Override
+        public Registration addValueListener(ValueListener listener) {
+            final ValueEventListener valueEventListener = wrapValue(listener);
+            mReference.addValueEventListener(valueEventListener);
+            return new Registration() {
+                @Override
+                public void remove() {
+                    mReference.removeEventListener(valueEventListener);
+                }
+            };
+        }
+
+        @Override
+        public void readOnce(ValueListener listener) {
+            mReference.addListenerForSingleValueEvent(wrapValue(listener));
+        }
+
+        private static ValueEventListener wrapValue(final ValueListener listener) {
+            return new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    listener.onDataChange(new FirebaseSnapshot(dataSnapshot));
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    listener.onCancelled(databaseError.getMessage());
+                }
+            };
+        }
+    }
+
+    private static class FirebaseSnapshot implements Snapshot {
+
+        private final DataSnapshot mSnapshot;
+
+        FirebaseSnapshot(DataSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public String getKey() {
+            return mSnapshot.getKey();
+        }
+
+        @Override
+        public boolean exists() {
+            return mSnapshot.exists();
+        }
+
+        @Override
+        public Object getValue() {
+            return mSnapshot.getValue();
+        }
+
+        @Override
+        public <T> T getValue(Class<T> type) {
+            return mSnapshot.getValue(type);
+        }
+
+        @Override
+        public boolean hasChild(String path) {
+            return mSnapshot.hasChild(path);
+        }
+
+        @Override
+        public Snapshot child(String path) {
+            return new FirebaseSnapshot(mSnapshot.child(path));
+        }
+
+        @Override
+        public Iterable<Snapshot> getChildren() {
+            final Iterable<DataSnapshot> children = mSnapshot.getChildren();
+            return new Iterable<Snapshot>() {
+                @Override
+                public Iterator<Snapshot> iterator() {
+                    final Iterator<DataSnapshot> iterator = children.iterator();
+                    return new Iterator<Snapshot>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Snapshot next() {
+                            return new FirebaseSnapshot(iterator.next());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return mSnapshot.toString();
+        }
+    }
+}
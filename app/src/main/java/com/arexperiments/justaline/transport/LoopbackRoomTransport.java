@@ -0,0 +1,472 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RoomTransport} client of a {@link LoopbackServer} in the same process, for running the
+ * sync layer of several participants without a network.
+ * <p>
+ * Every message waits for the configured latency, and for the link to be free when a bandwidth is
+ * set, separately for the uplink and the downlink. All callbacks are called in order on a thread
+ * of this client. Unlike Firebase, local writes raise no events before the server has applied
+ * them, so a client sees its own writes one round trip later.
+ */
+public class LoopbackRoomTransport implements RoomTransport {
+
+    private static final String PUSH_CHARS =
+            "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * Wraps the handling of messages from the server, to measure it
+     */
+    public interface DeliveryMonitor {
+
+        /**
+         * Called on the callback thread for every message from the server
+         *
+         * @param delivery runs the callbacks of the message, must be run exactly once
+         * @param bytes    approximate size of the message
+         */
+        void deliver(Runnable delivery, int bytes);
+    }
+
+    private final LoopbackServer mServer;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final Link mUplink;
+
+    private final Link mDownlink;
+
+    private final LoopbackServer.Connection mConnection = new LoopbackServer.Connection() {
+        @Override
+        public void deliver(final Runnable events, final int bytes) {
+            mDownlink.send(new Runnable() {
+                @Override
+                public void run() {
+                    DeliveryMonitor monitor = mDeliveryMonitor;
+                    if (monitor != null) {
+                        monitor.deliver(events, bytes);
+                    } else {
+                        events.run();
+                    }
+                }
+            }, bytes);
+        }
+    };
+
+    private volatile DeliveryMonitor mDeliveryMonitor;
+
+    private volatile boolean mConnected = true;
+
+    private final Random mRandom = new Random();
+
+    private long mLastPushTime;
+
+    private final int[] mLastPushRandom = new int[12];
+
+    /**
+     * @param latencyMillis            one way delay of every message
+     * @param bandwidthBytesPerSecond bandwidth of each direction, or 0 for no limit
+     */
+    public LoopbackRoomTransport(LoopbackServer server, long latencyMillis,
+                                 long bandwidthBytesPerSecond) {
+        mServer = server;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LoopbackRoomTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mUplink = new Link(latencyMillis, bandwidthBytesPerSecond);
+        mDownlink = new Link(latencyMillis, bandwidthBytesPerSecond);
+    }
+
+    @Override
+    public Node getReference(String path) {
+        return new LoopbackNode(LoopbackServer.split(path));
+    }
+
+    @Override
+    public Object serverTimestamp() {
+        return LoopbackValues.SERVER_TIMESTAMP;
+    }
+
+    @Override
+    public void goOnline() {
+        // Loopback clients stay connected until disconnect()
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Drops the connection like a client going away: the server removes its listeners and runs
+     * its removals on disconnect, and messages still on the way are lost
+     */
+    public void disconnect() {
+        if (!mConnected) {
+            return;
+        }
+        mConnected = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mServer.disconnect(mConnection);
+                mExecutor.shutdown();
+            }
+        });
+    }
+
+    public void setDeliveryMonitor(DeliveryMonitor monitor) {
+        mDeliveryMonitor = monitor;
+    }
+
+    /**
+     * @return the number of messages waiting for latency or bandwidth in both directions
+     */
+    public int getMessagesInFlight() {
+        return mUplink.getInFlight() + mDownlink.getInFlight();
+    }
+
+    public long getBytesSent() {
+        return mUplink.getBytes();
+    }
+
+    public long getBytesReceived() {
+        return mDownlink.getBytes();
+    }
+
+    public String getStatsSummary() {
+        return "Link: up " + mUplink.getMessages() + " msgs " + mUplink.getBytes() / 1024
+                + "KB, down " + mDownlink.getMessages() + " msgs " + mDownlink.getBytes() / 1024
+                + "KB";
+    }
+
+    private void sendToServer(Runnable operation, int bytes) {
+        if (mConnected) {
+            mUplink.send(operation, bytes);
+        }
+    }
+
+    /**
+     * @return a key like Firebase push keys: time based so that keys sort chronologically
+     */
+    private synchronized String nextPushKey() {
+        long now = System.currentTimeMillis();
+        boolean sameTime = now == mLastPushTime;
+        mLastPushTime = now;
+
+        char[] key = new char[20];
+        for (int i = 7; i >= 0; i--) {
+            key[i] = PUSH_CHARS.charAt((int) (now % 64));
+            now /= 64;
+        }
+        if (!sameTime) {
+            for (int i = 0; i < mLastPushRandom.length; i++) {
+                mLastPushRandom[i] = mRandom.nextInt(64);
+            }
+        } else {
+            // keep keys of the same millisecond in order
+            int i = mLastPushRandom.length - 1;
+            while (i >= 0 && mLastPushRandom[i] == 63) {
+                mLastPushRandom[i] = 0;
+                i--;
+            }
+            if (i >= 0) {
+                mLastPushRandom[i]++;
+            }
+        }
+        for (int i = 0; i < mLastPushRandom.length; i++) {
+            key[8 + i] = PUSH_CHARS.charAt(mLastPushRandom[i]);
+        }
+        return new String(key);
+    }
+
+    /**
+     * One direction of the connection
+     */
+    private class Link {
+
+        private final long mLatencyNanos;
+
+        private final long mBandwidth;
+
+        // When the link has sent everything queued so far
+        private long mFreeAt;
+
+        private long mBytes;
+
+        private long mMessages;
+
+        private final Queue<Runnable> mInFlight = new ConcurrentLinkedQueue<>();
+
+        Link(long latencyMillis, long bandwidth) {
+            mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            mBandwidth = bandwidth;
+        }
+
+        void send(Runnable message, int bytes) {
+            long delay;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long transmission = mBandwidth > 0 ? bytes * 1000000000L / mBandwidth : 0;
+                mFreeAt = Math.max(now, mFreeAt) + transmission;
+                mBytes += bytes;
+                mMessages++;
+                delay = mFreeAt + mLatencyNanos - now;
+                mInFlight.add(message);
+            }
+            try {
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // every task runs the oldest message, so messages keep their order even
+                        // if the timer wakes the tasks slightly out of order
+                        Runnable next = mInFlight.poll();
+                        if (next != null && mConnected) {
+                            next.run();
+                        }
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // disconnected, the message is lost
+            }
+        }
+
+        int getInFlight() {
+            return mInFlight.size();
+        }
+
+        synchronized long getBytes() {
+            return mBytes;
+        }
+
+        synchronized long getMessages() {
+            return mMessages;
+        }
+    }
+
+    private class LoopbackNode implements Node {
+
+        private final String[] mPath;
+
+        LoopbackNode(String[] path) {
+            mPath = path;
+        }
+
+        @Override
+        public String getKey() {
+            return LoopbackServer.lastKey(mPath);
+        }
+
+        @Override
+        public Node child(String path) {
+            return new LoopbackNode(LoopbackServer.concat(mPath, LoopbackServer.split(path)));
+        }
+
+        @Override
+        public Node push() {
+            return child(nextPushKey());
+        }
+
+        @Override
+        public void setValue(Object value) {
+            setValue(value, null);
+        }
+
+        @Override
+        public void setValue(Object value, CompletionListener listener) {
+            write(Collections.singletonMap("", LoopbackValues.toStored(value)), listener);
+        }
+
+        @Override
+        public void updateChildren(Map<String, Object> values, CompletionListener listener) {
+            Map<String, Object> stored = new HashMap<>();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                stored.put(entry.getKey(), LoopbackValues.toStored(entry.getValue()));
+            }
+            write(stored, listener);
+        }
+
+        @Override
+        public void removeValue() {
+            setValue(null, null);
+        }
+
+        private void write(final Map<String, Object> values, final CompletionListener listener) {
+            int bytes = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                bytes += entry.getKey().length() + LoopbackValues.estimateSize(entry.getValue());
+            }
+            final Runnable ack = listener == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete(null);
+                }
+            };
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    mServer.write(mConnection, mPath, values, ack);
+                }
+            }, bytes);
+        }
+
+        @Override
+        public Registration removeOnDisconnect() {
+            setRemoveOnDisconnect(true);
+            return new Registration() {
+                @Override
+                public void remove() {
+                    setRemoveOnDisconnect(false);
+                }
+            };
+        }
+
+        private void setRemoveOnDisconnect(final boolean remove) {
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    mServer.setRemoveOnDisconnect(mConnection, mPath, remove);
+                }
+            }, mPath.length * 8);
+        }
+
+        @Override
+        public Registration addChildListener(ChildListener listener) {
+            return addChildListener(listener, null);
+        }
+
+        @Override
+        public Registration addChildListener(final ChildListener listener,
+                                             final String startAtKey) {
+            final ListenerRegistration registration = new ListenerRegistration();
+            final ChildListener activeListener = new ChildListener() {
+                @Override
+                public void onChildAdded(Snapshot snapshot) {
+                    if (registration.mActive) {
+                        listener.onChildAdded(snapshot);
+                    }
+                }
+
+                @Override
+                public void onChildChanged(Snapshot snapshot) {
+                    if (registration.mActive) {
+                        listener.onChildChanged(snapshot);
+                    }
+                }
+
+                @Override
+                public void onChildRemoved(Snapshot snapshot) {
+                    if (registration.mActive) {
+                        listener.onChildRemoved(snapshot);
+                    }
+                }
+
+                @Override
+                public void onCancelled(String error) {
+                    if (registration.mActive) {
+                        listener.onCancelled(error);
+                    }
+                }
+            };
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mToken = mServer.subscribe(mConnection, mPath, activeListener,
+                            null, startAtKey);
+                }
+            }, mPath.length * 8);
+            return registration;
+        }
+
+        @Override
+        public Registration addValueListener(final ValueListener listener) {
+            final ListenerRegistration registration = new ListenerRegistration();
+            final ValueListener activeListener = new ValueListener() {
+                @Override
+                public void onDataChange(Snapshot snapshot) {
+                    if (registration.mActive) {
+                        listener.onDataChange(snapshot);
+                    }
+                }
+
+                @Override
+                public void onCancelled(String error) {
+                    if (registration.mActive) {
+                        listener.onCancelled(error);
+                    }
+                }
+            };
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mToken = mServer.subscribe(mConnection, mPath, null,
+                            activeListener, null);
+                }
+            }, mPath.length * 8);
+            return registration;
+        }
+
+        @Override
+        public void readOnce(final ValueListener listener) {
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    mServer.read(mConnection, mPath, listener);
+                }
+            }, mPath.length * 8);
+        }
+    }
+
+    /**
+     * Stops the callbacks of a listener right away and removes it from the server
+     */
+    private class ListenerRegistration implements Registration {
+
+        volatile boolean mActive = true;
+
+        // Set on the callback thread once the server has the listener
+        Object mToken;
+
+        @Override
+        public void remove() {
+            mActive = false;
+            sendToServer(new Runnable() {
+                @Override
+                public void run() {
+                    mServer.unsubscribe(mToken);
+                }
+            }, 8);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-process stand-in for the realtime database server, shared by the
+ * {@link LoopbackRoomTransport} clients connected to it.
+ * <p>
+ * Holds the database tree, applies writes atomically in the order they arrive and sends every
+ * connection the events of its listeners, together with the acknowledgement of its own writes.
+ * Network delays are modelled by the clients.
+ */
+public class LoopbackServer {
+
+    /**
+     * A connected client, the receiving end of the downlink
+     */
+    /*package*/ interface Connection {
+
+        /**
+         * Delivers events to the client
+         *
+         * @param bytes approximate size of the message
+         */
+        void deliver(Runnable events, int bytes);
+    }
+
+    private static final int ACK_BYTES = 16;
+
+    // Stored value of the root, see LoopbackValues. Guarded by this.
+    private Object mRoot;
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    private final Map<Connection, Set<List<String>>> mOnDisconnectRemovals = new HashMap<>();
+
+    private long mWrites;
+
+    private long mEvents;
+
+    /**
+     * Applies the values, each at its path relative to the base path
+     *
+     * @param connection the writing connection, or null for the server itself
+     * @param ack        delivered to the writing connection after the events, or null
+     */
+    synchronized void write(Connection connection, String[] basePath, Map<String, Object> values,
+                            Runnable ack) {
+        long now = System.currentTimeMillis();
+        List<String[]> paths = new ArrayList<>(values.size());
+        int bytes = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            String[] path = concat(basePath, split(entry.getKey()));
+            Object value = LoopbackValues.resolveTimestamps(entry.getValue(), now);
+            mRoot = set(mRoot, path, 0, value);
+            paths.add(path);
+            bytes += entry.getKey().length() + LoopbackValues.estimateSize(value);
+        }
+        mWrites++;
+
+        Map<Connection, List<Runnable>> events = new LinkedHashMap<>();
+        for (Subscription subscription : mSubscriptions) {
+            Object value = get(mRoot, subscription.path);
+            if (value == subscription.value) {
+                continue;
+            }
+            List<Runnable> connectionEvents = events.get(subscription.connection);
+            if (connectionEvents == null) {
+                connectionEvents = new ArrayList<>();
+                events.put(subscription.connection, connectionEvents);
+            }
+            if (subscription.childListener != null) {
+                addChildEvents(subscription, value, touchedKeys(subscription.path, paths),
+                        connectionEvents);
+            } else {
+                addValueEvent(subscription, value, connectionEvents);
+            }
+            subscription.value = value;
+        }
+
+        Set<Connection> notified = new HashSet<>(events.keySet());
+        if (connection != null && ack != null) {
+            List<Runnable> connectionEvents = events.get(connection);
+            if (connectionEvents == null) {
+                connectionEvents = new ArrayList<>();
+                events.put(connection, connectionEvents);
+            }
+            connectionEvents.add(ack);
+        }
+
+        for (Map.Entry<Connection, List<Runnable>> entry : events.entrySet()) {
+            Connection receiver = entry.getKey();
+            receiver.deliver(batch(entry.getValue()),
+                    (notified.contains(receiver) ? bytes : 0)
+                            + (receiver == connection ? ACK_BYTES : 0));
+        }
+    }
+
+    /**
+     * Starts sending the events of the listener, beginning with the current value
+     *
+     * @param startAt for child listeners, the smallest key of the children to send, or null
+     * @return token for {@link #unsubscribe}
+     */
+    synchronized Object subscribe(Connection connection, String[] path,
+                                  RoomTransport.ChildListener childListener,
+                                  RoomTransport.ValueListener valueListener, String startAt) {
+        Subscription subscription = new Subscription(connection, path, childListener,
+                valueListener, startAt);
+        Object value = get(mRoot, path);
+        List<Runnable> events = new ArrayList<>();
+        int bytes;
+        if (childListener != null) {
+            bytes = addChildEvents(subscription, value, null, events);
+        } else {
+            addValueEvent(subscription, value, events);
+            bytes = LoopbackValues.estimateSize(value);
+        }
+        subscription.value = value;
+        mSubscriptions.add(subscription);
+        if (!events.isEmpty()) {
+            connection.deliver(batch(events), bytes);
+        }
+        return subscription;
+    }
+
+    synchronized void unsubscribe(Object token) {
+        mSubscriptions.remove(token);
+    }
+
+    synchronized void read(Connection connection, String[] path,
+                           RoomTransport.ValueListener listener) {
+        Object value = get(mRoot, path);
+        Subscription subscription = new Subscription(connection, path, null, listener, null);
+        List<Runnable> events = new ArrayList<>();
+        addValueEvent(subscription, value, events);
+        connection.deliver(batch(events), LoopbackValues.estimateSize(value));
+    }
+
+    synchronized void setRemoveOnDisconnect(Connection connection, String[] path,
+                                            boolean remove) {
+        Set<List<String>> removals = mOnDisconnectRemovals.get(connection);
+        if (removals == null) {
+            removals = new HashSet<>();
+            mOnDisconnectRemovals.put(connection, removals);
+        }
+        List<String> key = new ArrayList<>();
+        Collections.addAll(key, path);
+        if (remove) {
+            removals.add(key);
+        } else {
+            removals.remove(key);
+        }
+    }
+
+    /**
+     * Removes the listeners of the connection and runs its removals on disconnect
+     */
+    synchronized void disconnect(Connection connection) {
+        Iterator<Subscription> iterator = mSubscriptions.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().connection == connection) {
+                iterator.remove();
+            }
+        }
+        Set<List<String>> removals = mOnDisconnectRemovals.remove(connection);
+        if (removals != null && !removals.isEmpty()) {
+            Map<String, Object> values = new HashMap<>();
+            for (List<String> path : removals) {
+                values.put(join(path), null);
+            }
+            write(null, new String[0], values, null);
+        }
+    }
+
+    public synchronized String getStatsSummary() {
+        return "Loopback: " + mWrites + " writes, " + mEvents + " events, "
+                + mSubscriptions.size() + " listeners";
+    }
+
+    private void addValueEvent(final Subscription subscription, Object value,
+                               List<Runnable> events) {
+        final RoomTransport.Snapshot snapshot = new LoopbackSnapshot(lastKey(subscription.path),
+                value);
+        events.add(new Runnable() {
+            @Override
+            public void run() {
+                subscription.valueListener.onDataChange(snapshot);
+            }
+        });
+        mEvents++;
+    }
+
+    /**
+     * Adds the events of the children that changed, in key order
+     *
+     * @param keys the keys of the children that may have changed, or null to compare all
+     * @return approximate size of the changed children
+     */
+    @SuppressWarnings("unchecked")
+    private int addChildEvents(Subscription subscription, Object value, Set<String> keys,
+                               List<Runnable> events) {
+        Map<String, Object> oldChildren = subscription.value instanceof Map
+                ? (Map<String, Object>) subscription.value : Collections.<String, Object>emptyMap();
+        Map<String, Object> newChildren = value instanceof Map
+                ? (Map<String, Object>) value : Collections.<String, Object>emptyMap();
+        if (keys == null) {
+            keys = new TreeSet<>(LoopbackValues.KEY_ORDER);
+            keys.addAll(oldChildren.keySet());
+            keys.addAll(newChildren.keySet());
+        }
+
+        final RoomTransport.ChildListener listener = subscription.childListener;
+        int bytes = 0;
+        for (String key : keys) {
+            if (subscription.startAt != null
+                    && LoopbackValues.KEY_ORDER.compare(key, subscription.startAt) < 0) {
+                continue;
+            }
+            Object oldChild = oldChildren.get(key);
+            Object newChild = newChildren.get(key);
+            if (oldChild == newChild || (oldChild != null && oldChild.equals(newChild))) {
+                continue;
+            }
+            bytes += key.length() + LoopbackValues.estimateSize(newChild);
+            if (oldChild == null) {
+                final RoomTransport.Snapshot snapshot = new LoopbackSnapshot(key, newChild);
+                events.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onChildAdded(snapshot);
+                    }
+                });
+            } else if (newChild == null) {
+                final RoomTransport.Snapshot snapshot = new LoopbackSnapshot(key, oldChild);
+                events.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onChildRemoved(snapshot);
+                    }
+                });
+            } else {
+                final RoomTransport.Snapshot snapshot = new LoopbackSnapshot(key, newChild);
+                events.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onChildChanged(snapshot);
+                    }
+                });
+            }
+            mEvents++;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the keys of the children of the path that the written paths touch, or null if a
+     * written path is the path itself or one of its parents
+     */
+    private static Set<String> touchedKeys(String[] path, List<String[]> writtenPaths) {
+        Set<String> keys = new TreeSet<>(LoopbackValues.KEY_ORDER);
+        for (String[] writtenPath : writtenPaths) {
+            int common = Math.min(path.length, writtenPath.length);
+            boolean related = true;
+            for (int i = 0; i < common && related; i++) {
+                related = path[i].equals(writtenPath[i]);
+            }
+            if (!related) {
+                continue;
+            }
+            if (writtenPath.length <= path.length) {
+                return null;
+            }
+            keys.add(writtenPath[path.length]);
+        }
+        return keys;
+    }
+
+    private static Runnable batch(final List<Runnable> events) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable event : events) {
+                    event.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the tree with the value set at the path, copying only the maps along the path
+     */
+    @SuppressWarnings("unchecked")
+    private static Object set(Object node, String[] path, int index, Object value) {
+        if (index == path.length) {
+            return value;
+        }
+        Map<String, Object> map = node instanceof Map ? (Map<String, Object>) node : null;
+        Object child = map != null ? map.get(path[index]) : null;
+        Object newChild = set(child, path, index + 1, value);
+        if (newChild == child && map != null) {
+            return map;
+        }
+        Map<String, Object> copy = map != null ? new HashMap<>(map) : new HashMap<String, Object>();
+        if (newChild == null) {
+            copy.remove(path[index]);
+        } else {
+            copy.put(path[index], newChild);
+        }
+        return copy.isEmpty() ? null : copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object get(Object node, String[] path) {
+        for (String key : path) {
+            if (!(node instanceof Map)) {
+                return null;
+            }
+            node = ((Map<String, Object>) node).get(key);
+        }
+        return node;
+    }
+
+    static String[] split(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    static String[] concat(String[] path, String[] relativePath) {
+        String[] result = new String[path.length + relativePath.length];
+        System.arraycopy(path, 0, result, 0, path.length);
+        System.arraycopy(relativePath, 0, result, path.length, relativePath.length);
+        return result;
+    }
+
+    private static String join(List<String> path) {
+        StringBuilder builder = new StringBuilder();
+        for (String segment : path) {
+            builder.append('/').append(segment);
+        }
+        return builder.toString();
+    }
+
+    static String lastKey(String[] path) {
+        return path.length == 0 ? null : path[path.length - 1];
+    }
+
+    private static class Subscription {
+
+        final Connection connection;
+
+        final String[] path;
+
+        final RoomTransport.ChildListener childListener;
+
+        final RoomTransport.ValueListener valueListener;
+
+        final String startAt;
+
+        // The value the listener last received
+        Object value;
+
+        Subscription(Connection connection, String[] path,
+                     RoomTransport.ChildListener childListener,
+                     RoomTransport.ValueListener valueListener, String startAt) {
+            this.connection = connection;
+            this.path = path;
+            this.childListener = childListener;
+            this.valueListener = valueListener;
+            this.startAt = startAt;
+        }
+    }
+}
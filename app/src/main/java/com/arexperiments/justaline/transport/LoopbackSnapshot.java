@@ -0,0 +1,88 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of a stored value of the {@link LoopbackServer}
+ */
+/*package*/ class LoopbackSnapshot implements RoomTransport.Snapshot {
+
+    private final String mKey;
+
+    private final Object mValue;
+
+    LoopbackSnapshot(String key, Object value) {
+        mKey = key;
+        mValue = value;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public boolean exists() {
+        return mValue != null;
+    }
+
+    @Override
+    public Object getValue() {
+        return LoopbackValues.toPlain(mValue);
+    }
+
+    @Override
+    public <T> T getValue(Class<T> type) {
+        return LoopbackValues.toType(mValue, type);
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return LoopbackServer.get(mValue, LoopbackServer.split(path)) != null;
+    }
+
+    @Override
+    public RoomTransport.Snapshot child(String path) {
+        String[] segments = LoopbackServer.split(path);
+        String key = segments.length == 0 ? mKey : LoopbackServer.lastKey(segments);
+        return new LoopbackSnapshot(key, LoopbackServer.get(mValue, segments));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterable<RoomTransport.Snapshot> getChildren() {
+        if (!(mValue instanceof Map)) {
+            return Collections.emptyList();
+        }
+        Map<String, Object> map = (Map<String, Object>) mValue;
+        List<String> keys = new ArrayList<>(map.keySet());
+        Collections.sort(keys, LoopbackValues.KEY_ORDER);
+        List<RoomTransport.Snapshot> children = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            children.add(new LoopbackSnapshot(key, map.get(key)));
+        }
+        return children;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackSnapshot { key = " + mKey + ", value = " + mValue + " }";
+    }
+}
@@ -0,0 +1,307 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import com.google.firebase.database.Exclude;
+import com.google.firebase.database.PropertyName;
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.FieldNamingStrategy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Value conversions of the loopback transport.
+ * <p>
+ * The loopback database stores values the way the realtime database does: maps of non-empty
+ * values, strings, booleans, longs and doubles. Lists are stored as maps with index keys and
+ * read back as lists. Other objects are mapped through their fields, named by
+ * {@link PropertyName} and skipping {@link Exclude}, which matches how the model classes are
+ * written to Firebase. Stored maps are never modified, writes copy the maps along their path.
+ */
+/*package*/ class LoopbackValues {
+
+    /**
+     * Placeholder replaced with the server time, equal to Firebase's ServerValue.TIMESTAMP
+     */
+    static final Map<String, String> SERVER_TIMESTAMP = Collections.singletonMap(".sv",
+            "timestamp");
+
+    /**
+     * Orders keys like the realtime database: integer keys numerically, then other keys
+     */
+    static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            Integer intA = parseIndex(a);
+            Integer intB = parseIndex(b);
+            if (intA != null && intB != null) {
+                return intA.compareTo(intB);
+            } else if (intA != null) {
+                return -1;
+            } else if (intB != null) {
+                return 1;
+            }
+            return a.compareTo(b);
+        }
+    };
+
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingStrategy(new FieldNamingStrategy() {
+                @Override
+                public String translateName(Field field) {
+                    PropertyName name = field.getAnnotation(PropertyName.class);
+                    return name != null ? name.value() : field.getName();
+                }
+            })
+            .setExclusionStrategies(new ExclusionStrategy() {
+                @Override
+                public boolean shouldSkipField(FieldAttributes field) {
+                    return field.getAnnotation(Exclude.class) != null;
+                }
+
+                @Override
+                public boolean shouldSkipClass(Class<?> type) {
+                    return false;
+                }
+            })
+            .create();
+
+    private LoopbackValues() {
+    }
+
+    /**
+     * Converts a value to be written into its stored form
+     */
+    @SuppressWarnings("unchecked")
+    static Object toStored(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Number) {
+            return toStoredNumber((Number) value);
+        } else if (value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        } else if (value instanceof Map) {
+            Map<String, Object> map = new HashMap<>();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                Object stored = toStored(entry.getValue());
+                if (stored != null) {
+                    map.put(String.valueOf(entry.getKey()), stored);
+                }
+            }
+            return map.isEmpty() ? null : map;
+        } else if (value instanceof Collection) {
+            return toStoredList(new ArrayList<>((Collection<Object>) value));
+        } else if (value.getClass().isArray()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                list.add(Array.get(value, i));
+            }
+            return toStoredList(list);
+        }
+        return fromJson(GSON.toJsonTree(value));
+    }
+
+    private static Object toStoredList(List<Object> list) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < list.size(); i++) {
+            Object stored = toStored(list.get(i));
+            if (stored != null) {
+                map.put(String.valueOf(i), stored);
+            }
+        }
+        return map.isEmpty() ? null : map;
+    }
+
+    private static Object toStoredNumber(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double value = number.doubleValue();
+            // like the realtime database, integral doubles are read back as longs
+            if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+                return (long) value;
+            }
+            return value;
+        }
+        return number.longValue();
+    }
+
+    private static Object fromJson(JsonElement element) {
+        if (element == null || element instanceof JsonNull) {
+            return null;
+        } else if (element instanceof JsonPrimitive) {
+            JsonPrimitive primitive = (JsonPrimitive) element;
+            if (primitive.isBoolean()) {
+                return primitive.getAsBoolean();
+            } else if (primitive.isNumber()) {
+                return toStoredNumber(primitive.getAsDouble());
+            }
+            return primitive.getAsString();
+        } else if (element instanceof JsonArray) {
+            List<Object> list = new ArrayList<>();
+            for (JsonElement item : (JsonArray) element) {
+                list.add(fromJson(item));
+            }
+            return toStoredList(list);
+        }
+        Map<String, Object> map = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+            Object stored = fromJson(entry.getValue());
+            if (stored != null) {
+                map.put(entry.getKey(), stored);
+            }
+        }
+        return map.isEmpty() ? null : map;
+    }
+
+    /**
+     * Replaces server timestamp placeholders
+     *
+     * @return the value, or a copy if it contained placeholders
+     */
+    @SuppressWarnings("unchecked")
+    static Object resolveTimestamps(Object value, long now) {
+        if (!(value instanceof Map)) {
+            return value;
+        }
+        Map<String, Object> map = (Map<String, Object>) value;
+        if (SERVER_TIMESTAMP.equals(map)) {
+            return now;
+        }
+        Map<String, Object> copy = null;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object resolved = resolveTimestamps(entry.getValue(), now);
+            if (resolved != entry.getValue()) {
+                if (copy == null) {
+                    copy = new HashMap<>(map);
+                }
+                copy.put(entry.getKey(), resolved);
+            }
+        }
+        return copy != null ? copy : map;
+    }
+
+    /**
+     * Converts a stored value into a new plain value: maps with index keys become lists
+     */
+    @SuppressWarnings("unchecked")
+    static Object toPlain(Object stored) {
+        if (!(stored instanceof Map)) {
+            return stored;
+        }
+        Map<String, Object> map = (Map<String, Object>) stored;
+        int maxIndex = -1;
+        boolean isList = true;
+        for (String key : map.keySet()) {
+            Integer index = parseIndex(key);
+            if (index == null || index < 0) {
+                isList = false;
+                break;
+            }
+            maxIndex = Math.max(maxIndex, index);
+        }
+        // same rule as the realtime database: more than half of the indices are present
+        if (isList && maxIndex < 2 * map.size()) {
+            List<Object> list = new ArrayList<>(Collections.nCopies(maxIndex + 1, null));
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                list.set(parseIndex(entry.getKey()), toPlain(entry.getValue()));
+            }
+            return list;
+        }
+        Map<String, Object> plain = new HashMap<>();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            plain.put(entry.getKey(), toPlain(entry.getValue()));
+        }
+        return plain;
+    }
+
+    /**
+     * Converts a stored value to the given type
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T toType(Object stored, Class<T> type) {
+        if (stored == null) {
+            return null;
+        }
+        Object plain = toPlain(stored);
+        if (type.isInstance(plain)) {
+            return (T) plain;
+        }
+        if (plain instanceof Number) {
+            Number number = (Number) plain;
+            if (type == Long.class) {
+                return (T) Long.valueOf(number.longValue());
+            } else if (type == Double.class) {
+                return (T) Double.valueOf(number.doubleValue());
+            } else if (type == Integer.class) {
+                return (T) Integer.valueOf(number.intValue());
+            } else if (type == Float.class) {
+                return (T) Float.valueOf(number.floatValue());
+            }
+        }
+        return GSON.fromJson(GSON.toJsonTree(plain), type);
+    }
+
+    /**
+     * @return the approximate size of a stored value on the wire, in bytes
+     */
+    @SuppressWarnings("unchecked")
+    static int estimateSize(Object stored) {
+        if (stored == null) {
+            return 4;
+        } else if (stored instanceof String) {
+            return ((String) stored).length() + 2;
+        } else if (stored instanceof Map) {
+            int size = 2;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) stored).entrySet()) {
+                size += entry.getKey().length() + 4 + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        return 8;
+    }
+
+    static Integer parseIndex(String key) {
+        int length = key.length();
+        if (length == 0 || length > 10) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && !(i == 0 && c == '-' && length > 1)) {
+                return null;
+            }
+        }
+        try {
+            return Integer.valueOf(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
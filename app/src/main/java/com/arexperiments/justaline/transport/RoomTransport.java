@@ -0,0 +1,164 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+import java.util.Map;
+
+/**
+ * The realtime database operations the room sync layer uses, so it can run against Firebase or
+ * against an in-process stand-in.
+ * <p>
+ * The model follows the Firebase Realtime Database: a tree of JSON-like values addressed by
+ * slash separated paths. Values written are plain types (String, Boolean, Number, Map, List) or
+ * objects mapped like Firebase maps them. Callbacks of one transport are delivered in order on a
+ * single thread, which is the main thread for Firebase.
+ */
+public interface RoomTransport {
+
+    /**
+     * @return the node at the given path from the root
+     */
+    Node getReference(String path);
+
+    /**
+     * @return a placeholder value the server replaces with its time in milliseconds
+     */
+    Object serverTimestamp();
+
+    void goOnline();
+
+    /**
+     * Runs the task on the callback thread, after the callbacks already delivered
+     */
+    void post(Runnable task);
+
+    /**
+     * A location in the database
+     */
+    interface Node {
+
+        /**
+         * @return the last path segment, or null for the root
+         */
+        String getKey();
+
+        Node child(String path);
+
+        /**
+         * @return a new child with a unique, chronologically ordered key
+         */
+        Node push();
+
+        void setValue(Object value);
+
+        void setValue(Object value, CompletionListener listener);
+
+        /**
+         * Writes every value at its path relative to this node in one atomic operation. A null
+         * value removes the node at its path.
+         */
+        void updateChildren(Map<String, Object> values, CompletionListener listener);
+
+        void removeValue();
+
+        /**
+         * Removes the value when the client disconnects
+         *
+         * @return registration that cancels the removal
+         */
+        Registration removeOnDisconnect();
+
+        /**
+         * The listener is called with the existing children first and then with every change
+         */
+        Registration addChildListener(ChildListener listener);
+
+        /**
+         * Like {@link #addChildListener(ChildListener)}, for the children with keys from the given
+         * key on, in key order
+         */
+        Registration addChildListener(ChildListener listener, String startAtKey);
+
+        /**
+         * The listener is called with the current value first and then with every change
+         */
+        Registration addValueListener(ValueListener listener);
+
+        /**
+         * Reads the current value once
+         */
+        void readOnce(ValueListener listener);
+    }
+
+    /**
+     * An immutable copy of the value of a node
+     */
+    interface Snapshot {
+
+        String getKey();
+
+        boolean exists();
+
+        /**
+         * @return the plain value: String, Boolean, Long, Double, Map or List, or null
+         */
+        Object getValue();
+
+        /**
+         * @return the value converted to the given type, or null
+         */
+        <T> T getValue(Class<T> type);
+
+        boolean hasChild(String path);
+
+        Snapshot child(String path);
+
+        /**
+         * @return the children in key order, integer keys in numeric order
+         */
+        Iterable<Snapshot> getChildren();
+    }
+
+    interface ChildListener {
+
+        void onChildAdded(Snapshot snapshot);
+
+        void onChildChanged(Snapshot snapshot);
+
+        void onChildRemoved(Snapshot snapshot);
+
+        void onCancelled(String error);
+    }
+
+    interface ValueListener {
+
+        void onDataChange(Snapshot snapshot);
+
+        void onCancelled(String error);
+    }
+
+    interface CompletionListener {
+
+        /**
+         * @param error null if the write succeeded
+         */
+        void onComplete(String error);
+    }
+
+    interface Registration {
+
+        void remove();
+    }
+}
@@ -23,7 +23,7 @@ import android.widget.TextView;
 
 import com.arexperiments.justaline.BuildConfig;
 import com.arexperiments.justaline.R;
-import com.google.ar.core.Anchor;
+import com.google.ar.core.TrackingState;
 
 /**
  * TODO: document your custom view class.
@@ -74,16 +74,26 @@ public class DebugView extends FrameLayout {
     }
 
     @SuppressLint({"SetTextI18n", "DefaultLocale"})
-    public void setRenderInfo(int numPoints, long updateDuration, long renderDuration) {
+    public void setRenderInfo(RenderInfo renderInfo) {
         frameNum++;
 
         if (frameNum % 5 == 0) {
             mRenderTextView.setText(
-                    String.format("Num points: %d Update: %dms render: %dms", numPoints,
-                            updateDuration, renderDuration));
+                    String.format("Num points: %d Update: %dms render: %dms GL: %d/%d skipped",
+                            renderInfo.numPoints, renderInfo.updateDuration,
+                            renderInfo.renderDuration, renderInfo.glSkippedCalls,
+                            renderInfo.glIssuedCalls + renderInfo.glSkippedCalls)
+                            + "\n" + renderInfo.frameStats);
         }
     }
 
+    /**
+     * Listens for taps on the render statistics
+     */
+    public void setOnRenderInfoClickListener(OnClickListener listener) {
+        mRenderTextView.setOnClickListener(listener);
+    }
+
     public void setRoomNumber(String roomNumber) {
         if (roomNumber != null) {
             mRoomNumberTextView.setText(roomNumber);
@@ -92,10 +102,10 @@ public class DebugView extends FrameLayout {
         }
     }
 
-    public void setAnchorTracking(Anchor anchor) {
+    public void setAnchorTracking(TrackingState anchorTrackingState) {
         String trackingStateString = null;
-        if (anchor != null) {
-            switch (anchor.getTrackingState()) {
+        if (anchorTrackingState != null) {
+            switch (anchorTrackingState) {
                 case TRACKING:
                     trackingStateString = "Anchor TRACKING";
                     break;
@@ -110,5 +120,32 @@ public class DebugView extends FrameLayout {
         mAnchorTrackingTextView.setText(trackingStateString);
     }
 
+    /**
+     * Render loop statistics published from the GL thread once per frame
+     */
+    public static class RenderInfo {
+
+        final int numPoints;
+
+        final long updateDuration;
+
+        final long renderDuration;
+
+        final int glIssuedCalls;
+
+        final int glSkippedCalls;
+
+        final String frameStats;
+
+        public RenderInfo(int numPoints, long updateDuration, long renderDuration,
+                          int glIssuedCalls, int glSkippedCalls, String frameStats) {
+            this.numPoints = numPoints;
+            this.updateDuration = updateDuration;
+            this.renderDuration = renderDuration;
+            this.glIssuedCalls = glIssuedCalls;
+            this.glSkippedCalls = glSkippedCalls;
+            this.frameStats = frameStats;
+        }
+    }
 
 }
@@ -76,9 +76,9 @@ public class TrackingIndicator extends ConstraintLayout {
 
     private boolean mAnimating = false;
 
-    public TrackingState trackingState;
+    public volatile TrackingState trackingState;
 
-    private TrackingState anchorTrackingState;
+    private volatile TrackingState anchorTrackingState;
 
     private DrawPrompt mDrawPrompt;
 
@@ -96,10 +96,16 @@ public class TrackingIndicator extends ConstraintLayout {
 
     private boolean mDrawPromptEnabled = true;
 
-    private boolean mShowPairedSessionDrawPrompt = false;
+    private volatile boolean mShowPairedSessionDrawPrompt = false;
 
     private boolean anchorTrackingMessageEnabled = false;
 
+    // Created while attached to the window, published to from the GL thread
+    private volatile UiUpdateDispatcher.Slot<TrackingState> mTrackingStateSlot;
+
+    private volatile UiUpdateDispatcher.Slot<Boolean> mDrawnInSessionSlot;
+
+    private volatile boolean bRepublishStates = false;
 
     public TrackingIndicator(Context context) {
         super(context);
@@ -137,10 +143,42 @@ public class TrackingIndicator extends ConstraintLayout {
             public void run() {
                 Log.d(TAG, "tracking timeout, escalate");
                 mNotTrackingEscalated = true;
+                updateUI();
             }
         };
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        UiUpdateDispatcher dispatcher = UiUpdateDispatcher.get();
+        mTrackingStateSlot = dispatcher.createSlot(new UiUpdateDispatcher.Applier<TrackingState>() {
+            @Override
+            public void apply(TrackingState value) {
+                applyTrackingStates();
+            }
+        });
+        mDrawnInSessionSlot = dispatcher.createSlot(new UiUpdateDispatcher.Applier<Boolean>() {
+            @Override
+            public void apply(Boolean value) {
+                mShowPairedSessionDrawPrompt = false;
+                setHasStrokes(true);
+            }
+        });
+        // states that changed while detached were not applied
+        bRepublishStates = true;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        UiUpdateDispatcher dispatcher = UiUpdateDispatcher.get();
+        dispatcher.removeSlot(mTrackingStateSlot);
+        dispatcher.removeSlot(mDrawnInSessionSlot);
+        mTrackingStateSlot = null;
+        mDrawnInSessionSlot = null;
+        super.onDetachedFromWindow();
+    }
+
     private void setState(final int state) {
         final int prevState = mState;
         mState = state;
@@ -289,16 +327,42 @@ public class TrackingIndicator extends ConstraintLayout {
                 (anchorTrackingState == null || anchorTrackingState == TrackingState.TRACKING);
     }
 
+    /**
+     * Cancels the not tracking escalation. Must be called on the UI thread.
+     */
     public void resetTrackingTimeout() {
+        clearTrackingTimeout();
+
+        // the last states are kept, the next frame publishes them again to restart the
+        // escalation if needed
+        bRepublishStates = true;
+    }
+
+    private void clearTrackingTimeout() {
         mNotTrackingEscalating = false;
         mNotTrackingEscalated = false;
         mHandler.removeCallbacks(mTrackingIndicatorTimeoutRunnable);
     }
 
+    /**
+     * Called on the GL thread every frame. Only publishes to the UI thread when the camera or
+     * anchor tracking state changes, and changes within a single vsync are coalesced.
+     */
     public void setTrackingStates(Frame frame, Anchor anchor) {
-        trackingState = frame.getCamera().getTrackingState();
-        anchorTrackingState = anchor == null ? null : anchor.getTrackingState();
+        TrackingState cameraState = frame.getCamera().getTrackingState();
+        TrackingState anchorState = anchor == null ? null : anchor.getTrackingState();
+
+        UiUpdateDispatcher.Slot<TrackingState> slot = mTrackingStateSlot;
+        if (slot != null && (bRepublishStates || cameraState != trackingState
+                || anchorState != anchorTrackingState)) {
+            bRepublishStates = false;
+            trackingState = cameraState;
+            anchorTrackingState = anchorState;
+            slot.publish(cameraState);
+        }
+    }
 
+    private void applyTrackingStates() {
         if (trackingState != TrackingState.TRACKING && !mNotTrackingEscalating) {
             mNotTrackingEscalating = true;
             mHandler.postDelayed(mTrackingIndicatorTimeoutRunnable,
@@ -306,7 +370,7 @@ public class TrackingIndicator extends ConstraintLayout {
         }
 
         if (trackingState == TrackingState.TRACKING) {
-            resetTrackingTimeout();
+            clearTrackingTimeout();
         }
 
         updateUI();
@@ -331,15 +395,17 @@ public class TrackingIndicator extends ConstraintLayout {
     }
 
 
+    /**
+     * Called on the GL thread when a stroke is added, the UI is updated on the next vsync
+     */
     public void setDrawnInSession() {
         Log.d(TAG, "setDrawnInSession: ");
         bHasDrawnInSession.set(true);
 
-        if (mShowPairedSessionDrawPrompt) {
-            mShowPairedSessionDrawPrompt = false;
+        UiUpdateDispatcher.Slot<Boolean> slot = mDrawnInSessionSlot;
+        if (slot != null) {
+            slot.publish(Boolean.TRUE);
         }
-
-        setHasStrokes(true);
     }
 
     public void setShowPairedSessionDrawPrompt(boolean showPairedSessionDrawPrompt) {
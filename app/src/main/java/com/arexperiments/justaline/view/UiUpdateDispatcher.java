@@ -0,0 +1,140 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.view;
+
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Coalesces UI updates published from the GL thread.
+ * <p>
+ * The render loop publishes its latest state into {@link Slot}s. At most one
+ * {@link Choreographer} callback per vsync is scheduled on the UI thread, and it applies only the
+ * most recent value of every slot that changed since the previous callback. This keeps the main
+ * thread message queue from filling up with one runnable per rendered frame.
+ */
+public class UiUpdateDispatcher implements Choreographer.FrameCallback {
+
+    private static volatile UiUpdateDispatcher instance = null;
+
+    private final Choreographer mChoreographer;
+
+    private final List<Slot<?>> mSlots = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+
+    /**
+     * Returns the dispatcher for the UI thread. The first call must be made on the UI thread.
+     */
+    public static UiUpdateDispatcher get() {
+        if (instance == null) {
+            instance = getSync();
+        }
+        return instance;
+    }
+
+    private static synchronized UiUpdateDispatcher getSync() {
+        if (instance == null) {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                throw new IllegalStateException("UiUpdateDispatcher must be created on the UI thread");
+            }
+            instance = new UiUpdateDispatcher();
+        }
+        return instance;
+    }
+
+    private UiUpdateDispatcher() {
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Creates a slot whose values are applied on the UI thread by the given applier
+     */
+    public <T> Slot<T> createSlot(Applier<T> applier) {
+        Slot<T> slot = new Slot<>(this, applier);
+        mSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Stops applying values published to the slot. Owners remove their slots when they are
+     * destroyed, as the dispatcher outlives them and the appliers reference their views.
+     */
+    public void removeSlot(Slot<?> slot) {
+        mSlots.remove(slot);
+    }
+
+    private void scheduleFrame() {
+        // Choreographer is thread safe, and only the first publish of a vsync posts a callback
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Clear the flag before draining so values published while applying schedule another frame
+        mFrameScheduled.set(false);
+
+        for (Slot<?> slot : mSlots) {
+            slot.apply();
+        }
+    }
+
+    /**
+     * Applies a published value on the UI thread
+     */
+    public interface Applier<T> {
+
+        void apply(T value);
+    }
+
+    /**
+     * Holds the latest value published for one piece of UI state. Publishing is safe from any
+     * thread, intermediate values published within the same vsync are dropped.
+     */
+    public static class Slot<T> {
+
+        private final UiUpdateDispatcher mDispatcher;
+
+        private final Applier<T> mApplier;
+
+        private final AtomicReference<T> mValue = new AtomicReference<>();
+
+        private final AtomicBoolean mDirty = new AtomicBoolean(false);
+
+        private Slot(UiUpdateDispatcher dispatcher, Applier<T> applier) {
+            mDispatcher = dispatcher;
+            mApplier = applier;
+        }
+
+        public void publish(T value) {
+            mValue.set(value);
+            mDirty.set(true);
+            mDispatcher.scheduleFrame();
+        }
+
+        private void apply() {
+            if (mDirty.getAndSet(false)) {
+                mApplier.apply(mValue.get());
+            }
+        }
+    }
+}
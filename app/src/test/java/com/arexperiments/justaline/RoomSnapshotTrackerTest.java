@@ -0,0 +1,201 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline;
+
+import com.arexperiments.justaline.model.RoomSnapshot;
+import com.arexperiments.justaline.model.Stroke;
+import com.arexperiments.justaline.model.StrokeCodec;
+import com.arexperiments.justaline.transport.TestSnapshots;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoomSnapshotTrackerTest {
+
+    private static final long INTERVAL_MS = 60000;
+
+    private final RoomSnapshotTracker mTracker = new RoomSnapshotTracker();
+
+    // The snapshot node as the database stores it
+    private final Map<String, Object> mSnapshot = new HashMap<>();
+
+    private final Random mRandom = new Random(1);
+
+    private long mNow = INTERVAL_MS;
+
+    private static String key(int index) {
+        return String.format(Locale.US, "line%05d", index);
+    }
+
+    private Stroke stroke(int count) {
+        ArrayList<Vector3f> points = new ArrayList<>();
+        float x = mRandom.nextFloat();
+        for (int i = 0; i < count; i++) {
+            x += mRandom.nextFloat() * 0.01f;
+            points.add(new Vector3f(x, mRandom.nextFloat(), mRandom.nextFloat()));
+        }
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(0.011f);
+        stroke.creator = "uid";
+        stroke.restorePoints(points, true);
+        return stroke;
+    }
+
+    private void addLines(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mTracker.onLine(key(i), TestSnapshots.of(key(i),
+                    StrokeCodec.toFirebaseValue(stroke(500))), mNow);
+        }
+    }
+
+    /**
+     * @return the children written by the update
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> write() {
+        mNow += INTERVAL_MS;
+        Map<String, Object> update = mTracker.takeSnapshotIfDue(mNow);
+        if (update == null) {
+            return null;
+        }
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            String[] keys = entry.getKey().split("/");
+            if (keys.length == 1) {
+                mSnapshot.put(keys[0], entry.getValue());
+                continue;
+            }
+            Map<String, Object> parts = (Map<String, Object>) mSnapshot.get(keys[0]);
+            if (entry.getValue() == null) {
+                parts.remove(keys[1]);
+            } else {
+                parts.put(keys[1], entry.getValue());
+            }
+        }
+        return update;
+    }
+
+    private List<String> readKeys() {
+        List<String> keys = new ArrayList<>();
+        for (RoomSnapshot.Line line : RoomSnapshot.decode(TestSnapshots.of("snapshot",
+                mSnapshot))) {
+            keys.add(line.key);
+        }
+        return keys;
+    }
+
+    private static List<String> keys(int from, int to) {
+        List<String> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add(key(i));
+        }
+        return keys;
+    }
+
+    @Test
+    public void writesOnlyChangedParts() {
+        addLines(0, 400);
+        Map<String, Object> update = write();
+        assertTrue(update.containsKey(RoomSnapshot.KEY_PARTS));
+        int parts = ((Number) update.get(RoomSnapshot.KEY_PART_COUNT)).intValue();
+        assertTrue("parts " + parts, parts >= 3);
+        assertEquals(keys(0, 400), readKeys());
+
+        // new lines go to the last part and the parts after it
+        addLines(400, 430);
+        update = write();
+        assertFalse(update.containsKey(RoomSnapshot.KEY_PARTS));
+        assertFalse(update.containsKey(RoomSnapshot.KEY_PARTS + "/0"));
+        assertTrue(update.containsKey(RoomSnapshot.KEY_PARTS + "/" + (parts - 1)));
+        assertEquals(keys(0, 430), readKeys());
+
+        // a removal rewrites the part of the line
+        for (int i = 0; i < 20; i++) {
+            mTracker.onLineRemoved(key(i));
+        }
+        update = write();
+        assertTrue(update.containsKey(RoomSnapshot.KEY_PARTS + "/0"));
+        assertFalse(update.containsKey(RoomSnapshot.KEY_PARTS + "/1"));
+        assertEquals(keys(20, 430), readKeys());
+    }
+
+    @Test
+    public void boundsPartSize() {
+        addLines(0, 600);
+        write();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> parts = (Map<String, Object>) mSnapshot.get(RoomSnapshot.KEY_PARTS);
+        for (Object part : parts.values()) {
+            assertTrue(((String) part).length() <= RoomSnapshot.MAX_PART_BYTES * 4 / 3 + 4);
+        }
+    }
+
+    @Test
+    public void endsBeforeUnfinishedLines() {
+        addLines(0, 30);
+        Stroke drawn = stroke(10);
+        drawn.finished = false;
+        Map<String, Object> log = new HashMap<>();
+        mTracker.onLine(key(30), TestSnapshots.of(key(30), StrokeCodec.toLogValue(drawn, log,
+                StrokeCodec.encodeRange(drawn.getPoints(), 0, 10))), mNow);
+        addLines(31, 60);
+        write();
+        assertEquals(keys(0, 30), readKeys());
+
+        // the lines after it are appended once it is finished
+        addLines(30, 31);
+        addLines(60, 80);
+        write();
+        assertEquals(keys(0, 80), readKeys());
+    }
+
+    @Test
+    public void writesWholeAfterInvalidation() {
+        addLines(0, 30);
+        write();
+        mSnapshot.clear();
+        mTracker.invalidateWritten();
+        addLines(30, 50);
+        write();
+        assertEquals(keys(0, 50), readKeys());
+    }
+
+    @Test
+    public void snapshotsQuietLegacyLines() {
+        addLines(0, 20);
+        Stroke legacy = stroke(30);
+        mTracker.onLine(key(20), TestSnapshots.of(key(20), legacy), mNow);
+        addLines(21, 40);
+        mNow -= INTERVAL_MS;
+        write();
+        // the legacy line changed too recently, and blocks the lines after it
+        assertEquals(keys(0, 20), readKeys());
+
+        addLines(40, 60);
+        write();
+        assertEquals(keys(0, 60), readKeys());
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GlbWriterTest {
+
+    private static final int VERTEX_STRIDE = 6 * 4;
+
+    @Test
+    public void writesValidChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GlbWriter().write(TestMeshes.small(), out);
+        ByteBuffer glb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(0x46546c67, glb.getInt());
+        assertEquals(2, glb.getInt());
+        assertEquals(glb.capacity(), glb.getInt());
+
+        int jsonLength = glb.getInt();
+        assertEquals(0x4e4f534a, glb.getInt());
+        assertEquals(0, jsonLength % 4);
+        byte[] jsonBytes = new byte[jsonLength];
+        glb.get(jsonBytes);
+        String json = new String(jsonBytes, Charset.forName("UTF-8"));
+
+        assertEquals(0, glb.position() % 4);
+        int binLength = glb.getInt();
+        assertEquals(0x004e4942, glb.getInt());
+        int vertexBytes = TestMeshes.VERTEX_COUNT * VERTEX_STRIDE;
+        int indexBytes = TestMeshes.TRIANGLE_COUNT * 3 * 4;
+        assertEquals(vertexBytes + indexBytes, binLength);
+        assertEquals(glb.capacity(), glb.position() + binLength);
+        assertEquals(vertexBytes + indexBytes, intValue(json, "\"buffers\":\\[\\{\"byteLength\":"));
+
+        // positions, normals and indices
+        Matcher counts = Pattern.compile("\"count\":(\\d+)").matcher(json);
+        int[] expectedCounts = {TestMeshes.VERTEX_COUNT, TestMeshes.VERTEX_COUNT,
+                TestMeshes.TRIANGLE_COUNT * 3};
+        for (int expected : expectedCounts) {
+            assertTrue(counts.find());
+            assertEquals(expected, Integer.parseInt(counts.group(1)));
+        }
+
+        // the bounds of the positions are the ones in the binary chunk
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        int bin = glb.position();
+        for (int i = 0; i < TestMeshes.VERTEX_COUNT; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float value = glb.getFloat(bin + i * VERTEX_STRIDE + axis * 4);
+                min[axis] = Math.min(min[axis], value);
+                max[axis] = Math.max(max[axis], value);
+            }
+        }
+        float[] jsonMin = floats(json, "\"min\":\\[([^\\]]*)\\]");
+        float[] jsonMax = floats(json, "\"max\":\\[([^\\]]*)\\]");
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(min[axis], jsonMin[axis], 0);
+            assertEquals(max[axis], jsonMax[axis], 0);
+        }
+        // the anchored line is offset by its pose
+        assertEquals(3.1f, max[2], 0.02f);
+
+        for (int i = 0; i < TestMeshes.TRIANGLE_COUNT * 3; i++) {
+            int index = glb.getInt(bin + vertexBytes + i * 4);
+            assertTrue(index >= 0 && index < TestMeshes.VERTEX_COUNT);
+        }
+    }
+
+    private static int intValue(String json, String prefix) {
+        Matcher matcher = Pattern.compile(prefix + "(\\d+)").matcher(json);
+        assertTrue(matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static float[] floats(String json, String pattern) {
+        Matcher matcher = Pattern.compile(pattern).matcher(json);
+        assertTrue(matcher.find());
+        String[] values = matcher.group(1).split(",");
+        assertEquals(3, values.length);
+        float[] floats = new float[3];
+        for (int i = 0; i < 3; i++) {
+            floats[i] = Float.parseFloat(values[i]);
+        }
+        return floats;
+    }
+}
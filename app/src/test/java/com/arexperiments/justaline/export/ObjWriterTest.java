@@ -0,0 +1,62 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObjWriterTest {
+
+    @Test
+    public void writesVerticesAndFaces() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjWriter().write(TestMeshes.small(), out);
+        String text = new String(out.toByteArray(), Charset.forName("US-ASCII"));
+
+        int objects = 0, vertices = 0, normals = 0, faces = 0;
+        for (String line : text.split("\n")) {
+            String[] fields = line.split(" ");
+            if (fields[0].equals("o")) {
+                objects++;
+            } else if (fields[0].equals("v")) {
+                assertEquals(4, fields.length);
+                vertices++;
+            } else if (fields[0].equals("vn")) {
+                assertEquals(4, fields.length);
+                normals++;
+            } else if (fields[0].equals("f")) {
+                assertEquals(4, fields.length);
+                for (int i = 1; i < 4; i++) {
+                    String[] indices = fields[i].split("//");
+                    assertEquals(indices[0], indices[1]);
+                    int index = Integer.parseInt(indices[0]);
+                    // OBJ indices start at 1, and only point at vertices written before
+                    assertTrue(index >= 1 && index <= vertices);
+                }
+                faces++;
+            }
+        }
+        assertEquals(2, objects);
+        assertEquals(TestMeshes.VERTEX_COUNT, vertices);
+        assertEquals(TestMeshes.VERTEX_COUNT, normals);
+        assertEquals(TestMeshes.TRIANGLE_COUNT, faces);
+    }
+}
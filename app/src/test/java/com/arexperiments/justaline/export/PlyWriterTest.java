@@ -0,0 +1,59 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlyWriterTest {
+
+    @Test
+    public void writesVerticesAndFaces() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PlyWriter().write(TestMeshes.small(), out);
+        byte[] bytes = out.toByteArray();
+
+        String text = new String(bytes, Charset.forName("US-ASCII"));
+        String end = "end_header\n";
+        int headerLength = text.indexOf(end) + end.length();
+        assertTrue(headerLength > end.length());
+        String header = text.substring(0, headerLength);
+        assertTrue(header.startsWith("ply\nformat binary_little_endian 1.0\n"));
+        assertTrue(header.contains("element vertex " + TestMeshes.VERTEX_COUNT + "\n"));
+        assertTrue(header.contains("element face " + TestMeshes.TRIANGLE_COUNT + "\n"));
+
+        // six floats per vertex, then a count and three indices per face
+        ByteBuffer body = ByteBuffer.wrap(bytes, headerLength, bytes.length - headerLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(TestMeshes.VERTEX_COUNT * 6 * 4 + TestMeshes.TRIANGLE_COUNT * 13,
+                body.remaining());
+        body.position(headerLength + TestMeshes.VERTEX_COUNT * 6 * 4);
+        for (int i = 0; i < TestMeshes.TRIANGLE_COUNT; i++) {
+            assertEquals(3, body.get());
+            for (int j = 0; j < 3; j++) {
+                int index = body.getInt();
+                assertTrue(index >= 0 && index < TestMeshes.VERTEX_COUNT);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.export;
+
+import com.google.ar.core.Pose;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Small meshes for the tests of the {@link MeshWriter}s
+ */
+public class TestMeshes {
+
+    // The mesh has two lines of 3 and 4 points, each point becomes two vertices
+    public static final int VERTEX_COUNT = 14;
+
+    public static final int TRIANGLE_COUNT = 10;
+
+    private TestMeshes() {
+    }
+
+    /**
+     * @return a mesh of two lines, one of them relative to an anchor, and a skipped single point
+     */
+    public static LineMesh small() {
+        LineMesh mesh = new LineMesh(new Vector3f(0, 1.5f, 2), new float[]{1, 0.5f, 0});
+        List<Vector3f> line = points(0, 0, 0, 0.1f, 0.05f, 0, 0.2f, 0, 0.02f);
+        mesh.addLine(line, line.size(), 0.01f, null);
+        List<Vector3f> anchored = points(0, 0, 0, 0, 0.1f, 0, 0.05f, 0.2f, 0, 0.1f, 0.2f, 0.1f);
+        mesh.addLine(anchored, anchored.size(), 0.02f,
+                new Pose(new float[]{1, 2, 3}, new float[]{0, 0, 0, 1}));
+        mesh.addLine(points(5, 5, 5), 1, 0.01f, null);
+        return mesh;
+    }
+
+    private static List<Vector3f> points(float... coordinates) {
+        List<Vector3f> points = new ArrayList<>();
+        for (int i = 0; i < coordinates.length; i += 3) {
+            points.add(new Vector3f(coordinates[i], coordinates[i + 1], coordinates[i + 2]));
+        }
+        return points;
+    }
+}
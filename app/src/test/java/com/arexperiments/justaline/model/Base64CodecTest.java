@@ -0,0 +1,64 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Base64CodecTest {
+
+    @Test
+    public void matchesRfc4648Vectors() {
+        String[][] vectors = {{"", ""}, {"f", "Zg=="}, {"fo", "Zm8="}, {"foo", "Zm9v"},
+                {"foob", "Zm9vYg=="}, {"fooba", "Zm9vYmE="}, {"foobar", "Zm9vYmFy"}};
+        for (String[] vector : vectors) {
+            byte[] bytes = vector[0].getBytes(Charset.forName("US-ASCII"));
+            assertEquals(vector[1], Base64Codec.encode(bytes));
+            assertTrue(Arrays.equals(bytes, Base64Codec.decode(vector[1])));
+        }
+    }
+
+    @Test
+    public void roundTripsBytes() {
+        Random random = new Random(1);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length + 2];
+            random.nextBytes(bytes);
+            String encoded = Base64Codec.encode(bytes, 1, length);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 1, length + 1),
+                    Base64Codec.decode(encoded)));
+            assertTrue(Arrays.equals(Base64Codec.decode(encoded),
+                    Base64Codec.decode(encoded.replace("=", ""))));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidInput() {
+        for (String encoded : new String[]{"Zm9v!", "Z", "Zm9vY===", "Zm\n9v"}) {
+            try {
+                Base64Codec.decode(encoded);
+                fail(encoded + " was decoded");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
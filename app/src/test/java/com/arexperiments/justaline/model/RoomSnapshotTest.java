@@ -0,0 +1,158 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.TestSnapshots;
+import com.google.firebase.database.DatabaseException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class RoomSnapshotTest {
+
+    private static Stroke stroke(int count, String creator) {
+        Random random = new Random(count);
+        ArrayList<Vector3f> points = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            points.add(new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat()));
+        }
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(0.011f);
+        stroke.creator = creator;
+        stroke.restorePoints(points, true);
+        return stroke;
+    }
+
+    private static Map<String, Object> legacyValue(Stroke stroke, boolean finished) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("points", stroke.getPoints());
+        value.put(StrokeCodec.KEY_LINE_WIDTH, stroke.getLineWidth());
+        if (stroke.creator != null) {
+            value.put(StrokeCodec.KEY_CREATOR, stroke.creator);
+        }
+        if (finished) {
+            value.put(StrokeCodec.KEY_FINISHED, true);
+        }
+        return value;
+    }
+
+    private static Map<String, Object> snapshotValue(List<RoomSnapshot.Line> lines) {
+        Map<String, Object> value = RoomSnapshot.header(lines.get(lines.size() - 1).key,
+                lines.size(), 1);
+        value.put(RoomSnapshot.KEY_PARTS,
+                Collections.singletonMap("0", RoomSnapshot.encodePart(lines)));
+        return value;
+    }
+
+    private static void assertSameLine(Stroke expected, RoomSnapshot.Line line) {
+        Stroke stroke = line.toStroke();
+        assertEquals(expected.creator, stroke.creator);
+        assertEquals(expected.getLineWidth(), stroke.getLineWidth(), 1e-6f);
+        assertEquals(expected.size(), stroke.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).x, stroke.get(i).x, StrokeCodec.QUANTUM);
+            assertEquals(expected.get(i).z, stroke.get(i).z, StrokeCodec.QUANTUM);
+        }
+    }
+
+    @Test
+    public void readsFinishedLinesInEitherFormat() {
+        Stroke compact = stroke(100, "a");
+        Stroke legacy = stroke(70, "b");
+        RoomSnapshot.Line compactLine = RoomSnapshot.readLine("k1",
+                TestSnapshots.of("k1", StrokeCodec.toFirebaseValue(compact)));
+        RoomSnapshot.Line legacyLine = RoomSnapshot.readLine("k2",
+                TestSnapshots.of("k2", legacyValue(legacy, true)));
+        assertNull(RoomSnapshot.readLine("k3", TestSnapshots.of("k3", legacyValue(legacy, false))));
+
+        List<RoomSnapshot.Line> lines = RoomSnapshot.decode(TestSnapshots.of("snapshot",
+                snapshotValue(Arrays.asList(compactLine, legacyLine))));
+        assertEquals(2, lines.size());
+        assertEquals("k1", lines.get(0).key);
+        assertSameLine(compact, lines.get(0));
+        assertEquals("k2", lines.get(1).key);
+        assertSameLine(legacy, lines.get(1));
+    }
+
+    @Test
+    public void keepsMissingCreator() {
+        Stroke legacy = stroke(10, null);
+        RoomSnapshot.Line line = RoomSnapshot.fromSnapshot("k",
+                TestSnapshots.of("k", legacyValue(legacy, false)));
+        List<RoomSnapshot.Line> lines = RoomSnapshot.decode(TestSnapshots.of("snapshot",
+                snapshotValue(Collections.singletonList(line))));
+        assertNull(lines.get(0).creator);
+        assertSameLine(legacy, lines.get(0));
+    }
+
+    @Test
+    public void rejectsIncompleteSnapshots() {
+        RoomSnapshot.Line line = RoomSnapshot.readLine("k",
+                TestSnapshots.of("k", StrokeCodec.toFirebaseValue(stroke(10, "a"))));
+        Map<String, Object> value = snapshotValue(Collections.singletonList(line));
+        value.put(RoomSnapshot.KEY_PART_COUNT, 2);
+        assertRejected(value);
+
+        value = snapshotValue(Collections.singletonList(line));
+        value.put(RoomSnapshot.KEY_COUNT, 2);
+        assertRejected(value);
+    }
+
+    @Test
+    public void rejectsLengthsPastTheData() throws IOException {
+        for (int[] lengths : new int[][]{{Integer.MAX_VALUE, 0, 0}, {1, Integer.MAX_VALUE, 0},
+                {1, 1, Integer.MAX_VALUE}, {1, 1, -1}}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(lengths[0]);
+            out.writeUTF("k");
+            out.writeUTF("a");
+            out.writeFloat(0.01f);
+            out.writeInt(lengths[1]);
+            out.writeInt(lengths[2]);
+            out.write(new byte[8]);
+            out.flush();
+
+            Map<String, Object> value = RoomSnapshot.header("k", 1, 1);
+            value.put(RoomSnapshot.KEY_PARTS,
+                    Collections.singletonMap("0", Base64Codec.encode(bytes.toByteArray())));
+            assertRejected(value);
+        }
+    }
+
+    private static void assertRejected(Map<String, Object> value) {
+        try {
+            RoomSnapshot.decode(TestSnapshots.of("snapshot", value));
+            fail("Malformed snapshot was decoded");
+        } catch (DatabaseException expected) {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.arexperiments.justaline.transport.TestSnapshots;
+import com.google.firebase.database.DatabaseException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StrokeCodecTest {
+
+    private static Stroke stroke(int count) {
+        Random random = new Random(count);
+        ArrayList<Vector3f> points = new ArrayList<>();
+        float x = random.nextFloat(), y = random.nextFloat(), z = random.nextFloat();
+        for (int i = 0; i < count; i++) {
+            x += (random.nextFloat() - 0.5f) * 0.01f;
+            y += (random.nextFloat() - 0.5f) * 0.01f;
+            z += (random.nextFloat() - 0.5f) * 0.01f;
+            points.add(new Vector3f(x, y, z));
+        }
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(0.011f);
+        stroke.creator = "uid";
+        stroke.restorePoints(points, true);
+        return stroke;
+    }
+
+    private static void assertRoundTrip(int count) {
+        Stroke stroke = stroke(count);
+        Map<String, Object> value = StrokeCodec.toFirebaseValue(stroke);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> chunks = (Map<String, Object>) value.get(StrokeCodec.KEY_CHUNKS);
+        assertEquals(StrokeCodec.chunkCount(count), chunks.size());
+
+        RoomTransport.Snapshot snapshot = TestSnapshots.of("line", value);
+        assertTrue(StrokeCodec.isCompact(snapshot));
+        assertTrue(StrokeCodec.isFinished(snapshot));
+        Stroke read = StrokeCodec.fromSnapshot(snapshot);
+        assertEquals(stroke.getLineWidth(), read.getLineWidth(), 1e-6f);
+        assertEquals(stroke.creator, read.creator);
+        assertEquals(count, read.size());
+        for (int i = 0; i < count; i++) {
+            // rounding to the quantum, plus float error of the accumulated deltas
+            float tolerance = StrokeCodec.QUANTUM / 2 + 1e-6f;
+            assertEquals(stroke.get(i).x, read.get(i).x, tolerance);
+            assertEquals(stroke.get(i).y, read.get(i).y, tolerance);
+            assertEquals(stroke.get(i).z, read.get(i).z, tolerance);
+        }
+    }
+
+    @Test
+    public void roundTripsEmptyStroke() {
+        assertRoundTrip(0);
+    }
+
+    @Test
+    public void roundTripsSinglePoint() {
+        assertRoundTrip(1);
+    }
+
+    @Test
+    public void roundTripsAroundChunkBoundaries() {
+        int chunk = StrokeCodec.POINTS_PER_CHUNK;
+        for (int count : new int[]{chunk - 1, chunk, chunk + 1, 2 * chunk, 2 * chunk + 1, 1000}) {
+            assertRoundTrip(count);
+        }
+    }
+
+    @Test
+    public void decodesChunksIndependently() {
+        Stroke stroke = stroke(3 * StrokeCodec.POINTS_PER_CHUNK);
+        ArrayList<Vector3f> points = new ArrayList<>();
+        StrokeCodec.decodeChunk(StrokeCodec.encodeChunk(stroke.getPoints(), 2), points);
+        assertEquals(StrokeCodec.POINTS_PER_CHUNK, points.size());
+        Vector3f first = stroke.get(2 * StrokeCodec.POINTS_PER_CHUNK);
+        assertEquals(first.x, points.get(0).x, StrokeCodec.QUANTUM);
+    }
+
+    @Test
+    public void marksOnlyCompactedStrokesFinished() {
+        Stroke stroke = stroke(100);
+        Map<String, Object> log = new HashMap<>();
+        log.put("0", StrokeCodec.encodeRange(stroke.getPoints(), 0, 90));
+        String tail = StrokeCodec.encodeRange(stroke.getPoints(), 90, 100);
+        RoomTransport.Snapshot drawn = TestSnapshots.of("line",
+                StrokeCodec.toLogValue(stroke, log, tail));
+        assertFalse(StrokeCodec.isFinished(drawn));
+        assertEquals(100, StrokeCodec.fromSnapshot(drawn).size());
+
+        assertTrue(StrokeCodec.isFinished(TestSnapshots.of("line",
+                StrokeCodec.toFirebaseValue(stroke(0)))));
+        assertFalse(StrokeCodec.isCompact(TestSnapshots.of("line", stroke)));
+    }
+
+    @Test
+    public void readsLegacyStrokes() {
+        Stroke stroke = stroke(10);
+        Stroke read = StrokeCodec.fromSnapshot(TestSnapshots.of("line", stroke));
+        assertEquals(10, read.size());
+        assertEquals(stroke.get(9).x, read.get(9).x, 0);
+    }
+
+    @Test
+    public void isSmallerThanLegacy() {
+        Stroke stroke = stroke(500);
+        int compact = TestSnapshots.size(StrokeCodec.toFirebaseValue(stroke));
+        int legacy = TestSnapshots.size(stroke);
+        assertTrue("compact " + compact + " legacy " + legacy, compact * 4 < legacy);
+    }
+
+    @Test
+    public void rejectsMalformedChunks() {
+        for (String chunk : new String[]{"not base64!", "gA=="}) {
+            try {
+                StrokeCodec.decodeChunk(chunk, new ArrayList<Vector3f>());
+                fail(chunk + " was decoded");
+            } catch (DatabaseException expected) {
+            }
+        }
+    }
+}
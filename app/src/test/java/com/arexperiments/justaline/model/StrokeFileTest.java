@@ -0,0 +1,170 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.google.ar.core.Pose;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StrokeFileTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static Stroke stroke(Random random, int count, float step, int bucket,
+                                 boolean finished) {
+        ArrayList<Vector3f> points = new ArrayList<>();
+        float x = random.nextFloat() * 10, y = random.nextFloat(), z = random.nextFloat();
+        for (int i = 0; i < count; i++) {
+            x += random.nextFloat() * step;
+            y += random.nextFloat() * step;
+            points.add(new Vector3f(x, y, z));
+        }
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(0.01f + bucket * 0.01f);
+        stroke.bucket = bucket;
+        stroke.restorePoints(points, finished);
+        return stroke;
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        Random random = new Random(1);
+        List<Stroke> strokes = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            strokes.add(stroke(random, 1 + random.nextInt(200), 0.005f, i % 3, i != 49));
+        }
+        File file = mFolder.newFile();
+        int size = StrokeFile.write(file, strokes, new Pose[]{Pose.IDENTITY, null, null}, 7);
+        assertEquals(file.length(), size);
+
+        StrokeFile.Reader reader = StrokeFile.open(file);
+        assertEquals(7, reader.getSequence());
+        assertEquals(strokes.size(), reader.getStrokeCount());
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke expected = strokes.get(i);
+            Stroke stroke = reader.read(i);
+            assertEquals(expected.size(), reader.getPointCount(i));
+            assertEquals(expected.size(), stroke.size());
+            assertEquals(expected.getLineWidth(), stroke.getLineWidth(), 0);
+            assertEquals(expected.finished, stroke.finished);
+            for (int j = 0; j < stroke.size(); j++) {
+                Vector3f error = new Vector3f(stroke.get(j));
+                error.sub(expected.get(j));
+                assertTrue("point " + j + " of stroke " + i,
+                        error.length() <= StrokeCodec.QUANTUM);
+            }
+        }
+    }
+
+    @Test
+    public void keepsFloatsForLargeStrokes() throws IOException {
+        ArrayList<Vector3f> points = new ArrayList<>(Arrays.asList(
+                new Vector3f(-5, 0, 0), new Vector3f(5, 0.123456f, 0)));
+        Stroke stroke = new Stroke();
+        stroke.restorePoints(points, true);
+        File file = mFolder.newFile();
+        StrokeFile.write(file, Collections.singletonList(stroke), new Pose[]{Pose.IDENTITY}, 0);
+
+        Stroke read = StrokeFile.open(file).read(0);
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.get(i).x, read.get(i).x, 0);
+            assertEquals(points.get(i).y, read.get(i).y, 0);
+            assertEquals(points.get(i).z, read.get(i).z, 0);
+        }
+    }
+
+    @Test
+    public void quantizesStrokesAtTheLimit() throws IOException {
+        // far from the origin the center of a stroke is rounded, and a point can end up further
+        // from it than half the extent of the stroke
+        List<Stroke> strokes = new ArrayList<>();
+        for (float origin = 1; origin < 10000; origin = origin * 1.013f + 0.37f) {
+            float end = origin + 2 * Short.MAX_VALUE * StrokeCodec.QUANTUM;
+            while ((end - origin) / 2 >= Short.MAX_VALUE * StrokeCodec.QUANTUM) {
+                end = Math.nextDown(end);
+            }
+            Stroke stroke = new Stroke();
+            stroke.restorePoints(new ArrayList<>(Arrays.asList(new Vector3f(origin, 0, 0),
+                    new Vector3f(end, 0, 0))), true);
+            strokes.add(stroke);
+        }
+        File file = mFolder.newFile();
+        StrokeFile.write(file, strokes, new Pose[]{Pose.IDENTITY}, 0);
+
+        StrokeFile.Reader reader = StrokeFile.open(file);
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke stroke = reader.read(i);
+            for (int j = 0; j < stroke.size(); j++) {
+                float expected = strokes.get(i).get(j).x;
+                // the coordinates themselves are only as precise as a float
+                assertEquals("point " + j + " of stroke " + i, expected, stroke.get(j).x,
+                        StrokeCodec.QUANTUM + Math.ulp(expected));
+            }
+        }
+    }
+
+    @Test
+    public void keepsBucketPoses() throws IOException {
+        Random random = new Random(2);
+        Pose pose = new Pose(new float[]{1, 2, 3}, new float[]{0, 0.7071068f, 0, 0.7071068f});
+        List<Stroke> strokes = Arrays.asList(stroke(random, 10, 0.01f, 0, true),
+                stroke(random, 10, 0.01f, 1, true), stroke(random, 10, 0.01f, 2, true));
+        File file = mFolder.newFile();
+        StrokeFile.write(file, strokes, new Pose[]{Pose.IDENTITY, pose, null}, 0);
+
+        StrokeFile.Reader reader = StrokeFile.open(file);
+        assertSame(Pose.IDENTITY, reader.getBucketPose(0));
+        assertEquals(pose.tx(), reader.getBucketPose(1).tx(), 0);
+        assertEquals(pose.tz(), reader.getBucketPose(1).tz(), 0);
+        assertEquals(pose.qy(), reader.getBucketPose(1).qy(), 0);
+        assertEquals(pose.qw(), reader.getBucketPose(1).qw(), 0);
+        assertSame(Pose.IDENTITY, reader.getBucketPose(2));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        File file = mFolder.newFile();
+        StrokeFile.write(file, Collections.singletonList(stroke(new Random(3), 20, 0.01f, 0,
+                true)), new Pose[]{Pose.IDENTITY}, 0);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(out.length() - 4);
+        out.close();
+
+        try {
+            StrokeFile.open(file);
+            fail("Truncated file was opened");
+        } catch (IOException expected) {
+        }
+    }
+}
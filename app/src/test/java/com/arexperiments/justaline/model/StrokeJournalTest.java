@@ -0,0 +1,200 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.google.ar.core.Pose;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StrokeJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mJournal = mFolder.newFile();
+    }
+
+    private void append(byte[]... records) throws IOException {
+        OutputStream out = new FileOutputStream(mJournal, true);
+        try {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Stroke stroke(float start, int count, boolean finished) {
+        ArrayList<Vector3f> points = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            points.add(new Vector3f(start + i * 0.01f, i * 0.005f, 0));
+        }
+        Stroke stroke = new Stroke();
+        stroke.setLineWidth(0.02f);
+        stroke.restorePoints(points, finished);
+        return stroke;
+    }
+
+    private static void assertPoints(Stroke expected, Stroke stroke) {
+        assertEquals(expected.size(), stroke.size());
+        for (int i = 0; i < stroke.size(); i++) {
+            assertPoint(expected.get(i), stroke.get(i));
+        }
+    }
+
+    private static void assertPoint(Vector3f expected, Vector3f point) {
+        assertEquals(expected.x, point.x, 0);
+        assertEquals(expected.y, point.y, 0);
+        assertEquals(expected.z, point.z, 0);
+    }
+
+    @Test
+    public void replaysRecords() throws IOException {
+        Stroke first = stroke(0, 20, true);
+        Stroke second = stroke(1, 30, false);
+        Pose pose = new Pose(new float[]{1, 0, 0}, new float[]{0, 0, 0, 1});
+        append(StrokeJournal.header(0),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.points(stroke(0, 10, false), 0),
+                StrokeJournal.points(first, 5),
+                StrokeJournal.finish(),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.pose(pose),
+                StrokeJournal.points(second, 0));
+
+        StrokeJournal.Replay replay = StrokeJournal.replay(mJournal, null);
+        assertNotNull(replay);
+        assertEquals(7, replay.getRecordCount());
+        assertEquals(mJournal.length(), replay.getValidLength());
+        assertEquals(2, replay.getStrokeCount());
+        assertPoints(first, replay.read(0));
+        assertTrue(replay.read(0).finished);
+        assertPoints(second, replay.read(1));
+        assertFalse(replay.read(1).finished);
+        assertSame(Pose.IDENTITY, replay.getBucketPose(0));
+        assertEquals(1, replay.getBucketPose(1).tx(), 0);
+    }
+
+    @Test
+    public void appliesUndoAndClear() throws IOException {
+        append(StrokeJournal.header(0),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.points(stroke(0, 10, false), 0),
+                StrokeJournal.finish(),
+                StrokeJournal.clear(),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.points(stroke(1, 10, false), 0),
+                StrokeJournal.finish(),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.points(stroke(2, 10, false), 0),
+                StrokeJournal.undo());
+
+        StrokeJournal.Replay replay = StrokeJournal.replay(mJournal, null);
+        assertEquals(1, replay.getStrokeCount());
+        assertPoints(stroke(1, 10, false), replay.read(0));
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        append(StrokeJournal.header(0),
+                StrokeJournal.newStroke(0.02f),
+                StrokeJournal.points(stroke(0, 10, false), 0));
+        long valid = mJournal.length();
+        byte[] torn = StrokeJournal.points(stroke(0, 20, false), 10);
+        byte[] partial = new byte[torn.length - 3];
+        System.arraycopy(torn, 0, partial, 0, partial.length);
+        append(partial);
+
+        StrokeJournal.Replay replay = StrokeJournal.replay(mJournal, null);
+        assertEquals(2, replay.getRecordCount());
+        assertEquals(valid, replay.getValidLength());
+        assertPoints(stroke(0, 10, false), replay.read(0));
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws IOException {
+        byte[] corrupt = StrokeJournal.points(stroke(0, 10, false), 0);
+        corrupt[corrupt.length - 1] ^= 1;
+        append(StrokeJournal.header(0), StrokeJournal.newStroke(0.02f), corrupt,
+                StrokeJournal.finish());
+
+        StrokeJournal.Replay replay = StrokeJournal.replay(mJournal, null);
+        assertEquals(1, replay.getRecordCount());
+        assertEquals(0, replay.read(0).size());
+    }
+
+    @Test
+    public void ignoresJournalOfOtherCheckpoint() throws IOException {
+        File file = mFolder.newFile();
+        StrokeFile.write(file, Collections.singletonList(stroke(0, 10, true)),
+                new Pose[]{Pose.IDENTITY}, 2);
+        append(StrokeJournal.header(1), StrokeJournal.newStroke(0.02f));
+
+        assertNull(StrokeJournal.replay(mJournal, StrokeFile.open(file)));
+        assertNull(StrokeJournal.replay(new File(mFolder.getRoot(), "missing"), null));
+    }
+
+    @Test
+    public void continuesCheckpointStrokes() throws IOException {
+        Stroke finished = stroke(0, 10, true);
+        Stroke drawn = stroke(1, 10, false);
+        File file = mFolder.newFile();
+        StrokeFile.write(file, Arrays.asList(finished, drawn),
+                new Pose[]{Pose.IDENTITY}, 3);
+        StrokeFile.Reader checkpoint = StrokeFile.open(file);
+
+        Stroke continued = stroke(1, 25, false);
+        append(StrokeJournal.header(3),
+                StrokeJournal.points(continued, 10),
+                StrokeJournal.finish());
+        StrokeJournal.Replay replay = StrokeJournal.replay(mJournal, checkpoint);
+        assertEquals(2, replay.getStrokeCount());
+        Stroke stroke = replay.read(1);
+        assertEquals(continued.size(), stroke.size());
+        assertTrue(stroke.finished);
+        for (int i = 10; i < stroke.size(); i++) {
+            assertPoint(continued.get(i), stroke.get(i));
+        }
+
+        append(StrokeJournal.undo(), StrokeJournal.undo());
+        replay = StrokeJournal.replay(mJournal, checkpoint);
+        assertEquals(0, replay.getStrokeCount());
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.TestSnapshots;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replicas that receive the same lines and operations in different orders end with the same
+ * lines
+ */
+public class StrokeOpLogTest {
+
+    private static final String[] CREATORS = {"a", "b", "c"};
+
+    /**
+     * Something a replica receives: a line with its creator, or an operation
+     */
+    private static class Event {
+
+        final String key;
+
+        final String creator;
+
+        final Map<String, Object> op;
+
+        Event(String key, String creator, Map<String, Object> op) {
+            this.key = key;
+            this.creator = creator;
+            this.op = op;
+        }
+
+        void applyTo(StrokeOpLog replica) {
+            if (op == null) {
+                replica.addLine(key, creator);
+            } else {
+                replica.apply(key, TestSnapshots.of(key, op));
+            }
+        }
+    }
+
+    private static String key(int time) {
+        return String.format(Locale.US, "k%05d", time);
+    }
+
+    /**
+     * A room where participants draw, undo and clear. Every clear is written by a participant
+     * who has seen a random prefix of the lines.
+     */
+    private static List<Event> history(Random random, int length) {
+        List<Event> events = new ArrayList<>();
+        List<Event> lines = new ArrayList<>();
+        for (int time = 0; time < length; time++) {
+            int action = random.nextInt(10);
+            if (action < 6 || lines.isEmpty()) {
+                Event line = new Event(key(time), CREATORS[random.nextInt(CREATORS.length)],
+                        null);
+                lines.add(line);
+                events.add(line);
+            } else if (action < 9) {
+                Event line = lines.get(random.nextInt(lines.size()));
+                events.add(new Event(key(time), null, StrokeOpLog.removeOp(line.key)));
+            } else {
+                StrokeOpLog writer = new StrokeOpLog();
+                for (Event line : lines.subList(0, random.nextInt(lines.size() + 1))) {
+                    writer.addLine(line.key, line.creator);
+                }
+                String creator = CREATORS[random.nextInt(CREATORS.length)];
+                events.add(new Event(key(time), null, writer.clearOp(key(time), creator)));
+            }
+        }
+        return events;
+    }
+
+    private static Set<String> replay(List<Event> events) {
+        StrokeOpLog replica = new StrokeOpLog();
+        for (Event event : events) {
+            event.applyTo(replica);
+        }
+        return new HashSet<>(replica.getLineKeys());
+    }
+
+    @Test
+    public void convergesInAnyOrder() {
+        Random random = new Random(1);
+        for (int room = 0; room < 50; room++) {
+            List<Event> events = history(random, 60);
+            Set<String> expected = replay(events);
+            for (int replica = 0; replica < 10; replica++) {
+                List<Event> shuffled = new ArrayList<>(events);
+                Collections.shuffle(shuffled, random);
+                assertEquals("room " + room, expected, replay(shuffled));
+            }
+        }
+    }
+
+    @Test
+    public void convergesFromFoldedSnapshot() {
+        Random random = new Random(2);
+        for (int room = 0; room < 50; room++) {
+            List<Event> events = history(random, 60);
+            Set<String> expected = replay(events);
+
+            // the writer of the snapshot applied some operations, the joiner gets the rest
+            List<Event> ops = new ArrayList<>();
+            List<Event> lines = new ArrayList<>();
+            for (Event event : events) {
+                (event.op != null ? ops : lines).add(event);
+            }
+            Collections.shuffle(ops, random);
+            int folded = random.nextInt(ops.size() + 1);
+            StrokeOpLog writer = new StrokeOpLog();
+            for (Event op : ops.subList(0, folded)) {
+                op.applyTo(writer);
+            }
+            Map<String, Object> snapshot = writer.toSnapshotValue();
+
+            List<Event> rest = new ArrayList<>(ops.subList(folded, ops.size()));
+            rest.addAll(lines);
+            Collections.shuffle(rest, random);
+            StrokeOpLog joiner = new StrokeOpLog();
+            int split = random.nextInt(rest.size() + 1);
+            for (Event event : rest.subList(0, split)) {
+                event.applyTo(joiner);
+            }
+            if (snapshot != null) {
+                joiner.applySnapshot(TestSnapshots.of("ops", snapshot));
+                // the joiner listens for the operations from here on
+                assertTrue(joiner.getLastOpKey().compareTo(writer.getLastOpKey()) >= 0);
+            }
+            for (Event event : rest.subList(split, rest.size())) {
+                event.applyTo(joiner);
+            }
+            assertEquals("room " + room, expected, new HashSet<>(joiner.getLineKeys()));
+        }
+    }
+
+    @Test
+    public void keepsLinesDrawnDuringClear() {
+        StrokeOpLog writer = new StrokeOpLog();
+        writer.addLine(key(1), "a");
+        writer.addLine(key(2), "b");
+        Map<String, Object> clear = writer.clearOp(key(4), "a");
+
+        // b drew another line that the writer of the clear had not seen
+        StrokeOpLog replica = new StrokeOpLog();
+        replica.addLine(key(1), "a");
+        replica.addLine(key(2), "b");
+        replica.addLine(key(3), "b");
+        List<String> removed = replica.apply(key(4), TestSnapshots.of(key(4), clear));
+        assertEquals(new HashSet<>(Arrays.asList(key(1), key(2))), new HashSet<>(removed));
+        assertEquals(Collections.singleton(key(3)), replica.getLineKeys());
+        assertFalse(replica.addLine(key(2), "b"));
+        assertTrue(replica.addLine(key(5), "a"));
+    }
+
+    @Test
+    public void takesAppliedOpKeysOnce() {
+        StrokeOpLog replica = new StrokeOpLog();
+        for (int i = 0; i < 5; i++) {
+            replica.apply(key(i), TestSnapshots.of(key(i), StrokeOpLog.removeOp("x")));
+        }
+        assertEquals(Arrays.asList(key(0), key(1), key(2)), replica.takeOpKeysUpTo(key(2)));
+        assertEquals(Arrays.asList(key(3)), replica.takeOpKeysUpTo(key(3)));
+        assertEquals(key(4), replica.getLastOpKey());
+    }
+}
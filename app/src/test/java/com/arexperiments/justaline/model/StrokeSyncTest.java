@@ -0,0 +1,278 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.model;
+
+import com.arexperiments.justaline.transport.RoomTransport;
+import com.arexperiments.justaline.transport.TestSnapshots;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A stroke drawn on one device, written with {@link StrokeUploadState} and read on another with
+ * {@link StrokeDecodeState}, through a single line of an in-memory database
+ */
+public class StrokeSyncTest {
+
+    private Map<String, Object> mLine;
+
+    private final Random mRandom = new Random(1);
+
+    private float mX, mY, mZ;
+
+    /**
+     * Writes an update the way the database applies setValue() and updateChildren()
+     */
+    @SuppressWarnings("unchecked")
+    private void write(StrokeUpdate update) {
+        if (update.remove) {
+            mLine = null;
+        } else if (update.replace) {
+            mLine = new HashMap<>(update.values);
+        } else {
+            for (Map.Entry<String, Object> entry : update.values.entrySet()) {
+                String[] keys = entry.getKey().split("/");
+                Map<String, Object> node = mLine;
+                for (int i = 0; i < keys.length - 1; i++) {
+                    Object child = node.get(keys[i]);
+                    if (!(child instanceof Map)) {
+                        child = new HashMap<String, Object>();
+                        node.put(keys[i], child);
+                    }
+                    node = (Map<String, Object>) child;
+                }
+                node.put(keys[keys.length - 1], entry.getValue());
+            }
+        }
+    }
+
+    private RoomTransport.Snapshot read() {
+        return TestSnapshots.of("line", mLine);
+    }
+
+    private void draw(Stroke stroke, int count) {
+        for (int i = 0; i < count; i++) {
+            mX += 0.002f + mRandom.nextFloat() * 0.004f;
+            mY += (mRandom.nextFloat() - 0.5f) * 0.004f;
+            mZ += (mRandom.nextFloat() - 0.5f) * 0.004f;
+            stroke.add(new Vector3f(mX, mY, mZ));
+        }
+    }
+
+    private static void assertSamePoints(Stroke expected, Stroke stroke) {
+        assertEquals(expected.size(), stroke.size());
+        float tolerance = StrokeCodec.QUANTUM / 2 + 1e-6f;
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).x, stroke.get(i).x, tolerance);
+            assertEquals(expected.get(i).y, stroke.get(i).y, tolerance);
+            assertEquals(expected.get(i).z, stroke.get(i).z, tolerance);
+        }
+    }
+
+    @Test
+    public void appendsLogEntriesWhileDrawing() {
+        Stroke local = new Stroke();
+        local.setLineWidth(0.011f);
+        local.creator = "uid";
+        StrokeUploadState upload = new StrokeUploadState(true);
+        StrokeDecodeState decode = new StrokeDecodeState();
+
+        draw(local, 5);
+        write(upload.createUpdate(local));
+        Stroke remote = decode.decodeStroke(read());
+        remote.localLine = false;
+        assertSamePoints(local, remote);
+
+        for (int frame = 0; frame < 60; frame++) {
+            draw(local, 1 + mRandom.nextInt(4));
+            StrokeUpdate update = upload.createUpdate(local);
+            if (update == null) {
+                continue;
+            }
+            // only the new log entries and the tail are written while the stroke is drawn
+            assertFalse(update.replace);
+            for (String key : update.values.keySet()) {
+                assertTrue(key, key.startsWith(StrokeCodec.KEY_LOG + "/")
+                        || key.equals(StrokeCodec.KEY_TAIL));
+            }
+            write(update);
+
+            StrokeDelta delta = decode.decodeDelta(read());
+            assertNotNull(delta);
+            assertFalse(delta.finished);
+            // the stable points that were already decoded are not decoded again
+            assertTrue(delta.from >= remote.size() - StrokeCodec.POINTS_PER_CHUNK - 4);
+            remote.applyDelta(delta);
+            assertSamePoints(local, remote);
+            assertFalse(remote.finished);
+        }
+        assertNull(decode.decodeDelta(read()));
+
+        local.finishStroke();
+        StrokeUpdate finish = upload.createUpdate(local);
+        assertTrue(finish.replace);
+        write(finish);
+        assertTrue(StrokeCodec.isFinished(read()));
+        StrokeDelta delta = decode.decodeDelta(read());
+        assertTrue(delta.finished);
+        remote.applyDelta(delta);
+        assertSamePoints(local, remote);
+        assertTrue(remote.finished);
+        assertNull(upload.createUpdate(local));
+    }
+
+    @Test
+    public void mergedUpdatesWriteTheSameStroke() {
+        Stroke local = new Stroke();
+        local.setLineWidth(0.02f);
+        local.creator = "uid";
+        StrokeUploadState upload = new StrokeUploadState(true);
+
+        draw(local, 10);
+        StrokeUpdate merged = upload.createUpdate(local);
+        for (int i = 0; i < 20; i++) {
+            draw(local, 7);
+            StrokeUpdate update = upload.createUpdate(local);
+            if (update != null) {
+                merged.merge(update);
+            }
+        }
+        write(merged);
+        assertSamePoints(local, new StrokeDecodeState().decodeStroke(read()));
+
+        draw(local, 30);
+        merged = upload.createUpdate(local);
+        local.finishStroke();
+        merged.merge(upload.createUpdate(local));
+        write(merged);
+        assertTrue(StrokeCodec.isFinished(read()));
+        assertSamePoints(local, new StrokeDecodeState().decodeStroke(read()));
+    }
+
+    @Test
+    public void writesEveryChangeOfTheTail() {
+        Stroke local = new Stroke();
+        local.setLineWidth(0.011f);
+        local.creator = "uid";
+        StrokeUploadState upload = new StrokeUploadState(true);
+        draw(local, 3);
+        write(upload.createUpdate(local));
+        assertNull(upload.createUpdate(local));
+
+        // keeps the point count, as when add() drops a point with a low angle change
+        Vector3f last = local.get(local.size() - 1);
+        last.y += StrokeCodec.QUANTUM * 10;
+        StrokeUpdate update = upload.createUpdate(local);
+        assertNotNull(update);
+        write(update);
+        assertSamePoints(local, new StrokeDecodeState().decodeStroke(read()));
+        assertNull(upload.createUpdate(local));
+    }
+
+    @Test
+    public void rewritesAfterReset() {
+        Stroke local = new Stroke();
+        local.setLineWidth(0.011f);
+        local.creator = "uid";
+        StrokeUploadState upload = new StrokeUploadState(true);
+
+        draw(local, 100);
+        write(upload.createUpdate(local));
+        draw(local, 20);
+        // the write of this update failed and never reached the database
+        assertNotNull(upload.createUpdate(local));
+        upload.reset();
+
+        draw(local, 5);
+        StrokeUpdate update = upload.createUpdate(local);
+        assertTrue(update.replace);
+        write(update);
+        assertSamePoints(local, new StrokeDecodeState().decodeStroke(read()));
+    }
+
+    @Test
+    public void stopsPredictingFinishedStrokes() {
+        for (boolean compact : new boolean[]{false, true}) {
+            Stroke local = new Stroke();
+            local.setLineWidth(0.011f);
+            local.creator = "uid";
+            StrokeUploadState upload = new StrokeUploadState(compact);
+            StrokeDecodeState decode = new StrokeDecodeState();
+
+            draw(local, 5);
+            write(upload.createUpdate(local));
+            Stroke remote = decode.decodeStroke(read());
+            remote.localLine = false;
+            assertFalse(remote.finished);
+
+            // two changes written 100 ms apart, the last one 100 ms ago
+            long now = System.nanoTime();
+            for (long sentNanos : new long[]{now - 200000000L, now - 100000000L}) {
+                draw(local, 10);
+                write(upload.createUpdate(local));
+                StrokeDelta delta = decode.decodeDelta(read());
+                delta.sentNanos = sentNanos;
+                remote.applyDelta(delta);
+            }
+            remote.update();
+            assertTrue("compact " + compact, remote.isPredicted());
+
+            local.finishStroke();
+            write(upload.createUpdate(local));
+            assertTrue(StrokeCodec.isFinished(read()));
+            StrokeDelta delta = decode.decodeDelta(read());
+            assertTrue(delta.finished);
+            delta.sentNanos = System.nanoTime();
+            remote.applyDelta(delta);
+            remote.update();
+            assertTrue(remote.finished);
+            assertFalse(remote.isPredicted());
+            assertSamePoints(local, remote);
+
+            // a line that is already finished when it is first read
+            assertTrue(new StrokeDecodeState().decodeStroke(read()).finished);
+        }
+    }
+
+    @Test
+    public void redecodesFromChangedLineWidth() {
+        Stroke local = new Stroke();
+        local.setLineWidth(0.011f);
+        local.creator = "uid";
+        draw(local, 200);
+        local.finishStroke();
+        mLine = StrokeCodec.toFirebaseValue(local);
+        StrokeDecodeState decode = new StrokeDecodeState();
+        decode.decodeStroke(read());
+
+        local.setLineWidth(0.02f);
+        mLine = StrokeCodec.toFirebaseValue(local);
+        StrokeDelta delta = decode.decodeDelta(read());
+        assertEquals(0, delta.from);
+        assertEquals(local.size(), delta.points.size());
+        assertEquals(0.02f, delta.lineWidth, 1e-6f);
+    }
+}
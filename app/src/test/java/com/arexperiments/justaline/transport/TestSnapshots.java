@@ -0,0 +1,38 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.arexperiments.justaline.transport;
+
+/**
+ * Snapshots of values as the loopback backend stores them, for tests of the model codecs
+ */
+public class TestSnapshots {
+
+    private TestSnapshots() {
+    }
+
+    /**
+     * @return a snapshot of the value as if it had been written and read back
+     */
+    public static RoomTransport.Snapshot of(String key, Object value) {
+        return new LoopbackSnapshot(key, LoopbackValues.toStored(value));
+    }
+
+    /**
+     * @return the approximate size of the value on the wire
+     */
+    public static int size(Object value) {
+        return LoopbackValues.estimateSize(LoopbackValues.toStored(value));
+    }
+}